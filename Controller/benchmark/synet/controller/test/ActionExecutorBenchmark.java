@@ -0,0 +1,184 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.NodeManager;
+import synet.controller.Protocol.EsnDataTypes;
+import synet.controller.actions.ActionBase;
+import synet.controller.actions.ActionManager;
+import synet.controller.actions.ActionRequest;
+import synet.controller.actions.ActionRequest.EsnActionRequestStatus;
+import synet.controller.actions.IParameter;
+import synet.controller.messaging.MsgDispatcher;
+import synet.controller.utils.ExecutorFactory.EsnExecutorMode;
+import synet.controller.utils.Logger;
+
+/**
+ * Bursts thousands of actions that block for a radio round trip at the
+ * Action Manager in each executor mode. Logs how many ran, how many were
+ * rejected and how many ran at once.
+ *
+ * @author mkurdziel
+ *
+ */
+public class ActionExecutorBenchmark extends TestCase
+{
+    private static final String TAG = "ActionExecutorBenchmark";
+    private static final int C_NUM_ACTIONS = 2000;
+    private static final long C_BLOCK_MS = 200;
+    private static final long C_TIMEOUT_MS = 30000;
+
+    @Override
+    protected void setUp()
+    {
+        Logger.setOutputStreams(System.out, System.err);
+    }
+
+    /**
+     * The bounded pool turns most of a burst away
+     */
+    @Test
+    public void testPlatformBurst()
+    {
+        Result result = runBurst(EsnExecutorMode.PLATFORM);
+        report("platform", result);
+
+        assertEquals(C_NUM_ACTIONS, result.m_numExecuted + result.m_numError);
+        assertTrue(result.m_maxConcurrent <= 20);
+    }
+
+    /**
+     * One thread per task runs the whole burst at once with no rejections
+     */
+    @Test
+    public void testVirtualBurst()
+    {
+        Result result = runBurst(EsnExecutorMode.VIRTUAL);
+        report("virtual", result);
+
+        assertEquals(C_NUM_ACTIONS, result.m_numExecuted);
+        assertEquals(0, result.m_numRejected);
+    }
+
+    private void report(String p_mode, Result p_result)
+    {
+        Logger.i(TAG, String.format("%s: %d actions, %d executed, %d failed, %d rejected, %d at once",
+                p_mode, C_NUM_ACTIONS, p_result.m_numExecuted, p_result.m_numError,
+                p_result.m_numRejected, p_result.m_maxConcurrent));
+    }
+
+    /**
+     * Execute a burst of blocking actions and wait for all of them
+     */
+    private Result runBurst(EsnExecutorMode p_mode)
+    {
+        ActionManager am = ActionManager.getInstance();
+        am.setExecutorMode(p_mode);
+
+        Result result = new Result();
+        AtomicInteger running = new AtomicInteger();
+        long rejectedBefore = am.getNumRejected();
+
+        ArrayList<ActionRequest> requests = new ArrayList<ActionRequest>(C_NUM_ACTIONS);
+
+        for (int i=0; i<C_NUM_ACTIONS; ++i)
+        {
+            // Separate actions since one action only executes once at a time
+            requests.add(am.executeAction(new BlockingAction((short)i, running, result), C_TIMEOUT_MS));
+        }
+
+        for (ActionRequest request : requests)
+        {
+            request.getFuture().await(C_TIMEOUT_MS);
+            if (request.getStatus() == EsnActionRequestStatus.EXECUTED)
+            {
+                result.m_numExecuted++;
+            }
+            else
+            {
+                result.m_numError++;
+            }
+        }
+
+        result.m_numRejected = am.getNumRejected() - rejectedBefore;
+
+        am.stop();
+        return result;
+    }
+
+    /**
+     * Counts for one burst
+     */
+    private static class Result
+    {
+        private int m_numExecuted = 0;
+        private int m_numError = 0;
+        private long m_numRejected = 0;
+        private volatile int m_maxConcurrent = 0;
+
+        private synchronized void updateMaxConcurrent(int p_running)
+        {
+            if (p_running > m_maxConcurrent)
+            {
+                m_maxConcurrent = p_running;
+            }
+        }
+    }
+
+    /**
+     * Action whose execute blocks like a slow radio round trip
+     */
+    private static class BlockingAction extends ActionBase
+    {
+        private final AtomicInteger m_running;
+        private final Result m_result;
+
+        public BlockingAction(short p_actionId, AtomicInteger p_running, Result p_result)
+        {
+            super(p_actionId, EsnDataTypes.VOID);
+            m_running = p_running;
+            m_result = p_result;
+        }
+
+        @Override
+        public boolean execute(NodeManager p_nodeManager,
+                ActionManager p_actionManager, MsgDispatcher p_msgDispatcher,
+                long p_timeoutMilliseconds)
+        {
+            m_result.updateMaxConcurrent(m_running.incrementAndGet());
+            try
+            {
+                Thread.sleep(C_BLOCK_MS);
+            }
+            catch (InterruptedException e)
+            {
+                return false;
+            }
+            finally
+            {
+                m_running.decrementAndGet();
+            }
+            return true;
+        }
+
+        @Override
+        public String getActionType()
+        {
+            return "Blocking";
+        }
+
+        @Override
+        public void addParameter(IParameter p_parameter)
+        {
+            // No parameters
+        }
+    }
+}
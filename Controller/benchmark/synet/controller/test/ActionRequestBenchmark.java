@@ -0,0 +1,195 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import nu.xom.Builder;
+import nu.xom.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import synet.controller.actions.ActionManager;
+import synet.controller.actions.SequenceAction;
+import synet.controller.configuration.Configuration;
+import synet.controller.configuration.XMLConfiguration;
+import synet.controller.messaging.ActionRequestServer;
+import synet.controller.messaging.MsgAdapterNet;
+import synet.controller.messaging.MsgDispatcher;
+import synet.controller.messaging.ResponseCache;
+import synet.controller.utils.Logger;
+
+/**
+ * Compares the round trip of an action request through the query files
+ * and through the request server, and of polling the cached documents.
+ * Logs the average and percentile latency of each.
+ *
+ * @author mkurdziel
+ *
+ */
+public class ActionRequestBenchmark extends TestCase
+{
+    private static final String TAG = "ActionRequestBenchmark";
+    private static final int C_NUM_REQUESTS = 200;
+
+    @Override
+    protected void setUp()
+    {
+        Logger.setOutputStreams(System.out, System.err);
+    }
+
+    /**
+     * Round trip of a request through the server and through a query file
+     */
+    @Test
+    public void testLatency() throws Exception
+    {
+        File dir = File.createTempFile("requests", "");
+        dir.delete();
+        dir.mkdir();
+
+        // An empty sequence finishes as soon as it runs
+        ActionManager.getInstance().setMsgDispatcher(MsgDispatcher.getInstance());
+        SequenceAction action = ActionManager.getInstance().addSequenceAction();
+        String actionId = String.valueOf(action.getActionId());
+
+        Configuration config = new XMLConfiguration(new Element("config")).subset("net");
+        config.addProperty("requestMode", MsgAdapterNet.EsnRequestMode.BOTH.toString());
+        config.addProperty("requestPort", 0);
+        config.addProperty("persistSnapshot", false);
+
+        MsgAdapterNet adapter = new MsgAdapterNet(dir.getPath());
+        adapter.setConfiguration(config);
+        try
+        {
+            assertTrue(adapter.startAdapater());
+            URL url = new URL("http", "localhost", adapter.getRequestPort(), ActionRequestServer.C_STR_PATH);
+            File queryDir = new File(dir, "queries");
+
+            // Warm up
+            for (int i=0; i<20; ++i)
+            {
+                ActionRequestTest.assertResponse(ActionRequestTest.postRequest(url, actionId), actionId);
+                ActionRequestTest.assertResponse(ActionRequestTest.fileRequest(queryDir, actionId, i), actionId);
+            }
+
+            long[] server = new long[C_NUM_REQUESTS];
+            long[] file = new long[C_NUM_REQUESTS];
+            for (int i=0; i<C_NUM_REQUESTS; ++i)
+            {
+                long start = System.nanoTime();
+                ActionRequestTest.assertResponse(ActionRequestTest.postRequest(url, actionId), actionId);
+                server[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                ActionRequestTest.assertResponse(ActionRequestTest.fileRequest(queryDir, actionId, 1000 + i), actionId);
+                file[i] = System.nanoTime() - start;
+            }
+
+            report("server", server);
+            report("file  ", file);
+        }
+        finally
+        {
+            adapter.stopAdapter();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Polling a cached document with and without its ETag, against
+     * reading the newest file from disk
+     */
+    @Test
+    public void testCacheLatency() throws Exception
+    {
+        File dir = File.createTempFile("requests", "");
+        dir.delete();
+        dir.mkdir();
+
+        Configuration config = new XMLConfiguration(new Element("config")).subset("net");
+        config.addProperty("requestMode", MsgAdapterNet.EsnRequestMode.SERVER.toString());
+        config.addProperty("requestPort", 0);
+        config.addProperty("persistMode", "ATOMIC");
+        config.addProperty("persistSnapshot", false);
+
+        MsgAdapterNet adapter = new MsgAdapterNet(dir.getPath());
+        adapter.setConfiguration(config);
+        try
+        {
+            assertTrue(adapter.startAdapater());
+            ResponseCache cache = adapter.getResponseCache();
+            URL url = new URL("http", "localhost", adapter.getRequestPort(), ActionRequestServer.C_STR_CACHE_PATH + "info");
+
+            HttpURLConnection connection = ActionRequestTest.get(url, null);
+            assertEquals(200, connection.getResponseCode());
+            ActionRequestTest.readDocument(connection);
+            String etag = connection.getHeaderField("ETag");
+
+            long[] notModified = new long[C_NUM_REQUESTS];
+            long[] full = new long[C_NUM_REQUESTS];
+            long[] disk = new long[C_NUM_REQUESTS];
+            for (int i=0; i<C_NUM_REQUESTS; ++i)
+            {
+                long start = System.nanoTime();
+                connection = ActionRequestTest.get(url, etag);
+                assertEquals(304, connection.getResponseCode());
+                ActionRequestTest.readDocument(connection);
+                notModified[i] = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                connection = ActionRequestTest.get(url, null);
+                assertEquals(200, connection.getResponseCode());
+                ActionRequestTest.readDocument(connection);
+                full[i] = System.nanoTime() - start;
+
+                // What the Portal does without the cache
+                start = System.nanoTime();
+                File newest = null;
+                for (File file : dir.listFiles())
+                {
+                    if (file.getName().startsWith("info") && (newest == null || file.lastModified() > newest.lastModified()))
+                    {
+                        newest = file;
+                    }
+                }
+                assertNotNull(new Builder().build(newest));
+                disk[i] = System.nanoTime() - start;
+            }
+            assertEquals(1, cache.getNumLoads());
+
+            report("304   ", notModified);
+            report("200   ", full);
+            report("disk  ", disk);
+        }
+        finally
+        {
+            adapter.stopAdapter();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Log the average and percentiles of a set of round trips
+     */
+    private void report(String p_name, long[] p_nanos)
+    {
+        long[] sorted = p_nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long nanos : sorted)
+        {
+            total += nanos;
+        }
+        Logger.i(TAG, String.format("%s  avg: %6d us  p50: %6d us  p99: %6d us",
+                p_name, total / sorted.length / 1000,
+                sorted[sorted.length / 2] / 1000, sorted[sorted.length * 99 / 100] / 1000));
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.utils.ConcurrentLongMap;
+import synet.controller.utils.Logger;
+
+/**
+ * Compares the concurrent node registry with the old synchronized HashMap.
+ * Reader threads stand in for the RX path and node actions looking up
+ * nodes while one writer adds and removes nodes now and then. Logs
+ * lookups/sec for each.
+ *
+ * @author mkurdziel
+ *
+ */
+public class NodeRegistryBenchmark extends TestCase
+{
+    private static final String TAG = "NodeRegistryBenchmark";
+    private static final int C_NUM_NODES = 200;
+    private static final int C_NUM_READERS = 8;
+    private static final long C_RUN_MS = 1000;
+    private static final int C_NUM_RUNS = 3;
+
+    // Keeps the lookups from being optimized away
+    private final AtomicLong m_sink = new AtomicLong();
+
+    @Override
+    protected void setUp()
+    {
+        Logger.setOutputStreams(System.out, System.err);
+    }
+
+    /**
+     * Lookups under concurrent load
+     */
+    @Test
+    public void testGetNode() throws Exception
+    {
+        long[] nodeIds = new long[C_NUM_NODES];
+        Random rand = new Random(2);
+        for (int i=0; i<nodeIds.length; ++i)
+        {
+            // Xbee style 64 bit addresses
+            nodeIds[i] = 0x0013A20040000000L | rand.nextInt(0x00FFFFFF);
+        }
+
+        for (int run=0; run<C_NUM_RUNS; ++run)
+        {
+            long synced = runLoad(new SynchronizedRegistry(), nodeIds);
+            long striped = runLoad(new StripedRegistry(), nodeIds);
+
+            Logger.i(TAG, String.format("run %d  synchronized HashMap: %,d lookups/s  concurrent: %,d lookups/s  (%.1fx)",
+                    run, synced, striped, (double)striped / Math.max(1, synced)));
+        }
+    }
+
+    /**
+     * Run readers and a writer against a registry
+     *
+     * @return lookups per second
+     */
+    private long runLoad(final Registry p_registry, final long[] p_nodeIds) throws Exception
+    {
+        for (long nodeId : p_nodeIds)
+        {
+            p_registry.put(nodeId, new Object());
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong lookups = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(C_NUM_READERS + 1);
+
+        for (int i=0; i<C_NUM_READERS; ++i)
+        {
+            final int seed = i;
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    Random rand = new Random(seed);
+                    long count = 0;
+                    long found = 0;
+                    while (running.get())
+                    {
+                        if (p_registry.get(p_nodeIds[rand.nextInt(p_nodeIds.length)]) != null)
+                        {
+                            found++;
+                        }
+                        count++;
+                    }
+                    lookups.addAndGet(count);
+                    m_sink.addAndGet(found);
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        // A node joining or leaving every millisecond
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                Random rand = new Random(99);
+                while (running.get())
+                {
+                    long nodeId = p_nodeIds[rand.nextInt(p_nodeIds.length)];
+                    p_registry.remove(nodeId);
+                    p_registry.put(nodeId, new Object());
+                    try
+                    {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        break;
+                    }
+                }
+                done.countDown();
+            }
+        }.start();
+
+        Thread.sleep(C_RUN_MS);
+        running.set(false);
+        done.await();
+
+        return lookups.get() * 1000 / C_RUN_MS;
+    }
+
+    /**
+     * The registry operations being compared
+     */
+    private interface Registry
+    {
+        Object get(long p_nodeId);
+        void put(long p_nodeId, Object p_node);
+        void remove(long p_nodeId);
+    }
+
+    /**
+     * The old registry: a HashMap with every access synchronized
+     */
+    private static class SynchronizedRegistry implements Registry
+    {
+        private final HashMap<Long, Object> m_map = new HashMap<Long, Object>();
+
+        @Override
+        public Object get(long p_nodeId)
+        {
+            synchronized (m_map)
+            {
+                return m_map.get(p_nodeId);
+            }
+        }
+
+        @Override
+        public void put(long p_nodeId, Object p_node)
+        {
+            synchronized (m_map)
+            {
+                m_map.put(p_nodeId, p_node);
+            }
+        }
+
+        @Override
+        public void remove(long p_nodeId)
+        {
+            synchronized (m_map)
+            {
+                m_map.remove(p_nodeId);
+            }
+        }
+    }
+
+    /**
+     * The new registry
+     */
+    private static class StripedRegistry implements Registry
+    {
+        private final ConcurrentLongMap<Object> m_map = new ConcurrentLongMap<Object>();
+
+        @Override
+        public Object get(long p_nodeId)
+        {
+            return m_map.get(p_nodeId);
+        }
+
+        @Override
+        public void put(long p_nodeId, Object p_node)
+        {
+            m_map.put(p_nodeId, p_node);
+        }
+
+        @Override
+        public void remove(long p_nodeId)
+        {
+            m_map.remove(p_nodeId);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+
+import junit.framework.TestCase;
+
+import nu.xom.Builder;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import synet.controller.messaging.PersistenceSnapshot;
+import synet.controller.messaging.PersistenceStore;
+import synet.controller.messaging.PersistenceStore.EsnPersistMode;
+import synet.controller.utils.Logger;
+
+/**
+ * Compares startup reads of the persistence files from XML and from the
+ * binary snapshot. Logs the time to load every file each way.
+ *
+ * @author mkurdziel
+ *
+ */
+public class PersistenceSnapshotBenchmark extends TestCase
+{
+    private static final String TAG = "PersistenceSnapshotBenchmark";
+    private static final int C_NUM_NODES = 300;
+    private static final int C_NUM_RUNS = 5;
+
+    @Override
+    protected void setUp()
+    {
+        Logger.setOutputStreams(System.out, System.err);
+    }
+
+    /**
+     * Time to read every file from XML and from the snapshot
+     */
+    @Test
+    public void testStartup() throws Exception
+    {
+        File dir = PersistenceSnapshotTest.createDir();
+        try
+        {
+            PersistenceStore store = new PersistenceStore(dir, EsnPersistMode.ATOMIC, true);
+            store.write(PersistenceSnapshotTest.createNodeList(C_NUM_NODES), "nodelist");
+            for (int i=0; i<C_NUM_NODES; ++i)
+            {
+                store.write(PersistenceSnapshotTest.createCatalog(i), String.format("catalog_%016X", i));
+            }
+            store.writeSnapshot();
+            File snapshotFile = new File(dir, PersistenceStore.C_STR_SNAPSHOT_FILENAME);
+
+            long xmlBytes = 0;
+            LinkedHashMap<String, File> files = new LinkedHashMap<String, File>();
+            for (File file : store.getCurrentFiles())
+            {
+                if (file.getName().endsWith(PersistenceStore.C_STR_SUFFIX))
+                {
+                    files.put(file.getName(), file);
+                    xmlBytes += file.length();
+                }
+            }
+
+            long xmlNanos = Long.MAX_VALUE;
+            long snapshotNanos = Long.MAX_VALUE;
+            for (int run=0; run<C_NUM_RUNS; ++run)
+            {
+                long start = System.nanoTime();
+                Builder builder = new Builder();
+                for (File file : files.values())
+                {
+                    assertNotNull(builder.build(file));
+                }
+                xmlNanos = Math.min(xmlNanos, System.nanoTime() - start);
+
+                start = System.nanoTime();
+                PersistenceSnapshot snapshot = PersistenceSnapshot.load(snapshotFile);
+                for (String name : files.keySet())
+                {
+                    assertNotNull(snapshot.getDocument(name));
+                }
+                snapshotNanos = Math.min(snapshotNanos, System.nanoTime() - start);
+            }
+
+            Logger.i(TAG, String.format("%d files  xml: %d bytes %d ms  snapshot: %d bytes %d ms",
+                    files.size(), xmlBytes, xmlNanos / 1000000,
+                    snapshotFile.length(), snapshotNanos / 1000000));
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import nu.xom.Document;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import synet.controller.messaging.PersistenceStore;
+import synet.controller.messaging.PersistenceStore.EsnPersistMode;
+import synet.controller.utils.Logger;
+
+/**
+ * Compares write latency of timestamped and atomic persistence files as
+ * the net directory fills up with other files. Logs the average time
+ * per write for each directory size.
+ *
+ * @author mkurdziel
+ *
+ */
+public class PersistenceStoreBenchmark extends TestCase
+{
+    private static final String TAG = "PersistenceStoreBenchmark";
+    private static final int[] C_DIR_SIZES = { 0, 1000, 5000 };
+    private static final int C_NUM_WRITES = 100;
+
+    @Override
+    protected void setUp()
+    {
+        Logger.setOutputStreams(System.out, System.err);
+    }
+
+    /**
+     * Write latency as the directory grows
+     */
+    @Test
+    public void testWriteLatency() throws Exception
+    {
+        for (int dirSize : C_DIR_SIZES)
+        {
+            long timestamped = runWrites(EsnPersistMode.TIMESTAMPED, dirSize);
+            long atomic = runWrites(EsnPersistMode.ATOMIC, dirSize);
+
+            Logger.i(TAG, String.format("%5d files  timestamped: %6d us/write  atomic: %6d us/write",
+                    dirSize, timestamped, atomic));
+        }
+    }
+
+    /**
+     * @return the average microseconds per write
+     */
+    private long runWrites(EsnPersistMode p_mode, int p_dirSize) throws IOException
+    {
+        File dir = PersistenceStoreTest.createDir();
+        try
+        {
+            for (int i=0; i<p_dirSize; ++i)
+            {
+                FileUtils.touch(new File(dir, String.format("catalog_%016X.xml", i)));
+            }
+
+            PersistenceStore store = new PersistenceStore(dir, p_mode);
+            Document doc = PersistenceStoreTest.createNodeList();
+
+            // Warm up
+            store.write(doc, "nodelist");
+
+            long start = System.nanoTime();
+            for (int i=0; i<C_NUM_WRITES; ++i)
+            {
+                store.write(doc, "nodelist");
+            }
+            return (System.nanoTime() - start) / C_NUM_WRITES / 1000;
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
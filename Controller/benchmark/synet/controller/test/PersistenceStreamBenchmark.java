@@ -0,0 +1,164 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Elements;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import synet.controller.actions.NodeAction;
+import synet.controller.nodes.NodeBase;
+import synet.controller.utils.Logger;
+
+/**
+ * Compares reading persistence files as a document and streaming them in
+ * one record at a time. Logs the time and memory for a 1000 node node
+ * list and a 1000 function catalog.
+ *
+ * @author mkurdziel
+ *
+ */
+public class PersistenceStreamBenchmark extends TestCase
+{
+    private static final String TAG = "PersistenceStreamBenchmark";
+    private static final int C_NUM_NODES = 1000;
+    private static final int C_NUM_FUNCTIONS = 1000;
+    private static final int C_NUM_RUNS = 5;
+
+    @Override
+    protected void setUp()
+    {
+        Logger.setOutputStreams(System.out, System.err);
+    }
+
+    /**
+     * Time and memory for each way of reading
+     */
+    @Test
+    public void testThroughput() throws Exception
+    {
+        File dir = PersistenceStreamReaderTest.createDir();
+        try
+        {
+            File catalogFile = PersistenceStreamReaderTest.writeFile(dir, "catalog.xml",
+                    PersistenceStreamReaderTest.createCatalog(PersistenceStreamReaderTest.createActions(C_NUM_FUNCTIONS)));
+            File nodeListFile = PersistenceStreamReaderTest.writeFile(dir, "nodelist.xml",
+                    PersistenceStreamReaderTest.createNodeList(PersistenceStreamReaderTest.createNodes(C_NUM_NODES)));
+
+            long[] domCatalog = new long[] { Long.MAX_VALUE, 0 };
+            long[] streamCatalog = new long[] { Long.MAX_VALUE, 0 };
+            long[] domNodes = new long[] { Long.MAX_VALUE, 0 };
+            long[] streamNodes = new long[] { Long.MAX_VALUE, 0 };
+
+            for (int run=0; run<C_NUM_RUNS; ++run)
+            {
+                long start = System.nanoTime();
+                long allocated = getAllocatedBytes();
+                assertEquals(C_NUM_FUNCTIONS, readCatalog(catalogFile).size());
+                record(domCatalog, start, allocated);
+
+                start = System.nanoTime();
+                allocated = getAllocatedBytes();
+                assertEquals(C_NUM_FUNCTIONS, PersistenceStreamReaderTest.streamCatalog(catalogFile).size());
+                record(streamCatalog, start, allocated);
+
+                start = System.nanoTime();
+                allocated = getAllocatedBytes();
+                assertEquals(C_NUM_NODES, readNodeList(nodeListFile).size());
+                record(domNodes, start, allocated);
+
+                start = System.nanoTime();
+                allocated = getAllocatedBytes();
+                assertEquals(C_NUM_NODES, PersistenceStreamReaderTest.streamNodeList(nodeListFile).size());
+                record(streamNodes, start, allocated);
+            }
+
+            report("catalog  document", catalogFile, domCatalog);
+            report("catalog  stream  ", catalogFile, streamCatalog);
+            report("nodelist document", nodeListFile, domNodes);
+            report("nodelist stream  ", nodeListFile, streamNodes);
+
+            // The largest thing a stream ever holds is one record
+            System.gc();
+            long before = getUsedBytes();
+            Document doc = new Builder().build(catalogFile);
+            System.gc();
+            Logger.i(TAG, String.format("catalog document tree: %d KB held while reading", (getUsedBytes() - before) / 1024));
+            assertNotNull(doc);
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Keep the best time and the allocation of a run
+     */
+    private void record(long[] p_result, long p_start, long p_allocated)
+    {
+        p_result[0] = Math.min(p_result[0], System.nanoTime() - p_start);
+        p_result[1] = getAllocatedBytes() - p_allocated;
+    }
+
+    /**
+     * Log one result line
+     */
+    private void report(String p_name, File p_file, long[] p_result)
+    {
+        Logger.i(TAG, String.format("%s  %6d KB file  %5d ms  %7d KB allocated",
+                p_name, p_file.length() / 1024, p_result[0] / 1000000, p_result[1] / 1024));
+    }
+
+    /**
+     * @return bytes allocated by this thread, or 0 if the JVM can't say
+     */
+    private long getAllocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private long getUsedBytes()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private List<NodeAction> readCatalog(File p_file) throws Exception
+    {
+        List<NodeAction> actions = new ArrayList<NodeAction>();
+        Elements actionElements = new Builder().build(p_file).getRootElement().getFirstChildElement("actions").getChildElements();
+        for (int i=0; i<actionElements.size(); ++i)
+        {
+            actions.add(PersistenceStreamReaderTest.parseAction(actionElements.get(i), i+1));
+        }
+        return actions;
+    }
+
+    private List<NodeBase> readNodeList(File p_file) throws Exception
+    {
+        List<NodeBase> nodes = new ArrayList<NodeBase>();
+        Elements nodeElements = new Builder().build(p_file).getRootElement().getChildElements("node");
+        for (int i=0; i<nodeElements.size(); ++i)
+        {
+            nodes.add(new TestNode(nodeElements.get(i)));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.messaging.MsgFactoryXbee;
+import synet.controller.messaging.XbeeFrameDecoder;
+import synet.controller.test.XbeeFrameDecoderTest.ChunkedInputStream;
+import synet.controller.test.XbeeFrameDecoderTest.CountingListener;
+import synet.controller.utils.Logger;
+
+/**
+ * Compares the buffered Xbee frame decoder with the old byte at a time
+ * state machine. Logs frames/sec and bytes allocated per frame.
+ *
+ * @author mkurdziel
+ *
+ */
+public class XbeeFrameDecoderBenchmark extends TestCase
+{
+    private static final String TAG = "XbeeFrameDecoderBenchmark";
+    private static final int C_NUM_FRAMES = 200000;
+    private static final int C_NUM_RUNS = 5;
+
+    // How much the serial port hands over per read
+    private static final int C_READ_CHUNK = 64;
+
+    private long m_sink = 0;
+
+    @Override
+    protected void setUp()
+    {
+        Logger.setOutputStreams(System.out, System.err);
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testBenchmark() throws IOException
+    {
+        byte[] stream = createStream(C_NUM_FRAMES);
+
+        for (int run=0; run<C_NUM_RUNS; ++run)
+        {
+            // The first run is a warm up
+            boolean report = run > 0;
+
+            long start = System.nanoTime();
+            long allocStart = getAllocatedBytes();
+            LegacyDecoder legacy = new LegacyDecoder();
+            legacy.read(new ChunkedInputStream(stream, C_READ_CHUNK));
+            report(report, "legacy  ", legacy.m_numFrames, start, allocStart);
+
+            start = System.nanoTime();
+            allocStart = getAllocatedBytes();
+            CountingListener listener = new CountingListener();
+            XbeeFrameDecoder decoder = new XbeeFrameDecoder(listener);
+            decoder.read(new ChunkedInputStream(stream, C_READ_CHUNK));
+            report(report, "buffered", listener.m_numFrames, start, allocStart);
+
+            assertEquals(C_NUM_FRAMES, legacy.m_numFrames);
+            assertEquals(C_NUM_FRAMES, listener.m_numFrames);
+        }
+    }
+
+    /**
+     * Log one result line
+     */
+    private void report(boolean p_report, String p_name, long p_numFrames, long p_startNanos, long p_allocStart)
+    {
+        long elapsed = System.nanoTime() - p_startNanos;
+        long allocated = getAllocatedBytes() - p_allocStart;
+
+        if (p_report)
+        {
+            Logger.i(TAG, String.format("%s %,12.0f frames/sec %8.1f bytes/frame",
+                    p_name,
+                    p_numFrames * 1e9 / elapsed,
+                    p_allocStart < 0 ? Double.NaN : (double)allocated / p_numFrames));
+        }
+    }
+
+    /**
+     * @return bytes allocated by this thread, or -1 if the JVM can't tell us
+     */
+    private static long getAllocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Build a stream of TX status and RX frames like the coordinator sends
+     */
+    private static byte[] createStream(int p_numFrames) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] txStatus = new byte[] { 1, (byte)0xff, (byte)0xfe, 0, 0, 0 };
+        byte[] rx = new byte[11 + 24];
+        for (int i=0; i<rx.length; ++i)
+        {
+            rx[i] = (byte)i;
+        }
+
+        for (int i=0; i<p_numFrames; ++i)
+        {
+            if (i % 2 == 0)
+            {
+                XbeeFrameDecoderTest.writeFrame(out, MsgFactoryXbee.C_XBEE_API_ZIGBEE_TX_STATUS, txStatus);
+            }
+            else
+            {
+                XbeeFrameDecoderTest.writeFrame(out, MsgFactoryXbee.C_XBEE_API_ZIGBEE_RX, rx);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * The byte at a time state machine MsgAdapterXbee used before
+     */
+    private class LegacyDecoder
+    {
+        private static final int PACKET_START_BYTE = 0x7e;
+
+        private static final int PACKET_START = 0;
+        private static final int SIZE_MSB = 1;
+        private static final int SIZE_LSB = 2;
+        private static final int API = 3;
+        private static final int DATA = 4;
+        private static final int CHECKSUM = 5;
+
+        private int m_packetState = PACKET_START;
+        private int m_packetSize = 0;
+        private int m_packetDataIndex = 0;
+        private int m_packetChecksum = 0;
+        private int[] m_packetData = null;
+        private int m_numFrames = 0;
+
+        public void read(InputStream p_in) throws IOException
+        {
+            int data;
+            while ((data = p_in.read()) > -1)
+            {
+                decodePacketByte(data);
+            }
+        }
+
+        private void decodePacketByte(int data)
+        {
+            switch(m_packetState)
+            {
+                case PACKET_START:
+                    if(data == PACKET_START_BYTE)
+                    {
+                        m_packetState = SIZE_MSB;
+                    }
+                    break;
+                case SIZE_MSB:
+                    m_packetSize |= (data << 8);
+                    m_packetState = SIZE_LSB;
+                    break;
+                case SIZE_LSB:
+                    m_packetSize |= data;
+                    m_packetData = new int[m_packetSize];
+                    m_packetState = API;
+                    break;
+                case API:
+                    m_packetChecksum = addByte(m_packetChecksum, data);
+                    m_packetSize--;
+                    m_packetState = DATA;
+                    break;
+                case DATA:
+                    m_packetData[m_packetDataIndex++] = data;
+                    m_packetChecksum = addByte(m_packetChecksum, data);
+                    if (m_packetDataIndex == m_packetSize)
+                    {
+                        m_packetState = CHECKSUM;
+                    }
+                    break;
+                case CHECKSUM:
+                    if (data == 255 - m_packetChecksum)
+                    {
+                        m_numFrames++;
+                        m_sink += m_packetData[0];
+                    }
+                    m_packetState = PACKET_START;
+                    m_packetChecksum = 0;
+                    m_packetData = null;
+                    m_packetDataIndex = 0;
+                    m_packetSize = 0;
+                    break;
+            }
+        }
+
+        private int addByte(int p_lhs, int p_rhs)
+        {
+            p_lhs += p_rhs;
+            if( p_lhs > 255)
+            {
+                p_lhs -= 256;
+            }
+            return p_lhs;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.messaging.XbeeFrameEncoder;
+import synet.controller.test.XbeeFrameEncoderTest.CountingOutputStream;
+import synet.controller.test.XbeeFrameEncoderTest.LegacyEncoder;
+import synet.controller.utils.Logger;
+
+/**
+ * Compares the buffered Xbee frame encoder with the old byte at a time
+ * writes. Logs frames/sec and write calls per frame against an
+ * in-memory sink, and against the null device where available since
+ * every write there is a real system call like it is on the serial port.
+ *
+ * @author mkurdziel
+ *
+ */
+public class XbeeFrameEncoderBenchmark extends TestCase
+{
+    private static final String TAG = "XbeeFrameEncoderBenchmark";
+    private static final int C_NUM_FRAMES = 50000;
+    private static final String C_STR_NULL_DEVICE = "/dev/null";
+    private static final int C_NUM_RUNS = 5;
+
+    private static final byte[] C_ADDR64 = XbeeFrameEncoderTest.C_ADDR64;
+    private static final byte[] C_ADDR16 = XbeeFrameEncoderTest.C_ADDR16;
+
+    @Override
+    protected void setUp()
+    {
+        Logger.setOutputStreams(System.out, System.err);
+    }
+
+    /**
+     * Run the benchmark
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testBenchmark() throws IOException
+    {
+        Logger.i(TAG, "in-memory sink");
+        runBenchmark(null);
+
+        if (new File(C_STR_NULL_DEVICE).exists())
+        {
+            Logger.i(TAG, C_STR_NULL_DEVICE + " sink");
+            FileOutputStream nullDevice = new FileOutputStream(C_STR_NULL_DEVICE);
+            try
+            {
+                runBenchmark(nullDevice);
+            }
+            finally
+            {
+                nullDevice.close();
+            }
+        }
+    }
+
+    /**
+     * @param p_device stream the sinks pass writes on to, or null to stay in memory
+     * @throws IOException
+     */
+    private void runBenchmark(OutputStream p_device) throws IOException
+    {
+        byte[] payload = XbeeFrameEncoderTest.createPayload(12);
+
+        for (int run=0; run<C_NUM_RUNS; ++run)
+        {
+            // The first run is a warm up
+            boolean report = run > 0;
+
+            CountingOutputStream legacySink = new CountingOutputStream();
+            legacySink.m_device = p_device;
+            LegacyEncoder legacy = new LegacyEncoder(legacySink);
+            long start = System.nanoTime();
+            for (int i=0; i<C_NUM_FRAMES; ++i)
+            {
+                legacy.writeTxRequest(i & 0xff, C_ADDR64, C_ADDR16, payload);
+            }
+            report(report, "legacy  ", legacySink, start);
+
+            CountingOutputStream sink = new CountingOutputStream();
+            sink.m_device = p_device;
+            XbeeFrameEncoder encoder = new XbeeFrameEncoder(sink);
+            start = System.nanoTime();
+            for (int i=0; i<C_NUM_FRAMES; ++i)
+            {
+                encoder.writeTxRequest(i & 0xff, C_ADDR64, C_ADDR16, payload);
+            }
+            report(report, "buffered", sink, start);
+
+            assertEquals(legacySink.m_numBytes, sink.m_numBytes);
+            assertEquals(C_NUM_FRAMES, sink.m_numWrites);
+        }
+    }
+
+    /**
+     * Log one result line
+     */
+    private void report(boolean p_report, String p_name, CountingOutputStream p_sink, long p_startNanos)
+    {
+        long elapsed = System.nanoTime() - p_startNanos;
+
+        if (p_report)
+        {
+            Logger.i(TAG, String.format("%s %,12.0f frames/sec %6.1f writes/frame",
+                    p_name,
+                    C_NUM_FRAMES * 1e9 / elapsed,
+                    (double)p_sink.m_numWrites / C_NUM_FRAMES));
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.net.SocketException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import nu.xom.Attribute;
 import nu.xom.Element;
@@ -37,6 +38,8 @@ import synet.controller.messaging.messages.MsgBootloadTransmit;
 import synet.controller.messaging.messages.MsgConstants.EsnAPIBootloadTransmit;
 import synet.controller.nodes.MetaNode;
 import synet.controller.nodes.NodeBase;
+import synet.controller.utils.ExecutorFactory;
+import synet.controller.utils.ExecutorFactory.EsnExecutorMode;
 import synet.controller.utils.Logger;
 import synet.controller.utils.SysUtils;
 import synet.controller.utils.XmlUtils;
@@ -51,12 +54,15 @@ public class ConsoleServer
 
     private ConsoleServerThread m_serverThread;
 
-    private ArrayList<ConsoleClientServerThread> m_clientThreads = 
-        new ArrayList<ConsoleClientServerThread>();
+    private ArrayList<ConsoleClientHandler> m_clientThreads = 
+        new ArrayList<ConsoleClientHandler>();
 
     private NodeManager m_nodeManager;
     private ActionManager m_actionManager;
     private Configuration m_config;
+    private EsnExecutorMode m_executorMode = EsnExecutorMode.PLATFORM;
+    // Runs client sessions in virtual mode, null when each gets its own thread
+    private ExecutorService m_clientExecutor = null;
     private BufferedReader m_reader = null;
     private InputStreamReader m_inputStreamReader = null;
 
@@ -121,6 +127,13 @@ public class ConsoleServer
     {
         m_isRunning = true;
 
+        loadConfiguration();
+
+        if (m_executorMode == EsnExecutorMode.VIRTUAL)
+        {
+            m_clientExecutor = ExecutorFactory.newPerTaskExecutor("ConsoleClient");
+        }
+
         try
         {
             m_serverSocket = new ServerSocket(PORT);
@@ -163,14 +176,44 @@ public class ConsoleServer
             {
                 m_serverSocket.close();
             }
+            if (m_clientExecutor != null)
+            {
+                m_clientExecutor.shutdown();
+            }
         }
         catch (IOException e)
         {
             Logger.e(TAG, "Error closing", e);
         }
+
+        saveConfiguration();
+
         Logger.i(TAG, "stopped");
     }
 
+    /**
+     * Load any member variables from the configuration
+     */
+    private void loadConfiguration()
+    {
+        if (m_config != null)
+        {
+            m_executorMode = ExecutorFactory.parseMode(
+                    m_config.getString("executorMode", EsnExecutorMode.PLATFORM.toString()));
+        }
+    }
+
+    /**
+     * Save any member variables to the configuration
+     */
+    private void saveConfiguration()
+    {
+        if (m_config != null)
+        {
+            m_config.addProperty("executorMode", m_executorMode.toString());
+        }
+    }
+
     /**
      * Print the intro line
      * 
@@ -210,13 +253,21 @@ public class ConsoleServer
                     Socket clientSocket = m_serverSocket.accept();
                     Logger.i(TAG, "Socket accepted from " + clientSocket.getInetAddress());
 
-                    ConsoleClientServerThread clientThread = new ConsoleClientServerThread(clientSocket);
+                    ConsoleClientHandler client = new ConsoleClientHandler(clientSocket);
 
                     // Add him to our list
-                    m_clientThreads.add(clientThread);
+                    m_clientThreads.add(client);
 
-                    // Run the client thread
-                    clientThread.start();
+                    // Run the client on a virtual thread from the executor,
+                    // or on its own platform thread
+                    if (m_clientExecutor != null)
+                    {
+                        m_clientExecutor.execute(client);
+                    }
+                    else
+                    {
+                        new Thread(client, client.getName()).start();
+                    }
                 }
                 catch (SocketException e)
                 {
@@ -237,13 +288,13 @@ public class ConsoleServer
     /**
      * Boot all other clients
      */
-    private void bootOthers(ConsoleClientServerThread p_myThread)
+    private void bootOthers(ConsoleClientHandler p_myThread)
     {
         Logger.v(TAG, "Booting other clients from server");
 
         while(!m_clientThreads.isEmpty())
         {
-            ConsoleClientServerThread thread = m_clientThreads.remove(0);
+            ConsoleClientHandler thread = m_clientThreads.remove(0);
             if (thread != p_myThread)
             {
                 thread.shutDown();
@@ -257,11 +308,12 @@ public class ConsoleServer
     }
 
     /**
-     * Thread that runs when a client connection is accepted
+     * Runs a client connection once it is accepted
      */
-    public class ConsoleClientServerThread extends Thread
+    public class ConsoleClientHandler implements Runnable
     {
-        private static final String TAG = "ConsoleClientServerThread";
+        private static final String TAG = "ConsoleClientHandler";
+        private final String m_name;
         private Socket m_socket;
         private PrintWriter m_out;
         private BufferedReader m_in;
@@ -271,11 +323,11 @@ public class ConsoleServer
          * 
          * @param p_clientSocket
          */
-        public ConsoleClientServerThread(Socket p_clientSocket) 
+        public ConsoleClientHandler(Socket p_clientSocket) 
         {
             m_socket = p_clientSocket;
 
-            this.setName(TAG + " - " + p_clientSocket.getInetAddress());
+            m_name = TAG + " - " + p_clientSocket.getInetAddress();
 
             try
             {
@@ -288,8 +340,16 @@ public class ConsoleServer
             }
         }
 
+        /**
+         * @return the name for the thread running this client
+         */
+        public String getName()
+        {
+            return m_name;
+        }
+
         /* (non-Javadoc)
-         * @see java.lang.Thread#run()
+         * @see java.lang.Runnable#run()
          */
         @Override
         public void run() {
@@ -578,6 +638,48 @@ public class ConsoleServer
                                 sb.append("Incorrect number of options\n");
                             }
                         }
+                        // Add a barrier or set parallel execution
+                        else if(curLine.subSequence(2, 3).equals("b") ||
+                                curLine.subSequence(2, 3).equals("p"))
+                        {
+                            String[] tokens = curLine.split(" ");
+                            boolean isBarrier = curLine.subSequence(2, 3).equals("b");
+                            if (tokens.length == (isBarrier ? 2 : 3))
+                            {
+                                try
+                                {
+                                    short userActionId = (short)Long.parseLong(tokens[1].replaceFirst("0x", ""), 16);
+                                    IAction userAction = m_actionManager.getAction(userActionId);
+
+                                    if (userAction instanceof SequenceAction)
+                                    {
+                                        if (isBarrier)
+                                        {
+                                            ((SequenceAction)userAction).addBarrier();
+                                        }
+                                        else
+                                        {
+                                            ((SequenceAction)userAction).setIsParallel(Boolean.parseBoolean(tokens[2]));
+                                        }
+                                        m_actionManager.sendUserActionListUpdate();
+                                    }
+                                    else
+                                    {
+                                        sb.append("Could not find sequence action from ID\n");
+                                    }
+                                }
+                                catch (NumberFormatException e)
+                                {
+                                    sb.append("Incorrect number formatting\n");
+                                    sb.append(e.toString());
+                                    sb.append("\n");
+                                }
+                            }
+                            else
+                            {
+                                sb.append("Incorrect number of options\n");
+                            }
+                        }
                     }
                 }
                 else
@@ -1144,6 +1246,8 @@ public class ConsoleServer
         p_sb.append("U list the user actions\n");
         p_sb.append("Uas <name> add a new sequence action\n");
         p_sb.append("USa <userActionId> <addedActionId> <params> add to a sequence action\n");
+        p_sb.append("USb <userActionId> add a barrier to a sequence action\n");
+        p_sb.append("USp <userActionId> <true|false> run independent sequence items in parallel\n");
         p_sb.append("Ps <paramId> <value>  set the value of the parameter\n");
         p_sb.append("Pt <paramId> <type>  INPUT, CONSTANT, DEPENDENT\n");
     }
@@ -115,6 +115,7 @@ public class Controller {
         m_actionManager = ActionManager.getInstance();
         m_actionManager.setNodeManager(m_nodeManager);
         m_actionManager.setMsgDispatcher(m_msgDispatcher);
+        m_actionManager.setConfiguration(m_config.subset("actionManager"));
 
         // Create the console server
         m_consoleServer = new ConsoleServer(m_consoleServerPort);
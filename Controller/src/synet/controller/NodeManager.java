@@ -5,8 +5,11 @@ package synet.controller;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.joda.time.DateTime;
 
@@ -27,15 +30,21 @@ import synet.controller.messaging.messages.MsgParameterRequest;
 import synet.controller.messaging.messages.MsgParameterResponse;
 import synet.controller.messaging.messages.MsgSystemCatalogTransmit;
 import synet.controller.messaging.messages.MsgSystemNodelistTransmit;
+import synet.controller.messaging.messages.MsgTx;
 import synet.controller.nodes.NodeBase;
 import synet.controller.nodes.NodeBroadcast;
+import synet.controller.nodes.NodeDiscovery;
+import synet.controller.nodes.NodeInvestigationQueue;
 import synet.controller.nodes.NodeBase.EsnInvestigationStatusEnum;
 import synet.controller.nodes.NodeBase.EsnStatusEnum;
 import synet.controller.nodes.NodeUpdateStatus.BootloadStatusEnum;
 import synet.controller.nodes.NodeUpdateFile;
 import synet.controller.nodes.NodeUpdateStatus;
+import synet.controller.utils.ConcurrentLongMap;
 import synet.controller.utils.Logger;
 import synet.controller.utils.Pair;
+import synet.controller.utils.ResultFuture;
+import synet.controller.utils.ResultFuture.ResultListener;
 
 /**
  * 
@@ -48,6 +57,8 @@ public class NodeManager
     public static final int C_INVESTIGATE_INTERVAL_MS = 100; // 100 ms
     public static final int C_INVESTIGATE_TIMEOUT = 1000 * 5; // 2 second
     public static final int C_INVESTIGATE_RETRIES = 3; // Retry 3 times
+    public static final int C_DISCOVERY_WINDOW = 8; // Catalog and parameter requests out at once
+    public static final int C_UPDATE_WINDOW = 1; // Firmware pages in flight at once
 
     /*
      * Member variables
@@ -61,8 +72,10 @@ public class NodeManager
     private boolean m_isInvestigating;
 
     private NodeManagerThread m_nodeManagerThread = new NodeManagerThread();
-    private HashMap<Long, NodeBase> m_nodeMap = new HashMap<Long, NodeBase>();
-    private ArrayList<NodeBase> m_nodesToInvestigateList = new ArrayList<NodeBase>();
+    // Read on every inbound message and node action, written rarely
+    private ConcurrentLongMap<NodeBase> m_nodeMap = new ConcurrentLongMap<NodeBase>();
+    // Nodes being investigated, soonest next investigation first
+    private NodeInvestigationQueue m_nodesToInvestigateList = new NodeInvestigationQueue();
     private boolean m_isPeriodicCheck = true;
 
     private MsgDispatcher m_msgDispatcher;
@@ -70,7 +83,16 @@ public class NodeManager
 
     private NodeBroadcast m_broadcastNode = new NodeBroadcast();
 
-    private HashMap<Long, NodeUpdateStatus> m_updateStatusMap = new HashMap<Long, NodeUpdateStatus>();
+    private Map<Long, NodeUpdateStatus> m_updateStatusMap = new ConcurrentHashMap<Long, NodeUpdateStatus>();
+
+    // Requests out to each node being discovered, and how long each node
+    // took to be fully discovered
+    private Map<Long, NodeDiscovery> m_discoveryMap = new ConcurrentHashMap<Long, NodeDiscovery>();
+    private Map<Long, Long> m_discoveryTimeMap = new ConcurrentHashMap<Long, Long>();
+
+    // Statistics
+    private final AtomicLong m_numWakeups = new AtomicLong();
+    private final AtomicLong m_numInvestigations = new AtomicLong();
 
     // Settings from the configuration
     private Configuration m_config;
@@ -78,6 +100,8 @@ public class NodeManager
     private int m_query_interval_ms;
     private int m_investigate_timeout_ms;
     private int m_investigate_retry_num;
+    private int m_discovery_window = C_DISCOVERY_WINDOW;
+    private int m_update_window = C_UPDATE_WINDOW;
 
     public static synchronized NodeManager getInstance()
     {
@@ -125,6 +149,33 @@ public class NodeManager
         return m_nodesToInvestigateList.size();
     }
 
+    /**
+     * @return the number of times the node manager thread has woken up
+     */
+    public long getNumWakeups()
+    {
+        return m_numWakeups.get();
+    }
+
+    /**
+     * @param p_nodeId
+     * @return how long the node took to be fully discovered, in
+     *         milliseconds, or -1 if it hasn't been
+     */
+    public long getDiscoveryTimeMs(long p_nodeId)
+    {
+        Long time = m_discoveryTimeMap.get(p_nodeId);
+        return time == null ? -1 : time;
+    }
+
+    /**
+     * @return the number of investigation requests sent
+     */
+    public long getNumInvestigations()
+    {
+        return m_numInvestigations.get();
+    }
+
     /**
      * @return node for broadcasting to network
      */
@@ -153,6 +204,8 @@ public class NodeManager
         m_query_interval_ms = m_config.getInt("queryIntervalMs", C_QUERY_INTERVAL_MS);
         m_investigate_timeout_ms = m_config.getInt("investigateTimeoutMs", C_INVESTIGATE_TIMEOUT);
         m_investigate_retry_num = m_config.getInt("investigateRetryNum", C_INVESTIGATE_RETRIES);
+        m_discovery_window = m_config.getInt("discoveryWindow", C_DISCOVERY_WINDOW);
+        m_update_window = m_config.getInt("updateWindow", C_UPDATE_WINDOW);
     }
 
     /**
@@ -164,6 +217,8 @@ public class NodeManager
         m_config.addProperty("queryIntervalMs", m_query_interval_ms);
         m_config.addProperty("investigateTimeoutMs", m_investigate_timeout_ms);
         m_config.addProperty("investigateRetryNum", m_investigate_retry_num);
+        m_config.addProperty("discoveryWindow", m_discovery_window);
+        m_config.addProperty("updateWindow", m_update_window);
     }
 
     /**
@@ -352,15 +407,12 @@ public class NodeManager
      */
     private void checkForInvestigation(NodeBase p_node)
     {
-        synchronized(m_nodesToInvestigateList)
+        if(p_node.getInvestigationStatus() != EsnInvestigationStatusEnum.COMPLETED && 
+                !isBeingInvestigated(p_node))
         {
-            if(p_node.getInvestigationStatus() != EsnInvestigationStatusEnum.COMPLETED && 
-                    !m_nodesToInvestigateList.contains(p_node))
-            {
-                Logger.v(TAG, p_node.getDescString() + " needs investigating");
+            Logger.v(TAG, p_node.getDescString() + " needs investigating");
 
-                addNodeForInvestigation(p_node);
-            }
+            addNodeForInvestigation(p_node);
         }
     }
 
@@ -373,15 +425,15 @@ public class NodeManager
     {
         synchronized(m_nodesToInvestigateList)
         {
-            // Add the node to the investigation list
-            if (!m_nodesToInvestigateList.contains(p_node))
+            // Add the node to the investigation list, due now so it starts
+            // right away
+            long now = System.currentTimeMillis();
+            if (m_nodesToInvestigateList.add(p_node, now))
             {
                 Logger.v(TAG, "Adding " + p_node.getDescString() + " for investigation");
 
-                m_nodesToInvestigateList.add(p_node);
-
-                // Set the next investigation step to now so it starts right away
-                resetInvestigationAttempts(p_node);
+                p_node.setNumInvestigationRetries(0);
+                m_discoveryMap.put(p_node.getNodeId(), new NodeDiscovery(now));
             }
             else
             {
@@ -389,8 +441,21 @@ public class NodeManager
             }
 
             // Switch over to the investigation timer
-            setInvestigateInterval();
+            m_isInvestigating = true;
+            m_threadWaitMs = C_INVESTIGATE_INTERVAL_MS;
         }
+
+        // Outside the list lock since the thread takes it while holding its own
+        m_nodeManagerThread.notifyThread();
+    }
+
+    /**
+     * @param p_node
+     * @return true if the node is waiting to be investigated
+     */
+    private boolean isBeingInvestigated(NodeBase p_node)
+    {
+        return m_nodesToInvestigateList.contains(p_node);
     }
 
     /**
@@ -403,16 +468,24 @@ public class NodeManager
         synchronized(m_nodesToInvestigateList)
         {
             // remove the node to the investigation list
-            if (m_nodesToInvestigateList.contains(p_node))
+            if (m_nodesToInvestigateList.remove(p_node))
             {
                 Logger.v(TAG, "Removing " + p_node.getDescString() + " for investigation");
-                m_nodesToInvestigateList.remove(p_node);
             }
             else
             {
                 Logger.e(TAG, "re-removing node from investigation list: " + p_node.getDescString());
             }
 
+            NodeDiscovery discovery = m_discoveryMap.remove(p_node.getNodeId());
+            if (discovery != null && p_node.getInvestigationStatus() == EsnInvestigationStatusEnum.COMPLETED)
+            {
+                long elapsedMs = discovery.getElapsedMs(System.currentTimeMillis());
+                m_discoveryTimeMap.put(p_node.getNodeId(), elapsedMs);
+                Logger.i(TAG, String.format("%s discovered in %d ms with %d requests, %d resent",
+                        p_node.getDescString(), elapsedMs, discovery.getNumRequests(), discovery.getNumRetries()));
+            }
+
             if (m_nodesToInvestigateList.size() == 0)
             {
                 // Switch over to the interval timer
@@ -429,8 +502,12 @@ public class NodeManager
     private void resetInvestigationAttempts(NodeBase p_node)
     {
         Logger.v(TAG, "Resetting investigation attempts for " + p_node.getDescString() + " function " + p_node.getNextUnknownNodeAction());
-        p_node.setTimeNextInvestigation(new DateTime());
         p_node.setNumInvestigationRetries(0);
+        if (m_nodesToInvestigateList.schedule(p_node, System.currentTimeMillis()))
+        {
+            // Wake the thread to send the next step
+            m_nodeManagerThread.notifyThread();
+        }
         //		Logger.v(TAG, p_node.getDescString() + " reset investigation attempts");
     }
 
@@ -539,6 +616,12 @@ public class NodeManager
             node.setInvestigationStatus(EsnInvestigationStatusEnum.INFO);
         }
 
+        // The node answered, so if it's already being investigated the
+        // next step can go out now instead of at its timeout
+        if (isBeingInvestigated(node))
+        {
+            resetInvestigationAttempts(node);
+        }
         checkForInvestigation(node);
     }
 
@@ -557,17 +640,10 @@ public class NodeManager
      * @param p_nodeID
      * @return the node associated with the Node ID. Null if not found.
      */
-    public NodeBase getNode(Long p_nodeID)
+    public NodeBase getNode(long p_nodeID)
     {
-        synchronized(m_nodeMap)
-        {
-            // Look the ID up in the node map
-            if (m_nodeMap.containsKey(p_nodeID))
-            {
-                return m_nodeMap.get(p_nodeID);
-            }
-        }
-        return null;
+        // Lock free lookup
+        return m_nodeMap.get(p_nodeID);
     }
 
     /**
@@ -591,7 +667,7 @@ public class NodeManager
             // make sure that the version numbers match up
             refreshNodeInfos();
 
-            m_nextBroadcast.plus(m_threadWaitMs);
+            m_nextBroadcast = m_nextBroadcast.plus(m_threadWaitMs);
 
             synchronized(this)
             {
@@ -612,11 +688,11 @@ public class NodeManager
                         else if (m_isPeriodicCheck)
                         {
                             // Check to see if we need to broadcast
-                            if (m_nextBroadcast.isBeforeNow())
+                            if (!m_nextBroadcast.isAfterNow())
                             {
                                 refreshNodes();
 
-                                m_nextBroadcast.plus(m_threadWaitMs);
+                                m_nextBroadcast = new DateTime().plus(m_threadWaitMs);
                             }
 
                         }
@@ -624,14 +700,18 @@ public class NodeManager
                         // See if there is anything to be updated
                         checkNodesToUpdate();
 
-                        // Wait for the next one
-                        if (m_isPeriodicCheck || m_isInvestigating)
-                        {
-                            this.wait(m_threadWaitMs);
-                        } 
-                        else 
+                        // Sleep until the next thing is due, or until woken
+                        // because something new came in
+                        long waitMs = getWaitMs(System.currentTimeMillis());
+                        if (waitMs < 0)
                         {
                             this.wait();
+                            m_numWakeups.incrementAndGet();
+                        }
+                        else if (waitMs > 0)
+                        {
+                            this.wait(waitMs);
+                            m_numWakeups.incrementAndGet();
                         }
                     }
                     catch (InterruptedException e)
@@ -643,6 +723,41 @@ public class NodeManager
             Logger.d(TAG, "exiting");
         }
 
+        /**
+         * @param p_now
+         * @return milliseconds until the next investigation, broadcast or
+         *         update retry is due, 0 if one is due now or -1 if there's
+         *         nothing to wait for
+         */
+        private long getWaitMs(long p_now)
+        {
+            long deadline = Long.MAX_VALUE;
+
+            if (m_isInvestigating)
+            {
+                deadline = m_nodesToInvestigateList.getDeadline();
+            }
+            else if (m_isPeriodicCheck)
+            {
+                deadline = m_nextBroadcast.getMillis();
+            }
+
+            for (NodeUpdateStatus status : m_updateStatusMap.values())
+            {
+                if (status.getStatus() == BootloadStatusEnum.UNKNOWN)
+                {
+                    return 0;
+                }
+                deadline = Math.min(deadline, status.getTimeNextUpdate().getMillis());
+            }
+
+            if (deadline == Long.MAX_VALUE)
+            {
+                return -1;
+            }
+            return Math.max(0, deadline - p_now);
+        }
+
         /**
          * Check all the update status and initiate any updates
          */
@@ -686,9 +801,19 @@ public class NodeManager
         {
             synchronized(m_nodesToInvestigateList)
             {
-                for(int i=0; i<m_nodesToInvestigateList.size(); ++i)
+                // Only the nodes at the head of the queue are due
+                NodeBase node = m_nodesToInvestigateList.getDue(System.currentTimeMillis());
+                while (node != null)
                 {
-                    investigateNode(m_nodesToInvestigateList.get(i));
+                    investigateNode(node);
+
+                    // Investigating either moved the node back or removed it
+                    NodeBase next = m_nodesToInvestigateList.getDue(System.currentTimeMillis());
+                    if (next == node)
+                    {
+                        break;
+                    }
+                    node = next;
                 }
             }
         }
@@ -713,8 +838,11 @@ public class NodeManager
             }
             // First check to see that the current time is
             // beyond the next investigation checkpoint
-            else if (nextInvestigation.isBeforeNow())
+            else if (!nextInvestigation.isAfterNow())
             {
+                boolean isWindowed = false;
+                boolean isTimedOut = false;
+
                 Logger.v(TAG, "Investigating " + p_node.getDescString() + " function " + p_node.getNextUnknownNodeAction() + " Now:" + DateTime.now() + " NextInvestigation:" + p_node.getTimeNextInvestigation());
                 switch(p_node.getInvestigationStatus())
                 {
@@ -742,38 +870,44 @@ public class NodeManager
                     // Query until we have all the functions
                     case FUNCTION:
                     {
-                        int function = p_node.getNextUnknownNodeAction();
-
-                        if (function != 0)
+                        ArrayList<Integer> unknown = new ArrayList<Integer>();
+                        for (int function : p_node.getUnknownNodeActions())
                         {
-                            Logger.d(TAG, "Investigating FUNCTION " + function + " for " + p_node.getDescString());
-
-                            MsgCatalogRequest msg = new MsgCatalogRequest(p_node, function);
+                            unknown.add(NodeDiscovery.getKey(function, 0));
+                        }
 
-                            m_msgDispatcher.sendMessage(msg);		
+                        if (unknown.isEmpty())
+                        {
+                            // Nothing to ask for, so this counts as a retry
+                            // until the node says it's done or times out
+                            Logger.w(TAG, "Investigating full catalog for " + p_node.getDescString());
                         }
                         else
                         {
-                            Logger.w(TAG, "Investigating full catalog for " + p_node.getDescString());
+                            isWindowed = true;
+                            isTimedOut = !sendDiscoveryRequests(p_node, unknown);
                         }
                     }
                     break;
                     // Query until we have all the parameters
                     case PARAMETER:
                     {
-                        Pair<Integer> pair = p_node.getNextUnknownParameter();
-
-                        if (pair != null)
+                        ArrayList<Integer> unknown = new ArrayList<Integer>();
+                        for (Pair<Integer> pair : p_node.getUnknownParameters())
                         {
-                            Logger.d(TAG, "Investigating PARAMETER " + pair.first() + ":" + pair.second() + " for " + p_node.getDescString());
-
-                            MsgParameterRequest msg = new MsgParameterRequest(p_node, pair.first(), pair.second());
+                            unknown.add(NodeDiscovery.getKey(pair.first(), pair.second()));
+                        }
 
-                            m_msgDispatcher.sendMessage(msg);		
+                        if (unknown.isEmpty())
+                        {
+                            // Nothing to ask for, so this counts as a retry
+                            // until the node says it's done or times out
+                            Logger.w(TAG, "Investigating full parameters for " + p_node.getDescString());
                         }
                         else
                         {
-                            Logger.w(TAG, "Investigating full parameters for " + p_node.getDescString());
+                            isWindowed = true;
+                            isTimedOut = !sendDiscoveryRequests(p_node, unknown);
                         }
                     }
                     break;
@@ -783,16 +917,32 @@ public class NodeManager
                     }
                     break;
                 }
+                m_numInvestigations.incrementAndGet();
 
                 if(p_node.getInvestigationStatus() == EsnInvestigationStatusEnum.COMPLETED)
                 {
                     removeNodeForInvestigation(p_node);
 
                 }
+                else if (isTimedOut)
+                {
+                    Logger.i(TAG, "Investigating " + p_node.getDescString() + " has timed out");
+
+                    p_node.setInvestigationStatus(EsnInvestigationStatusEnum.TIMEOUT);
+                    removeNodeForInvestigation(p_node);
+                }
+                else if (isWindowed)
+                {
+                    // Come back when the oldest request times out, or sooner
+                    // if a response comes in
+                    m_nodesToInvestigateList.scheduleTimeout(p_node,
+                            getDiscovery(p_node).getNextTimeout(C_INVESTIGATE_TIMEOUT),
+                            System.currentTimeMillis(), C_INVESTIGATE_TIMEOUT);
+                }
                 else
                 {
                     p_node.setNumInvestigationRetries(p_node.getNumInvestigationRetries()+1);
-                    p_node.setTimeNextInvestigation(nextInvestigation.plus(C_INVESTIGATE_TIMEOUT));
+                    m_nodesToInvestigateList.scheduleRetry(p_node, System.currentTimeMillis(), C_INVESTIGATE_TIMEOUT);
                     Logger.v(TAG, "setting next investigation time for " + p_node.getDescString() + " function " + p_node.getNextUnknownNodeAction() + " to " + p_node.getTimeNextInvestigation());
                 }
 
@@ -802,6 +952,71 @@ public class NodeManager
             }
         }
 
+        /**
+         * Send the next window of catalog or parameter requests
+         * 
+         * @param p_node
+         * @param p_unknown keys of the entries still unknown, in order
+         * @return false if a request ran out of retries
+         */
+        private boolean sendDiscoveryRequests(NodeBase p_node, List<Integer> p_unknown)
+        {
+            final NodeDiscovery discovery = getDiscovery(p_node);
+            List<Integer> keys = discovery.next(p_unknown, m_discovery_window,
+                    C_INVESTIGATE_TIMEOUT, C_INVESTIGATE_RETRIES, System.currentTimeMillis());
+            if (keys == null)
+            {
+                return false;
+            }
+
+            for (final int key : keys)
+            {
+                int function = NodeDiscovery.getFunction(key);
+                int parameter = NodeDiscovery.getParameter(key);
+                MsgTx msg;
+                if (parameter == 0)
+                {
+                    Logger.d(TAG, "Investigating FUNCTION " + function + " for " + p_node.getDescString());
+
+                    msg = new MsgCatalogRequest(p_node, function);
+                }
+                else
+                {
+                    Logger.d(TAG, "Investigating PARAMETER " + function + ":" + parameter + " for " + p_node.getDescString());
+
+                    msg = new MsgParameterRequest(p_node, function, parameter);
+                }
+
+                // The rate limiter can hold requests back for a while, so
+                // only start the timeout once the request is out
+                msg.getSendFuture().addListener(new ResultListener<MsgTx>()
+                {
+                    @Override
+                    public void onResult(ResultFuture<MsgTx> p_sent)
+                    {
+                        discovery.markSent(key, System.currentTimeMillis());
+                    }
+                });
+                m_msgDispatcher.sendMessage(msg);
+            }
+            return true;
+        }
+
+        /**
+         * @param p_node
+         * @return the requests out to the node
+         */
+        private NodeDiscovery getDiscovery(NodeBase p_node)
+        {
+            NodeDiscovery discovery = m_discoveryMap.get(p_node.getNodeId());
+            if (discovery == null)
+            {
+                discovery = new NodeDiscovery(System.currentTimeMillis());
+                m_discoveryMap.put(p_node.getNodeId(), discovery);
+            }
+            return discovery;
+        }
+
         /**
          * Stop the thread
          */
@@ -845,6 +1060,31 @@ public class NodeManager
         m_nodeManagerThread.notifyThread();
     }
 
+    /**
+     * Add a node unless one with the same ID is already known. Lookups and
+     * adds can come from several receive lanes at once, so this is the way
+     * to register a node that was just looked up and not found.
+     * 
+     * @param p_nodeId
+     * @param p_node
+     * @return the node now registered under the ID, which is the existing
+     *         one if another thread added it first
+     */
+    public NodeBase addNodeIfAbsent(long p_nodeId, NodeBase p_node)
+    {
+        NodeBase existing = m_nodeMap.putIfAbsent(p_nodeId, p_node);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        Logger.v(TAG, "adding new node: " + p_node.getDescString());
+
+        // Wake up the thread and tell it to investigate
+        m_nodeManagerThread.notifyThread();
+        return p_node;
+    }
+
     /**
      * Send the node status request
      */
@@ -869,21 +1109,26 @@ public class NodeManager
         if (node != null)
         {
             m_nodesToInvestigateList.remove(node);
+            m_discoveryMap.remove(p_nodeId);
         }
         return node != null;
     }
 
     /**
-     * @return the current list of nodes
+     * @return a snapshot of the current nodes
      */
     public Collection<NodeBase> getNodeList()
     {
         return m_nodeMap.values();
     }
 
+    /**
+     * @return a snapshot of the current nodes
+     */
     public NodeBase[] getNodeArray()
     {
-        return m_nodeMap.values().toArray(new NodeBase[m_nodeMap.size()]);
+        Collection<NodeBase> nodes = m_nodeMap.values();
+        return nodes.toArray(new NodeBase[nodes.size()]);
     }
 
     /**
@@ -949,14 +1194,28 @@ public class NodeManager
     }
 
     /**
-     * Update the node with the given file
+     * Update the node with the given file, with the configured window
      * 
      * @param p_node
      * @param p_strFilename
      */
     public void updateNode(NodeBase p_node, String p_strFileName)
     {
-        Logger.i(TAG, "Updating node " + p_node.getDescString() + " with file " + p_strFileName);
+        updateNode(p_node, p_strFileName, m_update_window);
+    }
+
+    /**
+     * Update the node with the given file
+     * 
+     * @param p_node
+     * @param p_strFilename
+     * @param p_window pages in flight at once. Only use more than 1 for
+     *        bootloaders that ack each page and report an error for a
+     *        page out of sequence
+     */
+    public void updateNode(NodeBase p_node, String p_strFileName, int p_window)
+    {
+        Logger.i(TAG, "Updating node " + p_node.getDescString() + " with file " + p_strFileName + " window " + p_window);
 
         NodeUpdateFile file = new NodeUpdateFile(p_strFileName);
         if (file.parseFile())
@@ -965,6 +1224,7 @@ public class NodeManager
             // Create the update status, hash it, and wake up the
             // node manager to handle this
             NodeUpdateStatus status = new NodeUpdateStatus(p_node, file);
+            status.setWindow(p_window);
 
             // If the node is unknown and has only reported a HW reset,
             // this may be an initial load. Skip the reset and
@@ -989,6 +1249,16 @@ public class NodeManager
         }
     }
 
+    /**
+     * @param p_nodeId
+     * @return the progress of the node's update, or null if it isn't
+     *         being updated
+     */
+    public NodeUpdateStatus getUpdateStatus(long p_nodeId)
+    {
+        return m_updateStatusMap.get(p_nodeId);
+    }
+
     /**
      * Send out a reboot message to the node
      * 
@@ -1026,6 +1296,7 @@ public class NodeManager
         if (m_updateStatusMap.containsKey(node.getNodeId()))
         {
             NodeUpdateStatus status = m_updateStatusMap.get(node.getNodeId());
+            boolean isSendNext = true;
 
             switch(p_msg.getBootloadResponse())
             {
@@ -1033,18 +1304,46 @@ public class NodeManager
                 {
                     Logger.v(TAG, "node is ready to update. Starting update.");
                     status.setStatus(BootloadStatusEnum.DATA_TRANSMIT);
+                    status.markStarted(System.currentTimeMillis());
 
                 }
                 break;
                 case DATA_SUCCESS:
                 {
                     Logger.v(TAG, String.format("Node update data success. %s Address: %x", node.getDescString(), p_msg.getMemoryAddress()));
-                    status.markAsSent(p_msg.getMemoryAddress());
+                    int progress = status.getProgressPercent();
+                    boolean isNew;
+                    if (!status.isPipelined())
+                    {
+                        isNew = !status.isPageAcked(p_msg.getMemoryAddress());
+                        if (isNew)
+                        {
+                            status.markAsSent(p_msg.getMemoryAddress());
+                        }
+                    }
+                    else
+                    {
+                        isNew = status.ackPage(p_msg.getMemoryAddress(), System.currentTimeMillis());
+                    }
+
+                    if (isNew)
+                    {
+                        logUpdateProgress(node, status, progress);
+                    }
+                    else
+                    {
+                        // The page was already dealt with, so there's nothing new to send
+                        Logger.v(TAG, String.format("Duplicate ack from %s Address: %x", node.getDescString(), p_msg.getMemoryAddress()));
+                        isSendNext = false;
+                    }
                 }
                 break;
                 case BOOTLOAD_COMPLETE:
                 {
                     Logger.v(TAG, "Node update complete: " + node.getDescString());
+                    Logger.i(TAG, String.format("%s updated: %d pages in %d sends, %d resent, %d B/s",
+                            node.getDescString(), status.getNumPages(), status.getNumPagesSent(),
+                            status.getNumPagesResent(), status.getBytesPerSecond(System.currentTimeMillis())));
                     m_updateStatusMap.remove(node.getNodeId());
                     setQueryInterval();
                 }
@@ -1062,15 +1361,38 @@ public class NodeManager
                 case ERROR_START_BIT:
                 {
                     Logger.w(TAG, "Received error from updating device " + node.getDescString() + " " + p_msg.getBootloadResponse()); 
+
+                    // Go back to the failed page now rather than waiting on
+                    // its timeout. The node turns away every page after a
+                    // missing one, so the other errors for the window are
+                    // dropped
+                    if (status.isPipelined() && status.getStatus() == BootloadStatusEnum.DATA_TRANSMIT
+                            && status.getNumPagesInFlight() > 0)
+                    {
+                        long now = System.currentTimeMillis();
+                        for (int address : status.goBack(now))
+                        {
+                            sendUpdateDataPage(node, status, address);
+                        }
+                        status.setTimeNextUpdate(new DateTime(status.getNextTimeout(now)));
+                        isSendNext = false;
+                    }
                 }
                 break;
             }
             
             // We received an update message to reset the update attempts
-            resetUpdateAttempts(node);
+            if (isSendNext)
+            {
+                resetUpdateAttempts(node);
+            }
+            else
+            {
+                status.setNumRetries(0);
+            }
             
             // Send the next update if not complete
-            if(p_msg.getBootloadResponse() != EsnAPIBootloadResponse.BOOTLOAD_COMPLETE)
+            if(isSendNext && p_msg.getBootloadResponse() != EsnAPIBootloadResponse.BOOTLOAD_COMPLETE)
             {
 
                 sendNextUpdate(node, status);
@@ -1105,8 +1427,21 @@ public class NodeManager
             {
                 if (p_status.isComplete())
                 {
+                    // Send it once, then again only when the node hasn't
+                    // answered it in time
+                    if (!p_status.markCompleteSent() && p_status.getTimeNextUpdate().isAfterNow())
+                    {
+                        return;
+                    }
                     sendUpdateDataComplete(p_node);
                 }
+                else if (p_status.isPipelined())
+                {
+                    for (int address : p_status.getPagesToSend(System.currentTimeMillis()))
+                    {
+                        sendUpdateDataPage(p_node, p_status, address);
+                    }
+                }
                 else
                 {
                     sendUpdateDataNext(p_node, p_status);
@@ -1121,7 +1456,15 @@ public class NodeManager
         }
         
         p_status.setNumRetries(p_status.getNumRetries()+1);
-        p_status.setTimeNextUpdate(p_status.getTimeNextUpdate().plus(C_INVESTIGATE_TIMEOUT));
+        if (p_status.isPipelined() && p_status.getStatus() == BootloadStatusEnum.DATA_TRANSMIT)
+        {
+            // Wake up when the oldest page in flight times out
+            p_status.setTimeNextUpdate(new DateTime(p_status.getNextTimeout(System.currentTimeMillis())));
+        }
+        else
+        {
+            p_status.setTimeNextUpdate(p_status.getTimeNextUpdate().plus(C_INVESTIGATE_TIMEOUT));
+        }
         Logger.v(TAG, "setting next update time for " + p_node.getDescString() + " to " + p_status.getTimeNextUpdate());
     }
 
@@ -1137,13 +1480,43 @@ public class NodeManager
         m_msgDispatcher.sendMessage(msg); 
     }
 
+    /**
+     * Log the update progress each time it passes another 10 percent
+     * 
+     * @param p_node
+     * @param p_status
+     * @param p_lastProgress the progress before the last page
+     */
+    private void logUpdateProgress(NodeBase p_node, NodeUpdateStatus p_status, int p_lastProgress)
+    {
+        int progress = p_status.getProgressPercent();
+        if (progress / 10 != p_lastProgress / 10)
+        {
+            Logger.i(TAG, String.format("%s update %d%% (%d of %d pages) %d B/s, timeout %d ms",
+                    p_node.getDescString(), progress, p_status.getNumPagesAcked(), p_status.getNumPages(),
+                    p_status.getBytesPerSecond(System.currentTimeMillis()), p_status.getTimeoutMs()));
+        }
+    }
+
     /**
      * Send the next chunk of update data
      * @param p_status
      */
     private void sendUpdateDataNext(NodeBase p_node, NodeUpdateStatus p_status)
     {
-        int nextAddress = p_status.getNextAddress();
+        sendUpdateDataPage(p_node, p_status, p_status.getNextAddress());
+    }
+
+    /**
+     * Send the chunk of update data at an address
+     * 
+     * @param p_node
+     * @param p_status
+     * @param p_address
+     */
+    private void sendUpdateDataPage(NodeBase p_node, NodeUpdateStatus p_status, int p_address)
+    {
+        int nextAddress = p_address;
 
         byte[] dataBytes = new byte[p_node.getCodeUpdatePageSize()];
 
@@ -1182,13 +1555,12 @@ public class NodeManager
      */
     public void deleteNode(long p_nodeId)
     {
-        NodeBase node = m_nodeMap.get(p_nodeId);
+        NodeBase node = m_nodeMap.remove(p_nodeId);
         
         if (node != null)
         {
             Logger.i(TAG, "deleting node " + node.getDescString());
             // TODO: delete actions and parameters too
-            m_nodeMap.remove(p_nodeId);
         }
         else
         {
@@ -1203,13 +1575,9 @@ public class NodeManager
     {
         long uniqueId = (long)m_randGenerator.nextLong();
 
-        // We need to synchronize this so that we know it's truly unique
-        synchronized(m_nodeMap)
+        while(m_nodeMap.containsKey(uniqueId))
         {
-            while(m_nodeMap.get(uniqueId) != null)
-            {
-                uniqueId = m_randGenerator.nextLong();
-            }
+            uniqueId = m_randGenerator.nextLong();
         }
         return uniqueId;
     }
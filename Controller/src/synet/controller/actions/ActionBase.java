@@ -1,8 +1,7 @@
 package synet.controller.actions;
 
 import java.util.ArrayList;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Semaphore;
 
 import nu.xom.Attribute;
 import nu.xom.Element;
@@ -12,6 +11,7 @@ import synet.controller.Protocol.EsnDataTypes;
 import synet.controller.actions.ActionParameter.EsnActionParameterType;
 import synet.controller.messaging.MsgDispatcher;
 import synet.controller.utils.Logger;
+import synet.controller.utils.ResultFuture;
 import synet.controller.utils.XmlUtils;
 
 /**
@@ -35,7 +35,9 @@ public abstract class ActionBase implements IAction {
 	private String m_description = "";
 	private int m_numParameters = 0;
 	private ArrayList<IActionParameter> m_parameters = new ArrayList<IActionParameter>();
-	private Lock m_actionLock = new ReentrantLock(true);
+	// A semaphore rather than a lock so an asynchronous execution can be
+	// finished from whichever thread completes it
+	private Semaphore m_actionLock = new Semaphore(1, true);
     private EsnDataTypes m_returnType = EsnDataTypes.VOID;
     private String m_stringReturnValue = "";
 
@@ -214,7 +216,7 @@ public abstract class ActionBase implements IAction {
 	{
 		m_executeErrorString = "";
 		// Lock so this action can only be executed once at a time
-		m_actionLock.lock();
+		m_actionLock.acquireUninterruptibly();
 	}
 
 	/**
@@ -226,13 +228,38 @@ public abstract class ActionBase implements IAction {
 			MsgDispatcher p_msgDispatcher,
 			long p_timeoutMilliseconds);
 	
+	/**
+	 * Start executing the Action without blocking on the radio. Actions
+	 * that can't do this run execute() on the calling thread.
+	 * 
+	 * @return the execution result
+	 */
+	public ResultFuture<IAction> executeAsync(
+			NodeManager p_nodeManager, 
+			ActionManager p_actionManager,
+			MsgDispatcher p_msgDispatcher,
+			long p_timeoutMilliseconds)
+	{
+		ResultFuture<IAction> result = new ResultFuture<IAction>();
+		
+		if (execute(p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds))
+		{
+			result.complete(this);
+		}
+		else
+		{
+			result.fail(getExecuteErrorString());
+		}
+		return result;
+	}
+	
 	/**
 	 * Finish and unlock the execution
 	 */
 	public final void finishExecute()
 	{
 		// Release the action to the system
-		m_actionLock.unlock();
+		m_actionLock.release();
 	}
 	
 	/**
@@ -5,19 +5,30 @@ import java.util.HashMap;
 import java.util.Random;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import synet.controller.NodeManager;
 import synet.controller.Protocol.EsnDataTypes;
 import synet.controller.Protocol.EsnParamValidationTypes;
+import synet.controller.actions.ActionRequest.EsnActionRequestStatus;
+import synet.controller.configuration.Configuration;
 import synet.controller.messaging.MsgDispatcher;
 import synet.controller.messaging.messages.MsgSystemNodelistTransmit;
 import synet.controller.messaging.messages.MsgSystemUserActionListReceive;
 import synet.controller.messaging.messages.MsgSystemUserActionListTransmit;
 import synet.controller.nodes.NodeBase;
 import synet.controller.nodes.NodeBroadcast;
+import synet.controller.utils.ExecutorFactory;
+import synet.controller.utils.ExecutorFactory.EsnExecutorMode;
 import synet.controller.utils.Logger;
 
 public class ActionManager {
@@ -40,17 +51,27 @@ public class ActionManager {
 	private MsgDispatcher m_msgDispatcher;
 	
 	private NodeBroadcast m_broadcastNode = new NodeBroadcast();
+	private Configuration m_config;
 
 	// Threading for running the Actions
-	BlockingQueue<Runnable> m_threadPool = new ArrayBlockingQueue<Runnable>(MAX_ACTION_THREADS);
 	RejectedExecutionHandler m_rejectedExectionHandler = new RejectedActionExecutionHandler();
-	ThreadPoolExecutor m_actionExecutor = new ThreadPoolExecutor(
-			CORE_POOL_SIZE, 
-			MAX_POOL_SIZE, 
-			KEEP_ALIVE_TIME, 
-			TimeUnit.SECONDS, 
-			m_threadPool,
-			m_rejectedExectionHandler);
+	private EsnExecutorMode m_executorMode = EsnExecutorMode.PLATFORM;
+	private volatile ExecutorService m_actionExecutor = createPoolExecutor();
+	private AtomicLong m_numRejected = new AtomicLong();
+
+	// Single timer thread for the timeouts of asynchronous executions, so
+	// nothing has to block a pool thread to notice one
+	ScheduledExecutorService m_timeoutExecutor = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable p_runnable)
+				{
+					Thread thread = new Thread(p_runnable, "ActionTimeoutThread");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 
 
 	////////////////////////////////////////////////////////////	
@@ -101,6 +122,8 @@ public class ActionManager {
 	{
 		Logger.i(TAG, "Starting");
 
+		loadConfiguration();
+
 		if (m_nodeManager != null)
 		{
 			//			m_nodeManager.onNodeFunctionAdded(m_onNodeFunctionAdded);
@@ -117,12 +140,109 @@ public class ActionManager {
 	public void stop()
 	{
 		m_actionExecutor.shutdown();
+		m_timeoutExecutor.shutdownNow();
+		
+		saveConfiguration();
 		
 		m_instance = null;
 		
 		Logger.i(TAG, "Stopped");
 	}
 
+	/**
+	 * Set the configuration for the action manager
+	 * 
+	 * @param p_config
+	 */
+	public void setConfiguration(Configuration p_config)
+	{
+		m_config = p_config;
+	}
+
+	/**
+	 * Load any member variables from the configuration
+	 */
+	private void loadConfiguration()
+	{
+		if (m_config != null)
+		{
+			setExecutorMode(ExecutorFactory.parseMode(
+					m_config.getString("executorMode", EsnExecutorMode.PLATFORM.toString())));
+		}
+	}
+
+	/**
+	 * Save any member variables to the configuration
+	 */
+	private void saveConfiguration()
+	{
+		if (m_config != null)
+		{
+			m_config.addProperty("executorMode", m_executorMode.toString());
+		}
+	}
+
+	/**
+	 * Switch how actions are given threads. Actions already running
+	 * finish on the old executor.
+	 * 
+	 * @param p_mode
+	 */
+	public synchronized void setExecutorMode(EsnExecutorMode p_mode)
+	{
+		if (p_mode == m_executorMode)
+		{
+			return;
+		}
+
+		ExecutorService oldExecutor = m_actionExecutor;
+
+		if (p_mode == EsnExecutorMode.VIRTUAL)
+		{
+			m_actionExecutor = ExecutorFactory.newPerTaskExecutor("ActionRunner");
+		}
+		else
+		{
+			m_actionExecutor = createPoolExecutor();
+		}
+		m_executorMode = p_mode;
+
+		oldExecutor.shutdown();
+
+		Logger.i(TAG, "executor mode set to " + p_mode);
+	}
+
+	/**
+	 * @return how actions are given threads
+	 */
+	public synchronized EsnExecutorMode getExecutorMode()
+	{
+		return m_executorMode;
+	}
+
+	/**
+	 * @return the number of actions rejected because the pool was full
+	 */
+	public long getNumRejected()
+	{
+		return m_numRejected.get();
+	}
+
+	/**
+	 * @return the bounded pool used in platform mode
+	 */
+	private ThreadPoolExecutor createPoolExecutor()
+	{
+		BlockingQueue<Runnable> threadPool = new ArrayBlockingQueue<Runnable>(MAX_ACTION_THREADS);
+		return new ThreadPoolExecutor(
+				CORE_POOL_SIZE, 
+				MAX_POOL_SIZE, 
+				KEEP_ALIVE_TIME, 
+				TimeUnit.SECONDS, 
+				threadPool,
+				m_rejectedExectionHandler);
+	}
+
 	/**
 	 * Set the node manager to be used by the action manager
 	 * 
@@ -461,11 +581,13 @@ public class ActionManager {
 	}
 
 	/**
+	 * Execute an action with a specified timeout
+	 * 
 	 * @param p_action
 	 * @param p_timeoutMilliseconds
-	 * @return
+	 * @return the request, which has failed if the action was rejected
 	 */
-	private ActionRequest executeAction(IAction p_action, long p_timeoutMilliseconds)
+	public ActionRequest executeAction(IAction p_action, long p_timeoutMilliseconds)
 	{
 
 		ActionRequest request = new ActionRequest(p_action, p_timeoutMilliseconds);
@@ -475,8 +597,18 @@ public class ActionManager {
 			Logger.v(TAG, "executing " + p_action.getActionIdString());
 			
 			// Create a new action runner thread and put it in the pool
-			m_actionExecutor.execute(
-					new ActionRunnerThread(request, m_nodeManager, this, m_msgDispatcher) );
+			try
+			{
+				m_actionExecutor.execute(
+						new ActionRunnerThread(request, m_nodeManager, this, m_msgDispatcher) );
+			}
+			catch (RejectedExecutionException e)
+			{
+				// The executor is shut down
+				Logger.w(TAG, "rejecting " + p_action.getActionIdString() + " after stop");
+				request.setErrorMessage("action manager is stopped");
+				request.setExecuted(EsnActionRequestStatus.ERROR);
+			}
 		}
 		else
 		{
@@ -486,6 +618,27 @@ public class ActionManager {
 		return request;
 	}
 
+	/**
+	 * Run a task after a delay on the action timeout thread
+	 * 
+	 * @param p_task
+	 * @param p_delayMilliseconds
+	 * @return the scheduled task, which can be cancelled, or null if the
+	 * Action Manager is stopped
+	 */
+	public ScheduledFuture<?> scheduleTimeout(Runnable p_task, long p_delayMilliseconds)
+	{
+		try
+		{
+			return m_timeoutExecutor.schedule(p_task, p_delayMilliseconds, TimeUnit.MILLISECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			Logger.w(TAG, "not scheduling timeout after stop");
+			return null;
+		}
+	}
+
 	/**
 	 * Class to handle Actions that were rejected because the thread pool is full
 	 */
@@ -496,8 +649,16 @@ public class ActionManager {
 		@Override
 		public void rejectedExecution(Runnable arg0, ThreadPoolExecutor arg1)
 		{
-			// Handle this better
 			Logger.e(TAG, "Rejecting actions because the threadpool is full");
+			m_numRejected.incrementAndGet();
+
+			// Don't leave the requester waiting on an action that will never run
+			if (arg0 instanceof ActionRunnerThread)
+			{
+				ActionRequest request = ((ActionRunnerThread)arg0).getRequest();
+				request.setErrorMessage("action rejected because the thread pool is full");
+				request.setExecuted(EsnActionRequestStatus.ERROR);
+			}
 		}
 
 	}
@@ -7,7 +7,8 @@ import java.util.HashMap;
 /**
  * Map-based storage for Actions with helper methods. 
  * Actions need to be accessed efficiently so this class
- * can take care of the bookkeeping
+ * can take care of the bookkeeping. Access is synchronized
+ * since the dispatcher's receive lanes add actions concurrently.
  * 
  * @author kur57360
  *
@@ -40,7 +41,7 @@ public class ActionMap {
      * @param m_actionId
      * @return
      */
-    public IAction getAction(short p_actionId)
+    public synchronized IAction getAction(short p_actionId)
     {
         return m_actionById.get(p_actionId);
     }
@@ -50,7 +51,7 @@ public class ActionMap {
      * 
      * @param p_parameter
      */
-    public void addParameter(ParameterBase p_parameter)
+    public synchronized void addParameter(ParameterBase p_parameter)
     {
         m_parameterMap.put(p_parameter.getParameterId(), p_parameter);
     }
@@ -59,7 +60,7 @@ public class ActionMap {
      * @param p_parameterId
      * @return the parameter for the parameter ID
      */
-    public ParameterBase getParameter(short p_parameterId)
+    public synchronized ParameterBase getParameter(short p_parameterId)
     {
         return m_parameterMap.get(p_parameterId);
     }
@@ -69,7 +70,7 @@ public class ActionMap {
      * 
      * @param p_action
      */
-    public void add(IAction p_action) {
+    public synchronized void add(IAction p_action) {
         m_actionById.put(p_action.getActionId(), p_action);
     }
 
@@ -78,7 +79,7 @@ public class ActionMap {
      * 
      * @param p_action
      */
-    public void addUserAction(IAction p_action)
+    public synchronized void addUserAction(IAction p_action)
     {
         m_userActionList.add(p_action);
         add(p_action);
@@ -87,7 +88,7 @@ public class ActionMap {
     /**
      * @return a list of user-created actions
      */
-    public IAction[] getUserActions()
+    public synchronized IAction[] getUserActions()
     {
         return m_userActionList.toArray(new IAction[m_userActionList.size()]);
     }
@@ -97,7 +98,7 @@ public class ActionMap {
      * 
      * @param p_action
      */
-    public void addNodeAction(INodeAction p_action)
+    public synchronized void addNodeAction(INodeAction p_action)
     {
         add(p_action);
 
@@ -117,11 +118,13 @@ public class ActionMap {
      * @param p_nodeId
      * @return
      */
-    public ArrayList<INodeAction> getNodeActions(long p_nodeId)
+    public synchronized ArrayList<INodeAction> getNodeActions(long p_nodeId)
     {
+        // Hand back a copy since the receive lanes may add actions
+        // for other nodes while the caller is iterating
         if (m_nodeActionMap.containsKey(p_nodeId))
         {
-            return m_nodeActionMap.get(p_nodeId);
+            return new ArrayList<INodeAction>(m_nodeActionMap.get(p_nodeId));
         }
         return new ArrayList<INodeAction>();
     }
@@ -132,7 +135,7 @@ public class ActionMap {
      * @param p_nodeId
      * @param p_replacedAction
      */
-    public void removeNodeAction(long p_nodeId, INodeAction p_replacedAction)
+    public synchronized void removeNodeAction(long p_nodeId, INodeAction p_replacedAction)
     {
         ArrayList<INodeAction> actions = m_nodeActionMap.get(p_nodeId);
         if (actions != null)
@@ -140,4 +143,4 @@ public class ActionMap {
             actions.remove(p_replacedAction);
         }
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package synet.controller.actions;
 
 import synet.controller.utils.Logger;
+import synet.controller.utils.ResultFuture;
 
 /**
  * Class to represent an Action execution request.
@@ -24,6 +25,7 @@ public class ActionRequest {
 	private boolean m_isExecuted = false;
 	private String m_errorString = "";
 	private long m_timeoutMilliseconds;
+	private final ResultFuture<ActionRequest> m_future = new ResultFuture<ActionRequest>();
 
 	private IAction m_action;
 
@@ -31,6 +33,7 @@ public class ActionRequest {
 	{
 		if (p_action == null)
 		{
+			setErrorMessage("null action");
 			setExecuted(EsnActionRequestStatus.ERROR);
 			m_isExecuted = true;
 		}
@@ -76,6 +79,24 @@ public class ActionRequest {
 			m_isExecuted = true;
 			m_executionWaitObject.notifyAll();
 		}
+		
+		if (p_status == EsnActionRequestStatus.EXECUTED)
+		{
+			m_future.complete(this);
+		}
+		else
+		{
+			m_future.fail(m_errorString);
+		}
+	}
+	
+	/**
+	 * @return a future that completes with this request once the action
+	 * has executed, or fails with the error message
+	 */
+	public ResultFuture<ActionRequest> getFuture()
+	{
+		return m_future;
 	}
 
 	/**
@@ -101,17 +122,10 @@ public class ActionRequest {
 	 */
 	public boolean waitForExecution()
 	{
-		if (!m_isExecuted)
+		if (!m_future.await(m_timeoutMilliseconds) && Thread.currentThread().isInterrupted())
 		{
-			synchronized(m_executionWaitObject)
-			{
-				try {
-					m_executionWaitObject.wait(m_timeoutMilliseconds);
-				} catch (InterruptedException e) {
-					System.err.println("ActionRequest interrupted");
-					return false;
-				}
-			}
+			System.err.println("ActionRequest interrupted");
+			return false;
 		}
 		return m_status == EsnActionRequestStatus.EXECUTED;
 	}
@@ -4,6 +4,8 @@ import synet.controller.NodeManager;
 import synet.controller.actions.ActionRequest.EsnActionRequestStatus;
 import synet.controller.messaging.MsgDispatcher;
 import synet.controller.utils.Logger;
+import synet.controller.utils.ResultFuture;
+import synet.controller.utils.ResultFuture.ResultListener;
 
 public class ActionRunnerThread implements Runnable{
 	private static final String TAG = "ActionRunnerThread";
@@ -29,29 +31,45 @@ public class ActionRunnerThread implements Runnable{
 		m_msgDispatcher = p_msgDispatcher;
 	}
 
+	/**
+	 * @return the request this runner executes
+	 */
+	public ActionRequest getRequest()
+	{
+		return m_request;
+	}
+
 	@Override
 	public void run() {
-		IAction action = m_request.getAction();
+		final IAction action = m_request.getAction();
 		
 		action.prepareExecute();
 		
-		// Execution the action. We are in a thread here so we can do this
-		if ( action.execute(
+		// Start the action. This thread goes back to the pool as soon as the
+		// action is sent and the result comes in on whichever thread finishes it
+		action.executeAsync(
 				m_nodeManager, 
 				m_actionManager, 
 				m_msgDispatcher,
-				m_request.getTimeoutMilliseconds()))
-		{
-			m_request.setExecuted(EsnActionRequestStatus.EXECUTED);
-		}
-		else
+				m_request.getTimeoutMilliseconds()).addListener(new ResultListener<IAction>()
 		{
-			Logger.i(TAG, "action failed to execute");
-			m_request.setExecuted(EsnActionRequestStatus.ERROR);
-			m_request.setErrorMessage(action.getExecuteErrorString());
-		}
-		
-		action.finishExecute();
+			@Override
+			public void onResult(ResultFuture<IAction> p_result)
+			{
+				if (p_result.isSuccess())
+				{
+					m_request.setExecuted(EsnActionRequestStatus.EXECUTED);
+				}
+				else
+				{
+					Logger.i(TAG, "action failed to execute");
+					m_request.setErrorMessage(p_result.getErrorMsg());
+					m_request.setExecuted(EsnActionRequestStatus.ERROR);
+				}
+				
+				action.finishExecute();
+			}
+		});
 	}
 
 }
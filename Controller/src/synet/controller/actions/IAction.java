@@ -4,6 +4,7 @@ import nu.xom.Element;
 import synet.controller.NodeManager;
 import synet.controller.Protocol.EsnDataTypes;
 import synet.controller.messaging.MsgDispatcher;
+import synet.controller.utils.ResultFuture;
 
 public interface IAction
 {
@@ -109,6 +110,19 @@ public interface IAction
             MsgDispatcher p_msgDispatcher,
             long p_timeoutMilliseconds);
 
+    /**
+     * Start executing the Action without blocking on the radio. The
+     * result completes with this Action on success, or fails with the
+     * execution error string.
+     * 
+     * @return the execution result
+     */
+    ResultFuture<IAction> executeAsync(
+            NodeManager p_nodeManager, 
+            ActionManager p_actionManager,
+            MsgDispatcher p_msgDispatcher,
+            long p_timeoutMilliseconds);
+
     /**
      * Finish and unlock the execution
      */
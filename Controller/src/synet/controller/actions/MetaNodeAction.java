@@ -8,6 +8,7 @@ import synet.controller.NodeManager;
 import synet.controller.Protocol.EsnDataTypes;
 import synet.controller.messaging.MsgDispatcher;
 import synet.controller.utils.Logger;
+import synet.controller.utils.ResultFuture;
 
 public class MetaNodeAction implements INodeAction
 {
@@ -116,6 +117,14 @@ public class MetaNodeAction implements INodeAction
         return m_action.execute(p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds);
     }
 
+    @Override
+    public ResultFuture<IAction> executeAsync(NodeManager p_nodeManager,
+            ActionManager p_actionManager, MsgDispatcher p_msgDispatcher,
+            long p_timeoutMilliseconds)
+    {
+        return m_action.executeAsync(p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds);
+    }
+
     @Override
     public void finishExecute()
     {
@@ -2,6 +2,7 @@ package synet.controller.actions;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
 
 import nu.xom.Attribute;
 import nu.xom.Element;
@@ -9,9 +10,13 @@ import nu.xom.Element;
 import synet.controller.NodeManager;
 import synet.controller.Protocol.EsnDataTypes;
 import synet.controller.messaging.MsgDispatcher;
+import synet.controller.messaging.messages.MsgFunctionReceive;
 import synet.controller.messaging.messages.MsgFunctionTransmit;
+import synet.controller.messaging.messages.MsgTx;
 import synet.controller.nodes.NodeBase;
 import synet.controller.utils.Logger;
+import synet.controller.utils.ResultFuture;
+import synet.controller.utils.ResultFuture.ResultListener;
 import synet.controller.utils.XmlUtils;
 
 /**
@@ -20,7 +25,7 @@ import synet.controller.utils.XmlUtils;
  */
 public class NodeAction extends ActionBase implements INodeAction {
     private static final String TAG = "NodeAction";
-    private static final String TYPE = "Node";
+    private static final String TYPE = "Node";
 
 
     public long m_nodeId;
@@ -174,6 +179,11 @@ public class NodeAction extends ActionBase implements INodeAction {
                     // Set the string return value
                     setStringReturnValue(msg.getResponseMsg().getStringValue());
                 }
+                else if (msg.getIsResponseTimedOut())
+                {
+                    setExecuteErrorString("request sent but response timed out");
+                    return false;
+                }
                 else
                 {
                     setExecuteErrorString("request sent but no response received");
@@ -191,6 +201,123 @@ public class NodeAction extends ActionBase implements INodeAction {
         return false;
     }
 
+    /* (non-Javadoc)
+     * @see synet.controller.actions.ActionBase#executeAsync(synet.controller.NodeManager, synet.controller.actions.ActionManager, synet.controller.messaging.MsgDispatcher, long)
+     */
+    @Override
+    public ResultFuture<IAction> executeAsync(
+            NodeManager p_nodeManager,
+            ActionManager p_actionManager, 
+            MsgDispatcher p_msgDispatcher,
+            long p_timeoutMilliseconds) {
+
+        final ResultFuture<IAction> result = new ResultFuture<IAction>();
+
+        NodeBase destNode = p_nodeManager.getNode(this.getNodeId());
+
+        if (destNode == null)
+        {
+            Logger.w(TAG, super.getName() + " accessing invalid node: " + String.format("0x%x", getNodeId()));
+            failExecute(result, "invalid node");
+            return result;
+        }
+
+        Logger.v(TAG, String.format("executing action %s %d:%d] asynchronously", super.getName(), super.getNumParameters(),getParameters().length));
+
+        final MsgFunctionTransmit msg = new MsgFunctionTransmit(
+                destNode, 
+                getFunctionId(), 
+                super.getNumParameters(), 
+                getParameters(),
+                getReturnType());
+
+        // Give up after as long as the blocking execute would have waited
+        long timeout = msg.getNeedsReturn() ? 2 * p_timeoutMilliseconds : p_timeoutMilliseconds;
+        final ScheduledFuture<?> timer = p_actionManager.scheduleTimeout(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!msg.getIsSent())
+                {
+                    failExecute(result, "timed-out waiting or send notification");
+                }
+                else
+                {
+                    failExecute(result, "request sent but no response received");
+                }
+            }
+        }, timeout);
+
+        if (timer != null)
+        {
+            result.addListener(new ResultListener<IAction>()
+            {
+                @Override
+                public void onResult(ResultFuture<IAction> p_result)
+                {
+                    timer.cancel(false);
+                }
+            });
+        }
+
+        // Once it sends, wait on the response if there is one
+        msg.getSendFuture().addListener(new ResultListener<MsgTx>()
+        {
+            @Override
+            public void onResult(ResultFuture<MsgTx> p_sent)
+            {
+                if (!p_sent.isSuccess())
+                {
+                    failExecute(result, p_sent.getErrorMsg());
+                }
+                else if (msg.getNeedsReturn())
+                {
+                    msg.getResponseFuture().addListener(new ResultListener<MsgFunctionReceive>()
+                    {
+                        @Override
+                        public void onResult(ResultFuture<MsgFunctionReceive> p_response)
+                        {
+                            if (p_response.isSuccess())
+                            {
+                                // Set the string return value
+                                setStringReturnValue(p_response.getValue().getStringValue());
+                                result.complete(NodeAction.this);
+                            }
+                            else
+                            {
+                                failExecute(result, p_response.getErrorMsg());
+                            }
+                        }
+                    });
+                }
+                else
+                {
+                    result.complete(NodeAction.this);
+                }
+            }
+        });
+
+        p_msgDispatcher.sendMessage(msg);
+
+        return result;
+    }
+
+    /**
+     * Fail an asynchronous execution if it isn't already finished
+     * 
+     * @param p_result
+     * @param p_errorString
+     */
+    private void failExecute(ResultFuture<IAction> p_result, String p_errorString)
+    {
+        if (!p_result.isDone())
+        {
+            setExecuteErrorString(p_errorString);
+            p_result.fail(p_errorString);
+        }
+    }
+
     /* (non-Javadoc)
      * @see synet.controller.actions.ActionBase#getParameters()
      */
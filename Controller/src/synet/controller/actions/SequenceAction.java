@@ -4,6 +4,13 @@
 package synet.controller.actions;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nu.xom.Attribute;
 import nu.xom.Element;
@@ -12,6 +19,8 @@ import synet.controller.NodeManager;
 import synet.controller.Protocol.EsnDataTypes;
 import synet.controller.messaging.MsgDispatcher;
 import synet.controller.utils.Logger;
+import synet.controller.utils.ResultFuture;
+import synet.controller.utils.ResultFuture.ResultListener;
 import synet.controller.utils.XmlUtils;
 
 /**
@@ -25,11 +34,17 @@ public class SequenceAction extends ActionBase implements IAction
     private static final String C_STR_XML_ACTIONID = "actionId";
     private static final String C_STR_XML_ACTIONITEM = "actionItem";
     private static final String C_STR_XML_ACTIONITEMS = "actionItems";
+    private static final String C_STR_XML_PARALLEL = "parallel";
+    private static final String C_STR_XML_ITEMTYPE = "itemType";
+    private static final String C_STR_XML_BARRIER = "barrier";
     private final static String TAG = "SequenceAction";
     public final static String TYPE = "Sequence";
 
     private ArrayList<ActionItem> m_actions;
 
+    // Run independent items at the same time instead of one after another
+    private boolean m_isParallel = false;
+
     /**
      * @param p_actionId
      * @param p_returnType
@@ -71,6 +86,34 @@ public class SequenceAction extends ActionBase implements IAction
         }
     }
 
+    /**
+     * Add a barrier. In parallel mode every item before it finishes before
+     * any item after it starts.
+     */
+    public void addBarrier()
+    {
+        Logger.v(TAG, "barrier added to sequence action " + getActionIdString());
+        m_actions.add(new ActionItem(null));
+    }
+
+    /**
+     * Set whether independent items run at the same time
+     * 
+     * @param p_isParallel
+     */
+    public void setIsParallel(boolean p_isParallel)
+    {
+        m_isParallel = p_isParallel;
+    }
+
+    /**
+     * @return true if independent items run at the same time
+     */
+    public boolean getIsParallel()
+    {
+        return m_isParallel;
+    }
+
     /**
      * remove the action from the sequence action
      * 
@@ -78,7 +121,14 @@ public class SequenceAction extends ActionBase implements IAction
      */
     public void removeAction(ActionItem p_actionItem)
     {
-        Logger.v(TAG, p_actionItem.getAction().getActionIdString() + " removed from sequence action " + getActionIdString());
+        if (p_actionItem.isBarrier())
+        {
+            Logger.v(TAG, "barrier removed from sequence action " + getActionIdString());
+        }
+        else
+        {
+            Logger.v(TAG, p_actionItem.getAction().getActionIdString() + " removed from sequence action " + getActionIdString());
+        }
         m_actions.remove(p_actionItem);
     }
 
@@ -91,11 +141,35 @@ public class SequenceAction extends ActionBase implements IAction
             ActionManager p_actionManager, MsgDispatcher p_msgDispatcher,
             long p_timeoutMilliseconds)
     {
+        if (m_isParallel)
+        {
+            // Fan out and wait for everything to join
+            try
+            {
+                executeAsync(p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds).get();
+                return true;
+            }
+            catch (ExecutionException e)
+            {
+                return false;
+            }
+            catch (InterruptedException e)
+            {
+                setExecuteErrorString("interrupted waiting for parallel items");
+                return false;
+            }
+        }
+
         ActionManager am = ActionManager.getInstance();
 
         boolean retVal = true;
         for(ActionItem actionItem : m_actions)
         {
+            if (actionItem.isBarrier())
+            {
+                continue;
+            }
+
             IAction action = actionItem.getAction();
             for(ActionParameter param : actionItem.getParameters())
             {
@@ -107,6 +181,338 @@ public class SequenceAction extends ActionBase implements IAction
         return retVal;
     }
 
+    /* (non-Javadoc)
+     * @see synet.controller.actions.ActionBase#executeAsync(synet.controller.NodeManager, synet.controller.actions.ActionManager, synet.controller.messaging.MsgDispatcher, long)
+     */
+    @Override
+    public ResultFuture<IAction> executeAsync(NodeManager p_nodeManager,
+            ActionManager p_actionManager, MsgDispatcher p_msgDispatcher,
+            long p_timeoutMilliseconds)
+    {
+        ResultFuture<IAction> result = new ResultFuture<IAction>();
+
+        if (m_isParallel)
+        {
+            executeSegment(getSegments(), 0, true,
+                    p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds, result);
+        }
+        else
+        {
+            executeItem(flatten(getSegments()), 0, true, 
+                    p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Start every lane of a segment at once and move on to the next segment
+     * when the last lane finishes
+     */
+    private void executeSegment(
+            final List<List<ActionItem>> p_segments,
+            final int p_index,
+            final boolean p_isSuccess,
+            final NodeManager p_nodeManager,
+            final ActionManager p_actionManager, 
+            final MsgDispatcher p_msgDispatcher,
+            final long p_timeoutMilliseconds,
+            final ResultFuture<IAction> p_result)
+    {
+        if (p_index >= p_segments.size())
+        {
+            if (p_isSuccess)
+            {
+                p_result.complete(this);
+            }
+            else
+            {
+                p_result.fail(getExecuteErrorString());
+            }
+            return;
+        }
+
+        List<List<ActionItem>> lanes = getLanes(p_segments.get(p_index));
+        final AtomicInteger remaining = new AtomicInteger(lanes.size());
+        final AtomicBoolean isSuccess = new AtomicBoolean(p_isSuccess);
+
+        Logger.v(TAG, String.format("%s running segment %d in %d lanes", getActionIdString(), p_index, lanes.size()));
+
+        for (List<ActionItem> lane : lanes)
+        {
+            ResultFuture<IAction> laneResult = new ResultFuture<IAction>();
+            laneResult.addListener(new ResultListener<IAction>()
+            {
+                @Override
+                public void onResult(ResultFuture<IAction> p_laneResult)
+                {
+                    if (!p_laneResult.isSuccess())
+                    {
+                        isSuccess.set(false);
+                    }
+
+                    // The last lane to finish starts the next segment
+                    if (remaining.decrementAndGet() == 0)
+                    {
+                        executeSegment(p_segments, p_index + 1, isSuccess.get(),
+                                p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds, p_result);
+                    }
+                }
+            });
+
+            executeItem(lane, 0, true, 
+                    p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds, laneResult);
+        }
+    }
+
+    /**
+     * @return the items split up at each barrier
+     */
+    private List<List<ActionItem>> getSegments()
+    {
+        List<List<ActionItem>> segments = new ArrayList<List<ActionItem>>();
+        List<ActionItem> segment = new ArrayList<ActionItem>();
+
+        for (ActionItem actionItem : m_actions)
+        {
+            if (actionItem.isBarrier())
+            {
+                if (!segment.isEmpty())
+                {
+                    segments.add(segment);
+                    segment = new ArrayList<ActionItem>();
+                }
+            }
+            else
+            {
+                segment.add(actionItem);
+            }
+        }
+        if (!segment.isEmpty())
+        {
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * @return all the segments back in a single list, without barriers
+     */
+    private List<ActionItem> flatten(List<List<ActionItem>> p_segments)
+    {
+        List<ActionItem> items = new ArrayList<ActionItem>();
+        for (List<ActionItem> segment : p_segments)
+        {
+            items.addAll(segment);
+        }
+        return items;
+    }
+
+    /**
+     * Group a segment into lanes that can run at the same time. Items that
+     * depend on each other, directly or through another item, end up in
+     * the same lane in their original order.
+     * 
+     * @param p_items
+     * @return the lanes
+     */
+    private List<List<ActionItem>> getLanes(List<ActionItem> p_items)
+    {
+        // Union-find over the items
+        int[] parent = new int[p_items.size()];
+        for (int i=0; i<parent.length; ++i)
+        {
+            parent[i] = i;
+        }
+
+        for (int i=0; i<p_items.size(); ++i)
+        {
+            for (int j=i+1; j<p_items.size(); ++j)
+            {
+                if (isDependent(p_items.get(i), p_items.get(j)))
+                {
+                    parent[findLane(parent, j)] = findLane(parent, i);
+                }
+            }
+        }
+
+        LinkedHashMap<Integer, List<ActionItem>> lanes = new LinkedHashMap<Integer, List<ActionItem>>();
+        for (int i=0; i<p_items.size(); ++i)
+        {
+            int lane = findLane(parent, i);
+            List<ActionItem> items = lanes.get(lane);
+            if (items == null)
+            {
+                items = new ArrayList<ActionItem>();
+                lanes.put(lane, items);
+            }
+            items.add(p_items.get(i));
+        }
+
+        return new ArrayList<List<ActionItem>>(lanes.values());
+    }
+
+    private static int findLane(int[] p_parent, int p_index)
+    {
+        while (p_parent[p_index] != p_index)
+        {
+            p_parent[p_index] = p_parent[p_parent[p_index]];
+            p_index = p_parent[p_index];
+        }
+        return p_index;
+    }
+
+    /**
+     * Two items have to stay in order if they run the same action, go to
+     * the same node, or touch the same parameter in any way. Anything that
+     * isn't a node action could touch any node, so it stays in order with
+     * everything.
+     */
+    private static boolean isDependent(ActionItem p_first, ActionItem p_second)
+    {
+        IAction first = p_first.getAction();
+        IAction second = p_second.getAction();
+
+        if (first.getActionId() == second.getActionId())
+        {
+            return true;
+        }
+
+        if (!(first instanceof INodeAction) || !(second instanceof INodeAction))
+        {
+            return true;
+        }
+
+        if (((INodeAction)first).getNodeId() == ((INodeAction)second).getNodeId())
+        {
+            return true;
+        }
+
+        HashSet<Short> firstParams = getParameterIds(p_first);
+        for (Short paramId : getParameterIds(p_second))
+        {
+            if (firstParams.contains(paramId))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Every parameter an item could read or write: its own parameters, its
+     * action's parameters, and whatever each of those depends on, all the
+     * way down. A dependency that can't be looked up still counts.
+     */
+    private static HashSet<Short> getParameterIds(ActionItem p_item)
+    {
+        List<IParameter> params = new ArrayList<IParameter>(p_item.getParameters());
+        for (IParameter param : p_item.getAction().getParameters())
+        {
+            params.add(param);
+        }
+
+        HashSet<Short> ids = new HashSet<Short>();
+        addParameterIds(params, ids);
+        return ids;
+    }
+
+    /**
+     * Every parameter an action could read or write when it runs: its own
+     * parameters and whatever each of those depends on. For a sequence
+     * that reaches the parameters of every item's action.
+     *
+     * @param p_action
+     * @return the parameter IDs
+     */
+    public static HashSet<Short> getParameterIds(IAction p_action)
+    {
+        HashSet<Short> ids = new HashSet<Short>();
+        addParameterIds(Arrays.asList(p_action.getParameters()), ids);
+        return ids;
+    }
+
+    /**
+     * Add the parameters and the chain each one depends on
+     */
+    private static void addParameterIds(List<? extends IParameter> p_params, HashSet<Short> p_ids)
+    {
+        for (IParameter param : p_params)
+        {
+            p_ids.add(param.getParameterId());
+
+            // Follow the chain until it ends or loops back on itself
+            IParameter dependent = param;
+            while (dependent != null)
+            {
+                short dependentId = dependent.getDependentParamId();
+                dependent = ActionManager.getInstance().getParameter(dependentId);
+                if (dependent == null && dependentId != 0)
+                {
+                    p_ids.add(dependentId);
+                }
+                else if (dependent != null && !p_ids.add(dependentId))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Start one item of the sequence and chain the next one off its result
+     * so no thread waits while an item is in flight. Like execute(), a
+     * failed item doesn't stop the rest of the sequence.
+     */
+    private void executeItem(
+            final List<ActionItem> p_items,
+            final int p_index,
+            final boolean p_isSuccess,
+            final NodeManager p_nodeManager,
+            final ActionManager p_actionManager, 
+            final MsgDispatcher p_msgDispatcher,
+            final long p_timeoutMilliseconds,
+            final ResultFuture<IAction> p_result)
+    {
+        if (p_index >= p_items.size())
+        {
+            if (p_isSuccess)
+            {
+                p_result.complete(this);
+            }
+            else
+            {
+                p_result.fail(getExecuteErrorString());
+            }
+            return;
+        }
+
+        ActionManager am = ActionManager.getInstance();
+        ActionItem actionItem = p_items.get(p_index);
+
+        IAction action = actionItem.getAction();
+        for(ActionParameter param : actionItem.getParameters())
+        {
+            am.getParameter(param.getDependentParamId()).setValue(param.getStrValue());
+        }
+
+        action.executeAsync(p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds)
+            .addListener(new ResultListener<IAction>()
+        {
+            @Override
+            public void onResult(ResultFuture<IAction> p_itemResult)
+            {
+                if (!p_itemResult.isSuccess())
+                {
+                    setExecuteErrorString(p_itemResult.getErrorMsg());
+                }
+
+                executeItem(p_items, p_index + 1, p_isSuccess && p_itemResult.isSuccess(),
+                        p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds, p_result);
+            }
+        });
+    }
+
     /**
      * Internal class representing an action item in the sequence
      */
@@ -122,7 +528,15 @@ public class SequenceAction extends ActionBase implements IAction
         }
 
         /**
-         * @return the action for this item
+         * @return true if this item is a barrier instead of an action
+         */
+        public boolean isBarrier()
+        {
+            return m_action == null;
+        }
+
+        /**
+         * @return the action for this item, null for a barrier
          */
         public IAction getAction()
         {
@@ -154,6 +568,8 @@ public class SequenceAction extends ActionBase implements IAction
     {
         m_actions = new ArrayList<ActionItem>();
 
+        m_isParallel = Boolean.parseBoolean(XmlUtils.getXmlAttributeString(p_xml, C_STR_XML_PARALLEL, "false"));
+
         Element actionsElement = p_xml.getFirstChildElement(C_STR_XML_ACTIONITEMS);
 
         if (actionsElement != null)
@@ -162,6 +578,13 @@ public class SequenceAction extends ActionBase implements IAction
             for (int i=0; i<actionElements.size(); ++i)
             {
                 Element actionElement = actionElements.get(i);
+
+                if (C_STR_XML_BARRIER.equals(XmlUtils.getXmlAttributeString(actionElement, C_STR_XML_ITEMTYPE)))
+                {
+                    m_actions.add(new ActionItem(null));
+                    continue;
+                }
+
                 short actionId = XmlUtils.getXmlAttributeShort(actionElement, C_STR_XML_ACTIONID);
                 IAction action = ActionManager.getInstance().getAction(actionId);
                 if (action != null)
@@ -202,6 +625,7 @@ public class SequenceAction extends ActionBase implements IAction
         Element element = super.serialize();
 
         element.addAttribute(new Attribute("actionType", this.getActionType()));
+        element.addAttribute(new Attribute(C_STR_XML_PARALLEL, String.valueOf(m_isParallel)));
 
         // Serialize each action in the sequence
         Element actionsElement = new Element(C_STR_XML_ACTIONITEMS);
@@ -209,6 +633,14 @@ public class SequenceAction extends ActionBase implements IAction
         for(ActionItem actionItem : m_actions)
         {
             Element actionElement = new Element(C_STR_XML_ACTIONITEM);
+
+            if (actionItem.isBarrier())
+            {
+                actionElement.addAttribute(new Attribute(C_STR_XML_ITEMTYPE, C_STR_XML_BARRIER));
+                actionsElement.appendChild(actionElement);
+                continue;
+            }
+
             IAction action = actionItem.getAction();
             actionElement.addAttribute(new Attribute(C_STR_XML_ACTIONID, action.getActionIdString()));
             Element parametersElement = new Element(C_STR_XML_PARAMETERS);
@@ -244,10 +676,15 @@ public class SequenceAction extends ActionBase implements IAction
     {
         StringBuffer sb = new StringBuffer();
 
-        sb.append(String.format("%s[%s] - %s\n", getName(), getActionType(), getActionIdString()));
+        sb.append(String.format("%s[%s] - %s%s\n", getName(), getActionType(), getActionIdString(), m_isParallel ? " (parallel)" : ""));
         int i=1;
         for(ActionItem actionItem : m_actions)
         {
+            if (actionItem.isBarrier())
+            {
+                sb.append(String.format("\t%d) Barrier\n", i++));
+                continue;
+            }
             sb.append(String.format("\t%d) ActionItem: %s - %s\n", i++, actionItem.getAction().getActionIdString(), actionItem.getAction().getName()));
             for(ActionParameter parameter : actionItem.getParameters())
             {
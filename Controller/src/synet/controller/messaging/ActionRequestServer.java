@@ -0,0 +1,489 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.ParsingException;
+import nu.xom.Serializer;
+
+import synet.controller.utils.ExecutorFactory;
+import synet.controller.utils.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP endpoint for action requests.
+ *
+ * The Portal POSTs the same actionRequest XML it would otherwise drop in
+ * the queries directory and gets the actionResponse XML back as the reply,
+ * with no files, fsyncs or directory events in between. Connections are
+ * kept alive between requests. The server only listens on the loopback
+ * address. Each request gets its own thread since it blocks until the
+ * action finishes.
+ *
+ * Listening on loopback doesn't stop a web page in the user's browser
+ * from reaching the server. Requests that carry an Origin header, or
+ * name a host other than this one, as a DNS rebinding attack would, are
+ * turned away with a 403. Requests must also be sent as application/xml,
+ * which a page can't POST across sites without a preflight. Anything else
+ * gets a 415.
+ *
+ * With a response cache, GETs under the cache path return the cached
+ * documents with their generation as the ETag. A poll that sends back the
+ * current ETag in If-None-Match gets a 304 with no body.
+ *
+ * The JDK server writes the headers and the body of a reply separately, so
+ * with Nagle on a reply can wait out the client's delayed ack, around 40 ms
+ * on Linux. Run with -Dsun.net.httpserver.nodelay=true to turn Nagle off on
+ * the server's sockets.
+ *
+ * @author mkurdziel
+ *
+ */
+public class ActionRequestServer
+{
+    private static final String TAG = "ActionRequestServer";
+
+    public static final int C_PORT = 9001;
+    public static final String C_STR_PATH = "/actionRequest";
+    public static final String C_STR_CACHE_PATH = "/cache/";
+    private static final String C_STR_ENCODING = "ISO-8859-1";
+    private static final String C_STR_XML_TYPE = "application/xml";
+    private static final String C_STR_CONTENT_TYPE = C_STR_XML_TYPE + "; charset=" + C_STR_ENCODING;
+    private static final String[] C_STR_LOCAL_HOSTS = { "localhost", "127.0.0.1", "::1" };
+
+    // Seconds stop waits for running requests, long enough for an action
+    // to time out
+    public static final int C_STOP_DELAY_S = 6;
+
+    /**
+     * Runs a request
+     */
+    public interface Handler
+    {
+        /**
+         * @param p_request the actionRequest element
+         * @return the actionResponse element, or null if the request is bad
+         */
+        Element handle(Element p_request);
+    }
+
+    private final int m_port;
+    private final Handler m_handler;
+    private final ResponseCache m_cache;
+    private HttpServer m_server = null;
+    private ExecutorService m_executor = null;
+
+    // Requests being run, guarded by this
+    private int m_numRunning = 0;
+    private boolean m_isStopping = false;
+
+    // Statistics
+    private final AtomicLong m_numRequests = new AtomicLong();
+    private final AtomicLong m_numErrors = new AtomicLong();
+    private final AtomicLong m_numNotModified = new AtomicLong();
+
+    /**
+     * @param p_port the port to listen on, 0 for any free port
+     * @param p_handler
+     */
+    public ActionRequestServer(int p_port, Handler p_handler)
+    {
+        this(p_port, p_handler, null);
+    }
+
+    /**
+     * @param p_port the port to listen on, 0 for any free port
+     * @param p_handler
+     * @param p_cache documents to serve under the cache path, or null
+     */
+    public ActionRequestServer(int p_port, Handler p_handler, ResponseCache p_cache)
+    {
+        m_port = p_port;
+        m_handler = p_handler;
+        m_cache = p_cache;
+    }
+
+    /**
+     * Start listening
+     *
+     * @return true if the server is listening
+     */
+    public synchronized boolean start()
+    {
+        if (m_server != null)
+        {
+            return true;
+        }
+
+        try
+        {
+            m_server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), m_port), 0);
+        }
+        catch (IOException e)
+        {
+            Logger.e(TAG, "could not listen on port " + m_port, e);
+            return false;
+        }
+
+        m_isStopping = false;
+        m_executor = ExecutorFactory.newPerTaskExecutor(TAG);
+        m_server.setExecutor(m_executor);
+        m_server.createContext(C_STR_PATH, new RequestHandler());
+        if (m_cache != null)
+        {
+            m_server.createContext(C_STR_CACHE_PATH, new CacheHandler());
+        }
+        m_server.start();
+
+        Logger.i(TAG, "listening on port " + getPort());
+        return true;
+    }
+
+    /**
+     * Stop listening. New requests are turned away and requests already
+     * running get up to the stop delay to finish.
+     */
+    public synchronized void stop()
+    {
+        m_isStopping = true;
+
+        // The server's own stop delay always runs out in full on older
+        // JDKs, so wait for the running requests here instead
+        long deadline = System.currentTimeMillis() + C_STOP_DELAY_S * 1000L;
+        long remaining;
+        while (m_numRunning > 0 && (remaining = deadline - System.currentTimeMillis()) > 0)
+        {
+            try
+            {
+                wait(remaining);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (m_numRunning > 0)
+        {
+            Logger.w(TAG, "stopping with " + m_numRunning + " requests still running");
+        }
+
+        if (m_server != null)
+        {
+            m_server.stop(0);
+            m_server = null;
+        }
+        if (m_executor != null)
+        {
+            m_executor.shutdown();
+            m_executor = null;
+        }
+
+        Logger.i(TAG, toString());
+    }
+
+    /**
+     * @return the port being listened on, or -1 if stopped
+     */
+    public synchronized int getPort()
+    {
+        return m_server == null ? -1 : m_server.getAddress().getPort();
+    }
+
+    /**
+     * @return the number of requests received
+     */
+    public long getNumRequests()
+    {
+        return m_numRequests.get();
+    }
+
+    /**
+     * @return the number of requests that were turned away
+     */
+    public long getNumErrors()
+    {
+        return m_numErrors.get();
+    }
+
+    /**
+     * @return the number of cache polls answered with a 304
+     */
+    public long getNumNotModified()
+    {
+        return m_numNotModified.get();
+    }
+
+    /**
+     * @return false if the server is stopping and the request shouldn't run
+     */
+    private synchronized boolean startRequest()
+    {
+        if (m_isStopping)
+        {
+            return false;
+        }
+        m_numRunning++;
+        return true;
+    }
+
+    private synchronized void finishRequest()
+    {
+        m_numRunning--;
+        notifyAll();
+    }
+
+    /**
+     * @param p_exchange
+     * @return false if the request came from a web page or was sent to
+     *         another host name
+     */
+    private static boolean isLocalRequest(HttpExchange p_exchange)
+    {
+        if (p_exchange.getRequestHeaders().containsKey("Origin"))
+        {
+            return false;
+        }
+
+        // Only browsers need to be kept out, and they always send a host
+        String host = p_exchange.getRequestHeaders().getFirst("Host");
+        if (host == null)
+        {
+            return true;
+        }
+
+        // Strip the port, leaving the brackets off an IPv6 address
+        host = host.trim();
+        if (host.startsWith("["))
+        {
+            int end = host.indexOf(']');
+            host = end < 0 ? host : host.substring(1, end);
+        }
+        else if (host.indexOf(':') >= 0)
+        {
+            host = host.substring(0, host.indexOf(':'));
+        }
+
+        for (String local : C_STR_LOCAL_HOSTS)
+        {
+            if (local.equalsIgnoreCase(host))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param p_exchange
+     * @return true if the body is sent as application/xml
+     */
+    private static boolean isXmlRequest(HttpExchange p_exchange)
+    {
+        String type = p_exchange.getRequestHeaders().getFirst("Content-Type");
+        if (type == null)
+        {
+            return false;
+        }
+        int end = type.indexOf(';');
+        return C_STR_XML_TYPE.equalsIgnoreCase((end < 0 ? type : type.substring(0, end)).trim());
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("requests: %d errors: %d not modified: %d",
+                m_numRequests.get(), m_numErrors.get(), m_numNotModified.get());
+    }
+
+    /**
+     * Reads the request, runs it and writes the response
+     */
+    private class RequestHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange p_exchange) throws IOException
+        {
+            m_numRequests.incrementAndGet();
+
+            if (!startRequest())
+            {
+                reply(p_exchange, 503, null);
+                p_exchange.close();
+                return;
+            }
+
+            try
+            {
+                if (!"POST".equals(p_exchange.getRequestMethod()))
+                {
+                    reply(p_exchange, 405, null);
+                    return;
+                }
+                if (!isLocalRequest(p_exchange))
+                {
+                    Logger.w(TAG, "turning away request from " + p_exchange.getRequestHeaders().getFirst("Origin")
+                            + " for host " + p_exchange.getRequestHeaders().getFirst("Host"));
+                    reply(p_exchange, 403, null);
+                    return;
+                }
+                if (!isXmlRequest(p_exchange))
+                {
+                    reply(p_exchange, 415, null);
+                    return;
+                }
+
+                // Read the whole body first so the connection can be reused
+                byte[] body = readBody(p_exchange.getRequestBody());
+
+                Document request;
+                try
+                {
+                    request = new Builder().build(new ByteArrayInputStream(body));
+                }
+                catch (ParsingException e)
+                {
+                    Logger.w(TAG, "could not parse request: " + e.getMessage());
+                    reply(p_exchange, 400, null);
+                    return;
+                }
+
+                Element response = m_handler.handle(request.getRootElement());
+                reply(p_exchange, response == null ? 400 : 200, response);
+            }
+            catch (RuntimeException e)
+            {
+                Logger.e(TAG, "error handling request", e);
+                reply(p_exchange, 500, null);
+            }
+            finally
+            {
+                p_exchange.close();
+                finishRequest();
+            }
+        }
+
+        /**
+         * @return everything in the stream
+         */
+        private byte[] readBody(InputStream p_in) throws IOException
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            byte[] buffer = new byte[4096];
+            int numRead;
+            while ((numRead = p_in.read(buffer)) >= 0)
+            {
+                bytes.write(buffer, 0, numRead);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Send the status and response, if any
+         */
+        private void reply(HttpExchange p_exchange, int p_status, Element p_response) throws IOException
+        {
+            if (p_status != 200)
+            {
+                m_numErrors.incrementAndGet();
+            }
+
+            if (p_response == null)
+            {
+                p_exchange.sendResponseHeaders(p_status, -1);
+                return;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            Serializer serializer = new Serializer(bytes, C_STR_ENCODING);
+            serializer.write(new Document(p_response));
+
+            p_exchange.getResponseHeaders().set("Content-Type", C_STR_CONTENT_TYPE);
+            p_exchange.sendResponseHeaders(p_status, bytes.size());
+            OutputStream out = p_exchange.getResponseBody();
+            bytes.writeTo(out);
+            out.close();
+        }
+    }
+
+    /**
+     * Serves cached documents by name, such as /cache/nodelist
+     */
+    private class CacheHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange p_exchange) throws IOException
+        {
+            m_numRequests.incrementAndGet();
+
+            try
+            {
+                if (!"GET".equals(p_exchange.getRequestMethod()))
+                {
+                    m_numErrors.incrementAndGet();
+                    p_exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                if (!isLocalRequest(p_exchange))
+                {
+                    m_numErrors.incrementAndGet();
+                    p_exchange.sendResponseHeaders(403, -1);
+                    return;
+                }
+
+                String name = p_exchange.getRequestURI().getPath().substring(C_STR_CACHE_PATH.length());
+                ResponseCache.Response response = name.length() == 0 ? null : m_cache.get(name);
+                if (response == null)
+                {
+                    m_numErrors.incrementAndGet();
+                    p_exchange.sendResponseHeaders(404, -1);
+                    return;
+                }
+
+                p_exchange.getResponseHeaders().set("ETag", response.getETag());
+                if (response.getETag().equals(p_exchange.getRequestHeaders().getFirst("If-None-Match")))
+                {
+                    m_numNotModified.incrementAndGet();
+                    p_exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+
+                byte[] bytes = response.getBytes();
+                p_exchange.getResponseHeaders().set("Content-Type", C_STR_CONTENT_TYPE);
+                p_exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = p_exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+            catch (RuntimeException e)
+            {
+                Logger.e(TAG, "error serving cache", e);
+                m_numErrors.incrementAndGet();
+                p_exchange.sendResponseHeaders(500, -1);
+            }
+            finally
+            {
+                p_exchange.close();
+            }
+        }
+    }
+}
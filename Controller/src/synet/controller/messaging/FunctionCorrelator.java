@@ -0,0 +1,244 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import synet.controller.messaging.messages.MsgFunctionReceive;
+import synet.controller.messaging.messages.MsgFunctionTransmit;
+import synet.controller.utils.TimingWheel;
+
+/**
+ * Matches function receives up with the function transmits waiting on them.
+ *
+ * Every transmit gets a sequence number. Any number of transmits can be
+ * outstanding for the same node and action, and a receive goes to the
+ * oldest one since the node answers them in order. Transmits that never
+ * get an answer time out on a timing wheel and are failed.
+ *
+ * @author mkurdziel
+ *
+ */
+public class FunctionCorrelator
+{
+    public static final int C_TIMEOUT_MS = 10000;
+    public static final int C_TICK_MS = 100;
+    private static final int C_NUM_SLOTS = 512;
+
+    /**
+     * A transmit waiting for its receive
+     */
+    private static class Pending
+    {
+        private final MsgFunctionTransmit m_msg;
+        private TimingWheel.Timeout<Pending> m_timeout;
+
+        private Pending(MsgFunctionTransmit p_msg)
+        {
+            m_msg = p_msg;
+        }
+    }
+
+    // Node ID -> action index -> transmits, oldest first
+    private final HashMap<Long, HashMap<Integer, LinkedList<Pending>>> m_pendingMap =
+        new HashMap<Long, HashMap<Integer, LinkedList<Pending>>>();
+    private final TimingWheel<Pending> m_wheel;
+    private final long m_timeoutMs;
+
+    private long m_nextSequenceNumber = 1;
+    private int m_numPending = 0;
+
+    // Counters
+    private long m_numCorrelated = 0;
+    private long m_numExpired = 0;
+    private long m_numUnmatched = 0;
+
+    /**
+     * @param p_timeoutMs how long a transmit waits for its receive
+     */
+    public FunctionCorrelator(long p_timeoutMs)
+    {
+        m_timeoutMs = p_timeoutMs;
+        m_wheel = new TimingWheel<Pending>(C_TICK_MS, C_NUM_SLOTS);
+    }
+
+    /**
+     * Start waiting for the receive that answers a transmit
+     *
+     * @param p_msg
+     * @return the sequence number given to the transmit
+     */
+    public synchronized long add(MsgFunctionTransmit p_msg)
+    {
+        long nodeId = p_msg.getDestinationNode().getNodeId();
+
+        HashMap<Integer, LinkedList<Pending>> actions = m_pendingMap.get(nodeId);
+        // If there isn't a map for this node, create one
+        if (actions == null)
+        {
+            actions = new HashMap<Integer, LinkedList<Pending>>();
+            m_pendingMap.put(nodeId, actions);
+        }
+
+        LinkedList<Pending> pendingList = actions.get(p_msg.getActionIndex());
+        if (pendingList == null)
+        {
+            pendingList = new LinkedList<Pending>();
+            actions.put(p_msg.getActionIndex(), pendingList);
+        }
+
+        Pending pending = new Pending(p_msg);
+        p_msg.setSequenceNumber(m_nextSequenceNumber++);
+        pending.m_timeout = m_wheel.schedule(pending, m_timeoutMs, System.currentTimeMillis());
+        pendingList.addLast(pending);
+        m_numPending++;
+
+        return p_msg.getSequenceNumber();
+    }
+
+    /**
+     * Find the transmit a receive answers and stop waiting on it
+     *
+     * @param p_msg
+     * @return the oldest matching transmit, or null if none is waiting
+     */
+    public synchronized MsgFunctionTransmit correlate(MsgFunctionReceive p_msg)
+    {
+        long nodeId = p_msg.getSourceNode().getNodeId();
+        Pending pending = remove(nodeId, p_msg.getActionIndex(), null);
+
+        if (pending == null)
+        {
+            m_numUnmatched++;
+            return null;
+        }
+
+        m_wheel.cancel(pending.m_timeout);
+        m_numCorrelated++;
+        return pending.m_msg;
+    }
+
+    /**
+     * Time out every transmit whose wait is over
+     *
+     * @param p_nowMs current time in milliseconds
+     * @return the transmits that timed out
+     */
+    public synchronized List<MsgFunctionTransmit> expire(long p_nowMs)
+    {
+        List<MsgFunctionTransmit> expired = new ArrayList<MsgFunctionTransmit>();
+
+        for (Pending pending : m_wheel.advance(p_nowMs))
+        {
+            MsgFunctionTransmit msg = pending.m_msg;
+            if (remove(msg.getDestinationNode().getNodeId(), msg.getActionIndex(), pending) != null)
+            {
+                m_numExpired++;
+                expired.add(msg);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Take a pending transmit out of the map
+     *
+     * @param p_nodeId
+     * @param p_actionIndex
+     * @param p_pending the entry to remove, or null for the oldest
+     * @return the removed entry, or null if it wasn't there
+     */
+    private Pending remove(long p_nodeId, int p_actionIndex, Pending p_pending)
+    {
+        HashMap<Integer, LinkedList<Pending>> actions = m_pendingMap.get(p_nodeId);
+        if (actions == null)
+        {
+            return null;
+        }
+
+        LinkedList<Pending> pendingList = actions.get(p_actionIndex);
+        if (pendingList == null)
+        {
+            return null;
+        }
+
+        Pending pending = null;
+        if (p_pending == null)
+        {
+            pending = pendingList.pollFirst();
+        }
+        else if (pendingList.remove(p_pending))
+        {
+            pending = p_pending;
+        }
+
+        // Don't leave empty lists and maps behind
+        if (pendingList.isEmpty())
+        {
+            actions.remove(p_actionIndex);
+            if (actions.isEmpty())
+            {
+                m_pendingMap.remove(p_nodeId);
+            }
+        }
+
+        if (pending != null)
+        {
+            m_numPending--;
+        }
+        return pending;
+    }
+
+    /**
+     * @return the number of transmits waiting on a receive
+     */
+    public synchronized int getNumPending()
+    {
+        return m_numPending;
+    }
+
+    /**
+     * @return the number of receives matched to a transmit
+     */
+    public synchronized long getNumCorrelated()
+    {
+        return m_numCorrelated;
+    }
+
+    /**
+     * @return the number of transmits that timed out
+     */
+    public synchronized long getNumExpired()
+    {
+        return m_numExpired;
+    }
+
+    /**
+     * @return the number of receives nobody was waiting for
+     */
+    public synchronized long getNumUnmatched()
+    {
+        return m_numUnmatched;
+    }
+
+    /**
+     * @return how long a transmit waits for its receive
+     */
+    public long getTimeoutMs()
+    {
+        return m_timeoutMs;
+    }
+
+    /**
+     * @return a short description of the correlator and its counters
+     */
+    public synchronized String getDescription()
+    {
+        return String.format("pending: %d correlated: %d expired: %d unmatched: %d",
+                m_numPending, m_numCorrelated, m_numExpired, m_numUnmatched);
+    }
+}
@@ -100,6 +100,8 @@ public class MsgAdapterMeta extends MsgAdapterBase
                 processBootloadRequest((MsgBootloadTransmit)p_msg);
                 break;
         }
+        // Meta nodes live here, so the message is delivered once handled
+        p_msg.setIsSent();
     }
 
     /**
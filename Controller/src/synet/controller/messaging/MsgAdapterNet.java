@@ -4,18 +4,33 @@
 package synet.controller.messaging;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.lang3.StringUtils;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.comparator.LastModifiedFileComparator;
-import org.apache.commons.io.comparator.NameFileComparator;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 
@@ -37,6 +52,7 @@ import nu.xom.ParsingException;
 import nu.xom.Serializer;
 import nu.xom.ValidityException;
 
+import synet.controller.NodeManager;
 import synet.controller.Protocol.EsnDataTypes;
 import synet.controller.actions.ActionBase;
 import synet.controller.actions.ActionManager;
@@ -47,6 +63,8 @@ import synet.controller.actions.INodeParameter;
 import synet.controller.actions.NodeAction;
 import synet.controller.actions.NodeParameter;
 import synet.controller.actions.ParameterBase;
+import synet.controller.actions.SequenceAction;
+import synet.controller.messaging.PersistenceStore.EsnPersistMode;
 import synet.controller.messaging.messages.MsgConstants;
 import synet.controller.messaging.messages.MsgSystemCatalogTransmit;
 import synet.controller.messaging.messages.MsgSystemNodelistReceive;
@@ -56,6 +74,7 @@ import synet.controller.messaging.messages.MsgSystemUserActionListTransmit;
 import synet.controller.messaging.messages.MsgTx;
 import synet.controller.nodes.NodeBase;
 import synet.controller.nodes.NodeNet;
+import synet.controller.utils.ExecutorFactory;
 import synet.controller.utils.Logger;
 import synet.controller.utils.SysUtils;
 import synet.controller.utils.XmlUtils;
@@ -67,6 +86,7 @@ import synet.controller.utils.XmlUtils;
 public class MsgAdapterNet extends MsgAdapterBase
 {
     private static final String C_STR_USERACTIONS_ROOT = "userActions";
+    private static final String C_STR_USERACTIONS_ACTION = "action";
 
     private static final String TAG = "MsgAdapterNet";
 
@@ -84,11 +104,24 @@ public class MsgAdapterNet extends MsgAdapterBase
     private static final String C_STR_NODELIST_NODE = "node";
     private static final String C_STR_NODELIST_FILENAME = "nodelist";
     private static final String C_STR_NODELIST_LASTUPDATE = "lastUpdate";
+
+    private static final String C_STR_NODEFILE_PREFIX = "node";
+    private static final String C_STR_NODEINDEX_FILENAME = "nodeIndex";
+    private static final String C_STR_NODEINDEX_ID = "id";
     
     private static final String C_STR_USERACTIONS_FILENAME = C_STR_USERACTIONS_ROOT;
 
     private static final String C_STR_INFO_FILENAME = "info";
     private static final String C_STR_ACTIONREQUEST_FILENAME = "actionRequest";
+    private static final int C_I_ACTION_TIMEOUT = 5000;
+    private static final int C_I_MAX_REQUESTS = 16;
+    private static final int C_I_REQUEST_POLL_MS = 1000;
+    private static final int C_I_MAX_SEEN_REQUESTS = 4096;
+    private static final String C_STR_REQUEST_PARAM_VALUE = "value";
+    private static final String C_STR_REQUEST_PARAM_ID = "id";
+    private static final String C_STR_REQUEST_PARAMETER = "parameter";
+    private static final String C_STR_REQUEST_ACTION_ID = "actionId";
+    private static final String C_STR_REQUEST_ROOT = "actionRequest";
     private static final String C_STR_SUFFIX = ".xml";
     private static final String C_STR_NAME_QUERY = "queries";
 
@@ -99,7 +132,9 @@ public class MsgAdapterNet extends MsgAdapterBase
     private String m_strCmdLocation = null;
     private String m_strQueryLocation = null;
     private String m_strSeparator = null;
-    private boolean m_isRunning = false;
+    private volatile boolean m_isRunning = false;
+    // When the adapter started, for the system info
+    private volatile DateTime m_startTime = null;
     private File m_netFileDir = null;
     private boolean m_isDebug = false;
 
@@ -109,6 +144,85 @@ public class MsgAdapterNet extends MsgAdapterBase
     private MsgAdapterNetFileThread m_fileThread;
     private DateTimeFormatter m_dateTimeFormatter = SysUtils.getDateTimeFormatter();
 
+    // Coalesces catalog, node list and user action writes
+    private PersistenceWriter m_persistenceWriter = null;
+    private int m_persistDebounceMs = PersistenceWriter.C_DEBOUNCE_MS;
+    private int m_persistMaxPending = PersistenceWriter.C_MAX_PENDING;
+
+    // Writes the files into the net directory
+    private volatile PersistenceStore m_persistenceStore = null;
+    private EsnPersistMode m_persistMode = EsnPersistMode.TIMESTAMPED;
+    private boolean m_isPersistSnapshot = true;
+    private boolean m_isPersistStreaming = false;
+
+    /**
+     * How the Portal sends action requests
+     */
+    public enum EsnRequestMode
+    {
+        // actionRequest files in the queries directory
+        FILE,
+        // POSTs to the local request server
+        SERVER,
+        // Both, for Portals that still write files
+        BOTH,
+    }
+
+    // The request server is off unless it's configured
+    private EsnRequestMode m_requestMode = EsnRequestMode.FILE;
+    private int m_requestPort = ActionRequestServer.C_PORT;
+    private ActionRequestServer m_requestServer = null;
+
+    // Query files run on their own threads so a slow action doesn't hold up
+    // the requests behind it. Requests from files and the server share a
+    // cap on how many run at once, and the rest wait for a permit.
+    private ExecutorService m_requestExecutor = null;
+    private int m_maxRequests = C_I_MAX_REQUESTS;
+    private Semaphore m_requestPermits = new Semaphore(C_I_MAX_REQUESTS, true);
+
+    // Rescan the queries directory this often as well as watching it, for
+    // filesystems that drop events. 0 only rescans after an overflow.
+    private int m_requestPollMs = 0;
+
+    // Serialized node list, catalogs and info for the Portal to poll
+    private final ResponseCache m_responseCache;
+
+    // Request statistics
+    private final AtomicLong m_numOverflows = new AtomicLong();
+    private final AtomicLong m_numRecovered = new AtomicLong();
+    private final AtomicLong m_numRequests = new AtomicLong();
+    private final AtomicLong m_requestWaitNanos = new AtomicLong();
+    private final AtomicLong m_maxRequestWaitNanos = new AtomicLong();
+
+    // Threads parsing catalogs at startup
+    private int m_startupThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How the node list is laid out on disk
+     */
+    public enum EsnPersistLayout
+    {
+        // One node list file holding every node
+        MONOLITHIC,
+        // One file per node plus an index of node IDs
+        PER_NODE,
+    }
+
+    private EsnPersistLayout m_persistLayout = EsnPersistLayout.MONOLITHIC;
+
+    // Last XML written for each node file in the per node layout
+    private final Object m_nodeFileLock = new Object();
+    private HashMap<String, String> m_nodeFileXml = new HashMap<String, String>();
+
+    // Parameters and return values live on the shared action, so requests
+    // for the same action take turns from setting the parameters to
+    // reading the return value
+    private final ConcurrentHashMap<Short, Object> m_actionLocks = new ConcurrentHashMap<Short, Object>();
+    // Parameters are shared between actions too: a sequence writes its
+    // items' parameters as it runs. A request also holds the lock for each
+    // parameter its action can reach, taken in ID order
+    private final ConcurrentHashMap<Short, ReentrantLock> m_paramLocks = new ConcurrentHashMap<Short, ReentrantLock>();
+
     /**
      * Default constructor
      */
@@ -118,6 +232,14 @@ public class MsgAdapterNet extends MsgAdapterBase
         m_strCmdLocation = p_baseDir;
         m_strQueryLocation = String.format("%s%s%s", p_baseDir, m_strSeparator, C_STR_NAME_QUERY);
         m_fileThread = new MsgAdapterNetFileThread();
+        m_responseCache = new ResponseCache(new ResponseCache.Loader()
+        {
+            @Override
+            public Document load(String p_name)
+            {
+                return loadCachedDocument(p_name);
+            }
+        });
     }
 
     /* (non-Javadoc)
@@ -126,6 +248,8 @@ public class MsgAdapterNet extends MsgAdapterBase
     @Override
     public boolean startAdapater()
     {
+        m_startTime = new DateTime();
+
         loadConfiguration();
 
         m_isRunning = SysUtils.checkAndCreatePath(m_strCmdLocation);
@@ -141,9 +265,35 @@ public class MsgAdapterNet extends MsgAdapterBase
 
         if (m_isRunning)
         {
+            m_requestPermits = new Semaphore(Math.max(1, m_maxRequests), true);
+
             m_netFileDir = new File(m_strCmdLocation);
+            m_persistenceStore = new PersistenceStore(m_netFileDir, m_persistMode, m_isPersistSnapshot);
+
+            m_persistenceWriter = new PersistenceWriter(new PersistenceWriter.Sink()
+            {
+                @Override
+                public long write(Document p_doc, String p_prefix)
+                {
+                    return writeXmlFile(p_doc, p_prefix);
+                }
+
+                @Override
+                public void delete(String p_prefix)
+                {
+                    m_persistenceStore.delete(p_prefix);
+                }
+            }, m_persistDebounceMs, m_persistMaxPending);
+            m_persistenceWriter.start();
 
-            startWatchService();
+            if (m_requestMode != EsnRequestMode.SERVER)
+            {
+                startWatchService();
+            }
+            if (m_requestMode != EsnRequestMode.FILE)
+            {
+                startRequestServer();
+            }
 
             // Read in the persistence files and populate the system
             readPersistenceFiles();
@@ -167,7 +317,20 @@ public class MsgAdapterNet extends MsgAdapterBase
      * Load any variables from the configuration
      */
     private void loadConfiguration() {
-
+        if (getConfiguration() != null)
+        {
+            m_persistDebounceMs = getConfiguration().getInt("persistDebounceMs", PersistenceWriter.C_DEBOUNCE_MS);
+            m_persistMaxPending = getConfiguration().getInt("persistMaxPending", PersistenceWriter.C_MAX_PENDING);
+            m_persistMode = PersistenceStore.parseMode(getConfiguration().getString("persistMode", EsnPersistMode.TIMESTAMPED.toString()));
+            m_persistLayout = parseLayout(getConfiguration().getString("persistLayout", EsnPersistLayout.MONOLITHIC.toString()));
+            m_isPersistSnapshot = getConfiguration().getBoolean("persistSnapshot", true);
+            m_isPersistStreaming = getConfiguration().getBoolean("persistStreaming", false);
+            m_requestMode = parseRequestMode(getConfiguration().getString("requestMode", EsnRequestMode.FILE.toString()));
+            m_requestPort = getConfiguration().getInt("requestPort", ActionRequestServer.C_PORT);
+            m_maxRequests = getConfiguration().getInt("maxRequests", C_I_MAX_REQUESTS);
+            m_requestPollMs = getConfiguration().getInt("requestPollMs", 0);
+            m_startupThreads = getConfiguration().getInt("startupThreads", Runtime.getRuntime().availableProcessors());
+        }
     }
 
     /**
@@ -177,6 +340,209 @@ public class MsgAdapterNet extends MsgAdapterBase
     {
         getConfiguration().addProperty("queryDir", m_strQueryLocation);
         getConfiguration().addProperty("cmdDir", m_strCmdLocation);
+        getConfiguration().addProperty("persistDebounceMs", m_persistDebounceMs);
+        getConfiguration().addProperty("persistMaxPending", m_persistMaxPending);
+        getConfiguration().addProperty("persistMode", m_persistMode.toString());
+        getConfiguration().addProperty("persistLayout", m_persistLayout.toString());
+        getConfiguration().addProperty("persistSnapshot", m_isPersistSnapshot);
+        getConfiguration().addProperty("persistStreaming", m_isPersistStreaming);
+        getConfiguration().addProperty("startupThreads", m_startupThreads);
+        getConfiguration().addProperty("requestMode", m_requestMode.toString());
+        getConfiguration().addProperty("requestPort", m_requestPort);
+        getConfiguration().addProperty("maxRequests", m_maxRequests);
+        getConfiguration().addProperty("requestPollMs", m_requestPollMs);
+    }
+
+    /**
+     * Parse a node list layout from the configuration
+     * 
+     * @param p_layout
+     * @return the layout, or MONOLITHIC if it isn't recognised
+     */
+    private static EsnPersistLayout parseLayout(String p_layout)
+    {
+        try
+        {
+            return EsnPersistLayout.valueOf(p_layout.trim().toUpperCase());
+        }
+        catch (RuntimeException e)
+        {
+            Logger.w(TAG, "unknown persistence layout " + p_layout + ", using " + EsnPersistLayout.MONOLITHIC);
+            return EsnPersistLayout.MONOLITHIC;
+        }
+    }
+
+    /**
+     * Parse a request mode from the configuration
+     * 
+     * @param p_mode
+     * @return the mode, or FILE if it isn't recognised
+     */
+    private static EsnRequestMode parseRequestMode(String p_mode)
+    {
+        try
+        {
+            return EsnRequestMode.valueOf(p_mode.trim().toUpperCase());
+        }
+        catch (RuntimeException e)
+        {
+            Logger.w(TAG, "unknown request mode " + p_mode + ", using " + EsnRequestMode.FILE);
+            return EsnRequestMode.FILE;
+        }
+    }
+
+    /**
+     * Start the local server that takes action requests inline and serves
+     * the response cache
+     */
+    private void startRequestServer()
+    {
+        m_requestServer = new ActionRequestServer(m_requestPort, new ActionRequestServer.Handler()
+        {
+            @Override
+            public Element handle(Element p_request)
+            {
+                return runActionRequest(p_request,
+                        XmlUtils.getXmlAttributeString(p_request, C_STR_REQUEST_ACTION_ID, ""),
+                        System.nanoTime());
+            }
+        }, m_responseCache);
+
+        if (!m_requestServer.start())
+        {
+            m_requestServer = null;
+        }
+    }
+
+    /**
+     * Stop the request server
+     */
+    private void stopRequestServer()
+    {
+        if (m_requestServer != null)
+        {
+            m_requestServer.stop();
+            m_requestServer = null;
+        }
+    }
+
+    /**
+     * @return the port the request server listens on, or -1 if it isn't
+     *         running
+     */
+    public int getRequestPort()
+    {
+        ActionRequestServer server = m_requestServer;
+        return server == null ? -1 : server.getPort();
+    }
+
+    /**
+     * @return the cache the request server polls are answered from
+     */
+    public ResponseCache getResponseCache()
+    {
+        return m_responseCache;
+    }
+
+    /**
+     * Build a cached document from the current state of the system
+     * 
+     * @param p_name nodelist, info or catalog_[16 digit nodeId]
+     * @return the document, or null if there isn't one by that name
+     */
+    private Document loadCachedDocument(String p_name)
+    {
+        if (p_name.equals(C_STR_NODELIST_FILENAME))
+        {
+            return buildNodeList(NodeManager.getInstance().getNodeArray());
+        }
+        else if (p_name.equals(C_STR_INFO_FILENAME))
+        {
+            return buildSystemInfo();
+        }
+        else if (p_name.startsWith(C_STR_CATALOG_FILENAME + "_"))
+        {
+            // Only the padded name is invalidated when the catalog changes
+            String nodeId = p_name.substring(C_STR_CATALOG_FILENAME.length() + 1);
+            if (nodeId.length() == 16 && nodeId.equals(getFileNodeId(nodeId)))
+            {
+                NodeBase node = getFileNode(nodeId);
+                if (node != null)
+                {
+                    return buildCatalog(node);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param p_nodeId the 16 digit node ID
+     * @return the node, or null if there isn't one with that ID
+     */
+    private NodeBase getFileNode(String p_nodeId)
+    {
+        try
+        {
+            long id = Long.parseLong(p_nodeId.substring(0, 8), 16) << 32
+                    | Long.parseLong(p_nodeId.substring(8, 16), 16);
+            return NodeManager.getInstance().getNode(id);
+        }
+        catch (NumberFormatException e)
+        {
+            Logger.v(TAG, "not a node ID: " + p_nodeId);
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of action requests run from files and the server
+     */
+    public long getNumRequests()
+    {
+        return m_numRequests.get();
+    }
+
+    /**
+     * @return the number of action requests running now
+     */
+    public int getNumRequestsInFlight()
+    {
+        return Math.max(1, m_maxRequests) - m_requestPermits.availablePermits();
+    }
+
+    /**
+     * @return the number of times the watch service lost events
+     */
+    public long getNumOverflows()
+    {
+        return m_numOverflows.get();
+    }
+
+    /**
+     * @return the number of query files found by a rescan rather than an
+     *         event
+     */
+    public long getNumRecoveredRequests()
+    {
+        return m_numRecovered.get();
+    }
+
+    /**
+     * @return the average time a request waited to start, in microseconds
+     */
+    public long getAverageRequestWaitMicros()
+    {
+        long numRequests = m_numRequests.get();
+        return numRequests == 0 ? 0 : m_requestWaitNanos.get() / numRequests / 1000;
+    }
+
+    /**
+     * @return the longest time a request waited to start, in microseconds
+     */
+    public long getMaxRequestWaitMicros()
+    {
+        return m_maxRequestWaitNanos.get() / 1000;
     }
 
     /**
@@ -197,13 +563,14 @@ public class MsgAdapterNet extends MsgAdapterBase
         try {
             m_watchKey = watchedPath.register(m_watchService, StandardWatchEventKind.ENTRY_CREATE);
         } catch (UnsupportedOperationException e){
-            Logger.e(TAG, "file watching not supported", e);
-            return;
+            Logger.e(TAG, "file watching not supported, polling for queries", e);
+            m_watchKey = null;
         } catch (IOException e){
-            Logger.e(TAG, "IOException occured", e);
-            return;
+            Logger.e(TAG, "IOException occured, polling for queries", e);
+            m_watchKey = null;
         }
         // Start the watch thread
+        m_requestExecutor = ExecutorFactory.newPerTaskExecutor("NetRequest");
         m_fileThread.start();
     }
 
@@ -215,12 +582,33 @@ public class MsgAdapterNet extends MsgAdapterBase
         if (m_watchService != null)
         {
             try {
-                m_watchKey.cancel();
+                if (m_watchKey != null)
+                {
+                    m_watchKey.cancel();
+                }
                 m_watchService.close();
             } catch (IOException e) {
                 Logger.e(TAG, "IOException closing watch service", e);
             }
         }
+
+        // Wake the file thread if it's sleeping between polls
+        m_fileThread.interrupt();
+
+        // Let the queries already running write their responses
+        if (m_requestExecutor != null)
+        {
+            m_requestExecutor.shutdown();
+            try
+            {
+                m_requestExecutor.awaitTermination(C_I_ACTION_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            m_requestExecutor = null;
+        }
         Logger.i(TAG, "stopped file watch service");
     }
 
@@ -232,13 +620,33 @@ public class MsgAdapterNet extends MsgAdapterBase
     {
         Logger.i(TAG, "stopping adapter");
 
+        // Stop marking files dirty, then write out anything still waiting
+        // before the directory goes away
         m_isRunning = false;
 
+        if (m_persistenceWriter != null)
+        {
+            m_persistenceWriter.stop();
+        }
+
         stopWatchService();
+        stopRequestServer();
+
+        Logger.i(TAG, String.format("action requests: %d, queue wait avg: %d us max: %d us, overflows: %d, recovered: %d",
+                getNumRequests(), getAverageRequestWaitMicros(), getMaxRequestWaitMicros(),
+                getNumOverflows(), getNumRecoveredRequests()));
+        Logger.i(TAG, "response cache " + m_responseCache);
 
         writeSystemInfo();
 
+        // Everything is on disk now, so the snapshot matches the XML
+        if (m_persistenceStore != null)
+        {
+            m_persistenceStore.writeSnapshot();
+        }
+
         m_netFileDir = null;
+        m_persistenceStore = null;
 
         saveConfiguration();
     }
@@ -321,40 +729,51 @@ public class MsgAdapterNet extends MsgAdapterBase
     {
         if(m_isRunning && p_node != null)
         {
-            Element root = new Element(C_STR_CATALOG_FILENAME);
-
-            // node ID attribute
-            Attribute nodeId = 
-                new Attribute(C_STR_CATALOG_NODEID, p_node.getNodeIdStringNoX());
-            root.addAttribute(nodeId);
+            String prefix = getCatalogPrefix(getFileNodeId(p_node.getNodeIdStringNoX()));
+            m_responseCache.invalidate(prefix);
+            m_persistenceWriter.markDirty(prefix, getSnapshot(buildCatalog(p_node)));
+        }
+    }
 
-            // Last update attribute
-            Attribute lastUpdate = 
-                new Attribute(C_STR_CATALOG_LASTUPDATE, 
-                        (new DateTime()).toString(m_dateTimeFormatter));
-            root.addAttribute(lastUpdate);
+    /**
+     * Build the catalog document for the node
+     * 
+     * @param p_node
+     * @return the catalog document
+     */
+    private Document buildCatalog(NodeBase p_node)
+    {
+        Element root = new Element(C_STR_CATALOG_FILENAME);
 
-            // Create the sub element for the functions
-            Element actionsElement = new Element(C_STR_CATALOG_ACTIONS);
-            root.appendChild(actionsElement);
+        // node ID attribute
+        Attribute nodeId = 
+            new Attribute(C_STR_CATALOG_NODEID, p_node.getNodeIdStringNoX());
+        root.addAttribute(nodeId);
 
-            // Add each node as an element
-            for(INodeAction nodeAction : p_node.getNodeActions())
-            {
-                Element nodeElement = nodeAction.serialize();
+        // Last update attribute
+        Attribute lastUpdate = 
+            new Attribute(C_STR_CATALOG_LASTUPDATE, 
+                    (new DateTime()).toString(m_dateTimeFormatter));
+        root.addAttribute(lastUpdate);
 
-                Logger.d(TAG, p_node.getDescString() + " serializing parameters for " + nodeAction.getName() + " num Parameters " + nodeAction.getParameterCount());
-                for(INodeParameter parameter : nodeAction.getParameters())
-                {
-                    nodeElement.appendChild(parameter.serialize());
-                }
-                actionsElement.appendChild(nodeElement);
-            }
+        // Create the sub element for the functions
+        Element actionsElement = new Element(C_STR_CATALOG_ACTIONS);
+        root.appendChild(actionsElement);
 
-            Document doc = new Document(root);
+        // Add each node as an element
+        for(INodeAction nodeAction : p_node.getNodeActions())
+        {
+            Element nodeElement = nodeAction.serialize();
 
-            writeXmlFile(doc, String.format("%s_%s", C_STR_CATALOG_FILENAME, p_node.getNodeIdStringNoX()));
+            Logger.d(TAG, p_node.getDescString() + " serializing parameters for " + nodeAction.getName() + " num Parameters " + nodeAction.getParameterCount());
+            for(INodeParameter parameter : nodeAction.getParameters())
+            {
+                nodeElement.appendChild(parameter.serialize());
+            }
+            actionsElement.appendChild(nodeElement);
         }
+
+        return new Document(root);
     }
 
     /**
@@ -393,451 +812,1225 @@ public class MsgAdapterNet extends MsgAdapterBase
      */
     private void writeNodeList(NodeBase[] p_nodeList)
     {
-        Logger.v(TAG, "Writing new node list file with " + p_nodeList.length + " nodes");
-        if(m_isRunning && p_nodeList != null)
+        if (m_isRunning && p_nodeList != null)
         {
-            Element root = new Element(C_STR_NODELIST_ROOT);
-            // Last update attribute
-            Attribute lastUpdate = 
-                new Attribute(C_STR_NODELIST_LASTUPDATE, 
-                        (new DateTime()).toString(m_dateTimeFormatter));
-            root.addAttribute(lastUpdate);
-
-            // Add each node as an element
-            for(NodeBase node : p_nodeList)
-
+            // Catalogs of nodes that went away can't be served any more
+            HashSet<String> catalogs = new HashSet<String>();
+            for (NodeBase node : p_nodeList)
             {
-                root.appendChild(node.serialize());
+                catalogs.add(getCatalogPrefix(getFileNodeId(node.getNodeIdStringNoX())));
             }
+            m_responseCache.retain(C_STR_CATALOG_FILENAME + "_", catalogs);
+            m_responseCache.invalidate(C_STR_NODELIST_FILENAME);
+        }
 
-            Document doc = new Document(root);
-            System.out.println(root.toXML());
-            writeXmlFile(doc, C_STR_NODELIST_FILENAME);
+        if(m_isRunning && p_nodeList != null && m_persistLayout == EsnPersistLayout.PER_NODE)
+        {
+            writeNodeFiles(p_nodeList);
         }
-    }
-    
-    /**
-     * Write the user action list
-     * 
-     * @param p_userActions
-     */
-    private void writeUserActions(IAction[] p_userActions)
-    {
-        Logger.v(TAG, "Writing new user action file");
-        
-        if (m_isRunning)
+        else if(m_isRunning && p_nodeList != null)
         {
-            Element root = new Element(C_STR_USERACTIONS_ROOT);
-            
-            // Last update attribute
-            Attribute lastUpdate = 
-                new Attribute(C_STR_NODELIST_LASTUPDATE, 
-                        (new DateTime()).toString(m_dateTimeFormatter));
-            root.addAttribute(lastUpdate);
-            
-            // Add each node as an eleent
-            for (IAction action : p_userActions)
-            {
-                root.appendChild(action.serialize());
-            }
-            
-            Document doc = new Document(root);
-            
-            writeXmlFile(doc, C_STR_USERACTIONS_FILENAME);
+            // Only the newest node list gets written
+            m_persistenceWriter.markDirty(C_STR_NODELIST_FILENAME, getSnapshot(buildNodeList(p_nodeList)));
         }
     }
-    
+
     /**
-     * Process an incoming user action list and message the rest of the system
+     * Write out only the nodes that changed since they were last written,
+     * and the index if nodes were added or removed
      * 
-     * @param p_xml
+     * @param p_nodeList
      */
-    private void processUserActionList(Document p_xml)
+    private void writeNodeFiles(NodeBase[] p_nodeList)
     {
-        if (p_xml != null)
+        synchronized (m_nodeFileLock)
         {
-            Element root = p_xml.getRootElement();
-            if (root.getLocalName().equals(C_STR_USERACTIONS_ROOT))
+            HashMap<String, String> nodeFileXml = new HashMap<String, String>();
+            final ArrayList<Element> indexEntries = new ArrayList<Element>();
+            boolean isIndexDirty = false;
+
+            for (NodeBase node : p_nodeList)
             {
-                // Print out the update time
-                Attribute lastUpdate = root.getAttribute(C_STR_NODELIST_LASTUPDATE);
-                if (lastUpdate != null)
-                {
-                    DateTime dtLU = DateTime.parse(lastUpdate.getValue(), m_dateTimeFormatter);
-                    Logger.i(TAG, "Loading User Action list file last updated on " + dtLU.toString());
-                }
+                String nodeId = getFileNodeId(node.getNodeIdStringNoX());
+                Element nodeElement = node.serialize();
+                String xml = nodeElement.toXML();
 
-                Elements actionElements = root.getChildElements("action");
-                if (actionElements != null)
-                {
-                    for(int i=0; i<actionElements.size(); ++i)
-                    {
-                        String type;
+                String lastXml = m_nodeFileXml.remove(nodeId);
+                nodeFileXml.put(nodeId, xml);
 
-                        Element actionElement = actionElements.get(i);
-                        type = XmlUtils.getXmlAttributeString(actionElement, "actionType");
-                        if (type != null)
-                        {
-                            // Create the message 
-                            MsgSystemUserActionListReceive msg = new MsgSystemUserActionListReceive(
-                                    type, 
-                                    actionElement);
-                            // This is synchronous because we want it 
-                            // to be processed immediatly and hold up everything
-                            // else
-                            msg.setIsSynchronous(true);
-
-                            fireMsgReceivedEvent(msg);
-                        }
-                        else
-                        {
-                            Logger.w(TAG, "Node list - cannot process node without a type");
-                        }
-                    }
+                if (lastXml == null)
+                {
+                    isIndexDirty = true;
                 }
-                else
+                if (!xml.equals(lastXml))
                 {
-                    Logger.w(TAG, "Node list has no nodes");
+                    m_persistenceWriter.markDirty(getNodeFilePrefix(nodeId), getSnapshot(new Document(nodeElement)));
                 }
+
+                Element entry = new Element(C_STR_NODELIST_NODE);
+                entry.addAttribute(new Attribute(C_STR_NODEINDEX_ID, nodeId));
+                entry.addAttribute(new Attribute(C_STR_NODELIST_TYPE, node.getNodeTypeIdentifierString()));
+                indexEntries.add(entry);
             }
-            else
+
+            // Anything left over is a node that went away
+            for (String nodeId : m_nodeFileXml.keySet())
             {
-                Logger.w(TAG,"Node list root is incorrect");
+                m_persistenceWriter.markDeleted(getNodeFilePrefix(nodeId));
+                isIndexDirty = true;
+            }
+
+            m_nodeFileXml = nodeFileXml;
+
+            if (isIndexDirty)
+            {
+                m_persistenceWriter.markDirty(C_STR_NODEINDEX_FILENAME, new PersistenceWriter.Source()
+                {
+                    @Override
+                    public Document build()
+                    {
+                        return buildNodeIndex(indexEntries);
+                    }
+                });
             }
-        }
-        else
-        {
-            Logger.w(TAG, "processing null Node list");
         }
     }
 
     /**
-     * Process an incoming node list and message the rest of the system
+     * Nodes and actions are changed by other threads while the writer is
+     * waiting, so documents are built when the file is marked dirty and the
+     * writer only gets the finished copy
      * 
-     * @param p_xml
+     * @param p_doc
+     * @return a source that gives back the document
      */
-    private void processNodeList(Document p_xml)
+    private static PersistenceWriter.Source getSnapshot(final Document p_doc)
     {
-        if (p_xml != null)
+        return new PersistenceWriter.Source()
         {
-            Element root = p_xml.getRootElement();
-            if (root.getLocalName().compareTo(C_STR_NODELIST_ROOT) == 0)
+            @Override
+            public Document build()
             {
-                // Print out the update time
-                Attribute lastUpdate = root.getAttribute(C_STR_NODELIST_LASTUPDATE);
-                if (lastUpdate != null)
-                {
-                    DateTime dtLU = DateTime.parse(lastUpdate.getValue(), m_dateTimeFormatter);
-                    Logger.i(TAG, "Loading Node list file last updated on " + dtLU.toString());
-                }
-
-                Elements nodeElements = root.getChildElements(C_STR_NODELIST_NODE);
-                if (nodeElements != null)
-                {
-                    for(int i=0; i<nodeElements.size(); ++i)
-                    {
-                        Logger.v(TAG, "Decoding node element");
-                    
-                        String type;
-
+                return p_doc;
+            }
+        };
+    }
 
-                        Element nodeElement = nodeElements.get(i);
-                        type = XmlUtils.getXmlAttributeString(nodeElement, C_STR_NODELIST_TYPE);
-                        if (type != null)
-                        {
-                            // Create the message 
-                            MsgSystemNodelistReceive msg = new MsgSystemNodelistReceive(
-                                    type, 
-                                    nodeElement);
-                            // This is synchronous because we want it 
-                            // to be processed immediatly and hold up everything
-                            // else
-                            msg.setIsSynchronous(true);
-
-                            fireMsgReceivedEvent(msg);
-                        }
-                        else
+    /**
+     * Build the node index document
+     * 
+     * <nodeIndex lastUpdate="2012-02-20T16:27:09.619-07:00">
+     *  <node id="0013a20040303382" type="zigbee"/>
+     * </nodeIndex>
+     * 
+     * @param p_entries
+     * @return the node index document
+     */
+    private Document buildNodeIndex(List<Element> p_entries)
+    {
+        Logger.v(TAG, "Writing new node index file with " + p_entries.size() + " nodes");
+
+        Element root = new Element(C_STR_NODEINDEX_FILENAME);
+        root.addAttribute(new Attribute(C_STR_NODELIST_LASTUPDATE, 
+                (new DateTime()).toString(m_dateTimeFormatter)));
+
+        for (Element entry : p_entries)
+        {
+            root.appendChild(entry);
+        }
+
+        return new Document(root);
+    }
+
+    /**
+     * @param p_nodeId
+     * @return the file prefix for a node's file
+     */
+    private static String getNodeFilePrefix(String p_nodeId)
+    {
+        return String.format("%s_%s", C_STR_NODEFILE_PREFIX, p_nodeId);
+    }
+
+    /**
+     * @param p_nodeId the 16 digit node ID
+     * @return the file prefix for a node's catalog, padded like the node
+     *         files so one node's prefix is never the start of another's
+     */
+    private static String getCatalogPrefix(String p_nodeId)
+    {
+        return String.format("%s_%s", C_STR_CATALOG_FILENAME, p_nodeId);
+    }
+
+    /**
+     * Pull the node ID out of a node or catalog file name, or pad a bare
+     * node ID, so the same node always gives the same string
+     * 
+     * @param p_fileName
+     * @return the 16 digit node ID, or null if there isn't one
+     */
+    private static String getFileNodeId(String p_fileName)
+    {
+        String[] parts = p_fileName.replace(PersistenceStore.C_STR_SUFFIX, "").split("_");
+        String nodeId = parts.length == 1 ? parts[0] : parts[1];
+        if (nodeId.length() == 0)
+        {
+            return null;
+        }
+        return StringUtils.leftPad(nodeId.toLowerCase(), 16, '0');
+    }
+
+    /**
+     * Build the node list document
+     * 
+     * @param p_nodeList
+     * @return the node list document
+     */
+    private Document buildNodeList(NodeBase[] p_nodeList)
+    {
+        Logger.v(TAG, "Writing new node list file with " + p_nodeList.length + " nodes");
+
+        Element root = new Element(C_STR_NODELIST_ROOT);
+        // Last update attribute
+        Attribute lastUpdate = 
+            new Attribute(C_STR_NODELIST_LASTUPDATE, 
+                    (new DateTime()).toString(m_dateTimeFormatter));
+        root.addAttribute(lastUpdate);
+
+        // Add each node as an element
+        for(NodeBase node : p_nodeList)
+        {
+            root.appendChild(node.serialize());
+        }
+
+        return new Document(root);
+    }
+    
+    /**
+     * Write the user action list
+     * 
+     * @param p_userActions
+     */
+    private void writeUserActions(IAction[] p_userActions)
+    {
+        if (m_isRunning)
+        {
+            m_persistenceWriter.markDirty(C_STR_USERACTIONS_FILENAME, getSnapshot(buildUserActions(p_userActions)));
+        }
+    }
+
+    /**
+     * Build the user action list document
+     * 
+     * @param p_userActions
+     * @return the user action document
+     */
+    private Document buildUserActions(IAction[] p_userActions)
+    {
+        Logger.v(TAG, "Writing new user action file");
+        
+        Element root = new Element(C_STR_USERACTIONS_ROOT);
+        
+        // Last update attribute
+        Attribute lastUpdate = 
+            new Attribute(C_STR_NODELIST_LASTUPDATE, 
+                    (new DateTime()).toString(m_dateTimeFormatter));
+        root.addAttribute(lastUpdate);
+        
+        // Add each node as an eleent
+        for (IAction action : p_userActions)
+        {
+            root.appendChild(action.serialize());
+        }
+        
+        return new Document(root);
+    }
+    
+    /**
+     * Process an incoming user action list and message the rest of the system
+     * 
+     * @param p_xml
+     */
+    private void processUserActionList(Document p_xml)
+    {
+        if (p_xml != null)
+        {
+            Element root = p_xml.getRootElement();
+            if (processUserActionListRoot(root))
+            {
+                Elements actionElements = root.getChildElements(C_STR_USERACTIONS_ACTION);
+                if (actionElements != null)
+                {
+                    for(int i=0; i<actionElements.size(); ++i)
+                    {
+                        processUserAction(actionElements.get(i));
+                    }
+                }
+                else
+                {
+                    Logger.w(TAG, "Node list has no nodes");
+                }
+            }
+        }
+        else
+        {
+            Logger.w(TAG, "processing null Node list");
+        }
+    }
+
+    /**
+     * Stream in the user action list one action at a time
+     * 
+     * @param p_fileName
+     */
+    private void streamUserActionList(String p_fileName)
+    {
+        streamPersistenceFile(p_fileName, 2, C_STR_USERACTIONS_ACTION, new PersistenceStreamReader.Handler()
+        {
+            @Override
+            public boolean root(Element p_root)
+            {
+                return processUserActionListRoot(p_root);
+            }
+
+            @Override
+            public void record(Element p_record)
+            {
+                processUserAction(p_record);
+            }
+        });
+    }
+
+    /**
+     * Check the root of a user action list
+     * 
+     * @param p_root
+     * @return true if it is a user action list
+     */
+    private boolean processUserActionListRoot(Element p_root)
+    {
+        if (p_root.getLocalName().equals(C_STR_USERACTIONS_ROOT))
+        {
+            // Print out the update time
+            Attribute lastUpdate = p_root.getAttribute(C_STR_NODELIST_LASTUPDATE);
+            if (lastUpdate != null)
+            {
+                DateTime dtLU = DateTime.parse(lastUpdate.getValue(), m_dateTimeFormatter);
+                Logger.i(TAG, "Loading User Action list file last updated on " + dtLU.toString());
+            }
+            return true;
+        }
+
+        Logger.w(TAG,"Node list root is incorrect");
+        return false;
+    }
+
+    /**
+     * Process a single user action element and message the rest of the system
+     * 
+     * @param p_actionElement
+     */
+    private void processUserAction(Element p_actionElement)
+    {
+        String type = XmlUtils.getXmlAttributeString(p_actionElement, "actionType");
+        if (type != null)
+        {
+            // Create the message 
+            MsgSystemUserActionListReceive msg = new MsgSystemUserActionListReceive(
+                    type, 
+                    p_actionElement);
+            // This is synchronous because we want it 
+            // to be processed immediatly and hold up everything
+            // else
+            msg.setIsSynchronous(true);
+
+            fireMsgReceivedEvent(msg);
+        }
+        else
+        {
+            Logger.w(TAG, "Node list - cannot process node without a type");
+        }
+    }
+
+    /**
+     * Process an incoming node list and message the rest of the system
+     * 
+     * @param p_xml
+     */
+    private void processNodeList(Document p_xml)
+    {
+        if (p_xml != null)
+        {
+            Element root = p_xml.getRootElement();
+            if (processNodeListRoot(root))
+            {
+                Elements nodeElements = root.getChildElements(C_STR_NODELIST_NODE);
+                if (nodeElements != null)
+                {
+                    for(int i=0; i<nodeElements.size(); ++i)
+                    {
+                        processNode(nodeElements.get(i));
+                    }
+                }
+                else
+                {
+                    Logger.w(TAG, "Node list has no nodes");
+                }
+            }
+        }
+        else
+        {
+            Logger.w(TAG, "processing null Node list");
+        }
+    }
+
+    /**
+     * Stream in a node list one node at a time
+     * 
+     * @param p_fileName
+     */
+    private void streamNodeList(String p_fileName)
+    {
+        streamPersistenceFile(p_fileName, 2, C_STR_NODELIST_NODE, new PersistenceStreamReader.Handler()
+        {
+            @Override
+            public boolean root(Element p_root)
+            {
+                return processNodeListRoot(p_root);
+            }
+
+            @Override
+            public void record(Element p_record)
+            {
+                processNode(p_record);
+            }
+        });
+    }
+
+    /**
+     * Check the root of a node list
+     * 
+     * @param p_root
+     * @return true if it is a node list
+     */
+    private boolean processNodeListRoot(Element p_root)
+    {
+        if (p_root.getLocalName().compareTo(C_STR_NODELIST_ROOT) == 0)
+        {
+            // Print out the update time
+            Attribute lastUpdate = p_root.getAttribute(C_STR_NODELIST_LASTUPDATE);
+            if (lastUpdate != null)
+            {
+                DateTime dtLU = DateTime.parse(lastUpdate.getValue(), m_dateTimeFormatter);
+                Logger.i(TAG, "Loading Node list file last updated on " + dtLU.toString());
+            }
+            return true;
+        }
+
+        Logger.w(TAG,"Node list root is incorrect");
+        return false;
+    }
+
+
+    /**
+     * Process a single node element and message the rest of the system
+     * 
+     * @param p_nodeElement
+     */
+    private void processNode(Element p_nodeElement)
+    {
+        Logger.v(TAG, "Decoding node element");
+
+        String type = XmlUtils.getXmlAttributeString(p_nodeElement, C_STR_NODELIST_TYPE);
+        if (type != null)
+        {
+            // Create the message 
+            MsgSystemNodelistReceive msg = new MsgSystemNodelistReceive(
+                    type, 
+                    p_nodeElement);
+            // This is synchronous because we want it 
+            // to be processed immediatly and hold up everything
+            // else
+            msg.setIsSynchronous(true);
+
+            fireMsgReceivedEvent(msg);
+        }
+        else
+        {
+            Logger.w(TAG, "Node list - cannot process node without a type");
+        }
+    }
+
+    /**
+     * Read the nodes listed in the index, each from its own file, and
+     * collect the catalogs for just those nodes
+     * 
+     * @param p_xml the index
+     * @param p_nodeFiles node files by node ID
+     * @param p_catalogFiles catalog files by node ID
+     * @return the catalog files to read
+     */
+    private List<String> processNodeIndex(Document p_xml, Map<String, String> p_nodeFiles, Map<String, String> p_catalogFiles)
+    {
+        ArrayList<String> catalogs = new ArrayList<String>();
+
+        if (p_xml == null)
+        {
+            Logger.w(TAG, "processing null Node index");
+            return catalogs;
+        }
+
+        Elements entries = p_xml.getRootElement().getChildElements(C_STR_NODELIST_NODE);
+        Logger.i(TAG, "Loading " + entries.size() + " nodes from the node index");
+
+        for (int i=0; i<entries.size(); ++i)
+        {
+            String nodeId = getFileNodeId(XmlUtils.getXmlAttributeString(entries.get(i), C_STR_NODEINDEX_ID, ""));
+            String nodeFile = p_nodeFiles.get(nodeId);
+
+            Document nodeDoc = nodeFile == null ? null : readPersistenceFile(nodeFile);
+            if (nodeDoc != null)
+            {
+                processNode(nodeDoc.getRootElement());
+
+                String catalogFile = p_catalogFiles.get(nodeId);
+                if (catalogFile != null)
+                {
+                    catalogs.add(catalogFile);
+                }
+            }
+            else
+            {
+                Logger.w(TAG, "Node index lists " + nodeId + " but its file can't be read");
+            }
+        }
+        return catalogs;
+    }
+
+    /**
+     * A catalog parsed off the startup thread, waiting to be registered
+     */
+    private static class ParsedCatalog
+    {
+        private final long m_nodeId;
+        private final ArrayList<NodeAction> m_actions = new ArrayList<NodeAction>();
+        private final ArrayList<List<NodeParameter>> m_parameters = new ArrayList<List<NodeParameter>>();
+
+        private ParsedCatalog(long p_nodeId)
+        {
+            m_nodeId = p_nodeId;
+        }
+    }
+
+    /**
+     * Read and parse the catalogs, spread over the startup threads, then
+     * register them with the action manager in the order they're listed.
+     * Parsing only builds the actions and parameters, so the action
+     * manager is only touched from this thread and the result is the same
+     * as loading the catalogs one by one.
+     * 
+     * @param p_catalogs catalog file names
+     * @return the time spent parsing and registering, in milliseconds
+     */
+    private long[] loadCatalogs(List<String> p_catalogs)
+    {
+        long start = System.currentTimeMillis();
+
+        ArrayList<ParsedCatalog> parsed = new ArrayList<ParsedCatalog>(p_catalogs.size());
+        int numThreads = Math.min(m_startupThreads, p_catalogs.size());
+
+        if (numThreads <= 1)
+        {
+            for (String catalog : p_catalogs)
+            {
+                parsed.add(readCatalog(catalog));
+            }
+        }
+        else
+        {
+            ArrayList<Callable<ParsedCatalog>> tasks = new ArrayList<Callable<ParsedCatalog>>(p_catalogs.size());
+            for (final String catalog : p_catalogs)
+            {
+                tasks.add(new Callable<ParsedCatalog>()
+                {
+                    @Override
+                    public ParsedCatalog call()
+                    {
+                        return readCatalog(catalog);
+                    }
+                });
+            }
+
+            ExecutorService executor = ExecutorFactory.newFixedExecutor(TAG + "Startup", numThreads);
+            try
+            {
+                // Results come back in the same order as the tasks
+                for (Future<ParsedCatalog> future : executor.invokeAll(tasks))
+                {
+                    try
+                    {
+                        parsed.add(future.get());
+                    }
+                    catch (ExecutionException e)
+                    {
+                        Logger.e(TAG, "could not read catalog", e.getCause());
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Logger.w(TAG, "interrupted reading catalogs");
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+        }
+
+        long parseEnd = System.currentTimeMillis();
+
+        for (ParsedCatalog catalog : parsed)
+        {
+            registerCatalog(catalog);
+        }
+
+        return new long[] { parseEnd - start, System.currentTimeMillis() - parseEnd };
+    }
+
+    /**
+     * Read in and parse a catalog file
+     * 
+     * @param p_fileName
+     * @return the parsed catalog, or null if it couldn't be read
+     */
+    private ParsedCatalog readCatalog(String p_fileName)
+    {
+        Logger.v(TAG, "reading catalog file: " + p_fileName);
+
+        if (isStreamed(p_fileName))
+        {
+            final ParsedCatalog[] catalog = new ParsedCatalog[1];
+
+            // The actions are the only elements three deep
+            boolean isRead = streamPersistenceFile(p_fileName, 3, null, new PersistenceStreamReader.Handler()
+            {
+                @Override
+                public boolean root(Element p_root)
+                {
+                    catalog[0] = parseCatalogRoot(p_root);
+                    return catalog[0] != null;
+                }
+
+                @Override
+                public void record(Element p_record)
+                {
+                    parseCatalogAction(catalog[0], p_record);
+                }
+            });
+            return isRead ? catalog[0] : null;
+        }
+
+        return parseCatalog(readPersistenceFile(p_fileName));
+    }
+
+    /**
+     * Parse an incoming catalog without registering anything
+     * 
+     * @param p_xml
+     * @return the parsed catalog, or null if it isn't a catalog
+     */
+    private ParsedCatalog parseCatalog(Document p_xml)
+    {
+        if (p_xml != null)
+        {
+            Element root = p_xml.getRootElement();
+            ParsedCatalog catalog = parseCatalogRoot(root);
+            if (catalog != null)
+            {
+                Element actionsElement = root.getFirstChildElement(C_STR_CATALOG_ACTIONS);
+                if (actionsElement != null)
+                {
+                    Elements actionElements = actionsElement.getChildElements();
+                    for( int i=0; i<actionElements.size(); ++i)
+                    {
+                        parseCatalogAction(catalog, actionElements.get(i));
+                    }
+                }
+                else
+                {
+                    Logger.w(TAG, "Catalog list has no nodes");
+                }
+                return catalog;
+            }
+        }
+        else
+        {
+            Logger.w(TAG, "processing null Catalog");
+        }
+        return null;
+    }
+
+    /**
+     * Check the root of a catalog
+     * 
+     * @param p_root
+     * @return an empty parsed catalog for the node, or null if it isn't a
+     *         catalog
+     */
+    private ParsedCatalog parseCatalogRoot(Element p_root)
+    {
+        if (p_root.getLocalName().compareTo(C_STR_CATALOG_FILENAME) == 0)
+        {
+            // Print out the update time
+            DateTime dateTimeLastUpdate = XmlUtils.getXmlAttributeDateTime(p_root, C_STR_CATALOG_LASTUPDATE);
+            Logger.i(TAG, "Loading Node list file last updated on " + dateTimeLastUpdate.toString());
+
+            return new ParsedCatalog(XmlUtils.getXmlAttributeLong(p_root, C_STR_CATALOG_NODEID));
+        }
+
+        Logger.w(TAG,"Catalog list root is incorrect");
+        return null;
+    }
+
+    /**
+     * Parse the next action in a catalog and its parameters
+     * 
+     * @param p_catalog
+     * @param p_actionElement
+     */
+    private void parseCatalogAction(ParsedCatalog p_catalog, Element p_actionElement)
+    {
+        int functionIndex = p_catalog.m_actions.size() + 1;
+
+        // Deserialize the new action
+        NodeAction newAction = new NodeAction(p_actionElement, p_catalog.m_nodeId, functionIndex);
+
+        // Parse out all the parameters
+        Elements paramElements = p_actionElement.getChildElements();
+        ArrayList<NodeParameter> params = new ArrayList<NodeParameter>(paramElements.size());
+        for( int k=0; k<paramElements.size(); ++k)
+        {
+            Element paramElement = paramElements.get(k);
+            params.add(new NodeParameter(
+                    paramElement,
+                    newAction.getActionId(),
+                    newAction.getNodeId(),
+                    functionIndex,
+                    k+1 ));
+        }
+
+        p_catalog.m_actions.add(newAction);
+        p_catalog.m_parameters.add(params);
+    }
+
+    /**
+     * Register a parsed catalog's actions and parameters
+     * 
+     * @param p_catalog
+     */
+    private void registerCatalog(ParsedCatalog p_catalog)
+    {
+        if (p_catalog == null)
+        {
+            return;
+        }
+
+        for (int i=0; i<p_catalog.m_actions.size(); ++i)
+        {
+            NodeAction newAction = p_catalog.m_actions.get(i);
+
+            // Add it to the action manager
+            ActionManager.getInstance().addNodeAction(newAction);
+
+            for (NodeParameter newParam : p_catalog.m_parameters.get(i))
+            {
+                ActionManager.getInstance().addNodeParameter(newParam);
+            }
+
+            // Count the parameters we've added
+            newAction.updateNumParameters();
+        }
+    }
+
+    /**
+     * Write the XML file out through the persistence store
+     * 
+     * @param p_doc
+     * @param p_prefix
+     * @return the number of bytes written
+     */
+    private long writeXmlFile(Document p_doc, String p_prefix)
+    {
+        PersistenceStore store = m_persistenceStore;
+        if (store == null)
+        {
+            Logger.w(TAG, "no net directory to write " + p_prefix);
+            return 0;
+        }
+        return store.write(p_doc, p_prefix);
+    }
+
+    /**
+     *  Write any system information to the net directory
+     */
+    private void writeSystemInfo()
+    {
+        Logger.v(TAG, "writing system info");
+
+        m_responseCache.invalidate(C_STR_INFO_FILENAME);
+        writeXmlFile(buildSystemInfo(), C_STR_INFO_FILENAME);
+    }
+
+    /**
+     * Build the system info document
+     * 
+     * @return the info document
+     */
+    private Document buildSystemInfo()
+    {
+        Element root = new Element(C_STR_INFO_ROOT);
+        DateTime startTime = m_startTime == null ? new DateTime() : m_startTime;
+        root.addAttribute(new Attribute(C_STR_INFO_STARTTIME, 
+                startTime.toString(m_dateTimeFormatter)));
+        root.addAttribute(new Attribute(C_STR_INFO_ISRUNNING, String.valueOf(m_isRunning)));
+
+        return new Document(root);
+    }
+
+    /**
+     * Read the net file directory and process any persistence files
+     */
+    private void readPersistenceFiles()
+    {
+        // Read through the net file directory and grab any
+        // persistence files
+        if (m_netFileDir != null)
+        {
+            File[] perFiles = m_persistenceStore.getCurrentFiles();
+            m_persistenceStore.loadSnapshot(perFiles);
+
+            // Delay catalog processing until after node lists are processed
+            HashMap<String, String> catalogFiles = new HashMap<String, String>();
+            // Delay user actions until after catalogs are processed
+            String userActionFile = null;
+            // The per node layout is read through its index
+            String nodeIndexFile = null;
+            HashMap<String, String> nodeFiles = new HashMap<String, String>();
+            ArrayList<String> nodeListFiles = new ArrayList<String>();
+            // Catalogs written before their names were padded
+            HashMap<String, String> legacyCatalogs = new HashMap<String, String>();
+
+            for (File perFile : perFiles)
+            {
+                String name = perFile.getName();
+
+                if (name.startsWith(C_STR_NODEINDEX_FILENAME))
+                {
+                    nodeIndexFile = perFile.getAbsolutePath();
+                }
+                else if (name.startsWith(C_STR_NODEFILE_PREFIX + "_"))
+                {
+                    nodeFiles.put(getFileNodeId(name), perFile.getAbsolutePath());
+                }
+                else if (name.contains(C_STR_CATALOG_FILENAME))
+                {
+                    String nodeId = getFileNodeId(name);
+                    String[] parts = name.replace(PersistenceStore.C_STR_SUFFIX, "").split("_");
+                    if (parts.length > 1 && !parts[1].equals(nodeId))
+                    {
+                        legacyCatalogs.put(nodeId, getCatalogPrefix(parts[1]));
+                        if (!catalogFiles.containsKey(nodeId))
                         {
-                            Logger.w(TAG, "Node list - cannot process node without a type");
+                            catalogFiles.put(nodeId, perFile.getAbsolutePath());
                         }
                     }
+                    else
+                    {
+                        catalogFiles.put(nodeId, perFile.getAbsolutePath());
+                    }
+                }
+                else if (name.contains(C_STR_NODELIST_FILENAME))
+                {
+                    nodeListFiles.add(perFile.getAbsolutePath());
+                }
+                else if (name.contains(C_STR_USERACTIONS_FILENAME))
+                {
+                    Logger.v(TAG, "reading user action file: " + perFile);
+                    userActionFile = perFile.getAbsolutePath();
+                }
+            }
+
+            long start = System.currentTimeMillis();
+
+            List<String> catalogs;
+            if (m_persistLayout == EsnPersistLayout.PER_NODE && nodeIndexFile != null)
+            {
+                // Only open the files for nodes in the index
+                Logger.v(TAG, "reading node index file: " + nodeIndexFile);
+                catalogs = processNodeIndex(readPersistenceFile(nodeIndexFile), nodeFiles, catalogFiles);
+            }
+            else
+            {
+                // No index yet, so fall back to the node list
+                for (String nodeListFile : nodeListFiles)
+                {
+                    Logger.v(TAG, "reading nodelist file: " + nodeListFile);
+                    if (isStreamed(nodeListFile))
+                    {
+                        streamNodeList(nodeListFile);
+                    }
+                    else
+                    {
+                        processNodeList(readPersistenceFile(nodeListFile));
+                    }
+                }
+                catalogs = new ArrayList<String>(catalogFiles.values());
+            }
+
+            long nodesEnd = System.currentTimeMillis();
+
+            // Now that all the nodes are in the system, we can 
+            // process the catalogs
+            long[] catalogTimes = loadCatalogs(catalogs);
+
+            // Move old catalogs over to the padded names
+            for (Map.Entry<String, String> legacy : legacyCatalogs.entrySet())
+            {
+                NodeBase node = getFileNode(legacy.getKey());
+                if (node != null)
+                {
+                    writeCatalog(node);
+                    m_persistenceWriter.markDeleted(legacy.getValue());
+                }
+            }
+
+            long userActionsStart = System.currentTimeMillis();
+
+            // Now that the catalogs are in the system, we can 
+            // process the user actions that link to them
+            if (userActionFile != null)
+            {
+                if (isStreamed(userActionFile))
+                {
+                    streamUserActionList(userActionFile);
                 }
                 else
                 {
-                    Logger.w(TAG, "Node list has no nodes");
+                    processUserActionList(readPersistenceFile(userActionFile));
+                }
+            }
+
+            Logger.i(TAG, String.format("startup load: nodes %d ms, %d catalogs parsed in %d ms and registered in %d ms, user actions %d ms",
+                    nodesEnd - start, catalogs.size(), catalogTimes[0], catalogTimes[1],
+                    System.currentTimeMillis() - userActionsStart));
+        }
+        else
+        {
+            Logger.w(TAG, "Could not read net directory to get persistence files");
+        }
+    }
+
+    /**
+     * Read in a persistence file, from the snapshot when it has the file,
+     * and remember its generation
+     * 
+     * @param p_fileName
+     * @return the XML document
+     */
+    private Document readPersistenceFile(String p_fileName)
+    {
+        String name = new File(p_fileName).getName();
+
+        Document doc = m_persistenceStore.readSnapshot(name);
+        if (doc == null)
+        {
+            doc = readXML(p_fileName);
+        }
+        m_persistenceStore.addReadFile(name, doc);
+        return doc;
+    }
+
+    /**
+     * @param p_fileName
+     * @return true if the file should be streamed in rather than read as
+     *         a document
+     */
+    private boolean isStreamed(String p_fileName)
+    {
+        // The snapshot is faster still when it has the file
+        return m_isPersistStreaming && !m_persistenceStore.isInSnapshot(new File(p_fileName).getName());
+    }
+
+    /**
+     * Stream in a persistence file one record at a time and remember its
+     * generation. Streamed files never exist as a whole document, so they
+     * aren't added to the snapshot.
+     * 
+     * @param p_fileName
+     * @param p_recordDepth
+     * @param p_recordName
+     * @param p_handler
+     * @return true if the whole file was read
+     */
+    private boolean streamPersistenceFile(final String p_fileName, int p_recordDepth, String p_recordName,
+            final PersistenceStreamReader.Handler p_handler)
+    {
+        final String name = new File(p_fileName).getName();
+
+        return PersistenceStreamReader.read(new File(p_fileName), p_recordDepth, p_recordName, new PersistenceStreamReader.Handler()
+        {
+            @Override
+            public boolean root(Element p_root)
+            {
+                if (p_handler.root(p_root))
+                {
+                    m_persistenceStore.readGeneration(name, new Document(p_root));
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            public void record(Element p_record)
+            {
+                p_handler.record(p_record);
+            }
+        });
+    }
+
+    /**
+     * Read in XML file and return an XML document
+     * 
+     * @param p_fileName
+     * @return
+     */
+    private Document readXML(String p_fileName)
+    {
+        // Make sure we're handing an xml file here
+        if (p_fileName.endsWith(C_STR_SUFFIX))
+        {
+            Builder parser = new Builder();
+            File inFile = new File(p_fileName);
+            if (inFile.exists())
+            {
+                try {
+                    Document doc = parser.build(inFile);
+                    return doc;
+                } catch (ValidityException e) {
+                    Logger.e(TAG, "validity exception while reading file: " + p_fileName, e);
+                } catch (ParsingException e) {
+                    Logger.e(TAG, "paring exception while reading file: " + p_fileName, e);
+                } catch (IOException e) {
+                    Logger.e(TAG, "IOException while reading file: " + p_fileName, e);
                 }
             }
             else
             {
-                Logger.w(TAG,"Node list root is incorrect");
+                Logger.e(TAG, "trying to read file that doesn't exist: " + p_fileName);
+            }
+        }	
+        return null;
+    }
+
+    /**
+     * Run an action request once there's room under the cap on requests in
+     * flight, recording how long it waited
+     * 
+     * @param p_request the actionRequest element
+     * @param p_actionId the action ID to put in the response
+     * @param p_queuedNanos System.nanoTime() when the request arrived
+     * @return the actionResponse element, or null if it isn't a request
+     */
+    private Element runActionRequest(Element p_request, String p_actionId, long p_queuedNanos)
+    {
+        Semaphore permits = m_requestPermits;
+        try
+        {
+            permits.acquire();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return buildActionResponse(p_actionId, "", 1, "interrupted waiting to run");
+        }
+
+        try
+        {
+            long waitNanos = System.nanoTime() - p_queuedNanos;
+            m_numRequests.incrementAndGet();
+            m_requestWaitNanos.addAndGet(waitNanos);
+            long max = m_maxRequestWaitNanos.get();
+            while (waitNanos > max && !m_maxRequestWaitNanos.compareAndSet(max, waitNanos))
+            {
+                max = m_maxRequestWaitNanos.get();
             }
+
+            return executeActionRequest(p_request, p_actionId);
         }
-        else
+        finally
         {
-            Logger.w(TAG, "processing null Node list");
+            permits.release();
         }
     }
 
-
     /**
-     * Process an incoming catalog
+     * Run an action request and build its response. Used by both the
+     * query files and the request server.
      * 
-     * @param p_xml
+     * @param p_request the actionRequest element
+     * @param p_actionId the action ID to put in the response
+     * @return the actionResponse element, or null if it isn't a request
      */
-    private void processCatalog(Document p_xml)
+    private Element executeActionRequest(Element p_request, String p_actionId)
     {
-        if (p_xml != null)
+        if (p_request.getLocalName().compareTo(C_STR_REQUEST_ROOT) != 0)
         {
-            Element root = p_xml.getRootElement();
-            if (root.getLocalName().compareTo(C_STR_CATALOG_FILENAME) == 0)
-            {
-                // Print out the update time
-                DateTime dateTimeLastUpdate = XmlUtils.getXmlAttributeDateTime(root, C_STR_CATALOG_LASTUPDATE);
-                Logger.i(TAG, "Loading Node list file last updated on " + dateTimeLastUpdate.toString());
+            Logger.w(TAG, "not an action request: " + p_request.getLocalName());
+            return null;
+        }
 
-                Long nodeId = XmlUtils.getXmlAttributeLong(root, C_STR_CATALOG_NODEID);
+        short actionId = XmlUtils.getXmlAttributeShort10(p_request, C_STR_REQUEST_ACTION_ID);
+        if (actionId == 0)
+        {
+            Logger.w(TAG, "request has a zero Action ID");
+            return null;
+        }
 
-                Element actionsElement = root.getFirstChildElement(C_STR_CATALOG_ACTIONS);
-                if (actionsElement != null)
+        Elements paramElements = p_request.getChildElements(C_STR_REQUEST_PARAMETER);
+        IAction action = ActionManager.getInstance().getAction(actionId);
+
+        synchronized (getActionLock(actionId))
+        {
+            List<ReentrantLock> paramLocks = lockParameters(action, paramElements);
+            try
+            {
+                if (action != null)
                 {
-                    Elements actionElements = actionsElement.getChildElements();
-                    for( int i=0; i<actionElements.size(); ++i)
+                    for (int i=0; i<paramElements.size(); ++i)
                     {
-                        Element actionElement = actionElements.get(i);
+                        short paramId = XmlUtils.getXmlAttributeShort10(paramElements.get(i), C_STR_REQUEST_PARAM_ID);
+                        String value = XmlUtils.getXmlAttributeString(paramElements.get(i), C_STR_REQUEST_PARAM_VALUE);
 
-                        // Deserialize the new action
-                        NodeAction newAction = new NodeAction(actionElement, nodeId, i+1);
+                        ParameterBase param = ActionManager.getInstance().getParameter(paramId);
 
-                        // Add it to the action manager
-                        ActionManager.getInstance().addNodeAction(newAction);
+                        if (param != null)
+                        {
+                            param.setValue(value);
 
-                        // Parse out all the parameters
-                        Elements paramElements = actionElement.getChildElements();
-                        for( int k=0; k<paramElements.size(); ++k)
+                        }
+                        else
                         {
-                            Element paramElement = paramElements.get(k);
-                            NodeParameter newParam = new NodeParameter(
-                                    paramElement,
-                                    newAction.getActionId(),
-                                    newAction.getNodeId(),
-                                    i+1,
-                                    k+1 );
-
-                            ActionManager.getInstance().addNodeParameter(newParam);
+                            Logger.w(TAG, "null parameter for id " + String.format("%d", paramId));
                         }
-
-                        // Count the parameters we've added
-                        newAction.updateNumParameters();
-
                     }
                 }
+                else 
+                {
+                    Logger.e(TAG, "null action for id " + String.format("0x%x", actionId));
+                }
+
+                ActionRequest request = ActionManager.getInstance().executeAction(actionId, C_I_ACTION_TIMEOUT);
+                if(request.waitForExecution())
+                {
+                    return buildActionResponse(p_actionId, action.getStringReturnValue(), 0, "");
+                }
                 else
                 {
-                    Logger.w(TAG, "Catalog list has no nodes");
+                    return buildActionResponse(p_actionId, "", 1, request.getErrorMessage());
                 }
             }
-            else
+            finally
             {
-                Logger.w(TAG,"Catalog list root is incorrect");
+                for (ReentrantLock lock : paramLocks)
+                {
+                    lock.unlock();
+                }
             }
         }
-        else
-        {
-            Logger.w(TAG, "processing null Catalog");
-        }
     }
 
-
-
     /**
-     * Write the XML file out and clean up old ones
-     * 
-     * @param p_doc
-     * @param p_prefix
+     * Lock every parameter a request could set or its action could reach,
+     * lowest ID first so requests that share parameters can't deadlock
+     *
+     * @param p_action the action, or null if there isn't one
+     * @param p_paramElements the parameters in the request
+     * @return the locks taken
      */
-    private synchronized void writeXmlFile(Document p_doc, String p_prefix)
+    private List<ReentrantLock> lockParameters(IAction p_action, Elements p_paramElements)
     {
-        try
-        {
-            FileOutputStream fos = new FileOutputStream(
-                    String.format("%s/%s_%s%s", 
-                            m_strCmdLocation,
-                            p_prefix,
-                            (new DateTime()).toString(m_dateTimeFormatter),
-                            C_STR_SUFFIX));
-
-            // Using a serializer with indention set to 2 spaces,
-            // write the XML document to the file
-            Serializer output = new Serializer(fos, "ISO-8859-1");
-            output.setIndent(2);
-            output.write(p_doc);
-            fos.close();
-        }
-        catch (FileNotFoundException e)
-        {
-            Logger.w(TAG, "could not write file", e);
-        }
-        catch (UnsupportedEncodingException e)
+        TreeSet<Short> ids = new TreeSet<Short>();
+        if (p_action != null)
         {
-            Logger.w(TAG, "unsupported encoding exception", e);
+            ids.addAll(SequenceAction.getParameterIds(p_action));
         }
-        catch (IOException e)
+        for (int i=0; i<p_paramElements.size(); ++i)
         {
-            Logger.w(TAG, "IO Exception", e);
+            ids.add(XmlUtils.getXmlAttributeShort10(p_paramElements.get(i), C_STR_REQUEST_PARAM_ID));
         }
 
-        cleanOldFiles(p_prefix);
-    }
-
-    /**
-     *  Write any system information to the net directory
-     */
-    private void writeSystemInfo()
-    {
-        Logger.v(TAG, "writing system info");
-
-        Element root = new Element(C_STR_INFO_ROOT);
-        root.addAttribute(new Attribute(C_STR_INFO_STARTTIME, 
-                (new DateTime()).toString(m_dateTimeFormatter)));
-        root.addAttribute(new Attribute(C_STR_INFO_ISRUNNING, String.valueOf(m_isRunning)));
-
-        Document doc = new Document(root);
-
-        writeXmlFile(doc, C_STR_INFO_FILENAME);
-    }
-
-    /**
-     * Go through the net directory and clean out any old files based on 
-     * the passed in prefix. Only the newest file with the particular prefix
-     * will be kept and the others removed
-     * 
-     * @param p_prefix
-     */
-    private void cleanOldFiles(final String p_prefix)
-    {
-        // Make sure the directory is still open
-        if (m_netFileDir != null) 
+        List<ReentrantLock> locks = new ArrayList<ReentrantLock>(ids.size());
+        for (Short id : ids)
         {
-            // This filter is for the prefix
-            FileFilter fileFilter = new FileFilter() {
-                public boolean accept(File file) {
-                    return file.getName().startsWith(p_prefix);
-                }
-            };
-
-            // Get the file list
-            File[] filteredFiles = m_netFileDir.listFiles(fileFilter);
-
-            // Make sure we have old files and keep the newest
-            if (filteredFiles.length > 1)
+            ReentrantLock lock = m_paramLocks.get(id);
+            if (lock == null)
             {
-                // Sort by the newest modified
-                Arrays.sort(filteredFiles, NameFileComparator.NAME_REVERSE);
-
-                // The reverse sort leaves the zero element as the newest file.
-                // Delete the rest
-                for(int i=1; i<filteredFiles.length; i++)
+                ReentrantLock newLock = new ReentrantLock();
+                lock = m_paramLocks.putIfAbsent(id, newLock);
+                if (lock == null)
                 {
-                    if(!filteredFiles[i].delete())
-                    {
-                        Logger.e(TAG, "could not delete old file: " + filteredFiles[i].getName());
-                    }
-                    else
-                    {
-                        Logger.v(TAG, "Deleted file: " + filteredFiles[i].getName());
-                    }
+                    lock = newLock;
                 }
             }
+            lock.lock();
+            locks.add(lock);
         }
+        return locks;
     }
 
     /**
-     * Read the net file directory and process any persistence files
+     * @param p_actionId
+     * @return the lock held while a request runs the action
      */
-    private void readPersistenceFiles()
+    private Object getActionLock(short p_actionId)
     {
-        // Read through the net file directory and grab any
-        // persistence files
-        if (m_netFileDir != null)
+        Object lock = m_actionLocks.get(p_actionId);
+        if (lock == null)
         {
-            File[] perFiles = m_netFileDir.listFiles();
-
-            // Delay catalog processing until after node lists are processed
-            ArrayList<String> catalogs = new ArrayList<String>();
-            // Delay user actions until after catalogs are processed
-            String userActionFile = null;
-
-            for (File perFile : perFiles)
-            {
-
-                if (perFile.getName().contains(C_STR_CATALOG_FILENAME))
-                {
-                    Logger.v(TAG, "reading catalog file: " + perFile);
-                    catalogs.add(perFile.getAbsolutePath());
-                }
-                else if (perFile.getName().contains(C_STR_NODELIST_FILENAME))
-                {
-                    Logger.v(TAG, "reading nodelist file: " + perFile);
-                    processNodeList(readXML(perFile.getAbsolutePath()));
-                }
-                else if (perFile.getName().contains(C_STR_USERACTIONS_FILENAME))
-                {
-                    Logger.v(TAG, "reading user action file: " + perFile);
-                    userActionFile = perFile.getAbsolutePath();
-                }
-            }
-
-            // Now that all the nodes are in the system, we can 
-            // process the catalogs
-            for(String catalog : catalogs)
+            Object newLock = new Object();
+            lock = m_actionLocks.putIfAbsent(p_actionId, newLock);
+            if (lock == null)
             {
-                processCatalog(readXML(catalog));
+                lock = newLock;
             }
-            // Now that the catalogs are in the system, we can 
-            // process the user actions that link to them
-            if (userActionFile != null)
-            {
-                processUserActionList(readXML(userActionFile));
-            }
-        }
-        else
-        {
-            Logger.w(TAG, "Could not read net directory to get persistence files");
         }
+        return lock;
     }
 
     /**
-     * Read in XML file and return an XML document
+     * Build an action response
      * 
-     * @param p_fileName
-     * @return
+     * @param p_actionId
+     * @param p_stringReturnValue
+     * @param p_errorCode
+     * @param p_errorMsg
+     * @return the actionResponse element
      */
-    private Document readXML(String p_fileName)
+    private Element buildActionResponse(
+            String p_actionId, 
+            String p_stringReturnValue,
+            int p_errorCode, 
+            String p_errorMsg) 
     {
-        // Make sure we're handing an xml file here
-        if (p_fileName.endsWith(C_STR_SUFFIX))
-        {
-            Builder parser = new Builder();
-            File inFile = new File(p_fileName);
-            if (inFile.exists())
-            {
-                try {
-                    Document doc = parser.build(inFile);
-                    return doc;
-                } catch (ValidityException e) {
-                    Logger.e(TAG, "validity exception while reading file: " + p_fileName, e);
-                } catch (ParsingException e) {
-                    Logger.e(TAG, "paring exception while reading file: " + p_fileName, e);
-                } catch (IOException e) {
-                    Logger.e(TAG, "IOException while reading file: " + p_fileName, e);
-                }
-            }
-            else
-            {
-                Logger.e(TAG, "trying to read file that doesn't exist: " + p_fileName);
-            }
-        }	
-        return null;
+        Element root = new Element("actionResponse");
+        root.addAttribute(new Attribute("actionId", p_actionId));
+        root.addAttribute(new Attribute("timeResponded", DateTime.now().toString(SysUtils.getDateTimeFormatter())));
+        Element returnedElement = new Element("returned");
+        returnedElement.addAttribute(new Attribute("value", p_stringReturnValue));
+        returnedElement.addAttribute(new Attribute("errorCode", String.valueOf(p_errorCode)));
+        returnedElement.addAttribute(new Attribute("errorMsg", p_errorMsg == null ? "" : p_errorMsg));
+        root.appendChild(returnedElement);
+        return root;
     }
 
     /**
@@ -846,25 +2039,51 @@ public class MsgAdapterNet extends MsgAdapterBase
     private class MsgAdapterNetFileThread extends Thread
     {
         private static final String TAG = "MsgAdapterNetFileThread";
-        private static final int C_I_ACTION_TIMEOUT = 5000;
-        private static final String C_STR_REQUEST_PARAM_VALUE = "value";
-        private static final String C_STR_REQUEST_PARAM_ID = "id";
-        private static final String C_STR_REQUEST_PARAMETER = "parameter";
-        private static final String C_STR_REQUEST_ACTION_ID = "actionId";
-        private static final String C_STR_REQUEST_ROOT = "actionRequest";
+
+        // Query files already handed over, so a rescan doesn't run a request
+        // twice. Only touched from this thread.
+        private final LinkedHashMap<String, Boolean> m_seenQueries = new LinkedHashMap<String, Boolean>()
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> p_eldest)
+            {
+                return size() > C_I_MAX_SEEN_REQUESTS;
+            }
+        };
 
         @Override
         public void run() {
             Logger.i(TAG, "Starting");
             super.run();
 
+            // Without a watch key the directory is only polled
+            int pollMs = m_requestPollMs;
+            if (m_watchKey == null && pollMs <= 0)
+            {
+                pollMs = C_I_REQUEST_POLL_MS;
+            }
+
             // Loop while the adapter is running
             while(m_isRunning)
             {
                 // take() will block until a file has been created/deleted
                 WatchKey signalledKey;
                 try {
-                    signalledKey = m_watchService.take();
+                    if (m_watchKey == null)
+                    {
+                        Thread.sleep(pollMs);
+                        signalledKey = null;
+                    }
+                    else if (pollMs > 0)
+                    {
+                        signalledKey = m_watchService.poll(pollMs, TimeUnit.MILLISECONDS);
+                    }
+                    else
+                    {
+                        signalledKey = m_watchService.take();
+                    }
                 } catch (InterruptedException ix){
                     // we'll ignore being interrupted
                     continue;
@@ -873,6 +2092,17 @@ public class MsgAdapterNet extends MsgAdapterBase
                     break;
                 }
 
+                // Nothing came in since the last poll, check for anything
+                // the watch service missed
+                if (signalledKey == null)
+                {
+                    if (m_isRunning)
+                    {
+                        rescanQueries();
+                    }
+                    continue;
+                }
+
                 // get list of events from key
                 List<WatchEvent<?>> list = signalledKey.pollEvents();
 
@@ -888,10 +2118,12 @@ public class MsgAdapterNet extends MsgAdapterBase
                         if (fileName.startsWith(C_STR_ACTIONREQUEST_FILENAME) &&
                                 fileName.endsWith(C_STR_SUFFIX))
                         {
-                            processQueryFile(fileName);
+                            submitQueryFile(fileName);
                         }
                     } else if(e.kind() == StandardWatchEventKind.OVERFLOW){
-                        Logger.e(TAG, "OVERFLOW: more changes happened than we could retreive");
+                        Logger.e(TAG, "OVERFLOW: more changes happened than we could retreive, rescanning");
+                        m_numOverflows.incrementAndGet();
+                        rescanQueries();
                     }
                 }
             }
@@ -899,12 +2131,117 @@ public class MsgAdapterNet extends MsgAdapterBase
             Logger.i(TAG, "Exiting thread: " + m_isRunning);
         }
 
+        /**
+         * Hand an incoming XML file to the request executor so the watch
+         * loop can go straight back to waiting for the next one
+         * 
+         * @param p_fileName
+         */
+        private void submitQueryFile(final String p_fileName)
+        {
+            // An event can come in after a rescan already found the file
+            if (m_seenQueries.put(getRequestKey(p_fileName), Boolean.TRUE) != null)
+            {
+                Logger.v(TAG, "already processing query file: " + p_fileName);
+                return;
+            }
+
+            final long queuedNanos = System.nanoTime();
+            ExecutorService executor = m_requestExecutor;
+            if (executor == null)
+            {
+                processQueryFile(p_fileName, queuedNanos);
+                return;
+            }
+
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        processQueryFile(p_fileName, queuedNanos);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                Logger.w(TAG, "adapter stopping, dropping query file " + p_fileName);
+            }
+        }
+
+        /**
+         * Hand over every query file in the directory that hasn't been seen
+         * yet, oldest first
+         */
+        private void rescanQueries()
+        {
+            File[] files = new File(m_strQueryLocation).listFiles();
+            if (files == null)
+            {
+                Logger.w(TAG, "could not list " + m_strQueryLocation);
+                return;
+            }
+
+            ArrayList<File> unseen = new ArrayList<File>();
+            for (File file : files)
+            {
+                String fileName = file.getName();
+                // An empty file may still be being written, the next scan
+                // will get it
+                if (fileName.startsWith(C_STR_ACTIONREQUEST_FILENAME) && fileName.endsWith(C_STR_SUFFIX)
+                        && file.length() > 0 && !m_seenQueries.containsKey(getRequestKey(fileName)))
+                {
+                    unseen.add(file);
+                }
+            }
+
+            // Run them in the order the Portal created them
+            Collections.sort(unseen, new Comparator<File>()
+            {
+                @Override
+                public int compare(File p_lhs, File p_rhs)
+                {
+                    long lhs = p_lhs.lastModified();
+                    long rhs = p_rhs.lastModified();
+                    if (lhs != rhs)
+                    {
+                        return lhs < rhs ? -1 : 1;
+                    }
+                    return p_lhs.getName().compareTo(p_rhs.getName());
+                }
+            });
+
+            for (File file : unseen)
+            {
+                submitQueryFile(file.getName());
+            }
+
+            if (!unseen.isEmpty())
+            {
+                m_numRecovered.addAndGet(unseen.size());
+                Logger.i(TAG, "recovered " + unseen.size() + " query files");
+            }
+        }
+
+        /**
+         * @param p_fileName actionRequest_[actionId]_[requestId].xml
+         * @return the action and request IDs that identify a request
+         */
+        private String getRequestKey(String p_fileName)
+        {
+            return p_fileName.substring(C_STR_ACTIONREQUEST_FILENAME.length(),
+                    p_fileName.length() - C_STR_SUFFIX.length());
+        }
+
         /**
          * Process an incoming XML file
          * 
          * @param p_fileName
+         * @param p_queuedNanos System.nanoTime() when the file was seen
          */
-        private void processQueryFile(String p_fileName)
+        private void processQueryFile(String p_fileName, long p_queuedNanos)
         {
             Logger.v(TAG, "processing query file: " + p_fileName);
 
@@ -912,7 +2249,10 @@ public class MsgAdapterNet extends MsgAdapterBase
 
             Document queryDoc = readXML(strFileName);
 
-            processQuery(queryDoc, p_fileName);
+            if (queryDoc != null)
+            {
+                processQuery(queryDoc, p_fileName, p_queuedNanos);
+            }
 
             // If we are not in debug mode, delete the file
             if(false == m_isDebug)
@@ -942,94 +2282,35 @@ public class MsgAdapterNet extends MsgAdapterBase
          * 
          * @param p_xmlDoc
          * @param pFileName 
+         * @param p_queuedNanos System.nanoTime() when the file was seen
          */
-        private void processQuery(Document p_xmlDoc, String p_fileName) {
+        private void processQuery(Document p_xmlDoc, String p_fileName, long p_queuedNanos) {
 
             String[] fileParts = p_fileName.split("_");
 
             Element root = p_xmlDoc.getRootElement();
-            if (root.getLocalName().compareTo(C_STR_REQUEST_ROOT) == 0)
+            Element response = runActionRequest(root, fileParts[1], p_queuedNanos);
+            if (response != null)
             {
-                short actionId = XmlUtils.getXmlAttributeShort10(root, C_STR_REQUEST_ACTION_ID);
-
-                if (actionId != 0)
-                {
-                    Elements paramElements = root.getChildElements(C_STR_REQUEST_PARAMETER);
-
-                    IAction action = ActionManager.getInstance().getAction(actionId);
-
-                    if (action != null)
-                    {
-                        for (int i=0; i<paramElements.size(); ++i)
-                        {
-                            short paramId = XmlUtils.getXmlAttributeShort10(paramElements.get(i), C_STR_REQUEST_PARAM_ID);
-                            String value = XmlUtils.getXmlAttributeString(paramElements.get(i), C_STR_REQUEST_PARAM_VALUE);
-
-                            ParameterBase param = ActionManager.getInstance().getParameter(paramId);
-
-                            if (param != null)
-                            {
-                                param.setValue(value);
-
-                            }
-                            else
-                            {
-                                Logger.w(TAG, "null parameter for id " + String.format("%d", paramId));
-                            }
-                        }
-                    }
-                    else 
-                    {
-                        Logger.e(TAG, "null action for id " + String.format("0x%x", actionId));
-                    }
-
-                    ActionRequest request = ActionManager.getInstance().executeAction(actionId, C_I_ACTION_TIMEOUT);
-                    if(request.waitForExecution())
-                    {
-                        writeQueryResponse(fileParts[1], fileParts[2], action.getStringReturnValue(), 0, "");
-                    }
-                    else
-                    {
-                        writeQueryResponse(fileParts[1], fileParts[2], "", 1, request.getErrorMessage());
-                    }
-                }
-                else
-                {
-                    Logger.w(TAG, "request has a zero Action ID");
-                }
+                writeQueryResponse(fileParts[1], fileParts[2], response);
             }
 
             Logger.v(TAG, "query type: " + root.getLocalName());
         }
 
-
-
         /**
          * Write the query response XML file
          * 
          * @param p_actionId
          * @param p_requestId
-         * @param p_stringReturnValue
-         * @param p_errorCode
-         * @param p_errorMsg
+         * @param p_response
          */
         private void writeQueryResponse(
                 String p_actionId, 
                 String p_requestId, 
-                String p_stringReturnValue,
-                int p_errorCode, 
-                String p_errorMsg) 
-        {
-            Element root = new Element("actionResponse");
-            root.addAttribute(new Attribute("actionId", p_actionId));
-            root.addAttribute(new Attribute("timeResponded", DateTime.now().toString(SysUtils.getDateTimeFormatter())));
-            Element returnedElement = new Element("returned");
-            returnedElement.addAttribute(new Attribute("value", p_stringReturnValue));
-            returnedElement.addAttribute(new Attribute("errorCode", String.valueOf(p_errorCode)));
-            returnedElement.addAttribute(new Attribute("errorMsg", p_errorMsg));
-            root.appendChild(returnedElement);
-
-            Document doc = new Document(root);
+                Element p_response) 
+        {
+            Document doc = new Document(p_response);
 
             try
             {
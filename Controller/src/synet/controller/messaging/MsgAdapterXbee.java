@@ -6,9 +6,10 @@ package synet.controller.messaging;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.TooManyListenersException;
 
 import gnu.io.CommPort;
@@ -38,27 +39,22 @@ import synet.controller.utils.SysUtils;
  * @author kur57360
  *
  */
-public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventListener {
-
-    private static final int PACKET_START_BYTE = 0x7e;
-
-    private enum EsnPacketState {
-        PACKET_START, // Waiting for Initial packet byte 
-        SIZE_MSB, // Waiting for MSB of frame size
-        SIZE_LSB, // Waiting for LSB of frame size 
-        API, // Waiting for the API code 
-        DATA, // Waiting for the frame data 
-        CHECKSUM; // Waiting for the frame checksum
-    }
+public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventListener, XbeeFrameListener {
 
     private static final String TAG = "MsgAdapterXbee";
     private static final String PORT_WIN = "COM15";
     private static final String PORT_MAC = "/dev/cu.usbserial-AH0015BR";
     private static final String PORT_LINUX = "/dev/ttyUSB0";
 
-    private HashMap<Integer, MsgTx> m_msgHashMap = new HashMap<Integer, MsgTx>(256);
+    // How often the sweeper looks for frames with no TX status
+    private static final int C_TX_SWEEP_INTERVAL_MS = 100;
+
+    // Frames waiting on a TX status, and sends waiting for room
+    private XbeeTransmitWindow m_txWindow = new XbeeTransmitWindow(
+            XbeeTransmitWindow.C_MAX_IN_FLIGHT, XbeeTransmitWindow.C_TX_TIMEOUT_MS);
+    private Object m_txLock = new Object();
+    private TxSweeperThread m_txSweeperThread = null;
 
-    private int m_currentFrameId = 1;
     private CommPortIdentifier m_commPort = null;
     private SerialPort m_serialPort = null;
 
@@ -67,13 +63,10 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
     private OutputStream m_serialOut = null;
 
     // Packet decoding
-    private EsnPacketState m_packetState = EsnPacketState.PACKET_START;
-    private int m_packetSize = 0;
-    private int m_packetDataIndex = 0;
-    private int m_packetChecksum = 0; // short for unsigned byte
-    private int m_packetAPI = 0;
-    private int[] m_packetData = null;
-    private int m_sendChecksum;
+    private XbeeFrameDecoder m_frameDecoder = new XbeeFrameDecoder(this);
+
+    // Packet encoding. The sink is set once the port is connected
+    private XbeeFrameEncoder m_frameEncoder = new XbeeFrameEncoder(null);
     private String m_strPortName;
 
     private MsgFactoryXbee m_msgFactoryXbee;
@@ -121,11 +114,12 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
         // Setup the base
         startBase();
 
-
+        loadConfiguration();
 
         // First try connecting to the predefined port
         if (tryConnect(m_strPortName))
         {
+            startTxSweeper();
             return true;
         }
 
@@ -135,6 +129,7 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
         {
             if (!aPort.getName().contains("Bluetooth") && tryConnect(aPort.getName()))
             {
+                startTxSweeper();
                 return true;
             }
         }
@@ -150,7 +145,72 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
         // Stop the base
         stopBase();
 
+        stopTxSweeper();
+
         disconnect(m_serialPort);
+
+        // Anything still waiting is not going to be sent
+        for (MsgTx msg : m_txWindow.clear())
+        {
+            msg.setErrorMsg("adapter stopped before tx status");
+        }
+        Logger.i(TAG, "transmit window " + m_txWindow.getDescription());
+
+        saveConfiguration();
+    }
+
+    /**
+     * Load any variables from the configuration
+     */
+    private void loadConfiguration()
+    {
+        if (getConfiguration() != null)
+        {
+            m_txWindow = new XbeeTransmitWindow(
+                    getConfiguration().getInt("txWindowSize", XbeeTransmitWindow.C_MAX_IN_FLIGHT),
+                    getConfiguration().getInt("txTimeoutMs", XbeeTransmitWindow.C_TX_TIMEOUT_MS));
+        }
+    }
+
+    /**
+     * Save any variables for the configuration
+     */
+    private void saveConfiguration()
+    {
+        if (getConfiguration() != null)
+        {
+            getConfiguration().addProperty("txWindowSize", m_txWindow.getMaxInFlight());
+            getConfiguration().addProperty("txTimeoutMs", m_txWindow.getTimeoutMs());
+        }
+    }
+
+    /**
+     * Start the thread that times out frames with no TX status
+     */
+    private void startTxSweeper()
+    {
+        m_txSweeperThread = new TxSweeperThread();
+        m_txSweeperThread.start();
+    }
+
+    /**
+     * Stop the TX sweeper thread
+     */
+    private void stopTxSweeper()
+    {
+        if (m_txSweeperThread != null)
+        {
+            m_txSweeperThread.stopSweeper();
+            try
+            {
+                m_txSweeperThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Logger.e(TAG, "interrupted waiting for sweeper to stop", e);
+            }
+            m_txSweeperThread = null;
+        }
     }
     /**
      * Disconnect the serial port from the event listener
@@ -174,6 +234,8 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
 
             p_serialPort.close();
 
+            m_frameDecoder.reset();
+            m_frameEncoder.setSink(null);
             m_serialIn = null;
             m_serialOut = null;
         }
@@ -244,6 +306,7 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
                         }
                         else
                         {
+                            m_frameEncoder.setSink(m_serialOut);
                             serialPort.addEventListener(this);
                             serialPort.notifyOnDataAvailable(true);
 
@@ -304,16 +367,12 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
     public void serialEvent(SerialPortEvent arg0)
     {
         //Logger.v(TAG, "Serial event detected");
-        int data;
-
         try
         {
             if (m_serialIn != null && m_serialIn.available() > 0)
             {
-                while (( data = m_serialIn.read()) > -1 )
-                {
-                    decodePacketByte(data);
-                }
+                // Read in bulk. The decoder calls back for each full frame
+                m_frameDecoder.read(m_serialIn);
             }
         }
         catch ( IOException e )
@@ -323,99 +382,22 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
         }        
     }
 
-    /**
-     * Decode a packet byte and help for the packet
-     * 
-     * @param data
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.XbeeFrameListener#handleXbeeFrame(int, java.nio.ByteBuffer)
      */
-    private void decodePacketByte(int data)
+    @Override
+    public void handleXbeeFrame(int p_api, ByteBuffer p_frame)
     {
-//        		Logger.v(TAG, "decoding packet byte: "+ String.format("0x%x (%c)", data, data));
+        Msg msgRx = m_msgFactoryXbee.createMessage(p_api, p_frame);
 
-        // Decode based on the current packet state
-        switch(m_packetState)
+        // If it is a TX response, process it. Otherwise fire a notification
+        if (msgRx instanceof MsgXbeeTxStatus)
         {
-            case PACKET_START:
-            {
-                // Check for the zigbee packet start (7e)
-                if(data == PACKET_START_BYTE)
-                {
-                    //				Logger.v(TAG, "decode - read packet start:" + String.format("0x%x", data));
-                    m_packetState = EsnPacketState.SIZE_MSB;
-                }
-                else
-                {
-                    //				Logger.w(TAG, "decode - invalid packet start byte:" + String.format("0x%x", data));
-                }
-            }
-            break;
-            case SIZE_MSB:
-            {
-                //			Logger.v(TAG, "decoding size MSB:" + String.format("0x%x", data));
-                m_packetSize |= (data << 8);
-                m_packetState = EsnPacketState.SIZE_LSB;
-            }
-            break;
-            case SIZE_LSB:
-            {
-                //			Logger.v(TAG, "decoding size LSB:" + String.format("0x%x", data));
-                m_packetSize |= data;
-
-                // Initialize a new data buffer for this packet
-                m_packetData = new int[m_packetSize];
-
-                //			Logger.v(TAG, "packet size:" + m_packetSize);
-                m_packetState = EsnPacketState.API;
-            }
-            break;
-            case API:
-            {
-                //			Logger.v(TAG, "decoding API:" + String.format("0x%x", data));
-                // add to the checksum
-                m_packetAPI = data;
-                m_packetChecksum = addByte(m_packetChecksum, data);
-                m_packetSize--; // API is part of packet size. We just want data size
-                m_packetState = EsnPacketState.DATA;
-            }
-            break;
-            case DATA:
-            {
-                //			Logger.v(TAG, "decoding data:" + String.format("0x%x", data));
-                m_packetData[m_packetDataIndex++] = data;
-                m_packetChecksum = addByte(m_packetChecksum, data);
-
-                // If the packet data index has overrun our packet size, move on
-                if (m_packetDataIndex == m_packetSize)
-                {
-                    m_packetState = EsnPacketState.CHECKSUM;
-                }
-            }
-            break;
-            case CHECKSUM:
-                //			Logger.v(TAG, "decoding checksum:" + String.format("0x%x", data));
-                int checksum = 255 - m_packetChecksum;
-                if (data == checksum)
-                {
-                    //				Logger.v(TAG, "decoding complete. Full Packet received");
-                    Msg msgRx = m_msgFactoryXbee.createMessage(m_packetAPI, m_packetData);
-
-                    // If it is a TX response, process it. Otherwise fire a notification
-                    if (msgRx instanceof MsgXbeeTxStatus)
-                    {
-                        processTxStatus((MsgXbeeTxStatus)msgRx);
-                    }
-                    else
-                    {
-                        fireMsgReceivedEvent(msgRx);
-                    }
-                }
-                else
-                {
-                    Logger.v(TAG, "decoding failed. Checksum expected:" + String.format("0x%x", checksum));
-                }
-                resetDecode();
-                break;
-
+            processTxStatus((MsgXbeeTxStatus)msgRx);
+        }
+        else
+        {
+            fireMsgReceivedEvent(msgRx);
         }
     }
 
@@ -427,11 +409,9 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
      */
     private void processTxStatus(MsgXbeeTxStatus p_msgTxStatus) {
 
-        MsgTx msgTx = null;
-        synchronized(m_msgHashMap)
-        {
-            msgTx = m_msgHashMap.get(p_msgTxStatus.getFrameId());
-        }
+        // Completing the frame frees its ID for reuse
+        MsgTx msgTx = m_txWindow.complete(p_msgTxStatus.getFrameId());
+
         if (msgTx != null)
         {
             if (p_msgTxStatus.getDeliveryStatus() == EsnTxDeliveryStatus.SUCCESS)
@@ -444,11 +424,9 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
                 Logger.v(TAG, "processing Tx status for message: error " + p_msgTxStatus.getDescription());
                 msgTx.setErrorMsg(p_msgTxStatus.getDescription());
             }
-            // Remove it from the map
-            synchronized(m_msgHashMap)
-            {
-                m_msgHashMap.remove(p_msgTxStatus.getFrameId());
-            }
+
+            // There is room in the window now
+            sendQueuedTxMessages();
         }
         else
         {
@@ -456,33 +434,6 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
         }
     }
 
-    /**
-     * Reset all the decode variables
-     */
-    private void resetDecode()
-    {
-        m_packetState = EsnPacketState.PACKET_START;
-        m_packetAPI = 0;
-        m_packetChecksum = 0;
-        m_packetData = null;
-        m_packetDataIndex = 0;
-        m_packetSize = 0;
-    }
-
-    /**
-     * @param m_packetChecksum2
-     * @param data
-     */
-    private int addByte(int p_lhs, int p_rhs)
-    {
-        p_lhs += p_rhs;
-        if( p_lhs > 255)
-        {
-            p_lhs -= 256;
-        }
-        return p_lhs;
-    }
-
     /* (non-Javadoc)
      * @see synet.controller.messaging.MsgAdapterBase#getNodeClass()
      */
@@ -551,90 +502,76 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
     }
 
     /**
-     * Send a message using zigbee tx
+     * Send a message using zigbee tx. If the transmit window is full
+     * the message waits its turn.
      * 
      * @param p_msg
      */
     private void SendTxMessage(MsgTx p_msg, NodeZigbee p_node)
     {
-        byte[] messageBytes = p_msg.getBytes();
-        byte[] addr16 = p_node.getAddress16Bytes();
-        byte[] addr64 = p_node.getAddress64Bytes();
-        int frameId = getNextFrameId();
-
-        // Size = 1 API + 
-        // frame ID + 2 16addr + 8 64addr + radius +
-        // options + n packetdata + checksum
-        int size = 14 + messageBytes.length;
-
-        Logger.d(TAG, "Sending TX message: " + p_msg.getDescription());
-
-        try
+        synchronized(m_txLock)
         {
-            sb( MsgFactoryXbee.C_XBEE_API_START_BYTE);
-            sb( (size>>8) & 0xff); // Size MSB
-            sb( size & 0xff); // Size LSB
-
-            // Start the checksum here
-            m_sendChecksum = 0;
-
-            sb( MsgFactoryXbee.C_XBEE_API_ZIGBEE_TX_REQ); // API
-            sb( frameId ); // Frame ID
-            sb( addr64 ); // 64-bit address
-            sb( addr16 ); // 64-bit address
-            sb( 0x00 ); // Broadcast Radius
-            sb( 0x00 ); // Options
-            sb( messageBytes ); // Packet bytes
-            sb( 0xff - (m_sendChecksum & 0xff) ); // Checksum
-
-            // Hash the message so we can correlate the send notification
-            synchronized(m_msgHashMap)
+            XbeeTransmitWindow.TxFrame frame = m_txWindow.offer(p_msg, p_node);
+
+            if (frame != null)
             {
-                m_msgHashMap.put(frameId, p_msg);
+                writeTxFrame(frame);
+            }
+            else
+            {
+                Logger.v(TAG, "transmit window full. Queuing " + p_msg.getDescription());
             }
-        }
-        catch (IOException e)
-        {
-            Logger.e(TAG, "error sending tx message", e);
         }
     }
 
     /**
-     * @return the next frame Id
+     * Send any queued messages the transmit window has room for
      */
-    private int getNextFrameId() {
-        if(++m_currentFrameId > 255)
+    private void sendQueuedTxMessages()
+    {
+        XbeeTransmitWindow.TxFrame frame;
+
+        synchronized(m_txLock)
         {
-            m_currentFrameId = 0;
+            while ((frame = m_txWindow.poll()) != null)
+            {
+                writeTxFrame(frame);
+            }
         }
-        return m_currentFrameId;
     }
 
     /**
-     * Send byte and log it
+     * Write a frame that has been given a frame ID
      * 
-     * @param p_byte
-     * @throws IOException
+     * @param p_frame
      */
-    private void sb(int p_byte) throws IOException
+    private void writeTxFrame(XbeeTransmitWindow.TxFrame p_frame)
     {
-//        		Logger.v(TAG, "sending byte: " + String.format("0x%x", (byte)p_byte));
-        m_serialOut.write(p_byte);
-        m_sendChecksum = addByte(m_sendChecksum, p_byte);
+        MsgTx msg = p_frame.getMsg();
+        NodeZigbee node = p_frame.getNode();
+
+        Logger.d(TAG, "Sending TX message: " + msg.getDescription());
+
+        try
+        {
+            // The whole frame goes out in a single write
+            m_frameEncoder.writeTxRequest(p_frame.getFrameId(),
+                    node.getAddress64Bytes(), node.getAddress16Bytes(), msg.getBytes());
+        }
+        catch (IOException e)
+        {
+            Logger.e(TAG, "error sending tx message", e);
+            m_txWindow.release(p_frame);
+            msg.setErrorMsg("error sending tx message: " + e.getMessage());
+        }
     }
 
     /**
-     * Send bytes and log it
-     * 
-     * @param p_byte
-     * @throws IOException
+     * @return the transmit window
      */
-    private void sb(byte[] p_bytes) throws IOException
+    public XbeeTransmitWindow getTxWindow()
     {
-        for(byte i=0; i < p_bytes.length; ++i)
-        {
-            sb(p_bytes[i]);
-        }
+        return m_txWindow;
     }
 
     /* (non-Javadoc)
@@ -648,4 +585,72 @@ public class MsgAdapterXbee extends MsgAdapterBase implements SerialPortEventLis
 
         NodeManager.getInstance().addNewNode(node.getNodeId(), node);
     }
+
+    /**
+     * Times out frames that never got a TX status so their frame IDs
+     * can be used again
+     */
+    private class TxSweeperThread extends Thread
+    {
+        private static final String TAG = "XbeeTxSweeperThread";
+        private volatile boolean m_running = false;
+
+        public TxSweeperThread()
+        {
+            super(TAG);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            Logger.d(TAG, "starting");
+            m_running = true;
+
+            while(m_running)
+            {
+                List<MsgTx> expired = m_txWindow.expire(System.currentTimeMillis());
+
+                for (MsgTx msg : expired)
+                {
+                    Logger.w(TAG, "no tx status for " + msg.getDescription());
+                    msg.setErrorMsg("timed out waiting for tx status");
+                }
+
+                if (!expired.isEmpty())
+                {
+                    sendQueuedTxMessages();
+                }
+
+                synchronized(this)
+                {
+                    try
+                    {
+                        if (m_running)
+                        {
+                            wait(C_TX_SWEEP_INTERVAL_MS);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Logger.w(TAG, "thread interrupted");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stop the thread from running
+         */
+        public void stopSweeper()
+        {
+            m_running = false;
+
+            synchronized(this)
+            {
+                notifyAll();
+            }
+            Logger.d(TAG, "stopping");
+        }
+    }
 }
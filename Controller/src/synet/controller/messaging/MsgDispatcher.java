@@ -4,11 +4,12 @@
 package synet.controller.messaging;
 
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
 
 import synet.controller.NodeManager;
 import synet.controller.actions.ActionManager;
 import synet.controller.configuration.Configuration;
+import synet.controller.messaging.MsgRateLimiter.TrafficClass;
 import synet.controller.messaging.messages.Msg;
 import synet.controller.messaging.messages.MsgBootloadResponse;
 import synet.controller.messaging.messages.MsgCatalogResponse;
@@ -17,10 +18,17 @@ import synet.controller.messaging.messages.MsgDeviceStatusResponse;
 import synet.controller.messaging.messages.MsgFunctionReceive;
 import synet.controller.messaging.messages.MsgFunctionTransmit;
 import synet.controller.messaging.messages.MsgParameterResponse;
+import synet.controller.messaging.messages.MsgPriority;
 import synet.controller.messaging.messages.MsgSystemNodelistReceive;
 import synet.controller.messaging.messages.MsgSystemUserActionListReceive;
 import synet.controller.messaging.messages.MsgTx;
+import synet.controller.messaging.queue.LinkedMsgQueue;
+import synet.controller.messaging.queue.MsgQueue;
+import synet.controller.messaging.queue.PriorityMsgQueue;
+import synet.controller.messaging.queue.RingBufferMsgQueue;
+import synet.controller.messaging.queue.WaitStrategy;
 import synet.controller.nodes.NodeBroadcast;
+import synet.controller.utils.LatencyHistogram;
 import synet.controller.utils.Logger;
 
 /**
@@ -30,14 +38,24 @@ import synet.controller.utils.Logger;
 public class MsgDispatcher implements MsgReceivedEventListener {
     private static final String TAG = "MsgDispatcher";
 
-    private LinkedList<Msg> m_msgQueueIn = new LinkedList<Msg>();
-    private LinkedList<MsgTx> m_msgQueueOut = new LinkedList<MsgTx>();
+    public static final String C_STR_QUEUE_MODE_LINKED = "linked";
+    public static final String C_STR_QUEUE_MODE_RING = "ring";
+    public static final int C_QUEUE_CAPACITY = 1024;
+    public static final int C_QUEUE_PUT_TIMEOUT_MS = 1000;
+    public static final int C_RECEIVE_LANES = 1;
 
-    private MsgReceiverThread m_receiverThread = new MsgReceiverThread();
+    private PriorityMsgQueue m_msgQueueOut = createQueueOut(PriorityMsgQueue.getDefaultWeights());
+
+    // Receive lanes. Each message is hashed to a lane by its source node so
+    // a node's messages stay in order while different nodes run in parallel
+    private MsgReceiverThread[] m_receiverThreads = { new MsgReceiverThread(0, new LinkedMsgQueue<Msg>()) };
     private MsgSenderThread m_senderThread = new MsgSenderThread();
+    private MsgPacerThread m_pacerThread = new MsgPacerThread();
+    private MsgExpiryThread m_expiryThread = new MsgExpiryThread();
 
     private HashMap<Class<?>, MsgAdapterBase> m_msgAdapterMap = new HashMap<Class<?>, MsgAdapterBase>();
-    private HashMap<Long, HashMap<Integer, MsgFunctionTransmit>> m_actionMsgMap = new HashMap<Long, HashMap<Integer,MsgFunctionTransmit>>();
+    private FunctionCorrelator m_functionCorrelator = new FunctionCorrelator(FunctionCorrelator.C_TIMEOUT_MS);
+    private MsgRateLimiter m_rateLimiter = new MsgRateLimiter();
 
     private static MsgDispatcher m_instance;
     private NodeManager m_nodeManager;
@@ -47,6 +65,17 @@ public class MsgDispatcher implements MsgReceivedEventListener {
 
     // Configuration variables
     private Configuration m_config;
+    private String m_queueMode;
+    private int m_queueCapacity;
+    private int m_queuePutTimeoutMs;
+    private WaitStrategy m_waitStrategy;
+    private int m_receiveLanes;
+    private int m_correlationTimeoutMs;
+    private int m_userRate;
+    private int m_userBurst;
+    private int m_discoveryRate;
+    private int m_discoveryBurst;
+    private int[] m_priorityWeights;
 
     /**
      * @return the MsgDispatcher instance
@@ -104,6 +133,8 @@ public class MsgDispatcher implements MsgReceivedEventListener {
     {
         boolean retVal;
 
+        loadConfiguration();
+
         retVal = startAdapters();
 
         if (retVal)
@@ -127,17 +158,315 @@ public class MsgDispatcher implements MsgReceivedEventListener {
     {
         stopAdapters();
         stopThreads();
-        
+
+        for (MsgReceiverThread lane : m_receiverThreads)
+        {
+            Logger.i(TAG, "incoming lane " + lane.getLane() + " queue " + lane.getQueue().getDescription());
+        }
+        Logger.i(TAG, "outgoing queue " + m_msgQueueOut.getDescription());
+        Logger.i(TAG, "function correlation " + m_functionCorrelator.getDescription());
+        Logger.i(TAG, "rate limiter " + m_rateLimiter.getDescription());
+
+        saveConfiguration();
+
         m_instance = null;
     }
 
+    /**
+     * Load any member variables from the configuration and
+     * create the message queues for the selected mode
+     */
+    private void loadConfiguration()
+    {
+        m_queueMode = m_config.getString("queueMode", C_STR_QUEUE_MODE_LINKED);
+        m_queueCapacity = m_config.getInt("queueCapacity", C_QUEUE_CAPACITY);
+        m_queuePutTimeoutMs = m_config.getInt("queuePutTimeoutMs", C_QUEUE_PUT_TIMEOUT_MS);
+        m_waitStrategy = WaitStrategy.fromString(
+                m_config.getString("waitStrategy", WaitStrategy.PARK.name()), WaitStrategy.PARK);
+        m_receiveLanes = Math.max(1, m_config.getInt("receiveLanes", C_RECEIVE_LANES));
+        m_correlationTimeoutMs = m_config.getInt("correlationTimeoutMs", FunctionCorrelator.C_TIMEOUT_MS);
+
+        m_userRate = m_config.getInt("userRate", MsgRateLimiter.C_USER_RATE);
+        m_userBurst = m_config.getInt("userBurst", MsgRateLimiter.C_USER_BURST);
+        m_discoveryRate = m_config.getInt("discoveryRate", MsgRateLimiter.C_DISCOVERY_RATE);
+        m_discoveryBurst = m_config.getInt("discoveryBurst", MsgRateLimiter.C_DISCOVERY_BURST);
+        m_priorityWeights = parseWeights(m_config.getString("priorityWeights", null));
+
+        m_functionCorrelator = new FunctionCorrelator(m_correlationTimeoutMs);
+
+        if (C_STR_QUEUE_MODE_RING.equalsIgnoreCase(m_queueMode))
+        {
+            Logger.i(TAG, "using ring buffer queues of " + m_queueCapacity + " with " + m_waitStrategy + " wait strategy");
+        }
+        else if (!C_STR_QUEUE_MODE_LINKED.equalsIgnoreCase(m_queueMode))
+        {
+            Logger.w(TAG, "unknown queue mode " + m_queueMode + ". Using " + C_STR_QUEUE_MODE_LINKED);
+            m_queueMode = C_STR_QUEUE_MODE_LINKED;
+        }
+
+        PriorityMsgQueue queueOut = createQueueOut(m_priorityWeights);
+        PriorityMsgQueue oldQueueOut = m_msgQueueOut;
+        m_msgQueueOut = queueOut;
+
+        // Carry over anything queued before start
+        MsgTx msg;
+        while ((msg = oldQueueOut.poll()) != null)
+        {
+            queueOut.put(msg);
+        }
+
+        createReceiveLanes();
+        createRateLimiter();
+    }
+
+    /**
+     * Create the rate limiter for the configured budgets, running anything
+     * queued before start back through it
+     */
+    private void createRateLimiter()
+    {
+        MsgRateLimiter oldLimiter = m_rateLimiter;
+        m_rateLimiter = new MsgRateLimiter(m_userRate, m_userBurst,
+                m_discoveryRate, m_discoveryBurst, System.currentTimeMillis());
+
+        for (MsgTx msg : oldLimiter.clear())
+        {
+            sendMessage(msg);
+        }
+
+        Logger.i(TAG, String.format("pacing user messages at %d/s (burst %d), discovery at %d/s (burst %d)",
+                m_userRate, m_userBurst, m_discoveryRate, m_discoveryBurst));
+    }
+
+    /**
+     * Create the outgoing queue, with a level of the configured queue mode
+     * for each priority class
+     * 
+     * @param p_weights messages taken from each class per round
+     * @return the new queue
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private PriorityMsgQueue createQueueOut(int[] p_weights)
+    {
+        MsgQueue<MsgTx>[] levels = new MsgQueue[MsgPriority.values().length];
+        for (int i=0; i<levels.length; ++i)
+        {
+            levels[i] = createQueue();
+        }
+
+        // The sender idles the way the ring levels do. Linked levels have
+        // no wait strategy of their own, so it parks
+        if (C_STR_QUEUE_MODE_RING.equalsIgnoreCase(m_queueMode))
+        {
+            return new PriorityMsgQueue(levels, p_weights, m_waitStrategy);
+        }
+        return new PriorityMsgQueue(levels, p_weights);
+    }
+
+    /**
+     * Parse the priority weights, highest priority class first
+     * 
+     * @param p_weights comma separated weights, or null for the defaults
+     * @return a weight for each priority class
+     */
+    private int[] parseWeights(String p_weights)
+    {
+        int[] weights = PriorityMsgQueue.getDefaultWeights();
+        if (p_weights == null)
+        {
+            return weights;
+        }
+
+        String[] values = p_weights.split(",");
+        if (values.length != weights.length)
+        {
+            Logger.w(TAG, "need " + weights.length + " priority weights, not " + p_weights + ". Using the defaults");
+            return weights;
+        }
+
+        try
+        {
+            for (int i=0; i<values.length; ++i)
+            {
+                weights[i] = Math.max(1, Integer.parseInt(values[i].trim()));
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            Logger.w(TAG, "bad priority weights " + p_weights + ". Using the defaults");
+            weights = PriorityMsgQueue.getDefaultWeights();
+        }
+        return weights;
+    }
+
+    /**
+     * Create an empty queue for the configured queue mode
+     * 
+     * @return the new queue
+     */
+    private <T> MsgQueue<T> createQueue()
+    {
+        if (C_STR_QUEUE_MODE_RING.equalsIgnoreCase(m_queueMode))
+        {
+            return new RingBufferMsgQueue<T>(m_queueCapacity, m_waitStrategy, m_queuePutTimeoutMs);
+        }
+        return new LinkedMsgQueue<T>();
+    }
+
+    /**
+     * Create the receive lanes, carrying over anything queued before start
+     */
+    private void createReceiveLanes()
+    {
+        MsgReceiverThread[] oldLanes = m_receiverThreads;
+        MsgReceiverThread[] lanes = new MsgReceiverThread[m_receiveLanes];
+
+        for (int i=0; i<lanes.length; ++i)
+        {
+            MsgQueue<Msg> queue = createQueue();
+            lanes[i] = new MsgReceiverThread(i, queue);
+        }
+        m_receiverThreads = lanes;
+
+        Msg msg;
+        for (MsgReceiverThread oldLane : oldLanes)
+        {
+            while ((msg = oldLane.getQueue().poll()) != null)
+            {
+                getReceiveLane(msg).getQueue().put(msg);
+            }
+        }
+
+        Logger.i(TAG, "using " + lanes.length + " receive lane(s)");
+    }
+
+    /**
+     * Pick the receive lane for a message. Messages from the same node always
+     * land in the same lane so they are processed in the order they arrived.
+     * 
+     * @param p_msg
+     * @return the lane for the message
+     */
+    private MsgReceiverThread getReceiveLane(Msg p_msg)
+    {
+        MsgReceiverThread[] lanes = m_receiverThreads;
+
+        if (lanes.length == 1 || p_msg.getSourceNode() == null)
+        {
+            return lanes[0];
+        }
+
+        // Spread the node ID so nearby IDs don't pile into one lane
+        long nodeId = p_msg.getSourceNode().getNodeId();
+        int hash = (int)(nodeId ^ (nodeId >>> 32));
+        hash ^= (hash >>> 16);
+
+        return lanes[(hash & 0x7fffffff) % lanes.length];
+    }
+
+    /**
+     * Save any member variables to the configuration
+     */
+    private void saveConfiguration()
+    {
+        m_config.addProperty("queueMode", m_queueMode);
+        m_config.addProperty("queueCapacity", m_queueCapacity);
+        m_config.addProperty("queuePutTimeoutMs", m_queuePutTimeoutMs);
+        m_config.addProperty("waitStrategy", m_waitStrategy.name().toLowerCase());
+        m_config.addProperty("receiveLanes", m_receiveLanes);
+        m_config.addProperty("correlationTimeoutMs", m_correlationTimeoutMs);
+        m_config.addProperty("userRate", m_userRate);
+        m_config.addProperty("userBurst", m_userBurst);
+        m_config.addProperty("discoveryRate", m_discoveryRate);
+        m_config.addProperty("discoveryBurst", m_discoveryBurst);
+
+        StringBuilder weights = new StringBuilder();
+        for (int weight : m_priorityWeights)
+        {
+            weights.append(weights.length() > 0 ? "," : "").append(weight);
+        }
+        m_config.addProperty("priorityWeights", weights.toString());
+    }
+
+    /**
+     * @return the number of receive lanes
+     */
+    public int getReceiveLaneCount()
+    {
+        return m_receiverThreads.length;
+    }
+
+    /**
+     * @param p_lane
+     * @return the incoming message queue for the lane
+     */
+    public MsgQueue<Msg> getMsgQueueIn(int p_lane)
+    {
+        return m_receiverThreads[p_lane].getQueue();
+    }
+
+    /**
+     * @return the number of messages waiting in each receive lane
+     */
+    public int[] getReceiveLaneDepths()
+    {
+        MsgReceiverThread[] lanes = m_receiverThreads;
+        int[] depths = new int[lanes.length];
+
+        for (int i=0; i<lanes.length; ++i)
+        {
+            depths[i] = lanes[i].getQueue().size();
+        }
+        return depths;
+    }
+
+    /**
+     * @return the outgoing message queue
+     */
+    public MsgQueue<MsgTx> getMsgQueueOut()
+    {
+        return m_msgQueueOut;
+    }
+
+    /**
+     * @param p_priority
+     * @return how long messages of a priority class waited from being sent
+     *         to going out to an adapter
+     */
+    public LatencyHistogram getLatencyHistogram(MsgPriority p_priority)
+    {
+        return m_msgQueueOut.getLatencyHistogram(p_priority);
+    }
+
+    /**
+     * @return the limiter pacing discovery and user messages
+     */
+    public MsgRateLimiter getRateLimiter()
+    {
+        return m_rateLimiter;
+    }
+
+    /**
+     * @param p_class
+     * @return the number of messages of a class waiting on the rate limiter
+     */
+    public int getQueueDepth(TrafficClass p_class)
+    {
+        return m_rateLimiter.getQueueDepth(p_class);
+    }
+
     /**
      * Start the reader and writer threads
      */
     private void startThreads()
     {
-        m_receiverThread.start();
+        for (MsgReceiverThread lane : m_receiverThreads)
+        {
+            lane.start();
+        }
         m_senderThread.start();
+        m_pacerThread.start();
+        m_expiryThread.start();
     }
 
     /**
@@ -147,13 +476,23 @@ public class MsgDispatcher implements MsgReceivedEventListener {
     {
         Logger.d(TAG, "Stopping threads");
 
-        m_receiverThread.stopReader();
+        for (MsgReceiverThread lane : m_receiverThreads)
+        {
+            lane.stopReader();
+        }
         m_senderThread.stopSender();
+        m_pacerThread.stopPacer();
+        m_expiryThread.stopExpiry();
 
         try
         {
-            m_receiverThread.join();
+            for (MsgReceiverThread lane : m_receiverThreads)
+            {
+                lane.join();
+            }
             m_senderThread.join();
+            m_pacerThread.join();
+            m_expiryThread.join();
         }
         catch (InterruptedException e)
         {
@@ -209,21 +548,16 @@ public class MsgDispatcher implements MsgReceivedEventListener {
         {
             if (p_msg.getIsSynchronous())
             {
-                m_receiverThread.processMsg(p_msg);
+                processMsg(p_msg);
             }
             else
             {
-                // Make sure the message queue is thread safe
-                synchronized(m_msgQueueIn)
-                {
-                    Logger.v(TAG, "queuing incoming message: " + p_msg.getDescription());
-                    m_msgQueueIn.add(p_msg);
-                }
+                Logger.v(TAG, "queuing incoming message: " + p_msg.getDescription());
 
-                // Wake up the reader thread
-                synchronized(m_receiverThread)
+                // The queue wakes up the lane's reader thread
+                if (!getReceiveLane(p_msg).getQueue().put(p_msg))
                 {
-                    m_receiverThread.notify();
+                    Logger.w(TAG, "dropped incoming message: " + p_msg.getDescription());
                 }
             }
         }
@@ -236,16 +570,33 @@ public class MsgDispatcher implements MsgReceivedEventListener {
      */
     public void sendMessage(MsgTx p_msg)
     {
-        synchronized (m_msgQueueOut)
+        Logger.v(TAG, "queuing outgoing message: " + p_msg.getDescription());
+
+        // Latency is measured from here, so it includes any pacing
+        p_msg.setTimeQueued(System.nanoTime());
+
+        if (m_rateLimiter.offer(p_msg, System.currentTimeMillis()))
         {
-            Logger.v(TAG, "queuing outgoing message: " + p_msg.getDescription());
-            m_msgQueueOut.add(p_msg);
+            queueMsgOut(p_msg);
         }
+        else
+        {
+            // Over budget. The pacer lets it out when a token comes up
+            m_pacerThread.wakeUp();
+        }
+    }
 
-        // Wake up the sender thread
-        synchronized (m_senderThread)
+    /**
+     * Hand a message to the sender thread
+     *
+     * @param p_msg
+     */
+    private void queueMsgOut(MsgTx p_msg)
+    {
+        // The queue wakes up the sender thread
+        if (!m_msgQueueOut.put(p_msg))
         {
-            m_senderThread.notify();
+            p_msg.setErrorMsg("outgoing message queue is full");
         }
     }
 
@@ -257,156 +608,166 @@ public class MsgDispatcher implements MsgReceivedEventListener {
      */
     public void sendSynchronous(MsgTx p_msg)
     {
-        m_receiverThread.processMsg(p_msg);
+        processMsg(p_msg);
     }
 
     /**
-     * Message reader thread
+     * Process a received message
+     * @param mMsg
      */
-    private class MsgReceiverThread extends Thread
-    {
-        private static final String TAG = "MsgReaderThread";
-        private boolean m_running = false;
-        private Msg m_msg;
+    private void processMsg(Msg p_msg) {
+        Logger.v(TAG, "processing message:" + p_msg.getMsgType());
 
-        @Override
-        public void run()
+        switch(p_msg.getAPI())
         {
-            Logger.d(TAG, "starting");
-            m_running = true;
-
-            // Loop until the thread is stopped
-            while(m_running)
+            case MsgConstants.SN_API_DEVICE_STATUS_RESPONSE:
             {
-                if (m_msgQueueIn.size() > 0)
-                {
-                    // Check if there is a queued message
-                    synchronized (m_msgQueueIn)
-                    {
-                        // Remove the first message
-                        m_msg = m_msgQueueIn.remove();
-                    }
-
-                    processMsg(m_msg);
-                }
-                else
-                {
-                    synchronized(this)
-                    {
-                        // Wait for this thread to be notified
-                        try
-                        {
-                            this.wait();
-                        }
-                        catch (InterruptedException e)
-                        {
-                            Logger.w(TAG, "thread interrupted", e);
-                        }
-                    }
-                }
+                m_nodeManager.addMsgDeviceStatus((MsgDeviceStatusResponse)p_msg);
+            }
+            break;
+            case MsgConstants.SN_API_BOOTLOAD_RESPONSE:
+            {
+                m_nodeManager.addMsgBootloadResponse((MsgBootloadResponse)p_msg);
+            }
+            break;
+            case MsgConstants.SN_API_CATALOG_RESPONSE:
+            {
+                m_nodeManager.addMsgCatalogResponse((MsgCatalogResponse)p_msg);
+            }
+            break;
+            case MsgConstants.SN_API_PARAMETER_RESPONSE:
+            {
+                m_nodeManager.addMsgParameterResponse((MsgParameterResponse)p_msg);
+            }
+            break;
+            case MsgConstants.SN_API_SYSTEM_NODELIST_RECEIVE:
+            {
+                // Since the adapters can create the specific nodes, and this to them
+                giveNodeListReceiveToAdapter((MsgSystemNodelistReceive)p_msg);
+            }
+            break;
+            case MsgConstants.SN_API_SYSTEM_USERACTIONLIST_RECEIVE:
+            {
+                m_actionManager.addMsgUserActionListRecieve((MsgSystemUserActionListReceive)p_msg);
+            }
+            break;
+            case MsgConstants.SN_API_FUNCTION_RECEIVE:
+            {
+                // Check to see if this receive has a corresponding transmit to match
+                // up with
+                MsgFunctionReceive msg = (MsgFunctionReceive)p_msg;
+                Logger.v(TAG, "Function receive value:" + msg.getStringValue());
+                correlateFunctionReceive(msg);
+            }
+            break;
+            default:
+            {
+                Logger.w(TAG, "message is unhandled");
             }
         }
+    }
 
-        /**
-         * Process a received message
-         * @param mMsg
-         */
-        private void processMsg(Msg p_msg) {
-            Logger.v(TAG, "processing message:" + p_msg.getMsgType());
+    /**
+     * Correlate an incoming function receive with a possible matching
+     * function transmit
+     * 
+     * @param p_msg
+     */
+    private void correlateFunctionReceive(MsgFunctionReceive p_msg)
+    {
+        MsgFunctionTransmit msg = m_functionCorrelator.correlate(p_msg);
+        if (msg != null)
+        {
+            Logger.v(TAG, "Found correlated function transmit " + msg.getSequenceNumber() + " for receive");
+            msg.setIsResponded(p_msg);
+        }
+    }
+
+    /**
+     * @return the function transmit/receive correlator
+     */
+    public FunctionCorrelator getFunctionCorrelator()
+    {
+        return m_functionCorrelator;
+    }
 
-            switch(p_msg.getAPI())
+    /**
+     * Handle the node list message off to the proper adapter
+     * 
+     * @param pMsg
+     */
+    private void giveNodeListReceiveToAdapter(MsgSystemNodelistReceive p_msg) {
+        boolean found = false;
+        for (MsgAdapterBase adapter : m_msgAdapterMap.values())
+        {
+            if (adapter.getNodeTypeIdentifierString().equals(p_msg.getNodeType()))
             {
-                case MsgConstants.SN_API_DEVICE_STATUS_RESPONSE:
-                {
-                    m_nodeManager.addMsgDeviceStatus((MsgDeviceStatusResponse)p_msg);
-                }
-                break;
-                case MsgConstants.SN_API_BOOTLOAD_RESPONSE:
-                {
-                    m_nodeManager.addMsgBootloadResponse((MsgBootloadResponse)p_msg);
-                }
-                break;
-                case MsgConstants.SN_API_CATALOG_RESPONSE:
-                {
-                    m_nodeManager.addMsgCatalogResponse((MsgCatalogResponse)p_msg);
-                }
-                break;
-                case MsgConstants.SN_API_PARAMETER_RESPONSE:
-                {
-                    m_nodeManager.addMsgParameterResponse((MsgParameterResponse)p_msg);
-                }
-                break;
-                case MsgConstants.SN_API_SYSTEM_NODELIST_RECEIVE:
-                {
-                    // Since the adapters can create the specific nodes, and this to them
-                    giveNodeListReceiveToAdapter((MsgSystemNodelistReceive)p_msg);
-                }
-                break;
-                case MsgConstants.SN_API_SYSTEM_USERACTIONLIST_RECEIVE:
-                {
-                    m_actionManager.addMsgUserActionListRecieve((MsgSystemUserActionListReceive)p_msg);
-                }
-                break;
-                case MsgConstants.SN_API_FUNCTION_RECEIVE:
-                {
-                    // Check to see if this receive has a corresponding transmit to match
-                    // up with
-                    MsgFunctionReceive msg = (MsgFunctionReceive)p_msg;
-                    Logger.v(TAG, "Function receive value:" + msg.getStringValue());
-                    correlateFunctionReceive(msg);
-                }
-                break;
-                default:
-                {
-                    Logger.w(TAG, "message is unhandled");
-                }
+                adapter.processSystemNodeListReceive(p_msg);
+                found = true;
             }
         }
+        
+        if (!found)
+        {
+            Logger.e(TAG, "None of the " + m_msgAdapterMap.size() + " is correct");
+        }
+    }
+
+    /**
+     * Message reader thread. One runs per receive lane.
+     */
+    private class MsgReceiverThread extends Thread
+    {
+        private static final String TAG = "MsgReaderThread";
+        private volatile boolean m_running = false;
+        private Msg m_msg;
+        private final int m_lane;
+        private final MsgQueue<Msg> m_queue;
+
+        /**
+         * @param p_lane
+         * @param p_queue
+         */
+        public MsgReceiverThread(int p_lane, MsgQueue<Msg> p_queue)
+        {
+            super(TAG + "-" + p_lane);
+            m_lane = p_lane;
+            m_queue = p_queue;
+        }
 
         /**
-         * Correlate an incoming function receive with a possible matching
-         * function transmit
-         * 
-         * @param p_msg
+         * @return the lane index
          */
-        private void correlateFunctionReceive(MsgFunctionReceive p_msg)
+        public int getLane()
         {
-            synchronized(m_actionMsgMap)
-            {
-                HashMap<Integer, MsgFunctionTransmit> msgs = m_actionMsgMap.get(p_msg.getSourceNode().getNodeId());
-                if (msgs != null)
-                {
-                    MsgFunctionTransmit msg = msgs.get(p_msg.getActionIndex());
-                    if (msg != null)
-                    {
-                        Logger.v(TAG, "Found correlated function transmit for receive");
-                        msgs.remove(p_msg.getActionIndex());
-                        msg.setIsResponded(p_msg);
-                    }
-                }
-            }
+            return m_lane;
         }
 
         /**
-         * Handle the node list message off to the proper adapter
-         * 
-         * @param pMsg
+         * @return the lane's message queue
          */
-        private void giveNodeListReceiveToAdapter(MsgSystemNodelistReceive p_msg) {
-            boolean found = false;
-            for (MsgAdapterBase adapter : m_msgAdapterMap.values())
+        public MsgQueue<Msg> getQueue()
+        {
+            return m_queue;
+        }
+
+        @Override
+        public void run()
+        {
+            Logger.d(TAG, "starting");
+            m_running = true;
+
+            // Loop until the thread is stopped
+            while(m_running)
             {
-                if (adapter.getNodeTypeIdentifierString().equals(p_msg.getNodeType()))
+                // Wait for the next message. Null means we were woken up
+                m_msg = m_queue.take();
+
+                if (m_msg != null)
                 {
-                    adapter.processSystemNodeListReceive(p_msg);
-                    found = true;
+                    processMsg(m_msg);
                 }
             }
-            
-            if (!found)
-            {
-                Logger.e(TAG, "None of the " + m_msgAdapterMap.size() + " is correct");
-            }
         }
 
         /**
@@ -417,10 +778,7 @@ public class MsgDispatcher implements MsgReceivedEventListener {
             m_running = false;
 
             // Wake up the reader so it can exit
-            synchronized(this)
-            {
-                notify();
-            }
+            m_queue.wakeUp();
 
             Logger.d(TAG, "stopping");
         }
@@ -444,42 +802,23 @@ public class MsgDispatcher implements MsgReceivedEventListener {
             // Loop until the thread is stopped
             while(m_running)
             {
-                if (m_msgQueueOut.size() > 0)
+                // Wait for the next message. Null means we were woken up
+                m_msg = m_msgQueueOut.take();
+
+                if (m_msg != null)
                 {
-                    // Check if there is a queued message
-                    synchronized (m_msgQueueOut)
+                    // If it's an action request wiht a return type,
+                    // hash it to correlate a response
+                    if (m_msg.getAPI() == MsgConstants.SN_API_FUNCTION_TRANSMIT &&
+                            ((MsgFunctionTransmit)m_msg).getNeedsReturn())
                     {
-                        // Remove the first message
-                        m_msg = m_msgQueueOut.remove();
-
-                        // If it's an action request wiht a return type,
-                        // hash it to correlate a response
-                        if (m_msg.getAPI() == MsgConstants.SN_API_FUNCTION_TRANSMIT &&
-                                ((MsgFunctionTransmit)m_msg).getNeedsReturn())
-                        {
-                            Logger.v(TAG, "msg has return type so hashing for response");
-                            hashFunctionTransmit((MsgFunctionTransmit)m_msg);
-                        }
-                        sendToAdapter(m_msg);
+                        Logger.v(TAG, "msg has return type so hashing for response");
+                        hashFunctionTransmit((MsgFunctionTransmit)m_msg);
                     }
+                    sendToAdapter(m_msg);
 
                     Logger.v(TAG, "Sending " + m_msg.getDescription());
                 }
-                else
-                {
-                    synchronized(this)
-                    {
-                        // Wait for this thread to be notified
-                        try
-                        {
-                            this.wait();
-                        }
-                        catch (InterruptedException e)
-                        {
-                            Logger.w(TAG, "thread interrupted", e);
-                        }
-                    }
-                }
             }
         }
 
@@ -491,18 +830,7 @@ public class MsgDispatcher implements MsgReceivedEventListener {
          */
         private void hashFunctionTransmit(MsgFunctionTransmit p_msg)
         {
-            synchronized(m_actionMsgMap)
-            {
-                long nodeId = p_msg.getDestinationNode().getNodeId();
-                HashMap<Integer, MsgFunctionTransmit> msgs = m_actionMsgMap.get(nodeId);
-                // If there isn't a map for this node, create one
-                if (msgs == null)
-                {
-                    msgs = new HashMap<Integer, MsgFunctionTransmit>();
-                    m_actionMsgMap.put(nodeId, msgs);
-                }
-                msgs.put(p_msg.getActionIndex(), p_msg);
-            }
+            m_functionCorrelator.add(p_msg);
         }
 
         /**
@@ -529,6 +857,7 @@ public class MsgDispatcher implements MsgReceivedEventListener {
             else
             {
                 Logger.w(TAG, "No message adapter for type " + p_msg.getDestinationNode().getClass());
+                p_msg.setErrorMsg("no message adapter for " + p_msg.getDestinationNode().getClass());
             }
         }
 
@@ -539,10 +868,138 @@ public class MsgDispatcher implements MsgReceivedEventListener {
         {
             m_running = false;
 
-            // Wake up the reader so it can exit
+            // Wake up the sender so it can exit
+            m_msgQueueOut.wakeUp();
+
+            Logger.d(TAG, "stopping");
+        }
+    }
+
+    /**
+     * Lets messages held by the rate limiter out as their budget refills
+     */
+    private class MsgPacerThread extends Thread
+    {
+        private static final String TAG = "MsgPacerThread";
+        private volatile boolean m_running = false;
+
+        public MsgPacerThread()
+        {
+            super(TAG);
+        }
+
+        @Override
+        public void run()
+        {
+            Logger.d(TAG, "starting");
+            m_running = true;
+
+            // Loop until the thread is stopped
+            while(m_running)
+            {
+                MsgTx msg;
+                while ((msg = m_rateLimiter.poll(System.currentTimeMillis())) != null)
+                {
+                    queueMsgOut(msg);
+                }
+
+                synchronized(this)
+                {
+                    try
+                    {
+                        // Sleep until the next token, or until something is held
+                        long waitMs = m_rateLimiter.getWaitMs(System.currentTimeMillis());
+                        if (m_running && waitMs != 0)
+                        {
+                            wait(Math.max(0, waitMs));
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Logger.w(TAG, "thread interrupted");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Wake the thread up to look at the limiter again
+         */
+        public synchronized void wakeUp()
+        {
+            notifyAll();
+        }
+
+        /**
+         * Stop the thread from running
+         */
+        public void stopPacer()
+        {
+            m_running = false;
+
+            wakeUp();
+
+            Logger.d(TAG, "stopping");
+        }
+    }
+
+    /**
+     * Times out function transmits that never got a response
+     */
+    private class MsgExpiryThread extends Thread
+    {
+        private static final String TAG = "MsgExpiryThread";
+        private volatile boolean m_running = false;
+
+        public MsgExpiryThread()
+        {
+            super(TAG);
+        }
+
+        @Override
+        public void run()
+        {
+            Logger.d(TAG, "starting");
+            m_running = true;
+
+            // Loop until the thread is stopped
+            while(m_running)
+            {
+                List<MsgFunctionTransmit> expired = m_functionCorrelator.expire(System.currentTimeMillis());
+
+                for (MsgFunctionTransmit msg : expired)
+                {
+                    Logger.w(TAG, "no response for function transmit " + msg.getSequenceNumber() + ": " + msg.getDescription());
+                    msg.setIsResponseTimedOut();
+                }
+
+                synchronized(this)
+                {
+                    try
+                    {
+                        if (m_running)
+                        {
+                            wait(FunctionCorrelator.C_TICK_MS);
+                        }
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Logger.w(TAG, "thread interrupted");
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stop the thread from running
+         */
+        public void stopExpiry()
+        {
+            m_running = false;
+
             synchronized(this)
             {
-                notify();
+                notifyAll();
             }
 
             Logger.d(TAG, "stopping");
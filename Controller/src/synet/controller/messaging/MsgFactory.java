@@ -3,6 +3,8 @@
  */
 package synet.controller.messaging;
 
+import java.nio.ByteBuffer;
+
 import synet.controller.messaging.messages.Msg;
 import synet.controller.messaging.messages.MsgBootloadResponse;
 import synet.controller.messaging.messages.MsgCatalogResponse;
@@ -11,6 +13,7 @@ import synet.controller.messaging.messages.MsgDeviceStatusResponse;
 import synet.controller.messaging.messages.MsgFunctionReceive;
 import synet.controller.messaging.messages.MsgParameterResponse;
 import synet.controller.nodes.NodeBase;
+import synet.controller.utils.EBitConverter;
 import synet.controller.utils.Logger;
 
 /**
@@ -25,19 +28,26 @@ public class MsgFactory
 
 	public static Msg createMessage(NodeBase p_sourceNode,
 			NodeBase p_destinationNode,
-			int[] p_data, 
+			ByteBuffer p_data, 
 			int p_startIndex)
 	{
 			
+		// Make sure there is room for the start and API bytes
+		if (p_data.limit() <= p_startIndex + MsgConstants.SYNET_INDEX_API)
+		{
+			Logger.w(TAG, "received message too short for a header. Size:" + (p_data.limit() - p_startIndex));
+			return null;
+		}
+
 		// Make sure the first byte is our start byte
-		if (p_data[p_startIndex] != MsgConstants.SYNET_START_BYTE)
+		if (EBitConverter.toUInt8(p_data, p_startIndex) != MsgConstants.SYNET_START_BYTE)
 		{
-			Logger.w(TAG, "received message without start byte. Read:" + String.format("0x%x", p_data[p_startIndex]));
+			Logger.w(TAG, "received message without start byte. Read:" + String.format("0x%x", EBitConverter.toUInt8(p_data, p_startIndex)));
 			return null;
 		}
 
 		// Switch on the API byte
-		switch(p_data[p_startIndex+MsgConstants.SYNET_INDEX_API])
+		switch(EBitConverter.toUInt8(p_data, p_startIndex+MsgConstants.SYNET_INDEX_API))
 		{
 		case MsgConstants.SN_API_DEVICE_STATUS_REQUEST:
 			Logger.v(TAG, "Device Status Request");
@@ -78,7 +88,7 @@ public class MsgFactory
 			Logger.v(TAG, "Device Function Receive Response");
 			break;
 		default:
-			Logger.w(TAG, "received a message with an invalid API:" + String.format("0x%x", p_data[p_startIndex+MsgConstants.SYNET_INDEX_API]));
+			Logger.w(TAG, "received a message with an invalid API:" + String.format("0x%x", EBitConverter.toUInt8(p_data, p_startIndex+MsgConstants.SYNET_INDEX_API)));
 		}
 		return null;
 	}
@@ -1,5 +1,7 @@
 package synet.controller.messaging;
 
+import java.nio.ByteBuffer;
+
 import synet.controller.NodeManager;
 import synet.controller.messaging.messages.Msg;
 import synet.controller.messaging.messages.MsgXbeeTxStatus;
@@ -51,22 +53,25 @@ public class MsgFactoryXbee
 	}
 
 	/**
-	 * Create an Xbee message
+	 * Create an Xbee message. The message is parsed straight out of the 
+	 * frame view so it must not hold on to it.
 	 * 
 	 * @param p_api
-	 * @param p_data
+	 * @param p_data frame data from position() to limit()
 	 * @return
 	 */
-	public Msg createMessage(int p_api, int[] p_data)
+	public Msg createMessage(int p_api, ByteBuffer p_data)
 	{
+		int start = p_data.position();
+
 		switch(p_api)
 		{
 		case C_XBEE_API_ZIGBEE_RX:
 		{
 			// Extract the 64 bit address
-			long address64 = EBitConverter.toUInt64(p_data, C_XBEE_RX_ADDR64_OFFSET);
+			long address64 = EBitConverter.toUInt64(p_data, start + C_XBEE_RX_ADDR64_OFFSET);
 			// Extract the 16 bit address
-			int address16 = EBitConverter.toUInt16(p_data, C_XBEE_RX_ADDR16_OFFSET);
+			int address16 = EBitConverter.toUInt16(p_data, start + C_XBEE_RX_ADDR16_OFFSET);
 
 			Logger.v(TAG, "received Zigbee RX message 64:"+ String.format("0x%x", address64)
 					+ " 16:" + String.format("0x%x", address16));
@@ -76,11 +81,10 @@ public class MsgFactoryXbee
 
 			if (node == null)
 			{
-				node = new NodeZigbee(address64, address16);
-				m_nodeManager.addNewNode(address64, node);
+				node = m_nodeManager.addNodeIfAbsent(address64, new NodeZigbee(address64, address16));
 			}
 
-			return MsgFactory.createMessage(node, null, p_data, C_XBEE_RX_DATA_OFFSET);
+			return MsgFactory.createMessage(node, null, p_data, start + C_XBEE_RX_DATA_OFFSET);
 		}
 
 		case C_XBEE_API_ZIGBEE_TX_STATUS:
@@ -90,10 +94,10 @@ public class MsgFactoryXbee
 //					" status:" + String.format("0x%x", p_data[C_XBEE_TXS_STATUS_OFFSET])+
 //					" discovery:" + String.format("0x%x", p_data[C_XBEE_TXS_DISCOVERY_OFFSET]));
 			return new MsgXbeeTxStatus(
-					p_data[C_XBEE_TXS_FRAME_OFFSET], 
-					p_data[C_XBEE_TXS_RETRY_OFFSET], 
-					p_data[C_XBEE_TXS_STATUS_OFFSET], 
-					p_data[C_XBEE_TXS_DISCOVERY_OFFSET]);
+					EBitConverter.toUInt8(p_data, start + C_XBEE_TXS_FRAME_OFFSET), 
+					EBitConverter.toUInt8(p_data, start + C_XBEE_TXS_RETRY_OFFSET), 
+					EBitConverter.toUInt8(p_data, start + C_XBEE_TXS_STATUS_OFFSET), 
+					EBitConverter.toUInt8(p_data, start + C_XBEE_TXS_DISCOVERY_OFFSET));
 		}
 		default:
 		{
@@ -0,0 +1,316 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.util.LinkedList;
+
+import synet.controller.messaging.messages.MsgConstants;
+import synet.controller.messaging.messages.MsgTx;
+
+/**
+ * Paces outgoing messages so a crowd of nodes joining at once can't swamp
+ * the radio.
+ *
+ * Discovery traffic (device status, catalog and parameter requests) and
+ * user traffic (function transmits) each get their own token bucket that
+ * refills at a steady rate up to a burst. A message goes straight out if
+ * its bucket has a token and nothing of its class is waiting, otherwise it
+ * waits its turn. Waiting user messages always go before waiting discovery
+ * messages, and discovery never jumps ahead of a waiting user message.
+ * Anything else isn't paced. User messages aren't limited unless a user
+ * rate is configured.
+ *
+ * @author mkurdziel
+ *
+ */
+public class MsgRateLimiter
+{
+    public static final int C_USER_RATE = 0;
+    public static final int C_USER_BURST = 20;
+    public static final int C_DISCOVERY_RATE = 10;
+    public static final int C_DISCOVERY_BURST = 10;
+
+    /**
+     * The budget a message is paced under
+     */
+    public enum TrafficClass
+    {
+        USER,
+        DISCOVERY
+    }
+
+    /**
+     * Tokens refilled at a steady rate up to a burst. A rate of 0 means
+     * there's no limit.
+     */
+    private static class TokenBucket
+    {
+        private final double m_ratePerMs;
+        private final double m_burst;
+        private double m_tokens;
+        private long m_lastRefill;
+
+        private TokenBucket(int p_ratePerSec, int p_burst, long p_now)
+        {
+            m_ratePerMs = Math.max(0, p_ratePerSec) / 1000.0;
+            m_burst = Math.max(1, p_burst);
+            m_tokens = m_burst;
+            m_lastRefill = p_now;
+        }
+
+        private boolean isUnlimited()
+        {
+            return m_ratePerMs == 0;
+        }
+
+        private void refill(long p_now)
+        {
+            if (p_now > m_lastRefill)
+            {
+                m_tokens = Math.min(m_burst, m_tokens + (p_now - m_lastRefill) * m_ratePerMs);
+                m_lastRefill = p_now;
+            }
+        }
+
+        private boolean tryTake(long p_now)
+        {
+            if (isUnlimited())
+            {
+                return true;
+            }
+            refill(p_now);
+            if (m_tokens >= 1)
+            {
+                m_tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return milliseconds until the next token, 0 if there is one
+         */
+        private long getWaitMs(long p_now)
+        {
+            if (isUnlimited())
+            {
+                return 0;
+            }
+            refill(p_now);
+            if (m_tokens >= 1)
+            {
+                return 0;
+            }
+            return (long)Math.ceil((1 - m_tokens) / m_ratePerMs);
+        }
+    }
+
+    private final TokenBucket[] m_buckets = new TokenBucket[TrafficClass.values().length];
+    @SuppressWarnings("unchecked")
+    private final LinkedList<MsgTx>[] m_queues = new LinkedList[TrafficClass.values().length];
+
+    // Counters
+    private final long[] m_numSent = new long[TrafficClass.values().length];
+    private final long[] m_numDelayed = new long[TrafficClass.values().length];
+    private final int[] m_maxDepth = new int[TrafficClass.values().length];
+
+    /**
+     * Create a limiter with the default budgets
+     */
+    public MsgRateLimiter()
+    {
+        this(C_USER_RATE, C_USER_BURST, C_DISCOVERY_RATE, C_DISCOVERY_BURST, System.currentTimeMillis());
+    }
+
+    /**
+     * @param p_userRate user messages per second, 0 for no limit
+     * @param p_userBurst user messages that can go out back to back
+     * @param p_discoveryRate discovery messages per second, 0 for no limit
+     * @param p_discoveryBurst discovery messages that can go out back to back
+     * @param p_now the time in milliseconds
+     */
+    public MsgRateLimiter(int p_userRate, int p_userBurst,
+            int p_discoveryRate, int p_discoveryBurst, long p_now)
+    {
+        m_buckets[TrafficClass.USER.ordinal()] = new TokenBucket(p_userRate, p_userBurst, p_now);
+        m_buckets[TrafficClass.DISCOVERY.ordinal()] = new TokenBucket(p_discoveryRate, p_discoveryBurst, p_now);
+        for (int i=0; i<m_queues.length; ++i)
+        {
+            m_queues[i] = new LinkedList<MsgTx>();
+        }
+    }
+
+    /**
+     * @param p_msg
+     * @return the class a message is paced under, or null if it isn't paced
+     */
+    public static TrafficClass getTrafficClass(MsgTx p_msg)
+    {
+        switch(p_msg.getAPI())
+        {
+            case MsgConstants.SN_API_FUNCTION_TRANSMIT:
+                return TrafficClass.USER;
+            case MsgConstants.SN_API_DEVICE_STATUS_REQUEST:
+            case MsgConstants.SN_API_CATALOG_REQUEST:
+            case MsgConstants.SN_API_PARAMETER_REQUEST:
+                return TrafficClass.DISCOVERY;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Offer a message for sending
+     *
+     * @param p_msg
+     * @param p_now the time in milliseconds
+     * @return true if the message can go out now, false if it's been
+     *         queued to go out later through poll()
+     */
+    public synchronized boolean offer(MsgTx p_msg, long p_now)
+    {
+        TrafficClass trafficClass = getTrafficClass(p_msg);
+        if (trafficClass == null)
+        {
+            return true;
+        }
+
+        int i = trafficClass.ordinal();
+        if (m_queues[i].isEmpty() && !isBehindUser(trafficClass) && m_buckets[i].tryTake(p_now))
+        {
+            m_numSent[i]++;
+            return true;
+        }
+
+        m_queues[i].add(p_msg);
+        m_numDelayed[i]++;
+        m_maxDepth[i] = Math.max(m_maxDepth[i], m_queues[i].size());
+        return false;
+    }
+
+    /**
+     * Take the next queued message that can go out now, user messages first
+     *
+     * @param p_now the time in milliseconds
+     * @return the message, or null if nothing can go out yet
+     */
+    public synchronized MsgTx poll(long p_now)
+    {
+        for (TrafficClass trafficClass : TrafficClass.values())
+        {
+            int i = trafficClass.ordinal();
+            if (m_queues[i].isEmpty())
+            {
+                continue;
+            }
+            if (isBehindUser(trafficClass) || !m_buckets[i].tryTake(p_now))
+            {
+                // User messages waiting on tokens hold discovery back too
+                return null;
+            }
+            m_numSent[i]++;
+            return m_queues[i].removeFirst();
+        }
+        return null;
+    }
+
+    /**
+     * @param p_now the time in milliseconds
+     * @return milliseconds until a queued message can go out, 0 if one can
+     *         now, or -1 if nothing is queued
+     */
+    public synchronized long getWaitMs(long p_now)
+    {
+        for (TrafficClass trafficClass : TrafficClass.values())
+        {
+            int i = trafficClass.ordinal();
+            if (!m_queues[i].isEmpty())
+            {
+                return m_buckets[i].getWaitMs(p_now);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Take everything still queued, user messages first
+     *
+     * @return the messages
+     */
+    public synchronized LinkedList<MsgTx> clear()
+    {
+        LinkedList<MsgTx> msgs = new LinkedList<MsgTx>();
+        for (LinkedList<MsgTx> queue : m_queues)
+        {
+            msgs.addAll(queue);
+            queue.clear();
+        }
+        return msgs;
+    }
+
+    /**
+     * @param p_class
+     * @return the number of messages of a class waiting to go out
+     */
+    public synchronized int getQueueDepth(TrafficClass p_class)
+    {
+        return m_queues[p_class.ordinal()].size();
+    }
+
+    /**
+     * @param p_class
+     * @return the most messages of a class seen waiting at once
+     */
+    public synchronized int getMaxQueueDepth(TrafficClass p_class)
+    {
+        return m_maxDepth[p_class.ordinal()];
+    }
+
+    /**
+     * @param p_class
+     * @return the number of messages of a class let out
+     */
+    public synchronized long getNumSent(TrafficClass p_class)
+    {
+        return m_numSent[p_class.ordinal()];
+    }
+
+    /**
+     * @param p_class
+     * @return the number of messages of a class that had to wait
+     */
+    public synchronized long getNumDelayed(TrafficClass p_class)
+    {
+        return m_numDelayed[p_class.ordinal()];
+    }
+
+    /**
+     * @return a short description of the queues and their counters
+     */
+    public synchronized String getDescription()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (TrafficClass trafficClass : TrafficClass.values())
+        {
+            int i = trafficClass.ordinal();
+            if (sb.length() > 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(String.format("%s depth: %d max depth: %d sent: %d delayed: %d",
+                    trafficClass.name().toLowerCase(), m_queues[i].size(), m_maxDepth[i],
+                    m_numSent[i], m_numDelayed[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param p_class
+     * @return true if the class has to wait behind queued user messages
+     */
+    private boolean isBehindUser(TrafficClass p_class)
+    {
+        return p_class != TrafficClass.USER && !m_queues[TrafficClass.USER.ordinal()].isEmpty();
+    }
+}
@@ -0,0 +1,420 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Node;
+import nu.xom.Text;
+
+import synet.controller.utils.Logger;
+import synet.controller.utils.SysUtils;
+
+/**
+ * Binary snapshot of the persistence files.
+ *
+ * Each file is kept as a compact encoding of its element tree: a string
+ * table followed by the elements, attributes and text as string indexes.
+ * The snapshot is every file's encoding behind a versioned header, read
+ * back with one memory mapped read. Decoding builds the XOM elements
+ * directly, with no XML parser, so startup can hand the same documents to
+ * the same code that reads the XML files. The XML stays the real format;
+ * a snapshot that is missing, stale or from another version is ignored.
+ *
+ * File layout, all big endian:
+ *   int magic, int version, long created millis, int section count
+ *   per section: int name length, name, int data length, data
+ *
+ * Section data:
+ *   int string count, per string: int length, UTF-8 bytes
+ *   root element
+ *
+ * Element:
+ *   int name, int attribute count, per attribute: int name, int value
+ *   int child count, per child: byte kind, then an element or int text
+ *
+ * @author mkurdziel
+ *
+ */
+public class PersistenceSnapshot
+{
+    private static final String TAG = "PersistenceSnapshot";
+
+    public static final int C_MAGIC = 0x45534E50;
+    public static final int C_VERSION = 1;
+
+    private static final byte C_KIND_ELEMENT = 0;
+    private static final byte C_KIND_TEXT = 1;
+
+    private static final Charset C_CHARSET = Charset.forName("UTF-8");
+
+    private final long m_createdMillis;
+    // Section data by file name
+    private final Map<String, ByteBuffer> m_sections;
+
+    private PersistenceSnapshot(long p_createdMillis, Map<String, ByteBuffer> p_sections)
+    {
+        m_createdMillis = p_createdMillis;
+        m_sections = p_sections;
+    }
+
+    /**
+     * @return when the snapshot was written
+     */
+    public long getCreatedMillis()
+    {
+        return m_createdMillis;
+    }
+
+    /**
+     * @param p_fileName
+     * @return true if the snapshot has the file
+     */
+    public boolean contains(String p_fileName)
+    {
+        return m_sections.containsKey(p_fileName);
+    }
+
+    /**
+     * @param p_fileName
+     * @return the encoded file, or null if the snapshot doesn't have it
+     */
+    public byte[] getBytes(String p_fileName)
+    {
+        ByteBuffer section = m_sections.get(p_fileName);
+        if (section == null)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[section.remaining()];
+        section.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decode a file from the snapshot
+     *
+     * @param p_fileName
+     * @return the document, or null if the snapshot doesn't have it
+     */
+    public Document getDocument(String p_fileName)
+    {
+        ByteBuffer section = m_sections.get(p_fileName);
+        if (section == null)
+        {
+            return null;
+        }
+        return decode(section.duplicate());
+    }
+
+    /**
+     * Encode a document's element tree
+     *
+     * @param p_doc
+     * @return the encoded bytes
+     */
+    public static byte[] encode(Document p_doc)
+    {
+        // Build the string table while writing the tree
+        LinkedHashMap<String, Integer> strings = new LinkedHashMap<String, Integer>();
+        ByteArrayOutputStream treeBytes = new ByteArrayOutputStream(1024);
+        DataOutputStream tree = new DataOutputStream(treeBytes);
+
+        try
+        {
+            encodeElement(p_doc.getRootElement(), tree, strings);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(treeBytes.size() + 1024);
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(strings.size());
+            for (String string : strings.keySet())
+            {
+                byte[] stringBytes = string.getBytes(C_CHARSET);
+                out.writeInt(stringBytes.length);
+                out.write(stringBytes);
+            }
+            treeBytes.writeTo(out);
+            out.flush();
+
+            return bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            // Only in memory, so this can't happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void encodeElement(Element p_element, DataOutputStream p_out,
+            Map<String, Integer> p_strings) throws IOException
+    {
+        p_out.writeInt(intern(p_element.getLocalName(), p_strings));
+
+        p_out.writeInt(p_element.getAttributeCount());
+        for (int i=0; i<p_element.getAttributeCount(); ++i)
+        {
+            Attribute attribute = p_element.getAttribute(i);
+            p_out.writeInt(intern(attribute.getLocalName(), p_strings));
+            p_out.writeInt(intern(attribute.getValue(), p_strings));
+        }
+
+        // Only elements and text are kept
+        ArrayList<Node> children = new ArrayList<Node>(p_element.getChildCount());
+        for (int i=0; i<p_element.getChildCount(); ++i)
+        {
+            Node child = p_element.getChild(i);
+            if (child instanceof Element || child instanceof Text)
+            {
+                children.add(child);
+            }
+        }
+
+        p_out.writeInt(children.size());
+        for (Node child : children)
+        {
+            if (child instanceof Element)
+            {
+                p_out.writeByte(C_KIND_ELEMENT);
+                encodeElement((Element)child, p_out, p_strings);
+            }
+            else
+            {
+                p_out.writeByte(C_KIND_TEXT);
+                p_out.writeInt(intern(child.getValue(), p_strings));
+            }
+        }
+    }
+
+    private static int intern(String p_string, Map<String, Integer> p_strings)
+    {
+        Integer index = p_strings.get(p_string);
+        if (index == null)
+        {
+            index = p_strings.size();
+            p_strings.put(p_string, index);
+        }
+        return index;
+    }
+
+    /**
+     * Decode a document
+     *
+     * @param p_buffer positioned at the start of the encoded bytes
+     * @return the document
+     */
+    public static Document decode(ByteBuffer p_buffer)
+    {
+        String[] strings = new String[p_buffer.getInt()];
+        for (int i=0; i<strings.length; ++i)
+        {
+            byte[] stringBytes = new byte[p_buffer.getInt()];
+            p_buffer.get(stringBytes);
+            strings[i] = new String(stringBytes, C_CHARSET);
+        }
+
+        return new Document(decodeElement(p_buffer, strings));
+    }
+
+    private static Element decodeElement(ByteBuffer p_buffer, String[] p_strings)
+    {
+        Element element = new Element(p_strings[p_buffer.getInt()]);
+
+        int attributeCount = p_buffer.getInt();
+        for (int i=0; i<attributeCount; ++i)
+        {
+            String name = p_strings[p_buffer.getInt()];
+            element.addAttribute(new Attribute(name, p_strings[p_buffer.getInt()]));
+        }
+
+        int childCount = p_buffer.getInt();
+        for (int i=0; i<childCount; ++i)
+        {
+            if (p_buffer.get() == C_KIND_ELEMENT)
+            {
+                element.appendChild(decodeElement(p_buffer, p_strings));
+            }
+            else
+            {
+                element.appendChild(new Text(p_strings[p_buffer.getInt()]));
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Write a snapshot to a temp file and rename it into place
+     *
+     * @param p_file
+     * @param p_sections encoded files by file name
+     * @return true if it was written
+     */
+    public static boolean write(File p_file, Map<String, byte[]> p_sections)
+    {
+        File tmpFile = new File(p_file.getPath() + PersistenceStore.C_STR_TMP_SUFFIX);
+        FileOutputStream fos = null;
+        try
+        {
+            fos = new FileOutputStream(tmpFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+
+            out.writeInt(C_MAGIC);
+            out.writeInt(C_VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(p_sections.size());
+
+            for (Map.Entry<String, byte[]> section : p_sections.entrySet())
+            {
+                byte[] name = section.getKey().getBytes(C_CHARSET);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeInt(section.getValue().length);
+                out.write(section.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            Logger.w(TAG, "could not write snapshot " + tmpFile.getName(), e);
+            return false;
+        }
+        finally
+        {
+            if (fos != null)
+            {
+                try
+                {
+                    fos.close();
+                }
+                catch (IOException e)
+                {
+                    Logger.w(TAG, "could not close snapshot " + tmpFile.getName(), e);
+                }
+            }
+        }
+
+        if (!tmpFile.renameTo(p_file))
+        {
+            if (!(p_file.delete() && tmpFile.renameTo(p_file)))
+            {
+                Logger.e(TAG, "could not rename " + tmpFile.getName() + " to " + p_file.getName());
+                tmpFile.delete();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a snapshot in with a single read. The file is memory mapped
+     * except on Windows, where a mapped file can't be deleted or replaced
+     * until the mapping is garbage collected.
+     *
+     * @param p_file
+     * @return the snapshot, or null if it's missing, damaged or from
+     *         another version
+     */
+    public static PersistenceSnapshot load(File p_file)
+    {
+        if (!p_file.exists())
+        {
+            return null;
+        }
+
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile(p_file, "r");
+            FileChannel channel = raf.getChannel();
+
+            ByteBuffer buffer;
+            if (SysUtils.isWindows())
+            {
+                buffer = ByteBuffer.allocate((int)channel.size());
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0)
+                {
+                    // Keep reading
+                }
+                buffer.flip();
+            }
+            else
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+
+            if (buffer.remaining() < 20 || buffer.getInt() != C_MAGIC)
+            {
+                Logger.w(TAG, "not a snapshot file: " + p_file.getName());
+                return null;
+            }
+
+            int version = buffer.getInt();
+            if (version != C_VERSION)
+            {
+                Logger.i(TAG, "ignoring snapshot version " + version + ", expected " + C_VERSION);
+                return null;
+            }
+
+            long createdMillis = buffer.getLong();
+            int sectionCount = buffer.getInt();
+
+            HashMap<String, ByteBuffer> sections = new HashMap<String, ByteBuffer>();
+            for (int i=0; i<sectionCount; ++i)
+            {
+                byte[] name = new byte[buffer.getInt()];
+                buffer.get(name);
+
+                int length = buffer.getInt();
+                ByteBuffer section = buffer.slice();
+                section.limit(length);
+                buffer.position(buffer.position() + length);
+
+                sections.put(new String(name, C_CHARSET), section);
+            }
+
+            return new PersistenceSnapshot(createdMillis, sections);
+        }
+        catch (IOException e)
+        {
+            Logger.w(TAG, "could not read snapshot " + p_file.getName(), e);
+        }
+        catch (RuntimeException e)
+        {
+            // A truncated or damaged file runs off the end of the buffer
+            Logger.w(TAG, "damaged snapshot " + p_file.getName(), e);
+        }
+        finally
+        {
+            if (raf != null)
+            {
+                try
+                {
+                    raf.close();
+                }
+                catch (IOException e)
+                {
+                    Logger.w(TAG, "could not close snapshot " + p_file.getName(), e);
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,612 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import org.apache.commons.io.comparator.NameFileComparator;
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormatter;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Serializer;
+
+import synet.controller.utils.Logger;
+import synet.controller.utils.SysUtils;
+import synet.controller.utils.XmlUtils;
+
+/**
+ * Writes the persistence files into the net directory.
+ *
+ * In TIMESTAMPED mode every write creates a new prefix_timestamp.xml file
+ * and then scans the directory to delete the older ones.
+ *
+ * In ATOMIC mode every write goes to prefix.xml.tmp, is forced to disk and
+ * is then renamed over prefix.xml, so a reader sees either the old file or
+ * the new one and never half of one. Nothing scans the directory except a
+ * one time cleanup of leftover timestamped files for each prefix. Each
+ * document gets a generation attribute that goes up by one on every write
+ * of that file, so the Portal can tell when it changed.
+ *
+ * With the snapshot turned on, the store also keeps a binary encoding of
+ * every current file and writes them all to a snapshot on shutdown. The
+ * next startup reads documents from the snapshot instead of parsing the
+ * XML, as long as no XML file is newer than it. The first write after
+ * startup deletes the snapshot since it no longer matches the XML.
+ *
+ * @author mkurdziel
+ *
+ */
+public class PersistenceStore
+{
+    private static final String TAG = "PersistenceStore";
+
+    public static final String C_STR_SUFFIX = ".xml";
+    public static final String C_STR_TMP_SUFFIX = ".tmp";
+    public static final String C_STR_GENERATION = "generation";
+    public static final String C_STR_SNAPSHOT_FILENAME = "snapshot.bin";
+
+    private static final String C_STR_ENCODING = "ISO-8859-1";
+
+    /**
+     * How files are written
+     */
+    public enum EsnPersistMode
+    {
+        // New timestamped file per write, older ones deleted
+        TIMESTAMPED,
+        // Temp file renamed over a stable name
+        ATOMIC,
+    }
+
+    private final File m_dir;
+    private final EsnPersistMode m_mode;
+    private final DateTimeFormatter m_dateTimeFormatter = SysUtils.getDateTimeFormatter();
+
+    // Last generation written for each prefix
+    private final HashMap<String, Long> m_generations = new HashMap<String, Long>();
+    // Prefixes whose leftover timestamped files are already cleaned up
+    private final HashSet<String> m_cleanedPrefixes = new HashSet<String>();
+
+    // Binary snapshot of the current files
+    private final boolean m_isSnapshotEnabled;
+    private final File m_snapshotFile;
+    private final LinkedHashMap<String, byte[]> m_snapshotSections = new LinkedHashMap<String, byte[]>();
+    private PersistenceSnapshot m_snapshot = null;
+    private boolean m_isSnapshotDeleted = false;
+
+    /**
+     * @param p_dir the net directory
+     * @param p_mode
+     */
+    public PersistenceStore(File p_dir, EsnPersistMode p_mode)
+    {
+        this(p_dir, p_mode, false);
+    }
+
+    /**
+     * @param p_dir the net directory
+     * @param p_mode
+     * @param p_isSnapshotEnabled keep a binary snapshot for fast startup
+     */
+    public PersistenceStore(File p_dir, EsnPersistMode p_mode, boolean p_isSnapshotEnabled)
+    {
+        m_dir = p_dir;
+        m_mode = p_mode;
+        m_isSnapshotEnabled = p_isSnapshotEnabled;
+        m_snapshotFile = new File(p_dir, C_STR_SNAPSHOT_FILENAME);
+    }
+
+    /**
+     * Parse a persistence mode from the configuration
+     *
+     * @param p_mode
+     * @return the mode, or TIMESTAMPED if it isn't recognised
+     */
+    public static EsnPersistMode parseMode(String p_mode)
+    {
+        try
+        {
+            return EsnPersistMode.valueOf(p_mode.trim().toUpperCase());
+        }
+        catch (RuntimeException e)
+        {
+            Logger.w(TAG, "unknown persistence mode " + p_mode + ", using " + EsnPersistMode.TIMESTAMPED);
+            return EsnPersistMode.TIMESTAMPED;
+        }
+    }
+
+    /**
+     * @return the mode files are written in
+     */
+    public EsnPersistMode getMode()
+    {
+        return m_mode;
+    }
+
+    /**
+     * @param p_fileName
+     * @return true if the file is a temp file from an unfinished write
+     */
+    public static boolean isTempFile(String p_fileName)
+    {
+        return p_fileName.endsWith(C_STR_TMP_SUFFIX);
+    }
+
+    /**
+     * List the persistence files to read at startup. Temp files from an
+     * unfinished write are skipped, and so are timestamped files left over
+     * for a prefix that already has a stable file.
+     *
+     * @return the files
+     */
+    public File[] getCurrentFiles()
+    {
+        File[] files = m_dir.listFiles();
+        if (files == null)
+        {
+            return new File[0];
+        }
+
+        HashSet<String> stablePrefixes = new HashSet<String>();
+        for (File file : files)
+        {
+            if (file.getName().endsWith(C_STR_SUFFIX))
+            {
+                stablePrefixes.add(stripSuffix(file.getName()));
+            }
+        }
+
+        ArrayList<File> current = new ArrayList<File>();
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (isTempFile(name))
+            {
+                continue;
+            }
+
+            boolean isSuperseded = false;
+            int separator = name.lastIndexOf('_');
+            while (separator > 0 && !isSuperseded)
+            {
+                isSuperseded = stablePrefixes.contains(name.substring(0, separator));
+                separator = name.lastIndexOf('_', separator - 1);
+            }
+
+            if (!isSuperseded)
+            {
+                current.add(file);
+            }
+        }
+        return current.toArray(new File[current.size()]);
+    }
+
+    private static String stripSuffix(String p_fileName)
+    {
+        if (p_fileName.endsWith(C_STR_SUFFIX))
+        {
+            return p_fileName.substring(0, p_fileName.length() - C_STR_SUFFIX.length());
+        }
+        return p_fileName;
+    }
+
+    /**
+     * Open the snapshot for startup if it's newer than every XML file
+     *
+     * @param p_currentFiles the files that will be read
+     * @return true if documents will come from the snapshot
+     */
+    public synchronized boolean loadSnapshot(File[] p_currentFiles)
+    {
+        if (!m_isSnapshotEnabled)
+        {
+            return false;
+        }
+
+        PersistenceSnapshot snapshot = PersistenceSnapshot.load(m_snapshotFile);
+        if (snapshot == null)
+        {
+            return false;
+        }
+
+        // Someone may have changed the XML while the controller was down
+        long snapshotModified = m_snapshotFile.lastModified();
+        for (File file : p_currentFiles)
+        {
+            if (file.getName().endsWith(C_STR_SUFFIX) && file.lastModified() > snapshotModified)
+            {
+                Logger.i(TAG, "snapshot is older than " + file.getName() + ", reading XML");
+                return false;
+            }
+        }
+
+        Logger.i(TAG, "reading persistence files from the snapshot");
+        m_snapshot = snapshot;
+        return true;
+    }
+
+    /**
+     * Read a file from the snapshot
+     *
+     * @param p_fileName
+     * @return the document, or null if it has to be read from the XML
+     */
+    public Document readSnapshot(String p_fileName)
+    {
+        PersistenceSnapshot snapshot;
+        synchronized (this)
+        {
+            snapshot = m_snapshot;
+        }
+        if (snapshot == null)
+        {
+            return null;
+        }
+
+        // Decode outside the lock so startup can read files in parallel
+        try
+        {
+            Document doc = snapshot.getDocument(p_fileName);
+            if (doc != null)
+            {
+                byte[] bytes = snapshot.getBytes(p_fileName);
+                synchronized (this)
+                {
+                    m_snapshotSections.put(p_fileName, bytes);
+                }
+            }
+            return doc;
+        }
+        catch (RuntimeException e)
+        {
+            Logger.w(TAG, "damaged snapshot entry " + p_fileName + ", reading XML", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param p_fileName
+     * @return true if the file will be read from the snapshot
+     */
+    public synchronized boolean isInSnapshot(String p_fileName)
+    {
+        return m_snapshot != null && m_snapshot.contains(p_fileName);
+    }
+
+    /**
+     * Keep track of a file read in at startup
+     *
+     * @param p_fileName
+     * @param p_doc
+     */
+    public void addReadFile(String p_fileName, Document p_doc)
+    {
+        readGeneration(p_fileName, p_doc);
+
+        if (m_isSnapshotEnabled && p_doc != null)
+        {
+            synchronized (this)
+            {
+                if (m_snapshotSections.containsKey(p_fileName))
+                {
+                    return;
+                }
+            }
+
+            byte[] bytes = PersistenceSnapshot.encode(p_doc);
+            synchronized (this)
+            {
+                if (!m_snapshotSections.containsKey(p_fileName))
+                {
+                    m_snapshotSections.put(p_fileName, bytes);
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the snapshot of every current file
+     */
+    public synchronized void writeSnapshot()
+    {
+        if (m_isSnapshotEnabled)
+        {
+            if (PersistenceSnapshot.write(m_snapshotFile, m_snapshotSections))
+            {
+                Logger.i(TAG, "wrote snapshot of " + m_snapshotSections.size() + " files, " + m_snapshotFile.length() + " bytes");
+            }
+        }
+    }
+
+    /**
+     * The XML is changing, so the snapshot on disk no longer matches it
+     */
+    private void deleteSnapshot()
+    {
+        m_snapshot = null;
+
+        if (!m_isSnapshotDeleted)
+        {
+            m_isSnapshotDeleted = true;
+            if (m_snapshotFile.exists() && !m_snapshotFile.delete())
+            {
+                Logger.e(TAG, "could not delete stale snapshot " + m_snapshotFile.getName());
+            }
+        }
+    }
+
+    /**
+     * Remember the encoding of a file that was just written
+     */
+    private void addWrittenFile(File p_file, Document p_doc)
+    {
+        deleteSnapshot();
+
+        if (m_isSnapshotEnabled)
+        {
+            m_snapshotSections.put(p_file.getName(), PersistenceSnapshot.encode(p_doc));
+        }
+    }
+
+    /**
+     * Remember the generation of a file read in at startup so later writes
+     * carry on counting from it
+     *
+     * @param p_fileName
+     * @param p_doc
+     */
+    public synchronized void readGeneration(String p_fileName, Document p_doc)
+    {
+        if (p_doc != null && p_fileName.endsWith(C_STR_SUFFIX))
+        {
+            String generation = XmlUtils.getXmlAttributeString(p_doc.getRootElement(), C_STR_GENERATION);
+            if (generation != null)
+            {
+                try
+                {
+                    m_generations.put(stripSuffix(p_fileName), Long.parseLong(generation));
+                }
+                catch (NumberFormatException e)
+                {
+                    Logger.w(TAG, "bad generation in " + p_fileName + ": " + generation);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param p_prefix
+     * @return the last generation written for the prefix, 0 if none
+     */
+    public synchronized long getGeneration(String p_prefix)
+    {
+        Long generation = m_generations.get(p_prefix);
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Write the document
+     *
+     * @param p_doc
+     * @param p_prefix
+     * @return the number of bytes written
+     */
+    public synchronized long write(Document p_doc, String p_prefix)
+    {
+        if (m_mode == EsnPersistMode.ATOMIC)
+        {
+            return writeAtomic(p_doc, p_prefix);
+        }
+        return writeTimestamped(p_doc, p_prefix);
+    }
+
+    /**
+     * Delete every file for a prefix
+     *
+     * @param p_prefix
+     */
+    public synchronized void delete(String p_prefix)
+    {
+        File file = new File(m_dir, p_prefix + C_STR_SUFFIX);
+        if (file.exists())
+        {
+            deleteFile(file);
+        }
+        cleanLegacyFiles(p_prefix);
+        m_generations.remove(p_prefix);
+    }
+
+    /**
+     * Write a new timestamped file and delete the older ones
+     */
+    private long writeTimestamped(Document p_doc, String p_prefix)
+    {
+        File file = new File(m_dir, String.format("%s_%s%s",
+                p_prefix,
+                (new DateTime()).toString(m_dateTimeFormatter),
+                C_STR_SUFFIX));
+
+        if (writeFile(p_doc, file, false))
+        {
+            addWrittenFile(file, p_doc);
+        }
+
+        cleanOldFiles(p_prefix);
+
+        return file.length();
+    }
+
+    /**
+     * Write a temp file and rename it over the stable file
+     */
+    private long writeAtomic(Document p_doc, String p_prefix)
+    {
+        long generation = getGeneration(p_prefix) + 1;
+        p_doc.getRootElement().addAttribute(new Attribute(C_STR_GENERATION, String.valueOf(generation)));
+
+        File file = new File(m_dir, p_prefix + C_STR_SUFFIX);
+        File tmpFile = new File(m_dir, p_prefix + C_STR_SUFFIX + C_STR_TMP_SUFFIX);
+
+        if (!writeFile(p_doc, tmpFile, true))
+        {
+            tmpFile.delete();
+            return 0;
+        }
+
+        long length = tmpFile.length();
+
+        // A rename within a directory is atomic on POSIX. Windows won't
+        // rename over an existing file, so it has to be deleted first there.
+        if (!tmpFile.renameTo(file))
+        {
+            if (!(file.delete() && tmpFile.renameTo(file)))
+            {
+                Logger.e(TAG, "could not rename " + tmpFile.getName() + " to " + file.getName());
+                return 0;
+            }
+        }
+
+        m_generations.put(p_prefix, generation);
+        addWrittenFile(file, p_doc);
+
+        // Timestamped files from before the switch only need removing once
+        if (m_cleanedPrefixes.add(p_prefix))
+        {
+            cleanLegacyFiles(p_prefix);
+        }
+
+        return length;
+    }
+
+    /**
+     * Serialize the document to a file
+     *
+     * @param p_doc
+     * @param p_file
+     * @param p_isForced sync the file to disk before returning
+     * @return true if it was written
+     */
+    private boolean writeFile(Document p_doc, File p_file, boolean p_isForced)
+    {
+        FileOutputStream fos = null;
+        try
+        {
+            fos = new FileOutputStream(p_file);
+
+            // Using a serializer with indention set to 2 spaces,
+            // write the XML document to the file
+            Serializer output = new Serializer(fos, C_STR_ENCODING);
+            output.setIndent(2);
+            output.write(p_doc);
+            output.flush();
+
+            if (p_isForced)
+            {
+                fos.getFD().sync();
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            Logger.w(TAG, "could not write file " + p_file.getName(), e);
+            return false;
+        }
+        finally
+        {
+            if (fos != null)
+            {
+                try
+                {
+                    fos.close();
+                }
+                catch (IOException e)
+                {
+                    Logger.w(TAG, "could not close file " + p_file.getName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Go through the net directory and clean out any old files based on
+     * the passed in prefix. Only the newest file with the particular prefix
+     * will be kept and the others removed
+     *
+     * @param p_prefix
+     */
+    private void cleanOldFiles(final String p_prefix)
+    {
+        // This filter is for the prefix
+        FileFilter fileFilter = new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().startsWith(p_prefix);
+            }
+        };
+
+        // Get the file list
+        File[] filteredFiles = m_dir.listFiles(fileFilter);
+
+        // Make sure we have old files and keep the newest
+        if (filteredFiles != null && filteredFiles.length > 1)
+        {
+            // Sort by the newest modified
+            Arrays.sort(filteredFiles, NameFileComparator.NAME_REVERSE);
+
+            // The reverse sort leaves the zero element as the newest file.
+            // Delete the rest
+            for(int i=1; i<filteredFiles.length; i++)
+            {
+                deleteFile(filteredFiles[i]);
+            }
+        }
+    }
+
+    /**
+     * Delete the timestamped files for a prefix
+     *
+     * @param p_prefix
+     */
+    private void cleanLegacyFiles(final String p_prefix)
+    {
+        FileFilter fileFilter = new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().startsWith(p_prefix + "_") &&
+                    file.getName().endsWith(C_STR_SUFFIX);
+            }
+        };
+
+        File[] legacyFiles = m_dir.listFiles(fileFilter);
+        if (legacyFiles != null)
+        {
+            for (File legacyFile : legacyFiles)
+            {
+                deleteFile(legacyFile);
+            }
+        }
+    }
+
+    private void deleteFile(File p_file)
+    {
+        m_snapshotSections.remove(p_file.getName());
+
+        if(!p_file.delete())
+        {
+            Logger.e(TAG, "could not delete old file: " + p_file.getName());
+        }
+        else
+        {
+            Logger.v(TAG, "Deleted file: " + p_file.getName());
+        }
+    }
+}
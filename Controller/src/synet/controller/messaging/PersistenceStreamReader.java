@@ -0,0 +1,227 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import nu.xom.Attribute;
+import nu.xom.Element;
+import nu.xom.Text;
+
+import synet.controller.utils.Logger;
+
+/**
+ * Streaming reader for the persistence files.
+ *
+ * Pulls a file through StAX and hands it over one record at a time, where
+ * a record is an element at a set depth, like each node in the node list
+ * or each action in a catalog. Only the record being handed over is built
+ * as an element, so the deserialization constructors that take an element
+ * still work while the whole document is never in memory. The root is
+ * handed over first with its attributes but no children.
+ *
+ * @author mkurdziel
+ *
+ */
+public class PersistenceStreamReader
+{
+    private static final String TAG = "PersistenceStreamReader";
+
+    // Only configured here, so sharing it between threads is safe
+    private static final XMLInputFactory s_inputFactory = XMLInputFactory.newInstance();
+
+    static
+    {
+        s_inputFactory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        s_inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * Receives the parts of a file as they're read
+     */
+    public interface Handler
+    {
+        /**
+         * @param p_root the root element with its attributes only
+         * @return false to stop reading the file
+         */
+        boolean root(Element p_root);
+
+        /**
+         * @param p_record a complete record element
+         */
+        void record(Element p_record);
+    }
+
+    /**
+     * Read a file
+     *
+     * @param p_file
+     * @param p_recordDepth depth of the record elements, the root is 1
+     * @param p_recordName name of the record elements, or null for any
+     * @param p_handler
+     * @return true if the whole file was read
+     */
+    public static boolean read(File p_file, int p_recordDepth, String p_recordName, Handler p_handler)
+    {
+        InputStream in = null;
+        try
+        {
+            in = new BufferedInputStream(new FileInputStream(p_file), 64 * 1024);
+            return read(in, p_recordDepth, p_recordName, p_handler);
+        }
+        catch (IOException e)
+        {
+            Logger.e(TAG, "could not read " + p_file.getName(), e);
+        }
+        catch (XMLStreamException e)
+        {
+            Logger.e(TAG, "could not parse " + p_file.getName(), e);
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                    Logger.w(TAG, "could not close " + p_file.getName(), e);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Read a stream
+     *
+     * @param p_in
+     * @param p_recordDepth depth of the record elements, the root is 1
+     * @param p_recordName name of the record elements, or null for any
+     * @param p_handler
+     * @return true if the whole stream was read, false if the handler
+     *         stopped it
+     * @throws XMLStreamException
+     */
+    public static boolean read(InputStream p_in, int p_recordDepth, String p_recordName, Handler p_handler)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader = s_inputFactory.createXMLStreamReader(p_in);
+        try
+        {
+            int depth = 0;
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    ++depth;
+                    if (depth == 1)
+                    {
+                        if (!p_handler.root(readStartElement(reader)))
+                        {
+                            return false;
+                        }
+                    }
+                    else if (depth == p_recordDepth)
+                    {
+                        if (p_recordName == null || p_recordName.equals(reader.getLocalName()))
+                        {
+                            p_handler.record(readElement(reader));
+                        }
+                        else
+                        {
+                            skipElement(reader);
+                        }
+                        // The record's end element has been read
+                        --depth;
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    --depth;
+                }
+            }
+            return true;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * @return the element the reader is on, with its attributes
+     */
+    private static Element readStartElement(XMLStreamReader p_reader)
+    {
+        Element element = new Element(p_reader.getLocalName());
+        for (int i=0; i<p_reader.getAttributeCount(); ++i)
+        {
+            element.addAttribute(new Attribute(p_reader.getAttributeLocalName(i), p_reader.getAttributeValue(i)));
+        }
+        return element;
+    }
+
+    /**
+     * Build the element the reader is on and everything under it, leaving
+     * the reader on its end element
+     */
+    private static Element readElement(XMLStreamReader p_reader) throws XMLStreamException
+    {
+        Element element = readStartElement(p_reader);
+
+        while (p_reader.hasNext())
+        {
+            int event = p_reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                element.appendChild(readElement(p_reader));
+            }
+            else if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE)
+            {
+                element.appendChild(new Text(p_reader.getText()));
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                break;
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Skip the element the reader is on, leaving the reader on its end
+     * element
+     */
+    private static void skipElement(XMLStreamReader p_reader) throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0 && p_reader.hasNext())
+        {
+            int event = p_reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                ++depth;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT)
+            {
+                --depth;
+            }
+        }
+    }
+}
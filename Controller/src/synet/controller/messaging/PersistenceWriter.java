@@ -0,0 +1,405 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import nu.xom.Document;
+
+import synet.controller.utils.Logger;
+
+/**
+ * Background writer for the persistence files.
+ *
+ * Callers mark a file dirty along with a source that builds its document.
+ * Marking a file that is already dirty only swaps in the newer source, so
+ * a burst of updates to the same file turns into a single write. Dirty
+ * files are flushed once the debounce interval has passed since the first
+ * one was marked, or right away when too many are waiting. Sources run on
+ * the writer thread at flush time, so a source that reads objects other
+ * threads are changing should hold a copy taken when it was marked. A file
+ * can also be marked for deletion, which replaces any pending write.
+ *
+ * @author mkurdziel
+ *
+ */
+public class PersistenceWriter
+{
+    private static final String TAG = "PersistenceWriter";
+
+    public static final int C_DEBOUNCE_MS = 1000;
+    public static final int C_MAX_PENDING = 32;
+
+    /**
+     * Builds the document for a dirty file when it's flushed
+     */
+    public interface Source
+    {
+        /**
+         * @return the document to write, or null to skip the write
+         */
+        Document build();
+    }
+
+    /**
+     * Writes a document out
+     */
+    public interface Sink
+    {
+        /**
+         * @param p_doc
+         * @param p_prefix file name prefix
+         * @return the number of bytes written
+         */
+        long write(Document p_doc, String p_prefix);
+
+        /**
+         * @param p_prefix file name prefix
+         */
+        void delete(String p_prefix);
+    }
+
+    /**
+     * A dirty file waiting to be written
+     */
+    private static class Pending
+    {
+        // Null when the file is to be deleted
+        private Source m_source;
+        private int m_numCoalesced = 0;
+
+        private Pending(Source p_source)
+        {
+            m_source = p_source;
+        }
+    }
+
+    private final Sink m_sink;
+    private final int m_debounceMs;
+    private final int m_maxPending;
+
+    private final Object m_lockObject = new Object();
+    private final Object m_writeLockObject = new Object();
+    private LinkedHashMap<String, Pending> m_pending = new LinkedHashMap<String, Pending>();
+    private long m_firstDirtyTime = 0;
+    private boolean m_isRunning = false;
+    private WriterThread m_writerThread = null;
+
+    // Statistics
+    private long m_numRequests = 0;
+    private long m_numCoalesced = 0;
+    private long m_numWrites = 0;
+    private long m_numBytesWritten = 0;
+    private long m_numBytesSaved = 0;
+
+    /**
+     * @param p_sink where documents are written
+     * @param p_debounceMs how long to wait for more updates before writing
+     * @param p_maxPending how many dirty files force an early flush
+     */
+    public PersistenceWriter(Sink p_sink, int p_debounceMs, int p_maxPending)
+    {
+        m_sink = p_sink;
+        m_debounceMs = p_debounceMs;
+        m_maxPending = Math.max(1, p_maxPending);
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public void start()
+    {
+        synchronized (m_lockObject)
+        {
+            if (m_isRunning)
+            {
+                return;
+            }
+            m_isRunning = true;
+        }
+
+        m_writerThread = new WriterThread();
+        m_writerThread.start();
+    }
+
+    /**
+     * Stop the writer thread and write anything still dirty
+     */
+    public void stop()
+    {
+        synchronized (m_lockObject)
+        {
+            m_isRunning = false;
+            m_lockObject.notifyAll();
+        }
+
+        if (m_writerThread != null)
+        {
+            try
+            {
+                m_writerThread.join();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            m_writerThread = null;
+        }
+
+        flush();
+
+        Logger.i(TAG, toString());
+    }
+
+    /**
+     * Mark a file as needing a write
+     *
+     * @param p_prefix file name prefix, one dirty entry per prefix
+     * @param p_source builds the latest document for the file
+     */
+    public void markDirty(String p_prefix, Source p_source)
+    {
+        mark(p_prefix, p_source);
+    }
+
+    /**
+     * Mark a file to be deleted
+     *
+     * @param p_prefix file name prefix
+     */
+    public void markDeleted(String p_prefix)
+    {
+        mark(p_prefix, null);
+    }
+
+    /**
+     * @param p_prefix
+     * @param p_source the source, or null to delete the file
+     */
+    private void mark(String p_prefix, Source p_source)
+    {
+        synchronized (m_lockObject)
+        {
+            m_numRequests++;
+
+            Pending pending = m_pending.get(p_prefix);
+            if (pending != null)
+            {
+                // Only the newest version of the file matters
+                pending.m_source = p_source;
+                pending.m_numCoalesced++;
+                m_numCoalesced++;
+                return;
+            }
+
+            m_pending.put(p_prefix, new Pending(p_source));
+            if (m_firstDirtyTime == 0)
+            {
+                m_firstDirtyTime = System.currentTimeMillis();
+            }
+            m_lockObject.notifyAll();
+        }
+    }
+
+    /**
+     * Write everything that is dirty now
+     */
+    public void flush()
+    {
+        write(takePending());
+    }
+
+    /**
+     * @return the dirty files, leaving nothing pending
+     */
+    private Map<String, Pending> takePending()
+    {
+        synchronized (m_lockObject)
+        {
+            Map<String, Pending> pending = m_pending;
+            m_pending = new LinkedHashMap<String, Pending>();
+            m_firstDirtyTime = 0;
+            return pending;
+        }
+    }
+
+    /**
+     * Build and write each dirty file
+     */
+    private void write(Map<String, Pending> p_pending)
+    {
+        if (p_pending.isEmpty())
+        {
+            return;
+        }
+
+        // Keep the flush thread and a caller's flush from interleaving
+        synchronized (m_writeLockObject)
+        {
+            for (Map.Entry<String, Pending> entry : p_pending.entrySet())
+            {
+                Pending pending = entry.getValue();
+                long numBytes = 0;
+
+                try
+                {
+                    if (pending.m_source == null)
+                    {
+                        m_sink.delete(entry.getKey());
+                    }
+                    else
+                    {
+                        Document doc = pending.m_source.build();
+                        if (doc != null)
+                        {
+                            numBytes = m_sink.write(doc, entry.getKey());
+                        }
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    Logger.e(TAG, "could not write " + entry.getKey(), e);
+                }
+
+                synchronized (m_lockObject)
+                {
+                    m_numWrites++;
+                    m_numBytesWritten += numBytes;
+                    // Every coalesced update would have been a file this size
+                    m_numBytesSaved += numBytes * pending.m_numCoalesced;
+                }
+            }
+        }
+
+        Logger.v(TAG, "flushed " + p_pending.size() + " files");
+    }
+
+    /**
+     * @return the number of times a file was marked dirty
+     */
+    public long getNumRequests()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_numRequests;
+        }
+    }
+
+    /**
+     * @return the number of updates folded into a later write
+     */
+    public long getNumCoalesced()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_numCoalesced;
+        }
+    }
+
+    /**
+     * @return the number of files written
+     */
+    public long getNumWrites()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_numWrites;
+        }
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public long getNumBytesWritten()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_numBytesWritten;
+        }
+    }
+
+    /**
+     * @return the estimated bytes not written because of coalescing
+     */
+    public long getNumBytesSaved()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_numBytesSaved;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        synchronized (m_lockObject)
+        {
+            return String.format("requests: %d writes: %d coalesced: %d bytes written: %d bytes saved: %d",
+                    m_numRequests, m_numWrites, m_numCoalesced, m_numBytesWritten, m_numBytesSaved);
+        }
+    }
+
+    /**
+     * Thread that flushes dirty files when the debounce runs out
+     */
+    private class WriterThread extends Thread
+    {
+        public WriterThread()
+        {
+            super(TAG);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            Logger.i(TAG, "Starting");
+
+            while (waitForFlush())
+            {
+                write(takePending());
+            }
+
+            Logger.i(TAG, "Exiting thread");
+        }
+
+        /**
+         * Wait until there is something to flush and it's time to flush it
+         *
+         * @return false if the writer is stopping
+         */
+        private boolean waitForFlush()
+        {
+            synchronized (m_lockObject)
+            {
+                try
+                {
+                    while (m_isRunning && m_pending.isEmpty())
+                    {
+                        m_lockObject.wait();
+                    }
+
+                    while (m_isRunning && m_pending.size() < m_maxPending)
+                    {
+                        long remaining = m_firstDirtyTime + m_debounceMs - System.currentTimeMillis();
+                        if (remaining <= 0)
+                        {
+                            break;
+                        }
+                        m_lockObject.wait(remaining);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    return false;
+                }
+                return m_isRunning;
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nu.xom.Document;
+import nu.xom.Serializer;
+
+import synet.controller.utils.Logger;
+
+/**
+ * In-memory cache of the serialized documents the Portal polls for, like
+ * the node list, each node's catalog and the system info.
+ *
+ * Each entry has a generation number that changes every time the entry is
+ * invalidated, which the Portal can send back as an ETag to find out the
+ * document hasn't changed. A document is only built and serialized the
+ * first time it's asked for after a change, through the loader, so polls
+ * in between never touch the disk or the serializer. A load that races an
+ * invalidation is handed back but not kept.
+ *
+ * @author mkurdziel
+ *
+ */
+public class ResponseCache
+{
+    private static final String TAG = "ResponseCache";
+
+    private static final String C_STR_ENCODING = "ISO-8859-1";
+
+    /**
+     * Builds a document from the current state of the system
+     */
+    public interface Loader
+    {
+        /**
+         * @param p_name
+         * @return the document, or null if there isn't one by that name
+         */
+        Document load(String p_name);
+    }
+
+    /**
+     * A serialized document and the generation it was built for
+     */
+    public static class Response
+    {
+        private final long m_generation;
+        private final byte[] m_bytes;
+
+        private Response(long p_generation, byte[] p_bytes)
+        {
+            m_generation = p_generation;
+            m_bytes = p_bytes;
+        }
+
+        /**
+         * @return the generation this was built for
+         */
+        public long getGeneration()
+        {
+            return m_generation;
+        }
+
+        /**
+         * @return the ETag for this generation, with its quotes
+         */
+        public String getETag()
+        {
+            return "\"" + m_generation + "\"";
+        }
+
+        /**
+         * @return the serialized document. Don't modify it.
+         */
+        public byte[] getBytes()
+        {
+            return m_bytes;
+        }
+    }
+
+    /**
+     * A document's current generation and its response if it's been built
+     */
+    private static class Entry
+    {
+        private long m_generation;
+        private Response m_response = null;
+
+        private Entry(long p_generation)
+        {
+            m_generation = p_generation;
+        }
+    }
+
+    private final Loader m_loader;
+    private final HashMap<String, Entry> m_entries = new HashMap<String, Entry>();
+
+    // Starts at the time so a restart never hands out an old ETag
+    private long m_lastGeneration = System.currentTimeMillis();
+
+    // Statistics
+    private final AtomicLong m_numHits = new AtomicLong();
+    private final AtomicLong m_numLoads = new AtomicLong();
+    private final AtomicLong m_numInvalidations = new AtomicLong();
+
+    /**
+     * @param p_loader builds documents that aren't cached
+     */
+    public ResponseCache(Loader p_loader)
+    {
+        m_loader = p_loader;
+    }
+
+    /**
+     * Mark a document as changed
+     *
+     * @param p_name
+     */
+    public synchronized void invalidate(String p_name)
+    {
+        Entry entry = m_entries.get(p_name);
+        if (entry == null)
+        {
+            m_entries.put(p_name, new Entry(++m_lastGeneration));
+        }
+        else
+        {
+            entry.m_generation = ++m_lastGeneration;
+            entry.m_response = null;
+        }
+        m_numInvalidations.incrementAndGet();
+    }
+
+    /**
+     * Drop every document starting with a prefix that isn't in a set, like
+     * the catalogs of nodes that went away
+     *
+     * @param p_prefix
+     * @param p_names the names to keep
+     */
+    public synchronized void retain(String p_prefix, Set<String> p_names)
+    {
+        Iterator<String> it = m_entries.keySet().iterator();
+        while (it.hasNext())
+        {
+            String name = it.next();
+            if (name.startsWith(p_prefix) && !p_names.contains(name))
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get a document, building it if it changed since it was last built
+     *
+     * @param p_name
+     * @return the response, or null if there's no document by that name
+     */
+    public Response get(String p_name)
+    {
+        long generation;
+        synchronized (this)
+        {
+            Entry entry = m_entries.get(p_name);
+            if (entry != null && entry.m_response != null)
+            {
+                m_numHits.incrementAndGet();
+                return entry.m_response;
+            }
+            generation = entry == null ? ++m_lastGeneration : entry.m_generation;
+        }
+
+        // Build outside the lock so one slow document doesn't hold up the rest
+        Document doc = m_loader.load(p_name);
+        if (doc == null)
+        {
+            return null;
+        }
+
+        Response response;
+        try
+        {
+            response = new Response(generation, serialize(doc));
+        }
+        catch (IOException e)
+        {
+            Logger.w(TAG, "could not serialize " + p_name, e);
+            return null;
+        }
+        m_numLoads.incrementAndGet();
+
+        synchronized (this)
+        {
+            Entry entry = m_entries.get(p_name);
+            if (entry == null)
+            {
+                // Nothing invalidated it while it was building
+                entry = new Entry(generation);
+                m_entries.put(p_name, entry);
+            }
+            if (entry.m_generation == generation)
+            {
+                entry.m_response = response;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * @return the number of gets served without building
+     */
+    public long getNumHits()
+    {
+        return m_numHits.get();
+    }
+
+    /**
+     * @return the number of documents built
+     */
+    public long getNumLoads()
+    {
+        return m_numLoads.get();
+    }
+
+    /**
+     * @return the number of invalidations
+     */
+    public long getNumInvalidations()
+    {
+        return m_numInvalidations.get();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("hits: %d loads: %d invalidations: %d",
+                m_numHits.get(), m_numLoads.get(), m_numInvalidations.get());
+    }
+
+    private byte[] serialize(Document p_doc) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        Serializer serializer = new Serializer(bytes, C_STR_ENCODING);
+        serializer.write(p_doc);
+        return bytes.toByteArray();
+    }
+}
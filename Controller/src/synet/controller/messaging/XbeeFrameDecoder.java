@@ -0,0 +1,240 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import synet.controller.utils.Logger;
+
+/**
+ * Frames Xbee API packets out of a serial byte stream.
+ *
+ * Bytes are read in bulk into a single reusable buffer and frames are
+ * checked and handed to the listener in place, as a view on that buffer.
+ * Nothing is allocated per frame. Any partial frame left at the end of a
+ * read is shifted to the front of the buffer to wait for the rest.
+ *
+ * Not thread safe. It is meant to be driven by the serial event thread.
+ *
+ * @author mkurdziel
+ *
+ */
+public class XbeeFrameDecoder
+{
+    private static final String TAG = "XbeeFrameDecoder";
+
+    public static final int C_BUFFER_SIZE = 1024;
+
+    // Start byte + 2 size bytes + checksum. The API byte counts in the size
+    private static final int C_FRAME_OVERHEAD = 4;
+
+    private final byte[] m_array;
+    private final ByteBuffer m_buffer;
+    private final ByteBuffer m_frame;
+    private final XbeeFrameListener m_listener;
+
+    private long m_numFrames = 0;
+    private long m_numErrors = 0;
+    private long m_numBytes = 0;
+
+    /**
+     * @param p_listener
+     */
+    public XbeeFrameDecoder(XbeeFrameListener p_listener)
+    {
+        this(p_listener, C_BUFFER_SIZE);
+    }
+
+    /**
+     * @param p_listener
+     * @param p_bufferSize largest frame the decoder can hold, including framing
+     */
+    public XbeeFrameDecoder(XbeeFrameListener p_listener, int p_bufferSize)
+    {
+        m_listener = p_listener;
+        m_array = new byte[p_bufferSize];
+        m_buffer = ByteBuffer.wrap(m_array);
+        m_frame = ByteBuffer.wrap(m_array);
+    }
+
+    /**
+     * Read everything currently available from the stream and decode it
+     *
+     * @param p_in
+     * @return the number of bytes read
+     * @throws IOException
+     */
+    public int read(InputStream p_in) throws IOException
+    {
+        int total = 0;
+        int numRead;
+
+        while ((numRead = p_in.read(m_array, m_buffer.position(), m_buffer.remaining())) > 0)
+        {
+            m_buffer.position(m_buffer.position() + numRead);
+            total += numRead;
+            decodeBuffer();
+        }
+        return total;
+    }
+
+    /**
+     * Decode bytes that were read some other way
+     *
+     * @param p_bytes
+     * @param p_offset
+     * @param p_length
+     */
+    public void decode(byte[] p_bytes, int p_offset, int p_length)
+    {
+        int count;
+
+        while (p_length > 0)
+        {
+            count = Math.min(p_length, m_buffer.remaining());
+            m_buffer.put(p_bytes, p_offset, count);
+            p_offset += count;
+            p_length -= count;
+            decodeBuffer();
+        }
+    }
+
+    /**
+     * Pull every complete frame out of the buffer and keep what's left
+     */
+    private void decodeBuffer()
+    {
+        int end = m_buffer.position();
+        int pos = 0;
+        int size;
+
+        while (pos < end)
+        {
+            // Hunt for the frame start byte
+            if ((m_array[pos] & 0xff) != MsgFactoryXbee.C_XBEE_API_START_BYTE)
+            {
+                pos++;
+                continue;
+            }
+
+            // Wait for the size bytes
+            if (end - pos < 3)
+            {
+                break;
+            }
+
+            size = (m_array[pos+1] & 0xff) << 8 | (m_array[pos+2] & 0xff);
+
+            // A size we can't hold means this wasn't really a start byte
+            if (size == 0 || size + C_FRAME_OVERHEAD > m_array.length)
+            {
+                Logger.v(TAG, "invalid frame size: " + size);
+                m_numErrors++;
+                pos++;
+                continue;
+            }
+
+            // Wait for the rest of the frame
+            if (end - pos < size + C_FRAME_OVERHEAD)
+            {
+                break;
+            }
+
+            if (isChecksumValid(pos + 3, size))
+            {
+                m_numFrames++;
+                deliverFrame(m_array[pos+3] & 0xff, pos + 4, pos + 3 + size);
+            }
+            else
+            {
+                Logger.v(TAG, "decoding failed. Bad checksum: " + String.format("0x%x", m_array[pos + 3 + size]));
+                m_numErrors++;
+            }
+            pos += size + C_FRAME_OVERHEAD;
+        }
+
+        // Keep the partial frame, if any, at the front of the buffer
+        m_numBytes += pos;
+        m_buffer.limit(end);
+        m_buffer.position(pos);
+        m_buffer.compact();
+    }
+
+    /**
+     * The checksum byte follows the frame and brings the sum of
+     * the API byte, data and checksum to 0xff
+     *
+     * @param p_start index of the API byte
+     * @param p_size number of bytes from the API byte to the checksum
+     * @return true if the frame checksum matches
+     */
+    private boolean isChecksumValid(int p_start, int p_size)
+    {
+        int sum = 0;
+        int end = p_start + p_size;
+
+        for (int i=p_start; i<=end; ++i)
+        {
+            sum += m_array[i];
+        }
+        return (sum & 0xff) == 0xff;
+    }
+
+    /**
+     * Hand a frame to the listener as a view on the buffer
+     *
+     * @param p_api
+     * @param p_start
+     * @param p_end
+     */
+    private void deliverFrame(int p_api, int p_start, int p_end)
+    {
+        m_frame.limit(p_end);
+        m_frame.position(p_start);
+
+        try
+        {
+            m_listener.handleXbeeFrame(p_api, m_frame);
+        }
+        catch (RuntimeException e)
+        {
+            // Don't let a bad message stall the rest of the stream
+            Logger.e(TAG, "error handling frame api:" + String.format("0x%x", p_api), e);
+        }
+    }
+
+    /**
+     * @return the number of good frames decoded
+     */
+    public long getNumFrames()
+    {
+        return m_numFrames;
+    }
+
+    /**
+     * @return the number of bad frames or framing errors
+     */
+    public long getNumErrors()
+    {
+        return m_numErrors;
+    }
+
+    /**
+     * @return the number of bytes consumed
+     */
+    public long getNumBytes()
+    {
+        return m_numBytes;
+    }
+
+    /**
+     * Drop any partially received frame
+     */
+    public void reset()
+    {
+        m_buffer.clear();
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Builds Xbee API frames in a reusable buffer and writes each frame to
+ * the output sink with a single write call.
+ *
+ * @author mkurdziel
+ *
+ */
+public class XbeeFrameEncoder
+{
+    public static final int C_BUFFER_SIZE = 256;
+
+    // Start byte + 2 size bytes + API + frame ID + 8 64addr + 2 16addr +
+    // radius + options. The payload follows
+    private static final int C_TX_HEADER_SIZE = 17;
+
+    // Start byte + 2 size bytes + checksum, which aren't counted in the size
+    private static final int C_FRAME_OVERHEAD = 4;
+
+    private byte[] m_buffer = new byte[C_BUFFER_SIZE];
+    private OutputStream m_sink;
+
+    private long m_numFrames = 0;
+    private long m_numBytes = 0;
+
+    /**
+     * @param p_sink where the frames get written
+     */
+    public XbeeFrameEncoder(OutputStream p_sink)
+    {
+        m_sink = p_sink;
+    }
+
+    /**
+     * @param p_sink where the frames get written
+     */
+    public synchronized void setSink(OutputStream p_sink)
+    {
+        m_sink = p_sink;
+    }
+
+    /**
+     * Encode a Zigbee transmit request and write it out
+     *
+     * @param p_frameId
+     * @param p_addr64 8 byte destination address
+     * @param p_addr16 2 byte destination network address
+     * @param p_payload
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public synchronized int writeTxRequest(int p_frameId, byte[] p_addr64, byte[] p_addr16, byte[] p_payload)
+        throws IOException
+    {
+        int length = C_TX_HEADER_SIZE + p_payload.length + 1;
+        // Size covers the API byte through the end of the payload
+        int size = length - C_FRAME_OVERHEAD;
+        int pos = 0;
+
+        if (m_sink == null)
+        {
+            throw new IOException("no output sink");
+        }
+
+        if (m_buffer.length < length)
+        {
+            m_buffer = new byte[length];
+        }
+
+        m_buffer[pos++] = (byte)MsgFactoryXbee.C_XBEE_API_START_BYTE;
+        m_buffer[pos++] = (byte)(size >> 8); // Size MSB
+        m_buffer[pos++] = (byte)size; // Size LSB
+        m_buffer[pos++] = (byte)MsgFactoryXbee.C_XBEE_API_ZIGBEE_TX_REQ; // API
+        m_buffer[pos++] = (byte)p_frameId; // Frame ID
+        System.arraycopy(p_addr64, 0, m_buffer, pos, 8); // 64-bit address
+        pos += 8;
+        System.arraycopy(p_addr16, 0, m_buffer, pos, 2); // 16-bit address
+        pos += 2;
+        m_buffer[pos++] = 0x00; // Broadcast Radius
+        m_buffer[pos++] = 0x00; // Options
+        System.arraycopy(p_payload, 0, m_buffer, pos, p_payload.length); // Packet bytes
+        pos += p_payload.length;
+
+        // The checksum starts at the API byte
+        int checksum = 0;
+        for (int i=3; i<pos; ++i)
+        {
+            checksum += m_buffer[i];
+        }
+        m_buffer[pos++] = (byte)(0xff - (checksum & 0xff));
+
+        m_sink.write(m_buffer, 0, pos);
+
+        m_numFrames++;
+        m_numBytes += pos;
+
+        return pos;
+    }
+
+    /**
+     * @return the number of frames written
+     */
+    public synchronized long getNumFrames()
+    {
+        return m_numFrames;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public synchronized long getNumBytes()
+    {
+        return m_numBytes;
+    }
+}
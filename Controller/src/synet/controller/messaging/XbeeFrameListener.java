@@ -0,0 +1,17 @@
+package synet.controller.messaging;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Listener interface for complete Xbee API frames
+ */
+public interface XbeeFrameListener {
+    /**
+     * Called for each frame that passed its checksum. The frame view is only
+     * valid for the duration of the call since the decoder reuses its buffer.
+     *
+     * @param p_api the Xbee API identifier of the frame
+     * @param p_frame view of the frame data. The data runs from position() to limit()
+     */
+    public void handleXbeeFrame(int p_api, ByteBuffer p_frame);
+}
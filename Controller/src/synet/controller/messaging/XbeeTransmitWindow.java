@@ -0,0 +1,341 @@
+/**
+ *
+ */
+package synet.controller.messaging;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import synet.controller.messaging.messages.MsgTx;
+import synet.controller.nodes.NodeZigbee;
+
+/**
+ * Flow control for Xbee transmit frames.
+ *
+ * At most a fixed number of frames are in flight at once. Each one holds a
+ * frame ID until its TX status comes back or its deadline passes, and only
+ * then is the ID handed out again. IDs are recycled oldest first so a late
+ * TX status is unlikely to land on a new frame. Sends that arrive while the
+ * window is full wait in order until a frame completes.
+ *
+ * @author mkurdziel
+ *
+ */
+public class XbeeTransmitWindow
+{
+    public static final int C_MAX_IN_FLIGHT = 8;
+    public static final int C_TX_TIMEOUT_MS = 3000;
+
+    // Frame ID 0 tells the radio not to send a TX status, so it's never used
+    private static final int C_MIN_FRAME_ID = 1;
+    private static final int C_MAX_FRAME_ID = 255;
+
+    /**
+     * A transmit frame that has been given a frame ID, or is waiting for one
+     */
+    public static class TxFrame
+    {
+        private final MsgTx m_msg;
+        private final NodeZigbee m_node;
+        private int m_frameId = 0;
+        private long m_deadline = 0;
+
+        private TxFrame(MsgTx p_msg, NodeZigbee p_node)
+        {
+            m_msg = p_msg;
+            m_node = p_node;
+        }
+
+        /**
+         * @return the message being sent
+         */
+        public MsgTx getMsg()
+        {
+            return m_msg;
+        }
+
+        /**
+         * @return the destination node
+         */
+        public NodeZigbee getNode()
+        {
+            return m_node;
+        }
+
+        /**
+         * @return the frame ID, or 0 if the frame is still queued
+         */
+        public int getFrameId()
+        {
+            return m_frameId;
+        }
+    }
+
+    private final int m_maxInFlight;
+    private final long m_timeoutMs;
+
+    private final LinkedList<Integer> m_freeIds = new LinkedList<Integer>();
+    private final TxFrame[] m_inFlight = new TxFrame[C_MAX_FRAME_ID + 1];
+    private final LinkedList<TxFrame> m_queued = new LinkedList<TxFrame>();
+    private int m_numInFlight = 0;
+
+    // Counters
+    private long m_numSent = 0;
+    private long m_numCompleted = 0;
+    private long m_numExpired = 0;
+    private long m_numQueued = 0;
+    private int m_queueHighWaterMark = 0;
+
+    /**
+     * @param p_maxInFlight the most frames waiting on a TX status at once
+     * @param p_timeoutMs how long to wait on a TX status before giving up
+     */
+    public XbeeTransmitWindow(int p_maxInFlight, long p_timeoutMs)
+    {
+        m_maxInFlight = Math.max(1, Math.min(p_maxInFlight, C_MAX_FRAME_ID));
+        m_timeoutMs = p_timeoutMs;
+
+        for (int id=C_MIN_FRAME_ID; id<=C_MAX_FRAME_ID; ++id)
+        {
+            m_freeIds.add(id);
+        }
+    }
+
+    /**
+     * Offer a message to the window. If there is room and nothing is
+     * queued ahead of it, it gets a frame ID and should be sent now.
+     * Otherwise it is queued until poll() hands it out.
+     *
+     * @param p_msg
+     * @param p_node
+     * @return the frame to send now, or null if it was queued
+     */
+    public synchronized TxFrame offer(MsgTx p_msg, NodeZigbee p_node)
+    {
+        TxFrame frame = new TxFrame(p_msg, p_node);
+
+        if (m_queued.isEmpty() && hasRoom())
+        {
+            open(frame);
+            return frame;
+        }
+
+        m_queued.add(frame);
+        m_numQueued++;
+        if (m_queued.size() > m_queueHighWaterMark)
+        {
+            m_queueHighWaterMark = m_queued.size();
+        }
+        return null;
+    }
+
+    /**
+     * @return the next queued frame if the window has room for it, with
+     * its frame ID assigned. Null if nothing can be sent.
+     */
+    public synchronized TxFrame poll()
+    {
+        if (m_queued.isEmpty() || !hasRoom())
+        {
+            return null;
+        }
+
+        TxFrame frame = m_queued.removeFirst();
+        open(frame);
+        return frame;
+    }
+
+    /**
+     * Complete the frame a TX status refers to and free its frame ID
+     *
+     * @param p_frameId
+     * @return the message that was sent with that frame ID, or null if
+     * there wasn't one in flight
+     */
+    public synchronized MsgTx complete(int p_frameId)
+    {
+        TxFrame frame = close(p_frameId);
+        if (frame != null)
+        {
+            m_numCompleted++;
+            return frame.getMsg();
+        }
+        return null;
+    }
+
+    /**
+     * Give back a frame ID that never made it onto the wire
+     *
+     * @param p_frame
+     */
+    public synchronized void release(TxFrame p_frame)
+    {
+        if (m_inFlight[p_frame.getFrameId()] == p_frame)
+        {
+            close(p_frame.getFrameId());
+        }
+    }
+
+    /**
+     * Expire every in-flight frame whose deadline has passed
+     *
+     * @param p_now current time in milliseconds
+     * @return the messages that expired
+     */
+    public synchronized List<MsgTx> expire(long p_now)
+    {
+        List<MsgTx> expired = new ArrayList<MsgTx>();
+
+        if (m_numInFlight > 0)
+        {
+            for (int id=C_MIN_FRAME_ID; id<=C_MAX_FRAME_ID; ++id)
+            {
+                TxFrame frame = m_inFlight[id];
+                if (frame != null && p_now - frame.m_deadline >= 0)
+                {
+                    close(id);
+                    m_numExpired++;
+                    expired.add(frame.getMsg());
+                }
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Drop everything in flight or queued
+     *
+     * @return the messages that were dropped
+     */
+    public synchronized List<MsgTx> clear()
+    {
+        List<MsgTx> dropped = new ArrayList<MsgTx>();
+
+        for (int id=C_MIN_FRAME_ID; id<=C_MAX_FRAME_ID; ++id)
+        {
+            if (m_inFlight[id] != null)
+            {
+                dropped.add(close(id).getMsg());
+            }
+        }
+        for (TxFrame frame : m_queued)
+        {
+            dropped.add(frame.getMsg());
+        }
+        m_queued.clear();
+
+        return dropped;
+    }
+
+    /**
+     * @return true if another frame can go out
+     */
+    private boolean hasRoom()
+    {
+        return m_numInFlight < m_maxInFlight && !m_freeIds.isEmpty();
+    }
+
+    /**
+     * Give the frame the oldest free ID and start its deadline
+     *
+     * @param p_frame
+     */
+    private void open(TxFrame p_frame)
+    {
+        p_frame.m_frameId = m_freeIds.removeFirst();
+        p_frame.m_deadline = System.currentTimeMillis() + m_timeoutMs;
+        m_inFlight[p_frame.m_frameId] = p_frame;
+        m_numInFlight++;
+        m_numSent++;
+    }
+
+    /**
+     * Take a frame out of flight and put its ID at the back of the free list
+     *
+     * @param p_frameId
+     * @return the frame, or null if that ID wasn't in flight
+     */
+    private TxFrame close(int p_frameId)
+    {
+        if (p_frameId < C_MIN_FRAME_ID || p_frameId > C_MAX_FRAME_ID)
+        {
+            return null;
+        }
+
+        TxFrame frame = m_inFlight[p_frameId];
+        if (frame != null)
+        {
+            m_inFlight[p_frameId] = null;
+            m_numInFlight--;
+            m_freeIds.addLast(p_frameId);
+        }
+        return frame;
+    }
+
+    /**
+     * @return the number of frames waiting on a TX status
+     */
+    public synchronized int getNumInFlight()
+    {
+        return m_numInFlight;
+    }
+
+    /**
+     * @return the number of messages waiting for room in the window
+     */
+    public synchronized int getQueueSize()
+    {
+        return m_queued.size();
+    }
+
+    /**
+     * @return the maximum number of frames in flight
+     */
+    public int getMaxInFlight()
+    {
+        return m_maxInFlight;
+    }
+
+    /**
+     * @return the TX status timeout in milliseconds
+     */
+    public long getTimeoutMs()
+    {
+        return m_timeoutMs;
+    }
+
+    /**
+     * @return the number of frames given a frame ID
+     */
+    public synchronized long getNumSent()
+    {
+        return m_numSent;
+    }
+
+    /**
+     * @return the number of frames completed by a TX status
+     */
+    public synchronized long getNumCompleted()
+    {
+        return m_numCompleted;
+    }
+
+    /**
+     * @return the number of frames that timed out
+     */
+    public synchronized long getNumExpired()
+    {
+        return m_numExpired;
+    }
+
+    /**
+     * @return a short description of the window and its counters
+     */
+    public synchronized String getDescription()
+    {
+        return String.format("in flight: %d/%d queued: %d sent: %d completed: %d expired: %d was queued: %d high: %d",
+                m_numInFlight, m_maxInFlight, m_queued.size(), m_numSent,
+                m_numCompleted, m_numExpired, m_numQueued, m_queueHighWaterMark);
+    }
+}
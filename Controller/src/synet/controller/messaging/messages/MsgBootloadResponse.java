@@ -3,6 +3,8 @@
  */
 package synet.controller.messaging.messages;
 
+import java.nio.ByteBuffer;
+
 import synet.controller.messaging.messages.MsgConstants.EsnAPIBootloadResponse;
 import synet.controller.nodes.NodeBase;
 import synet.controller.utils.EBitConverter;
@@ -29,16 +31,30 @@ public class MsgBootloadResponse extends Msg
 	public MsgBootloadResponse(
 	        NodeBase p_sourceNode,
             NodeBase p_destinationNode,
-            int[] p_data, int p_dataOffset)
+            ByteBuffer p_data, int p_dataOffset)
 	{
 	    super(p_sourceNode, p_destinationNode);
 	   
-		m_response = EsnAPIBootloadResponse.get(p_data[p_dataOffset+2]);
+		if (p_data.limit() > (p_dataOffset + 2))
+		{
+			m_response = EsnAPIBootloadResponse.get(EBitConverter.toUInt8(p_data, p_dataOffset+2));
+		}
+		else
+		{
+			Logger.w(TAG, "Received bootload response without a response from " + p_sourceNode.getDescString());
+		}
 		
 		// Memory address if only valid for data success command
 		if (m_response == EsnAPIBootloadResponse.DATA_SUCCESS)
 		{
-			m_memoryAddress = EBitConverter.toUInt16(p_data, p_dataOffset + 3);
+			if (p_data.limit() > (p_dataOffset + 4))
+			{
+				m_memoryAddress = EBitConverter.toUInt16(p_data, p_dataOffset + 3);
+			}
+			else
+			{
+				Logger.w(TAG, "Received data success without an address from " + p_sourceNode.getDescString());
+			}
 		}
 		
 		Logger.v(TAG,"Status:" + m_response +  " Mem Address:"+m_memoryAddress);
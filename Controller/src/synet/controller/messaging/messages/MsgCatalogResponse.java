@@ -3,6 +3,7 @@
  */
 package synet.controller.messaging.messages;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 import synet.controller.Protocol.EsnDataTypes;
@@ -66,23 +67,23 @@ public class MsgCatalogResponse extends Msg
 	 */
 	public MsgCatalogResponse(NodeBase p_sourceNode,
 			NodeBase p_destinationNode,
-			int[] p_data,
+			ByteBuffer p_data,
 			int p_dataOffset)
 	{
 		super(p_sourceNode, p_destinationNode);
 		
-		m_totalEntries = p_data[p_dataOffset + 2];
-		m_entryNumber = p_data[p_dataOffset + 3];
-		m_numParams = p_data[p_dataOffset + 4];
+		m_totalEntries = EBitConverter.toUInt8(p_data, p_dataOffset + 2);
+		m_entryNumber = EBitConverter.toUInt8(p_data, p_dataOffset + 3);
+		m_numParams = EBitConverter.toUInt8(p_data, p_dataOffset + 4);
 		
 		Logger.v(TAG, "entry number: " + m_entryNumber);
 		
 		if (m_entryNumber != 0)
 		{
-			m_returnType = EsnDataTypes.get(p_data[p_dataOffset + 5]);
+			m_returnType = EsnDataTypes.get(EBitConverter.toUInt8(p_data, p_dataOffset + 5));
 			for (int i=0; i<m_totalEntries; ++i)
 			{
-				m_paramType.put(i, EsnDataTypes.get(p_data[p_dataOffset + 6 + i]));
+				m_paramType.put(i, EsnDataTypes.get(EBitConverter.toUInt8(p_data, p_dataOffset + 6 + i)));
 			}
 
 			m_functionName = EBitConverter.toString(p_data, p_dataOffset + 6 + m_numParams);
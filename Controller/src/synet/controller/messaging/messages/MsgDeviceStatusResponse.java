@@ -3,6 +3,8 @@
  */
 package synet.controller.messaging.messages;
 
+import java.nio.ByteBuffer;
+
 import synet.controller.messaging.messages.MsgConstants.EsnAPIDeviceStatusValue;
 import synet.controller.nodes.NodeBase;
 import synet.controller.utils.EBitConverter;
@@ -65,21 +67,28 @@ public class MsgDeviceStatusResponse extends Msg
      */
     public MsgDeviceStatusResponse(NodeBase p_sourceNode, 
             NodeBase p_destinationNode, 
-            int[] p_data, 
+            ByteBuffer p_data, 
             int p_dataOffset)
     {
         super(p_sourceNode, p_destinationNode);
 
 
-        m_deviceStatus = EsnAPIDeviceStatusValue.get(p_data[p_dataOffset+2]);
+        if (p_data.limit() > (p_dataOffset + 2))
+        {
+            m_deviceStatus = EsnAPIDeviceStatusValue.get(EBitConverter.toUInt8(p_data, p_dataOffset+2));
+        }
+        else
+        {
+            Logger.w(TAG, "Received device status without a status from " + p_sourceNode.getDescString());
+        }
 
-        Logger.v(TAG,"status:" + m_deviceStatus + " size:" + p_data.length);
+        Logger.v(TAG,"status:" + m_deviceStatus + " size:" + p_data.remaining());
 
 
         // Parse out any additional info if necessary
         if (m_deviceStatus == EsnAPIDeviceStatusValue.INFO)
         {
-            if (p_data.length > (p_dataOffset + 9))
+            if (p_data.limit() > (p_dataOffset + 10))
             {
                 m_synetID = EBitConverter.toUInt16(p_data, p_dataOffset + 3);
                 m_manufacturerID = EBitConverter.toUInt16(p_data, p_dataOffset + 5);
@@ -3,6 +3,8 @@
  */
 package synet.controller.messaging.messages;
 
+import java.nio.ByteBuffer;
+
 import synet.controller.Protocol.EsnDataTypes;
 import synet.controller.actions.INodeAction;
 import synet.controller.nodes.NodeBase;
@@ -22,14 +24,14 @@ public class MsgFunctionReceive extends Msg
 
     public MsgFunctionReceive(NodeBase p_sourceNode,
             NodeBase p_destinationNode,
-            int[] p_data,
+            ByteBuffer p_data,
             int p_dataOffset)
     {
         super(p_sourceNode, p_destinationNode);
 
         p_dataOffset += 2;
 
-        m_actionIndex = p_data[p_dataOffset++];
+        m_actionIndex = EBitConverter.toUInt8(p_data, p_dataOffset++);
 
         INodeAction action = p_sourceNode.getNodeAction(m_actionIndex);
 
@@ -42,7 +44,8 @@ public class MsgFunctionReceive extends Msg
                 {
                     StringBuilder sb = new StringBuilder();
                     char c;
-                    while ((c=(char) p_data[p_dataOffset++]) != 0)
+                    while (p_dataOffset < p_data.limit() &&
+                            (c=(char) EBitConverter.toUInt8(p_data, p_dataOffset++)) != 0)
                     {
                         sb.append(c);
                     }
@@ -8,6 +8,7 @@ import synet.controller.actions.INodeParameter;
 import synet.controller.actions.NodeParameter;
 import synet.controller.nodes.NodeBase;
 import synet.controller.utils.EBitConverter;
+import synet.controller.utils.ResultFuture;
 
 /**
  * @author mkurdziel
@@ -22,6 +23,10 @@ public class MsgFunctionTransmit extends MsgTx
     private Object m_responseLockObject = new Object();
     private boolean m_isResponded = false;
     private MsgFunctionReceive m_response = null;
+    private boolean m_isResponseTimedOut = false;
+    private long m_sequenceNumber = 0;
+    private final ResultFuture<MsgFunctionReceive> m_responseFuture =
+        new ResultFuture<MsgFunctionReceive>();
 
     public MsgFunctionTransmit(
             NodeBase p_destinationNode,
@@ -145,6 +150,7 @@ public class MsgFunctionTransmit extends MsgTx
             m_response = p_response;
             m_responseLockObject.notifyAll();
         }
+        m_responseFuture.complete(p_response);
     }
 
     /**
@@ -155,6 +161,27 @@ public class MsgFunctionTransmit extends MsgTx
         return m_isResponded;
     }
 
+    /**
+     * Give up on a response to this message and wake up anyone waiting
+     */
+    public void setIsResponseTimedOut()
+    {
+        synchronized (m_responseLockObject)
+        {
+            m_isResponseTimedOut = true;
+            m_responseLockObject.notifyAll();
+        }
+        m_responseFuture.fail("request sent but response timed out");
+    }
+
+    /**
+     * @return true if the dispatcher gave up waiting for a response
+     */
+    public boolean getIsResponseTimedOut()
+    {
+        return m_isResponseTimedOut;
+    }
+
 
     /**
      * Wait for the message to send
@@ -169,7 +196,11 @@ public class MsgFunctionTransmit extends MsgTx
         synchronized (m_responseLockObject)
         {
             try {
-                m_responseLockObject.wait(p_milliseconds);
+                // Check again under the lock so a response can't slip by
+                if (!m_isResponded && !m_isResponseTimedOut)
+                {
+                    m_responseLockObject.wait(p_milliseconds);
+                }
             } catch (InterruptedException e) {
                 // We didn't get a send notification within the 
                 // requested timeout
@@ -179,6 +210,15 @@ public class MsgFunctionTransmit extends MsgTx
         return m_isResponded;
     }
 
+    /**
+     * @return a future that completes with the response, or fails if
+     * the dispatcher gives up on one
+     */
+    public ResultFuture<MsgFunctionReceive> getResponseFuture()
+    {
+        return m_responseFuture;
+    }
+
     /**
      * @return the response message
      */
@@ -219,6 +259,24 @@ public class MsgFunctionTransmit extends MsgTx
         return m_needsReturn;
     }
 
+    /**
+     * Set the sequence number the dispatcher uses to correlate the response
+     * 
+     * @param p_sequenceNumber
+     */
+    public void setSequenceNumber(long p_sequenceNumber)
+    {
+        m_sequenceNumber = p_sequenceNumber;
+    }
+
+    /**
+     * @return the correlation sequence number, or 0 if none was assigned
+     */
+    public long getSequenceNumber()
+    {
+        return m_sequenceNumber;
+    }
+
     /**
      * @return the action index of this transmit request
      */
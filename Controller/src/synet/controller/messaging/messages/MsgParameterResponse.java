@@ -3,6 +3,7 @@
  */
 package synet.controller.messaging.messages;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 
 import synet.controller.Protocol.EsnDataTypes;
@@ -84,7 +85,7 @@ public class MsgParameterResponse extends Msg
 	 */
 	public MsgParameterResponse(NodeBase p_sourceNode,
 			NodeBase p_destinationNode,
-			int[] p_data,
+			ByteBuffer p_data,
 			int p_dataOffset)
 	{
 		super(p_sourceNode, p_destinationNode);
@@ -98,11 +99,11 @@ public class MsgParameterResponse extends Msg
 		
 		p_dataOffset += 2;
 		      
-		m_functionId = p_data[p_dataOffset++];
-		m_parameterId = p_data[p_dataOffset++];
+		m_functionId = EBitConverter.toUInt8(p_data, p_dataOffset++);
+		m_parameterId = EBitConverter.toUInt8(p_data, p_dataOffset++);
 
 		// get parameter data type
-		m_paramDataType = EsnDataTypes.get(p_data[p_dataOffset++]);
+		m_paramDataType = EsnDataTypes.get(EBitConverter.toUInt8(p_data, p_dataOffset++));
 		switch (m_paramDataType)
 		{
 		case BOOL:
@@ -129,7 +130,7 @@ public class MsgParameterResponse extends Msg
 		}
 
 		// get parameter validation type
-		m_validationType = EsnParamValidationTypes.get(p_data[p_dataOffset++]);
+		m_validationType = EsnParamValidationTypes.get(EBitConverter.toUInt8(p_data, p_dataOffset++));
 
 		// get validation values
 		switch (m_validationType)
@@ -160,7 +161,7 @@ public class MsgParameterResponse extends Msg
 			break;
 		case ENUMERATED:
 			// load count, then value-name pairs count times
-			int nNbrEnumValues = p_data[p_dataOffset++];
+			int nNbrEnumValues = EBitConverter.toUInt8(p_data, p_dataOffset++);
 			int nEnumValue;
 			String strEnumValueName;
 			for (int nEntryIdx = 0; nEntryIdx < nNbrEnumValues; nEntryIdx++)
@@ -174,7 +175,7 @@ public class MsgParameterResponse extends Msg
 			break;
 		case MAX_STRING_LEN:
 			// load single byte max string length
-			m_nMaxStringLength = p_data[p_dataOffset++];
+			m_nMaxStringLength = EBitConverter.toUInt8(p_data, p_dataOffset++);
 			break;
 		}
 
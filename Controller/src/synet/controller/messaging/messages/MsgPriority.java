@@ -0,0 +1,60 @@
+/**
+ * 
+ */
+package synet.controller.messaging.messages;
+
+/**
+ * Priority classes for outgoing messages. The sender drains each class in
+ * turn, taking up to its weight in messages per round, so interactive
+ * messages stay quick while bulk traffic still gets through.
+ * 
+ * @author mkurdziel
+ *
+ */
+public enum MsgPriority
+{
+	// User actions waiting on an answer
+	INTERACTIVE(8),
+	// System and configuration messages
+	CONTROL(4),
+	// Device status, catalog and parameter requests
+	DISCOVERY(2),
+	// Firmware pages
+	BULK(1);
+	
+	private final int m_weight;
+	
+	MsgPriority(int p_weight)
+	{
+		m_weight = p_weight;
+	}
+	
+	/**
+	 * @return the default number of messages taken from this class per round
+	 */
+	public int getWeight()
+	{
+		return m_weight;
+	}
+	
+	/**
+	 * @param p_api
+	 * @return the class a message of this API goes in by default
+	 */
+	public static MsgPriority fromAPI(byte p_api)
+	{
+		switch(p_api)
+		{
+			case MsgConstants.SN_API_FUNCTION_TRANSMIT:
+				return INTERACTIVE;
+			case MsgConstants.SN_API_DEVICE_STATUS_REQUEST:
+			case MsgConstants.SN_API_CATALOG_REQUEST:
+			case MsgConstants.SN_API_PARAMETER_REQUEST:
+				return DISCOVERY;
+			case MsgConstants.SN_API_BOOTLOAD_TRANSMIT:
+				return BULK;
+			default:
+				return CONTROL;
+		}
+	}
+}
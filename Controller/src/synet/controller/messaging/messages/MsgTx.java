@@ -4,6 +4,7 @@
 package synet.controller.messaging.messages;
 
 import synet.controller.nodes.NodeBase;
+import synet.controller.utils.ResultFuture;
 
 /**
  * @author mkurdziel
@@ -19,6 +20,10 @@ public abstract class MsgTx extends Msg
 	private boolean m_isSent = false;
 	private String m_errorMsg;
 	private boolean m_isError = false;
+	private final ResultFuture<MsgTx> m_sendFuture = new ResultFuture<MsgTx>();
+	// Set by the sender and read by the dispatcher thread
+	private volatile MsgPriority m_priority = null;
+	private volatile long m_timeQueued = 0;
 	
 	/**
 	 * Default constructor
@@ -44,6 +49,7 @@ public abstract class MsgTx extends Msg
 			m_isSent = true;
 			m_sendLockObject.notifyAll();
 		}
+		m_sendFuture.complete(this);
 	}
 	
 	/**
@@ -82,8 +88,62 @@ public abstract class MsgTx extends Msg
 	 */
 	public void setErrorMsg(String p_errorMsg)
 	{
-		m_isError = true;
-		m_errorMsg = p_errorMsg;
+		synchronized (m_sendLockObject) {
+			m_isError = true;
+			m_errorMsg = p_errorMsg;
+			// Don't leave anyone waiting on a send that failed
+			m_sendLockObject.notifyAll();
+		}
+		m_sendFuture.fail(p_errorMsg);
+	}
+	
+	/**
+	 * @return a future that completes when the message is sent, or fails
+	 * with the error message if it can't be
+	 */
+	public ResultFuture<MsgTx> getSendFuture()
+	{
+		return m_sendFuture;
+	}
+	
+	/**
+	 * @return the priority class the message is sent under. Defaults to
+	 * the class for its API
+	 */
+	public MsgPriority getPriority()
+	{
+		if (m_priority == null)
+		{
+			m_priority = MsgPriority.fromAPI(getAPI());
+		}
+		return m_priority;
+	}
+	
+	/**
+	 * Send the message under a different priority class
+	 * 
+	 * @param p_priority
+	 */
+	public void setPriority(MsgPriority p_priority)
+	{
+		m_priority = p_priority;
+	}
+	
+	/**
+	 * @return when the message was queued to send, from System.nanoTime(),
+	 * or 0 if it hasn't been
+	 */
+	public long getTimeQueued()
+	{
+		return m_timeQueued;
+	}
+	
+	/**
+	 * @param p_nanos when the message was queued to send, from System.nanoTime()
+	 */
+	public void setTimeQueued(long p_nanos)
+	{
+		m_timeQueued = p_nanos;
 	}
 	
 	/**
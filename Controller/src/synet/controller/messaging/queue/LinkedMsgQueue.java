@@ -0,0 +1,152 @@
+/**
+ *
+ */
+package synet.controller.messaging.queue;
+
+import java.util.LinkedList;
+
+import synet.controller.utils.Logger;
+
+/**
+ * Unbounded queue backed by a LinkedList and guarded by the queue monitor.
+ * This is the original dispatcher queue behavior.
+ *
+ * @author mkurdziel
+ *
+ */
+public class LinkedMsgQueue<T> implements MsgQueue<T>
+{
+    private static final String TAG = "LinkedMsgQueue";
+
+    private LinkedList<T> m_queue = new LinkedList<T>();
+    private boolean m_isWoken = false;
+    private long m_numPut = 0;
+    private int m_highWaterMark = 0;
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#put(java.lang.Object)
+     */
+    @Override
+    public synchronized boolean put(T p_item)
+    {
+        m_queue.add(p_item);
+        m_numPut++;
+
+        if (m_queue.size() > m_highWaterMark)
+        {
+            m_highWaterMark = m_queue.size();
+        }
+
+        notifyAll();
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#poll()
+     */
+    @Override
+    public synchronized T poll()
+    {
+        return m_queue.poll();
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#take()
+     */
+    @Override
+    public synchronized T take()
+    {
+        // Check the queue under the lock so a put can't slip in
+        // between the check and the wait
+        while (m_queue.isEmpty() && !m_isWoken)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                Logger.w(TAG, "thread interrupted", e);
+                return null;
+            }
+        }
+        m_isWoken = false;
+
+        return m_queue.poll();
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#wakeUp()
+     */
+    @Override
+    public synchronized void wakeUp()
+    {
+        m_isWoken = true;
+        notifyAll();
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#size()
+     */
+    @Override
+    public synchronized int size()
+    {
+        return m_queue.size();
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getCapacity()
+     */
+    @Override
+    public int getCapacity()
+    {
+        return Integer.MAX_VALUE;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getNumPut()
+     */
+    @Override
+    public synchronized long getNumPut()
+    {
+        return m_numPut;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getNumFull()
+     */
+    @Override
+    public long getNumFull()
+    {
+        // Unbounded, so it is never full
+        return 0;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getNumDropped()
+     */
+    @Override
+    public long getNumDropped()
+    {
+        return 0;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getHighWaterMark()
+     */
+    @Override
+    public synchronized int getHighWaterMark()
+    {
+        return m_highWaterMark;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getDescription()
+     */
+    @Override
+    public String getDescription()
+    {
+        return String.format("linked size: %d put: %d high: %d",
+                size(), getNumPut(), getHighWaterMark());
+    }
+}
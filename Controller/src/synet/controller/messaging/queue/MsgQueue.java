@@ -0,0 +1,78 @@
+/**
+ *
+ */
+package synet.controller.messaging.queue;
+
+/**
+ * Queue used by the MsgDispatcher to hand messages between the adapters
+ * and the dispatcher threads. Any number of threads may put into the
+ * queue but only a single thread may take from it.
+ *
+ * @author mkurdziel
+ *
+ */
+public interface MsgQueue<T>
+{
+    /**
+     * Put an item into the queue. If the queue is full, the caller is
+     * held until space frees up or the queue gives up on the item.
+     *
+     * @param p_item
+     * @return true if the item was queued, false if it was dropped
+     */
+    public boolean put(T p_item);
+
+    /**
+     * Remove the next item from the queue without waiting
+     *
+     * @return the next item, or null if the queue is empty
+     */
+    public T poll();
+
+    /**
+     * Remove the next item from the queue, waiting for one to arrive.
+     *
+     * @return the next item, or null if the consumer was woken up by wakeUp()
+     */
+    public T take();
+
+    /**
+     * Wake up the consumer if it is waiting in take()
+     */
+    public void wakeUp();
+
+    /**
+     * @return the number of items currently queued
+     */
+    public int size();
+
+    /**
+     * @return the maximum number of items the queue can hold
+     */
+    public int getCapacity();
+
+    /**
+     * @return the total number of items successfully put into the queue
+     */
+    public long getNumPut();
+
+    /**
+     * @return the number of times a producer found the queue full
+     */
+    public long getNumFull();
+
+    /**
+     * @return the number of items dropped because the queue stayed full
+     */
+    public long getNumDropped();
+
+    /**
+     * @return the largest number of items seen in the queue at once
+     */
+    public int getHighWaterMark();
+
+    /**
+     * @return a short description of the queue and its counters
+     */
+    public String getDescription();
+}
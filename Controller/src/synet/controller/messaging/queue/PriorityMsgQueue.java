@@ -0,0 +1,331 @@
+/**
+ *
+ */
+package synet.controller.messaging.queue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import synet.controller.messaging.messages.MsgPriority;
+import synet.controller.messaging.messages.MsgTx;
+import synet.controller.utils.LatencyHistogram;
+
+/**
+ * Outgoing queue with a level for each message priority class.
+ *
+ * The consumer drains the levels in weighted rounds: each round it takes up
+ * to a level's weight in messages from it, highest priority first, and a
+ * new round starts once every level that still has credit is empty. A
+ * firmware push or a discovery storm can't starve interactive messages,
+ * and they can't starve the bulk traffic either.
+ *
+ * Each level is its own queue, so the levels can be linked or ring buffer
+ * queues like the rest of the dispatcher. The time each message waited,
+ * from when it was queued to send, goes into a histogram for its class.
+ *
+ * Like the ring buffer, there is exactly one consumer and no lock. Puts
+ * bump a count of queued messages and unpark the consumer only if it is
+ * waiting, and the consumer idles with the wait strategy while the count
+ * is zero.
+ *
+ * @author mkurdziel
+ *
+ */
+public class PriorityMsgQueue implements MsgQueue<MsgTx>
+{
+    private final MsgQueue<MsgTx>[] m_levels;
+    private final int[] m_weights;
+    // Only touched by the consumer thread
+    private final int[] m_credits;
+    private final LatencyHistogram[] m_histograms;
+    private final WaitStrategy m_waitStrategy;
+
+    // Messages put and not yet taken. Can dip below zero for a moment
+    // when the consumer takes a message before its put counts it
+    private final AtomicInteger m_count = new AtomicInteger(0);
+    private volatile Thread m_consumerThread = null;
+    private volatile boolean m_isConsumerWaiting = false;
+    private volatile boolean m_isWoken = false;
+
+    /**
+     * @param p_levels a queue for each priority class, in MsgPriority order
+     * @param p_weights messages taken from each class per round
+     */
+    public PriorityMsgQueue(MsgQueue<MsgTx>[] p_levels, int[] p_weights)
+    {
+        this(p_levels, p_weights, WaitStrategy.PARK);
+    }
+
+    /**
+     * @param p_levels a queue for each priority class, in MsgPriority order
+     * @param p_weights messages taken from each class per round
+     * @param p_waitStrategy how the consumer idles while every level is empty
+     */
+    public PriorityMsgQueue(MsgQueue<MsgTx>[] p_levels, int[] p_weights, WaitStrategy p_waitStrategy)
+    {
+        m_levels = p_levels;
+        m_waitStrategy = p_waitStrategy;
+        m_weights = new int[p_levels.length];
+        m_credits = new int[p_levels.length];
+        m_histograms = new LatencyHistogram[p_levels.length];
+        for (int i=0; i<p_levels.length; ++i)
+        {
+            m_weights[i] = Math.max(1, p_weights[i]);
+            m_credits[i] = m_weights[i];
+            m_histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @return the default weight of each priority class
+     */
+    public static int[] getDefaultWeights()
+    {
+        MsgPriority[] priorities = MsgPriority.values();
+        int[] weights = new int[priorities.length];
+        for (int i=0; i<priorities.length; ++i)
+        {
+            weights[i] = priorities[i].getWeight();
+        }
+        return weights;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#put(java.lang.Object)
+     */
+    @Override
+    public boolean put(MsgTx p_item)
+    {
+        if (p_item.getTimeQueued() == 0)
+        {
+            p_item.setTimeQueued(System.nanoTime());
+        }
+
+        if (!m_levels[p_item.getPriority().ordinal()].put(p_item))
+        {
+            return false;
+        }
+        m_count.incrementAndGet();
+
+        // Wake up the consumer if it is parked
+        if (m_isConsumerWaiting)
+        {
+            Thread consumer = m_consumerThread;
+            if (consumer != null)
+            {
+                LockSupport.unpark(consumer);
+            }
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#poll()
+     */
+    @Override
+    public MsgTx poll()
+    {
+        MsgTx item = next();
+        if (item == null)
+        {
+            // Every level with credit is empty, so start a new round
+            for (int i=0; i<m_credits.length; ++i)
+            {
+                m_credits[i] = m_weights[i];
+            }
+            item = next();
+        }
+
+        if (item != null)
+        {
+            m_count.decrementAndGet();
+            m_histograms[item.getPriority().ordinal()].record(System.nanoTime() - item.getTimeQueued());
+        }
+        return item;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#take()
+     */
+    @Override
+    public MsgTx take()
+    {
+        MsgTx item;
+
+        m_consumerThread = Thread.currentThread();
+
+        while ((item = poll()) == null)
+        {
+            if (m_isWoken)
+            {
+                m_isWoken = false;
+                return null;
+            }
+
+            // Announce that we are waiting, then check again so a put
+            // that raced with us is not missed
+            m_isConsumerWaiting = true;
+            if (m_count.get() <= 0 && !m_isWoken)
+            {
+                m_waitStrategy.idle();
+            }
+            m_isConsumerWaiting = false;
+        }
+        return item;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#wakeUp()
+     */
+    @Override
+    public void wakeUp()
+    {
+        m_isWoken = true;
+
+        Thread consumer = m_consumerThread;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#size()
+     */
+    @Override
+    public int size()
+    {
+        int size = 0;
+        for (MsgQueue<MsgTx> level : m_levels)
+        {
+            size += level.size();
+        }
+        return size;
+    }
+
+    /**
+     * @param p_priority
+     * @return the number of messages of a class waiting to be sent
+     */
+    public int size(MsgPriority p_priority)
+    {
+        return m_levels[p_priority.ordinal()].size();
+    }
+
+    /**
+     * @param p_priority
+     * @return how long messages of a class waited to be sent
+     */
+    public LatencyHistogram getLatencyHistogram(MsgPriority p_priority)
+    {
+        return m_histograms[p_priority.ordinal()];
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getCapacity()
+     */
+    @Override
+    public int getCapacity()
+    {
+        long capacity = 0;
+        for (MsgQueue<MsgTx> level : m_levels)
+        {
+            capacity += level.getCapacity();
+        }
+        return (int)Math.min(Integer.MAX_VALUE, capacity);
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getNumPut()
+     */
+    @Override
+    public long getNumPut()
+    {
+        long numPut = 0;
+        for (MsgQueue<MsgTx> level : m_levels)
+        {
+            numPut += level.getNumPut();
+        }
+        return numPut;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getNumFull()
+     */
+    @Override
+    public long getNumFull()
+    {
+        long numFull = 0;
+        for (MsgQueue<MsgTx> level : m_levels)
+        {
+            numFull += level.getNumFull();
+        }
+        return numFull;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getNumDropped()
+     */
+    @Override
+    public long getNumDropped()
+    {
+        long numDropped = 0;
+        for (MsgQueue<MsgTx> level : m_levels)
+        {
+            numDropped += level.getNumDropped();
+        }
+        return numDropped;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getHighWaterMark()
+     */
+    @Override
+    public int getHighWaterMark()
+    {
+        int highWaterMark = 0;
+        for (MsgQueue<MsgTx> level : m_levels)
+        {
+            highWaterMark = Math.max(highWaterMark, level.getHighWaterMark());
+        }
+        return highWaterMark;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getDescription()
+     */
+    @Override
+    public String getDescription()
+    {
+        StringBuilder sb = new StringBuilder("priority");
+        MsgPriority[] priorities = MsgPriority.values();
+        for (int i=0; i<m_levels.length; ++i)
+        {
+            sb.append(String.format(" [%s weight: %d %s latency %s]",
+                    priorities[i].name().toLowerCase(), m_weights[i],
+                    m_levels[i].getDescription(), m_histograms[i].getDescription()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the next message from the highest level with credit left,
+     *         or null if they're all empty
+     */
+    private MsgTx next()
+    {
+        for (int i=0; i<m_levels.length; ++i)
+        {
+            if (m_credits[i] > 0)
+            {
+                MsgTx item = m_levels[i].poll();
+                if (item != null)
+                {
+                    m_credits[i]--;
+                    return item;
+                }
+            }
+        }
+        return null;
+    }
+}
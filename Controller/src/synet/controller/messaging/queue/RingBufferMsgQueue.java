@@ -0,0 +1,338 @@
+/**
+ *
+ */
+package synet.controller.messaging.queue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import synet.controller.utils.Logger;
+
+/**
+ * Bounded, lock-free ring buffer queue.
+ *
+ * Each slot carries a sequence number. Producers claim a slot by advancing
+ * the tail with a compare-and-set and publish it by bumping the slot sequence,
+ * so several adapters can put without taking a lock. There is exactly one
+ * consumer (the dispatcher thread that owns the queue), which reads the head
+ * without any atomic operation.
+ *
+ * When the ring fills up, producers back off using the wait strategy for up
+ * to the put timeout before the item is dropped and counted.
+ *
+ * @author mkurdziel
+ *
+ */
+public class RingBufferMsgQueue<T> implements MsgQueue<T>
+{
+    private static final String TAG = "RingBufferMsgQueue";
+
+    // How long a producer parks between attempts while the ring is full
+    private static final long C_PRODUCER_PARK_NANOS = 1000L * 100L; // 100 us
+
+    private final Object[] m_buffer;
+    private final AtomicLongArray m_sequences;
+    private final int m_mask;
+    private final WaitStrategy m_waitStrategy;
+    private final long m_putTimeoutNanos;
+
+    // Producer cursor
+    private final AtomicLong m_tail = new AtomicLong(0);
+    // Consumer cursor. Only written by the consumer thread
+    private volatile long m_head = 0;
+
+    private volatile Thread m_consumerThread = null;
+    private volatile boolean m_isConsumerWaiting = false;
+    private volatile boolean m_isWoken = false;
+
+    // Counters
+    private final AtomicLong m_numPut = new AtomicLong(0);
+    private final AtomicLong m_numFull = new AtomicLong(0);
+    private final AtomicLong m_numDropped = new AtomicLong(0);
+    private final AtomicInteger m_highWaterMark = new AtomicInteger(0);
+
+    /**
+     * @param p_capacity requested capacity, rounded up to a power of two
+     * @param p_waitStrategy how to idle when the ring is empty or full
+     * @param p_putTimeoutMs how long a producer waits on a full ring before dropping
+     */
+    public RingBufferMsgQueue(int p_capacity, WaitStrategy p_waitStrategy, long p_putTimeoutMs)
+    {
+        int capacity = roundUpToPowerOfTwo(p_capacity);
+
+        m_buffer = new Object[capacity];
+        m_sequences = new AtomicLongArray(capacity);
+        m_mask = capacity - 1;
+        m_waitStrategy = p_waitStrategy;
+        m_putTimeoutNanos = p_putTimeoutMs * 1000L * 1000L;
+
+        // Each slot starts out free for the lap that matches its index
+        for (int i=0; i<capacity; ++i)
+        {
+            m_sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @param p_value
+     * @return the smallest power of two that is >= the value
+     */
+    private static int roundUpToPowerOfTwo(int p_value)
+    {
+        int capacity = 2;
+        while (capacity < p_value && capacity < (1 << 30))
+        {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Try to put an item in the ring without waiting
+     *
+     * @param p_item
+     * @return true if the item was published, false if the ring is full
+     */
+    public boolean offer(T p_item)
+    {
+        long pos = m_tail.get();
+        int index;
+
+        while (true)
+        {
+            index = (int)(pos & m_mask);
+            long diff = m_sequences.get(index) - pos;
+
+            if (diff == 0)
+            {
+                // The slot is free for this lap, try to claim it
+                if (m_tail.compareAndSet(pos, pos + 1))
+                {
+                    break;
+                }
+                pos = m_tail.get();
+            }
+            else if (diff < 0)
+            {
+                // The consumer hasn't freed this slot yet
+                return false;
+            }
+            else
+            {
+                // Another producer got here first
+                pos = m_tail.get();
+            }
+        }
+
+        m_buffer[index] = p_item;
+        // Publishing the sequence makes the slot visible to the consumer
+        m_sequences.set(index, pos + 1);
+
+        m_numPut.incrementAndGet();
+        updateHighWaterMark((int)(pos + 1 - m_head));
+
+        // Wake up the consumer if it is parked
+        if (m_isConsumerWaiting)
+        {
+            Thread consumer = m_consumerThread;
+            if (consumer != null)
+            {
+                LockSupport.unpark(consumer);
+            }
+        }
+
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#put(java.lang.Object)
+     */
+    @Override
+    public boolean put(T p_item)
+    {
+        if (offer(p_item))
+        {
+            return true;
+        }
+
+        // Backpressure. Count it and wait for the consumer to catch up
+        m_numFull.incrementAndGet();
+        long bailTime = System.nanoTime() + m_putTimeoutNanos;
+
+        while (!offer(p_item))
+        {
+            if (System.nanoTime() - bailTime > 0)
+            {
+                m_numDropped.incrementAndGet();
+                Logger.e(TAG, "queue full for too long, dropping item. " + getDescription());
+                return false;
+            }
+            m_waitStrategy.idle(C_PRODUCER_PARK_NANOS);
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#poll()
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public T poll()
+    {
+        long head = m_head;
+        int index = (int)(head & m_mask);
+
+        // The slot has not been published for this lap yet
+        if (m_sequences.get(index) != head + 1)
+        {
+            return null;
+        }
+
+        T item = (T)m_buffer[index];
+        m_buffer[index] = null;
+
+        // Free the slot for the producers' next lap
+        m_sequences.set(index, head + m_mask + 1);
+        m_head = head + 1;
+
+        return item;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#take()
+     */
+    @Override
+    public T take()
+    {
+        T item;
+
+        m_consumerThread = Thread.currentThread();
+
+        while ((item = poll()) == null)
+        {
+            if (m_isWoken)
+            {
+                m_isWoken = false;
+                return null;
+            }
+
+            // Announce that we are waiting, then check again so a put
+            // that raced with us is not missed
+            m_isConsumerWaiting = true;
+            if (size() == 0 && !m_isWoken)
+            {
+                m_waitStrategy.idle();
+            }
+            m_isConsumerWaiting = false;
+        }
+        return item;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#wakeUp()
+     */
+    @Override
+    public void wakeUp()
+    {
+        m_isWoken = true;
+
+        Thread consumer = m_consumerThread;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Raise the high water mark if needed
+     *
+     * @param p_depth
+     */
+    private void updateHighWaterMark(int p_depth)
+    {
+        int high;
+        while (p_depth > (high = m_highWaterMark.get()))
+        {
+            if (m_highWaterMark.compareAndSet(high, p_depth))
+            {
+                break;
+            }
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#size()
+     */
+    @Override
+    public int size()
+    {
+        long size = m_tail.get() - m_head;
+        return (int)Math.max(0, Math.min(size, m_buffer.length));
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getCapacity()
+     */
+    @Override
+    public int getCapacity()
+    {
+        return m_buffer.length;
+    }
+
+    /**
+     * @return the wait strategy used by the queue
+     */
+    public WaitStrategy getWaitStrategy()
+    {
+        return m_waitStrategy;
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getNumPut()
+     */
+    @Override
+    public long getNumPut()
+    {
+        return m_numPut.get();
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getNumFull()
+     */
+    @Override
+    public long getNumFull()
+    {
+        return m_numFull.get();
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getNumDropped()
+     */
+    @Override
+    public long getNumDropped()
+    {
+        return m_numDropped.get();
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getHighWaterMark()
+     */
+    @Override
+    public int getHighWaterMark()
+    {
+        return m_highWaterMark.get();
+    }
+
+    /* (non-Javadoc)
+     * @see synet.controller.messaging.queue.MsgQueue#getDescription()
+     */
+    @Override
+    public String getDescription()
+    {
+        return String.format("ring(%s) size: %d/%d put: %d full: %d dropped: %d high: %d",
+                m_waitStrategy, size(), getCapacity(), getNumPut(),
+                getNumFull(), getNumDropped(), getHighWaterMark());
+    }
+}
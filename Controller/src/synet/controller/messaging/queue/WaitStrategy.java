@@ -0,0 +1,75 @@
+/**
+ *
+ */
+package synet.controller.messaging.queue;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread idles while waiting on a ring buffer
+ *
+ * @author mkurdziel
+ *
+ */
+public enum WaitStrategy
+{
+    // Busy spin. Lowest latency, burns a core while idle
+    SPIN,
+    // Yield the processor between checks
+    YIELD,
+    // Park the thread until it is unparked or the park times out
+    PARK;
+
+    // Upper bound for a single park so a lost unpark cannot hang a thread
+    private static final long C_PARK_NANOS = 1000L * 1000L * 50L; // 50 ms
+
+    /**
+     * Idle the current thread once
+     */
+    public void idle()
+    {
+        idle(C_PARK_NANOS);
+    }
+
+    /**
+     * Idle the current thread once, parking for at most the given time
+     *
+     * @param p_parkNanos
+     */
+    public void idle(long p_parkNanos)
+    {
+        switch(this)
+        {
+            case SPIN:
+                break;
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                LockSupport.parkNanos(this, p_parkNanos);
+                break;
+        }
+    }
+
+    /**
+     * Parse a wait strategy from a configuration string
+     *
+     * @param p_strategy
+     * @param p_default
+     * @return the matching strategy or the default if it is not recognized
+     */
+    public static WaitStrategy fromString(String p_strategy, WaitStrategy p_default)
+    {
+        if (p_strategy != null)
+        {
+            for (WaitStrategy strategy : values())
+            {
+                if (strategy.name().equalsIgnoreCase(p_strategy.trim()))
+                {
+                    return strategy;
+                }
+            }
+        }
+        return p_default;
+    }
+}
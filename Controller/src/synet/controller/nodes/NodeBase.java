@@ -3,7 +3,9 @@
  */
 package synet.controller.nodes;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import nu.xom.Attribute;
 import nu.xom.Element;
@@ -650,6 +652,46 @@ public abstract class NodeBase
 		return 0;
 	}
 
+	/**
+	 * @return every function that still needs to be investigated, in order
+	 */
+	public List<Integer> getUnknownNodeActions()
+	{
+		ArrayList<Integer> unknown = new ArrayList<Integer>();
+		for (int i=1; i <= m_numTotalFunctions; ++i)
+		{
+			if (m_catalog.get(i) == null)
+			{
+				unknown.add(i);
+			}
+		}
+		return unknown;
+	}
+
+	/**
+	 * @return every function and parameter pair that still needs to be
+	 *         investigated, in order
+	 */
+	public List<Pair<Integer>> getUnknownParameters()
+	{
+		ArrayList<Pair<Integer>> unknown = new ArrayList<Pair<Integer>>();
+		for (int i=1; i <= m_numTotalFunctions; ++i)
+		{
+			INodeAction action = m_catalog.get(i);
+			if (action != null)
+			{
+				for (int k=1; k <= action.getNumParameters(); ++k)
+				{
+					if (action.getParameter(k) == null)
+					{
+						unknown.add(new Pair<Integer>(i, k));
+					}
+				}
+			}
+		}
+		return unknown;
+	}
+
 	/**
 	 * @return the function catalog for the node
 	 */
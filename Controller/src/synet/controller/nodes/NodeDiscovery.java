@@ -0,0 +1,203 @@
+package synet.controller.nodes;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks the catalog and parameter requests out to a node while it's
+ * being discovered.
+ *
+ * Up to a window of requests are kept outstanding at once instead of one
+ * at a time. Each request is keyed by its function and parameter index,
+ * with parameter 0 for the function itself. A request is dropped once its
+ * entry is known, and only the requests that time out are sent again.
+ *
+ * The timeout of a request runs from when it actually goes out, set by
+ * markSent, not from when it's queued. A request still held back by the
+ * rate limiter can't time out and isn't queued a second time.
+ *
+ * @author mkurdziel
+ */
+public class NodeDiscovery
+{
+    /**
+     * A request waiting on a response
+     */
+    private static class Outstanding
+    {
+        // -1 while the request is queued
+        private long m_timeSent = -1;
+        private int m_numRetries = 0;
+    }
+
+    private final long m_timeStarted;
+    private final LinkedHashMap<Integer, Outstanding> m_outstanding = new LinkedHashMap<Integer, Outstanding>();
+    private int m_numRequests = 0;
+    private int m_numRetries = 0;
+
+    /**
+     * @param p_timeStarted when discovery started, in milliseconds
+     */
+    public NodeDiscovery(long p_timeStarted)
+    {
+        m_timeStarted = p_timeStarted;
+    }
+
+    /**
+     * @param p_function
+     * @param p_parameter the parameter index, or 0 for the function
+     * @return the key for a request
+     */
+    public static int getKey(int p_function, int p_parameter)
+    {
+        return (p_function << 16) | (p_parameter & 0xFFFF);
+    }
+
+    /**
+     * @param p_key
+     * @return the function index of a key
+     */
+    public static int getFunction(int p_key)
+    {
+        return p_key >>> 16;
+    }
+
+    /**
+     * @param p_key
+     * @return the parameter index of a key, 0 for a function request
+     */
+    public static int getParameter(int p_key)
+    {
+        return p_key & 0xFFFF;
+    }
+
+    /**
+     * Work out which requests to send now. Requests for entries that
+     * aren't unknown any more are dropped, timed out ones are resent and
+     * the window is topped up from the unknown entries in order.
+     *
+     * @param p_unknown keys of the entries still unknown, in order
+     * @param p_window most requests to have outstanding
+     * @param p_timeoutMs how long to wait for a response
+     * @param p_maxRetries how many times to resend a request
+     * @param p_now the time in milliseconds
+     * @return the keys to send, or null if a request ran out of retries
+     */
+    public synchronized List<Integer> next(List<Integer> p_unknown, int p_window,
+            long p_timeoutMs, int p_maxRetries, long p_now)
+    {
+        HashSet<Integer> unknown = new HashSet<Integer>(p_unknown);
+        ArrayList<Integer> send = new ArrayList<Integer>();
+
+        Iterator<Map.Entry<Integer, Outstanding>> it = m_outstanding.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<Integer, Outstanding> entry = it.next();
+            Outstanding outstanding = entry.getValue();
+            if (!unknown.contains(entry.getKey()))
+            {
+                it.remove();
+            }
+            else if (outstanding.m_timeSent >= 0 && p_now - outstanding.m_timeSent >= p_timeoutMs)
+            {
+                if (outstanding.m_numRetries >= p_maxRetries)
+                {
+                    return null;
+                }
+                outstanding.m_numRetries++;
+                outstanding.m_timeSent = -1;
+                send.add(entry.getKey());
+                m_numRetries++;
+            }
+        }
+
+        int window = Math.max(1, p_window);
+        for (int i=0; i<p_unknown.size() && m_outstanding.size() < window; ++i)
+        {
+            Integer key = p_unknown.get(i);
+            if (!m_outstanding.containsKey(key))
+            {
+                m_outstanding.put(key, new Outstanding());
+                send.add(key);
+            }
+        }
+
+        m_numRequests += send.size();
+        return send;
+    }
+
+    /**
+     * Start the timeout of a request once it has gone out, or failed to
+     *
+     * @param p_key
+     * @param p_now the time in milliseconds
+     */
+    public synchronized void markSent(int p_key, long p_now)
+    {
+        Outstanding outstanding = m_outstanding.get(p_key);
+        if (outstanding != null && outstanding.m_timeSent < 0)
+        {
+            outstanding.m_timeSent = p_now;
+        }
+    }
+
+    /**
+     * @param p_timeoutMs
+     * @return when the oldest sent request times out, or -1 if nothing
+     *         has been sent
+     */
+    public synchronized long getNextTimeout(long p_timeoutMs)
+    {
+        long next = -1;
+        for (Outstanding outstanding : m_outstanding.values())
+        {
+            if (outstanding.m_timeSent < 0)
+            {
+                continue;
+            }
+            long timeout = outstanding.m_timeSent + p_timeoutMs;
+            if (next < 0 || timeout < next)
+            {
+                next = timeout;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return the number of requests outstanding
+     */
+    public synchronized int getNumOutstanding()
+    {
+        return m_outstanding.size();
+    }
+
+    /**
+     * @return the number of requests sent, including retries
+     */
+    public synchronized int getNumRequests()
+    {
+        return m_numRequests;
+    }
+
+    /**
+     * @return the number of requests that had to be resent
+     */
+    public synchronized int getNumRetries()
+    {
+        return m_numRetries;
+    }
+
+    /**
+     * @param p_now the time in milliseconds
+     * @return milliseconds since discovery started
+     */
+    public long getElapsedMs(long p_now)
+    {
+        return p_now - m_timeStarted;
+    }
+}
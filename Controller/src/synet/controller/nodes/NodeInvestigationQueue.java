@@ -0,0 +1,168 @@
+package synet.controller.nodes;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.joda.time.DateTime;
+
+/**
+ * Nodes being investigated, soonest next investigation first.
+ *
+ * A node's investigation time is only changed through schedule so the
+ * queue stays ordered. Only the head of the queue can be due, so the node
+ * manager thread can sleep until the head's time instead of waking up on
+ * an interval. Callers that need several calls to happen together hold
+ * the queue's lock.
+ *
+ * @author mkurdziel
+ */
+public class NodeInvestigationQueue
+{
+    private final PriorityQueue<NodeBase> m_queue = new PriorityQueue<NodeBase>(16,
+            new Comparator<NodeBase>()
+            {
+                @Override
+                public int compare(NodeBase p_lhs, NodeBase p_rhs)
+                {
+                    return p_lhs.getTimeNextInvestigation().compareTo(p_rhs.getTimeNextInvestigation());
+                }
+            });
+
+    /**
+     * Add a node, due right away
+     *
+     * @param p_node
+     * @param p_now
+     * @return false if the node was already queued
+     */
+    public synchronized boolean add(NodeBase p_node, long p_now)
+    {
+        if (m_queue.contains(p_node))
+        {
+            return false;
+        }
+        p_node.setTimeNextInvestigation(new DateTime(p_now));
+        m_queue.add(p_node);
+        return true;
+    }
+
+    /**
+     * @param p_node
+     * @return false if the node wasn't queued
+     */
+    public synchronized boolean remove(NodeBase p_node)
+    {
+        return m_queue.remove(p_node);
+    }
+
+    /**
+     * @param p_node
+     * @return true if the node is queued
+     */
+    public synchronized boolean contains(NodeBase p_node)
+    {
+        return m_queue.contains(p_node);
+    }
+
+    /**
+     * @return the number of nodes queued
+     */
+    public synchronized int size()
+    {
+        return m_queue.size();
+    }
+
+    /**
+     * Move a node's next investigation, keeping the queue in order
+     *
+     * @param p_node
+     * @param p_time in milliseconds
+     * @return true if the node is now the next one due
+     */
+    public synchronized boolean schedule(NodeBase p_node, long p_time)
+    {
+        boolean isQueued = m_queue.remove(p_node);
+        p_node.setTimeNextInvestigation(new DateTime(p_time));
+        if (isQueued)
+        {
+            m_queue.add(p_node);
+            return m_queue.peek() == p_node;
+        }
+        return false;
+    }
+
+    /**
+     * Schedule a node's next attempt once the timeout has passed. The
+     * timeout counts from now, since a time that was due long ago would
+     * still be due and keep the node at the head of the queue.
+     *
+     * @param p_node
+     * @param p_now
+     * @param p_timeoutMs
+     */
+    public synchronized void scheduleRetry(NodeBase p_node, long p_now, long p_timeoutMs)
+    {
+        schedule(p_node, p_now + p_timeoutMs);
+    }
+
+    /**
+     * Schedule a node with requests out for when the oldest one times out.
+     * A timeout already passed counts as a full timeout from now.
+     *
+     * @param p_node
+     * @param p_nextTimeout when the oldest request times out
+     * @param p_now
+     * @param p_timeoutMs
+     */
+    public synchronized void scheduleTimeout(NodeBase p_node, long p_nextTimeout, long p_now, long p_timeoutMs)
+    {
+        if (p_nextTimeout <= p_now)
+        {
+            p_nextTimeout = p_now + p_timeoutMs;
+        }
+        schedule(p_node, p_nextTimeout);
+    }
+
+    /**
+     * @param p_now
+     * @return the node at the head of the queue if it's due, or null
+     */
+    public synchronized NodeBase getDue(long p_now)
+    {
+        NodeBase node = m_queue.peek();
+        if (node != null && node.getTimeNextInvestigation().getMillis() <= p_now)
+        {
+            return node;
+        }
+        return null;
+    }
+
+    /**
+     * @return when the next node is due in milliseconds, or Long.MAX_VALUE
+     *         if nothing is queued
+     */
+    public synchronized long getDeadline()
+    {
+        NodeBase node = m_queue.peek();
+        if (node == null)
+        {
+            return Long.MAX_VALUE;
+        }
+        return node.getTimeNextInvestigation().getMillis();
+    }
+
+    /**
+     * @param p_now
+     * @return milliseconds until the next node is due, 0 if one is due now
+     *         or -1 if nothing is queued
+     */
+    public synchronized long getWaitMs(long p_now)
+    {
+        long deadline = getDeadline();
+        if (deadline == Long.MAX_VALUE)
+        {
+            return -1;
+        }
+        return Math.max(0, deadline - p_now);
+    }
+}
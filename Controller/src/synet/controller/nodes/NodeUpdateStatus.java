@@ -1,14 +1,51 @@
 package synet.controller.nodes;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 import org.joda.time.DateTime;
 
 /**
  * Class to hold the update information for the update process for a node
  * 
+ * With a window of 1 pages go out one at a time, each after the node
+ * acknowledges the last. With a larger window up to a window of pages are
+ * in flight at once, and the timeout follows the measured round trip
+ * times.
+ * 
+ * The bootloader writes pages strictly in address order. It acks each page
+ * it takes and answers a page it isn't expecting with an error, so once a
+ * page is lost every page after it is turned away too. Recovery is go-back-N:
+ * an ack also covers every page before it, and when the oldest page
+ * times out or the node reports an error, that page and every page after
+ * it are sent again. The node sends an error for each page it turns away,
+ * so once the window has gone back, further errors are ignored until the
+ * resent pages have had a timeout to get through.
+ * 
  * @author mkurdziel
  */
 public class NodeUpdateStatus
 {
+    public static final int C_MIN_TIMEOUT_MS = 100;
+    public static final int C_MAX_TIMEOUT_MS = 1000 * 5;
+
+    /**
+     * A page waiting on its acknowledgement
+     */
+    private static class Page
+    {
+        private long m_timeSent;
+        private boolean m_isResent = false;
+
+        private Page(long p_timeSent)
+        {
+            m_timeSent = p_timeSent;
+        }
+    }
+
     /**
      * Enumeration for the progress of this status
      */
@@ -26,6 +63,22 @@ public class NodeUpdateStatus
     private BootloadStatusEnum m_statusEnum = BootloadStatusEnum.UNKNOWN;
     private DateTime m_timeNextInvestigation = null;
     private int m_numInvestigationRetries = 0;
+
+    // Pipelined update state
+    private final int m_pageSize;
+    private final int m_numPages;
+    private int m_window = 1;
+    private final TreeMap<Integer, Page> m_inFlight = new TreeMap<Integer, Page>();
+    private final BitSet m_acked = new BitSet();
+    private int m_numAcked = 0;
+    private int m_numPagesSent = 0;
+    private int m_numPagesResent = 0;
+    private long m_srttMs = -1;
+    private long m_rttvarMs = 0;
+    private long m_timeoutMs = C_MAX_TIMEOUT_MS;
+    private long m_timeStarted = 0;
+    private long m_timeFinished = 0;
+    private boolean m_isCompleteSent = false;
     
     /**
      * @param p_node 
@@ -35,6 +88,35 @@ public class NodeUpdateStatus
     {
         m_dataFile = p_dataFile;
         m_node = p_node;
+        m_pageSize = Math.max(1, p_node.getCodeUpdatePageSize());
+        m_numPages = p_dataFile.getMaxAddress() / m_pageSize + 1;
+    }
+
+    /**
+     * Set how many pages can be in flight at once. 1 sends a page at a
+     * time and waits for the node to ask for the next one.
+     * 
+     * @param p_window
+     */
+    public void setWindow(int p_window)
+    {
+        m_window = Math.max(1, p_window);
+    }
+
+    /**
+     * @return how many pages can be in flight at once
+     */
+    public int getWindow()
+    {
+        return m_window;
+    }
+
+    /**
+     * @return true if more than one page can be in flight at once
+     */
+    public boolean isPipelined()
+    {
+        return m_window > 1;
     }
     
     /**
@@ -117,18 +199,321 @@ public class NodeUpdateStatus
      * 
      * @param p_memoryAddress
      */
-    public void markAsSent(int p_memoryAddress)
+    public synchronized void markAsSent(int p_memoryAddress)
     {
        m_nextAddress = p_memoryAddress + m_node.getCodeUpdatePageSize(); 
+       if (isComplete() && m_timeFinished == 0)
+       {
+           m_timeFinished = System.currentTimeMillis();
+       }
+    }
+
+    /**
+     * Mark the start of the data transfer, for the throughput
+     * 
+     * @param p_now the time in milliseconds
+     */
+    public synchronized void markStarted(long p_now)
+    {
+        if (m_timeStarted == 0)
+        {
+            m_timeStarted = p_now;
+        }
+    }
+
+    /**
+     * @param p_memoryAddress
+     * @return true if the node acknowledged the page at this address
+     */
+    public synchronized boolean isPageAcked(int p_memoryAddress)
+    {
+        if (!isPipelined())
+        {
+            return p_memoryAddress < m_nextAddress;
+        }
+        return m_acked.get(p_memoryAddress / m_pageSize);
     }
     
     /**
-     * @return true if everything is marked as sent
+     * @return true if everything is marked as sent, or acknowledged when
+     *         pipelined
      */
-    public boolean isComplete()
+    public synchronized boolean isComplete()
     {
+        if (isPipelined())
+        {
+            return m_numAcked == m_numPages;
+        }
         return m_nextAddress > m_dataFile.getMaxAddress();
     }
+
+    /**
+     * Mark the data complete message as sent
+     * 
+     * @return true the first time, false if it was already sent
+     */
+    public synchronized boolean markCompleteSent()
+    {
+        boolean isFirst = !m_isCompleteSent;
+        m_isCompleteSent = true;
+        return isFirst;
+    }
+
+    /**
+     * Go back to the oldest page in flight when pipelined, for a node that
+     * reported an error. The error doesn't carry an address, but the node
+     * works through the pages in order, so the oldest one failed and the
+     * node turned away the rest.
+     * 
+     * @param p_now the time in milliseconds
+     * @return the addresses of the pages to resend, in order. Empty if
+     *         nothing is in flight, or the window already went back within
+     *         the timeout.
+     */
+    public synchronized List<Integer> goBack(long p_now)
+    {
+        List<Integer> send = new ArrayList<Integer>();
+        if (m_inFlight.isEmpty())
+        {
+            return send;
+        }
+
+        // The errors for the rest of the window are on their way already
+        Page first = m_inFlight.firstEntry().getValue();
+        if (first.m_isResent && p_now - first.m_timeSent < m_timeoutMs)
+        {
+            return send;
+        }
+
+        resendFrom(m_inFlight.firstKey(), p_now, send);
+        m_numPagesSent += send.size();
+        return send;
+    }
+
+    /**
+     * Work out which pages to send now when pipelined. The first page that
+     * timed out is resent along with every page after it, and the window
+     * is topped up with new pages in order.
+     * 
+     * @param p_now the time in milliseconds
+     * @return the addresses of the pages to send
+     */
+    public synchronized List<Integer> getPagesToSend(long p_now)
+    {
+        List<Integer> send = new ArrayList<Integer>();
+        markStarted(p_now);
+
+        for (Map.Entry<Integer, Page> entry : m_inFlight.entrySet())
+        {
+            if (p_now - entry.getValue().m_timeSent >= m_timeoutMs)
+            {
+                resendFrom(entry.getKey(), p_now, send);
+
+                // Back off once per round of timeouts, not once per page
+                m_timeoutMs = Math.min(C_MAX_TIMEOUT_MS, m_timeoutMs * 2);
+                break;
+            }
+        }
+
+        while (m_inFlight.size() < m_window && m_nextAddress <= m_dataFile.getMaxAddress())
+        {
+            m_inFlight.put(m_nextAddress, new Page(p_now));
+            send.add(m_nextAddress);
+            m_nextAddress += m_pageSize;
+        }
+
+        m_numPagesSent += send.size();
+        return send;
+    }
+
+    /**
+     * Mark a page and every page in flight after it as resent
+     * 
+     * @param p_memoryAddress the page to go back to
+     * @param p_now the time in milliseconds
+     * @param p_send gets the addresses to resend, in order
+     */
+    private void resendFrom(int p_memoryAddress, long p_now, List<Integer> p_send)
+    {
+        for (Map.Entry<Integer, Page> entry : m_inFlight.tailMap(p_memoryAddress, true).entrySet())
+        {
+            entry.getValue().m_timeSent = p_now;
+            entry.getValue().m_isResent = true;
+            p_send.add(entry.getKey());
+            m_numPagesResent++;
+        }
+    }
+
+    /**
+     * Mark a page as acknowledged when pipelined, along with every page
+     * before it since the node takes them in order. The round trip of a
+     * page that was only sent once goes into the timeout.
+     * 
+     * @param p_memoryAddress
+     * @param p_now the time in milliseconds
+     * @return true if the page was in flight, false for a duplicate or
+     *         unknown acknowledgement
+     */
+    public synchronized boolean ackPage(int p_memoryAddress, long p_now)
+    {
+        Page page = m_inFlight.remove(p_memoryAddress);
+        if (page == null)
+        {
+            return false;
+        }
+
+        // A resent page's ack can't be matched to a send, so don't time it
+        if (!page.m_isResent)
+        {
+            updateTimeout(p_now - page.m_timeSent);
+        }
+        markAcked(p_memoryAddress);
+
+        // Their acks were lost, but the node wouldn't have taken this
+        // page without them
+        Map<Integer, Page> before = m_inFlight.headMap(p_memoryAddress);
+        for (int address : before.keySet())
+        {
+            markAcked(address);
+        }
+        before.clear();
+
+        if (m_numAcked == m_numPages)
+        {
+            m_timeFinished = p_now;
+        }
+        return true;
+    }
+
+    private void markAcked(int p_memoryAddress)
+    {
+        m_acked.set(p_memoryAddress / m_pageSize);
+        m_numAcked++;
+    }
+
+    /**
+     * @param p_now the time in milliseconds
+     * @return when the oldest page in flight times out, or a timeout from
+     *         now if nothing is in flight
+     */
+    public synchronized long getNextTimeout(long p_now)
+    {
+        long next = -1;
+        for (Page page : m_inFlight.values())
+        {
+            long timeout = page.m_timeSent + m_timeoutMs;
+            if (next < 0 || timeout < next)
+            {
+                next = timeout;
+            }
+        }
+        return next < 0 ? p_now + m_timeoutMs : next;
+    }
+
+    /**
+     * @return the current page timeout in milliseconds
+     */
+    public synchronized long getTimeoutMs()
+    {
+        return m_timeoutMs;
+    }
+
+    /**
+     * @return the smoothed round trip time in milliseconds, or -1 if no
+     *         page has been timed yet
+     */
+    public synchronized long getRoundTripMs()
+    {
+        return m_srttMs;
+    }
+
+    /**
+     * @return the number of pages in the image
+     */
+    public int getNumPages()
+    {
+        return m_numPages;
+    }
+
+    /**
+     * @return the number of pages the node has taken
+     */
+    public synchronized int getNumPagesAcked()
+    {
+        if (isPipelined())
+        {
+            return m_numAcked;
+        }
+        return Math.min(m_numPages, m_nextAddress / m_pageSize);
+    }
+
+    /**
+     * @return the number of pages in flight
+     */
+    public synchronized int getNumPagesInFlight()
+    {
+        return m_inFlight.size();
+    }
+
+    /**
+     * @return the number of pages sent, including resends
+     */
+    public synchronized int getNumPagesSent()
+    {
+        return m_numPagesSent;
+    }
+
+    /**
+     * @return the number of pages that had to be resent
+     */
+    public synchronized int getNumPagesResent()
+    {
+        return m_numPagesResent;
+    }
+
+    /**
+     * @return how far along the update is, from 0 to 100
+     */
+    public int getProgressPercent()
+    {
+        return getNumPagesAcked() * 100 / m_numPages;
+    }
+
+    /**
+     * @param p_now the time in milliseconds
+     * @return bytes the node has taken per second since the first page
+     *         went out
+     */
+    public synchronized long getBytesPerSecond(long p_now)
+    {
+        long end = m_timeFinished > 0 ? m_timeFinished : p_now;
+        long elapsedMs = end - m_timeStarted;
+        if (m_timeStarted == 0 || elapsedMs <= 0)
+        {
+            return 0;
+        }
+        return (long)getNumPagesAcked() * m_pageSize * 1000 / elapsedMs;
+    }
+
+    /**
+     * Fold a round trip time into the timeout, the way TCP does
+     * 
+     * @param p_rttMs
+     */
+    private void updateTimeout(long p_rttMs)
+    {
+        if (m_srttMs < 0)
+        {
+            m_srttMs = p_rttMs;
+            m_rttvarMs = p_rttMs / 2;
+        }
+        else
+        {
+            m_rttvarMs = (3 * m_rttvarMs + Math.abs(m_srttMs - p_rttMs)) / 4;
+            m_srttMs = (7 * m_srttMs + p_rttMs) / 8;
+        }
+        m_timeoutMs = Math.max(C_MIN_TIMEOUT_MS, Math.min(C_MAX_TIMEOUT_MS, m_srttMs + 4 * m_rttvarMs));
+    }
     
     /**
      * @param p_address
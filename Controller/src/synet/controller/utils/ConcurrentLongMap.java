@@ -0,0 +1,321 @@
+package synet.controller.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map from primitive long keys to values, built for lots of reads and
+ * few writes.
+ *
+ * Keys are spread over a fixed number of stripes. Each stripe holds an
+ * immutable open addressed hash table behind a volatile reference. Reads
+ * probe the current table and never lock or box the key. Writes lock only
+ * their own stripe, copy its table with the change and swap it in, so
+ * readers always see a whole table. Iteration works on a snapshot of the
+ * tables and never sees a half done write.
+ *
+ * @author mkurdziel
+ *
+ */
+public class ConcurrentLongMap<V>
+{
+    private static final int C_DEFAULT_STRIPES = 16;
+
+    /**
+     * Immutable hash table with linear probing. A null value marks an
+     * empty slot and the table is never more than half full.
+     */
+    private static class Table
+    {
+        private static final Table EMPTY = new Table(1);
+
+        private final long[] m_keys;
+        private final Object[] m_values;
+        private int m_size = 0;
+
+        private Table(int p_capacity)
+        {
+            m_keys = new long[p_capacity];
+            m_values = new Object[p_capacity];
+        }
+
+        private Table(Table p_table)
+        {
+            m_keys = p_table.m_keys;
+            m_values = p_table.m_values.clone();
+            m_size = p_table.m_size;
+        }
+
+        /**
+         * @return the slot holding the key, or the empty slot it would go in
+         */
+        private int find(long p_key)
+        {
+            int mask = m_keys.length - 1;
+            int slot = getSlotHash(p_key) & mask;
+            while (m_values[slot] != null && m_keys[slot] != p_key)
+            {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Copy every entry except one into a table sized for the given count
+         */
+        private Table copy(int p_size, boolean p_hasSkip, long p_skipKey)
+        {
+            int capacity = 1;
+            while (capacity < p_size * 2)
+            {
+                capacity <<= 1;
+            }
+
+            Table table = new Table(capacity);
+            for (int i=0; i<m_keys.length; ++i)
+            {
+                if (m_values[i] != null && !(p_hasSkip && m_keys[i] == p_skipKey))
+                {
+                    table.insert(m_keys[i], m_values[i]);
+                }
+            }
+            return table;
+        }
+
+        /**
+         * Only used while building a table that no reader can see yet
+         */
+        private void insert(long p_key, Object p_value)
+        {
+            int slot = find(p_key);
+            m_keys[slot] = p_key;
+            m_values[slot] = p_value;
+            m_size++;
+        }
+    }
+
+    /**
+     * One stripe of the map, written under its own lock
+     */
+    private static class Stripe
+    {
+        private volatile Table m_table = Table.EMPTY;
+    }
+
+    private final Stripe[] m_stripes;
+    private final int m_stripeMask;
+
+    /**
+     * Create a map with the default number of stripes
+     */
+    public ConcurrentLongMap()
+    {
+        this(C_DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param p_numStripes rounded up to a power of two
+     */
+    public ConcurrentLongMap(int p_numStripes)
+    {
+        int numStripes = 1;
+        while (numStripes < p_numStripes)
+        {
+            numStripes <<= 1;
+        }
+
+        m_stripes = new Stripe[numStripes];
+        for (int i=0; i<numStripes; ++i)
+        {
+            m_stripes[i] = new Stripe();
+        }
+        m_stripeMask = numStripes - 1;
+    }
+
+    /**
+     * @param p_key
+     * @return the stripe the key belongs to
+     */
+    private Stripe getStripe(long p_key)
+    {
+        // Node IDs are 64 bit addresses that often only differ in the low
+        // bytes, so mix every bit in before picking a stripe
+        long hash = p_key * 0x9E3779B97F4A7C15L;
+        return m_stripes[(int)(hash >>> 32) & m_stripeMask];
+    }
+
+    /**
+     * @param p_key
+     * @return the hash used inside a stripe, independent of the stripe bits
+     */
+    private static int getSlotHash(long p_key)
+    {
+        long hash = p_key * 0xC2B2AE3D27D4EB4FL;
+        return (int)(hash ^ (hash >>> 29));
+    }
+
+    /**
+     * @param p_key
+     * @return the value for the key, or null if there isn't one
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long p_key)
+    {
+        Table table = getStripe(p_key).m_table;
+        return (V)table.m_values[table.find(p_key)];
+    }
+
+    /**
+     * @param p_key
+     * @return true if the key is in the map
+     */
+    public boolean containsKey(long p_key)
+    {
+        return get(p_key) != null;
+    }
+
+    /**
+     * Add or replace the value for a key
+     *
+     * @param p_key
+     * @param p_value
+     * @return the value it replaced, or null
+     */
+    public V put(long p_key, V p_value)
+    {
+        return put(p_key, p_value, false);
+    }
+
+    /**
+     * Add the value only if the key isn't already in the map
+     *
+     * @param p_key
+     * @param p_value
+     * @return the value already in the map, or null if this one was added
+     */
+    public V putIfAbsent(long p_key, V p_value)
+    {
+        return put(p_key, p_value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V put(long p_key, V p_value, boolean p_onlyIfAbsent)
+    {
+        if (p_value == null)
+        {
+            throw new NullPointerException("null values are not allowed");
+        }
+
+        Stripe stripe = getStripe(p_key);
+        synchronized (stripe)
+        {
+            Table table = stripe.m_table;
+            int slot = table.find(p_key);
+            V oldValue = (V)table.m_values[slot];
+
+            if (oldValue != null)
+            {
+                if (!p_onlyIfAbsent)
+                {
+                    // Same keys, so only the values need copying
+                    Table newTable = new Table(table);
+                    newTable.m_values[slot] = p_value;
+                    stripe.m_table = newTable;
+                }
+                return oldValue;
+            }
+
+            Table newTable = table.copy(table.m_size + 1, false, 0);
+            newTable.insert(p_key, p_value);
+            stripe.m_table = newTable;
+            return null;
+        }
+    }
+
+    /**
+     * @param p_key
+     * @return the value that was removed, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long p_key)
+    {
+        Stripe stripe = getStripe(p_key);
+        synchronized (stripe)
+        {
+            Table table = stripe.m_table;
+            V oldValue = (V)table.m_values[table.find(p_key)];
+            if (oldValue == null)
+            {
+                return null;
+            }
+
+            // Rebuild without the key so no probe chain is broken
+            stripe.m_table = table.m_size == 1 ? Table.EMPTY : table.copy(table.m_size - 1, true, p_key);
+            return oldValue;
+        }
+    }
+
+    /**
+     * Remove everything
+     */
+    public void clear()
+    {
+        for (Stripe stripe : m_stripes)
+        {
+            synchronized (stripe)
+            {
+                stripe.m_table = Table.EMPTY;
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries. Only exact while nothing is writing.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Stripe stripe : m_stripes)
+        {
+            size += stripe.m_table.m_size;
+        }
+        return size;
+    }
+
+    /**
+     * @return true if there are no entries
+     */
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    /**
+     * @return a snapshot of the values that later writes don't change
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values()
+    {
+        // Grab every table first so the size matches what is copied
+        Table[] tables = new Table[m_stripes.length];
+        int size = 0;
+        for (int i=0; i<m_stripes.length; ++i)
+        {
+            tables[i] = m_stripes[i].m_table;
+            size += tables[i].m_size;
+        }
+
+        ArrayList<V> values = new ArrayList<V>(size);
+        for (Table table : tables)
+        {
+            for (Object value : table.m_values)
+            {
+                if (value != null)
+                {
+                    values.add((V)value);
+                }
+            }
+        }
+        return values;
+    }
+}
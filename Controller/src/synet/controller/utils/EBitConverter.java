@@ -1,5 +1,7 @@
 package synet.controller.utils;
 
+import java.nio.ByteBuffer;
+
 public class EBitConverter
 {
 	public static int toUInt16(int[] p_data, int p_startIndex)
@@ -62,6 +64,50 @@ public class EBitConverter
 
       return retVal;
     }
+
+	public static int toUInt8(ByteBuffer p_data, int p_index)
+	{
+		return 0xff & p_data.get(p_index);
+	}
+
+	public static int toUInt16(ByteBuffer p_data, int p_startIndex)
+	{
+		return 	(0xff & p_data.get(p_startIndex)) << 8 | 
+				(0xff & p_data.get(p_startIndex + 1)); 
+	}
+
+	public static long toUInt64(ByteBuffer p_data, int p_startIndex)
+	{
+		return p_data.getLong(p_startIndex);
+	}
+
+	public static String toString(ByteBuffer p_data, int p_startIndex)
+	{
+		StringBuilder sb = new StringBuilder();
+		int c;
+		// Stop at the end of the frame if the string is not terminated
+		while( p_startIndex < p_data.limit() && (c = toUInt8(p_data, p_startIndex++)) != 00)
+		{
+			sb.append((char)c);
+		}
+		
+		return sb.toString();
+	}
+
+    public static int loadValueGivenWidth(
+    		ByteBuffer p_data, 
+    		int p_startIndex, 
+    		int p_nValueWidthInBytes)
+    {
+    	int retVal = 0;
+
+    	for (int nByteCt = 0; nByteCt < p_nValueWidthInBytes; nByteCt++)
+    	{
+    		retVal = (retVal << 8) + toUInt8(p_data, p_startIndex + nByteCt);
+    	}
+
+      return retVal;
+    }
     
     public static byte[] longToBytes(long v) {
         byte[] writeBuffer = new byte[ 8 ];
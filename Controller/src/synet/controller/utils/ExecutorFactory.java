@@ -0,0 +1,159 @@
+package synet.controller.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors that run actions and console sessions.
+ *
+ * A per-task executor starts a new thread for every task so nothing is
+ * ever queued or rejected. On a JVM with virtual threads those threads
+ * are virtual and cost almost nothing while they block. Virtual threads
+ * are looked up by reflection so the controller still builds and runs on
+ * older JVMs, where the executor falls back to one platform thread per
+ * task.
+ *
+ * @author mkurdziel
+ *
+ */
+public class ExecutorFactory
+{
+    private static final String TAG = "ExecutorFactory";
+
+    /**
+     * How tasks are given threads
+     */
+    public enum EsnExecutorMode
+    {
+        // Bounded pool of platform threads
+        PLATFORM,
+        // One virtual thread per task
+        VIRTUAL,
+    }
+
+    // Cleared the first time virtual threads turn out to be missing
+    private static boolean s_isVirtualSupported = true;
+
+    /**
+     * Parse an executor mode from the configuration
+     *
+     * @param p_mode
+     * @return the mode, or PLATFORM if it isn't recognised
+     */
+    public static EsnExecutorMode parseMode(String p_mode)
+    {
+        try
+        {
+            return EsnExecutorMode.valueOf(p_mode.trim().toUpperCase());
+        }
+        catch (RuntimeException e)
+        {
+            Logger.w(TAG, "unknown executor mode " + p_mode + ", using " + EsnExecutorMode.PLATFORM);
+            return EsnExecutorMode.PLATFORM;
+        }
+    }
+
+    /**
+     * @return true if this JVM has virtual threads
+     */
+    public static boolean isVirtualThreadSupported()
+    {
+        return getVirtualThreadFactory("VirtualThreadCheck-") != null;
+    }
+
+    /**
+     * Create an executor that runs every task on its own thread
+     *
+     * @param p_name prefix for the thread names
+     * @return the executor
+     */
+    public static ExecutorService newPerTaskExecutor(String p_name)
+    {
+        ThreadFactory factory = getVirtualThreadFactory(p_name + "-");
+
+        if (factory != null)
+        {
+            try
+            {
+                Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService)perTask.invoke(null, factory);
+            }
+            catch (Exception e)
+            {
+                Logger.w(TAG, "could not create a virtual thread executor for " + p_name, e);
+            }
+        }
+
+        Logger.w(TAG, "virtual threads not supported, using a platform thread per task for " + p_name);
+
+        // Without virtual threads, a cached pool never queues or rejects a task
+        return Executors.newCachedThreadPool(new PlatformThreadFactory(p_name + "-"));
+    }
+
+    /**
+     * Create a fixed pool of platform threads for CPU bound work
+     *
+     * @param p_name prefix for the thread names
+     * @param p_numThreads
+     * @return the executor
+     */
+    public static ExecutorService newFixedExecutor(String p_name, int p_numThreads)
+    {
+        return Executors.newFixedThreadPool(Math.max(1, p_numThreads), new PlatformThreadFactory(p_name + "-"));
+    }
+
+    /**
+     * Build a virtual thread factory with Thread.ofVirtual().name(prefix, 0).factory()
+     *
+     * @param p_prefix
+     * @return the factory, or null if virtual threads aren't available
+     */
+    private static synchronized ThreadFactory getVirtualThreadFactory(String p_prefix)
+    {
+        if (!s_isVirtualSupported)
+        {
+            return null;
+        }
+
+        try
+        {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, p_prefix, 0L);
+
+            return (ThreadFactory)builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (Exception e)
+        {
+            s_isVirtualSupported = false;
+            return null;
+        }
+    }
+
+    /**
+     * Names platform threads with a prefix and a counter
+     */
+    private static class PlatformThreadFactory implements ThreadFactory
+    {
+        private final String m_prefix;
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        public PlatformThreadFactory(String p_prefix)
+        {
+            m_prefix = p_prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable p_runnable)
+        {
+            Thread thread = new Thread(p_runnable, m_prefix + m_count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package synet.controller.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in power of two buckets of microseconds.
+ *
+ * Bucket 0 holds everything under 1 us and bucket n holds [2^(n-1), 2^n)
+ * us, so percentiles come back as the upper edge of their bucket and are
+ * at most a factor of two high. Recording takes no lock, so it's cheap to
+ * do from the hot path while other threads read.
+ *
+ * @author mkurdziel
+ *
+ */
+public class LatencyHistogram
+{
+    private static final int C_NUM_BUCKETS = 40;
+
+    private final AtomicLongArray m_buckets = new AtomicLongArray(C_NUM_BUCKETS);
+    private final AtomicLong m_count = new AtomicLong();
+    private final AtomicLong m_totalNanos = new AtomicLong();
+    private final AtomicLong m_maxNanos = new AtomicLong();
+
+    /**
+     * Record one latency
+     *
+     * @param p_nanos
+     */
+    public void record(long p_nanos)
+    {
+        long nanos = Math.max(0, p_nanos);
+        long micros = nanos / 1000;
+        int bucket = Math.min(C_NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        m_buckets.incrementAndGet(bucket);
+        m_count.incrementAndGet();
+        m_totalNanos.addAndGet(nanos);
+
+        long max;
+        while (nanos > (max = m_maxNanos.get()) && !m_maxNanos.compareAndSet(max, nanos))
+        {
+            // Lost the race to another recorder, try again
+        }
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    public long getCount()
+    {
+        return m_count.get();
+    }
+
+    /**
+     * @return the mean latency in microseconds, or 0 if nothing was recorded
+     */
+    public long getMeanMicros()
+    {
+        long count = m_count.get();
+        return count == 0 ? 0 : m_totalNanos.get() / count / 1000;
+    }
+
+    /**
+     * @return the largest latency in microseconds
+     */
+    public long getMaxMicros()
+    {
+        return m_maxNanos.get() / 1000;
+    }
+
+    /**
+     * @param p_percentile between 0 and 100
+     * @return the upper edge of the bucket the percentile falls in, in
+     *         microseconds, or 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double p_percentile)
+    {
+        long count = m_count.get();
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long rank = (long)Math.ceil(count * p_percentile / 100.0);
+        long seen = 0;
+        for (int i=0; i<C_NUM_BUCKETS; ++i)
+        {
+            seen += m_buckets.get(i);
+            if (seen >= Math.max(1, rank))
+            {
+                // Never report past the largest latency actually seen
+                return Math.min(1L << i, Math.max(1, getMaxMicros()));
+            }
+        }
+        return getMaxMicros();
+    }
+
+    /**
+     * @return a short description of the histogram
+     */
+    public String getDescription()
+    {
+        return String.format("count: %d mean: %d us p50: %d us p99: %d us max: %d us",
+                getCount(), getMeanMicros(), getPercentileMicros(50),
+                getPercentileMicros(99), getMaxMicros());
+    }
+}
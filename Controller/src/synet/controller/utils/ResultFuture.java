@@ -0,0 +1,272 @@
+package synet.controller.utils;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A result that is filled in later by whoever finishes the work.
+ *
+ * The first call to complete() or fail() wins and every later one is
+ * ignored. Listeners run once the result is in, on the thread that
+ * finished it, or right away if it is already done. They should be
+ * quick since that thread is usually a dispatcher or adapter thread.
+ *
+ * @author mkurdziel
+ *
+ */
+public class ResultFuture<T> implements Future<T>
+{
+    private static final String TAG = "ResultFuture";
+
+    /**
+     * Listener for a finished result
+     */
+    public interface ResultListener<T>
+    {
+        /**
+         * @param p_future the finished result
+         */
+        void onResult(ResultFuture<T> p_future);
+    }
+
+    private final Object m_lockObject = new Object();
+    private boolean m_isDone = false;
+    private boolean m_isCancelled = false;
+    private T m_value = null;
+    private String m_errorMsg = null;
+    private ArrayList<ResultListener<T>> m_listeners = new ArrayList<ResultListener<T>>(2);
+
+    /**
+     * Finish successfully
+     *
+     * @param p_value
+     * @return true if this call finished the result
+     */
+    public boolean complete(T p_value)
+    {
+        return finish(p_value, null, false);
+    }
+
+    /**
+     * Finish with an error
+     *
+     * @param p_errorMsg
+     * @return true if this call finished the result
+     */
+    public boolean fail(String p_errorMsg)
+    {
+        return finish(null, p_errorMsg == null ? "" : p_errorMsg, false);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#cancel(boolean)
+     */
+    @Override
+    public boolean cancel(boolean p_mayInterruptIfRunning)
+    {
+        return finish(null, "cancelled", true);
+    }
+
+    /**
+     * Add a listener for when the result is in
+     *
+     * @param p_listener
+     */
+    public void addListener(ResultListener<T> p_listener)
+    {
+        synchronized (m_lockObject)
+        {
+            if (!m_isDone)
+            {
+                m_listeners.add(p_listener);
+                return;
+            }
+        }
+        notifyListener(p_listener);
+    }
+
+    /**
+     * Store the result, wake up waiters and run the listeners
+     */
+    private boolean finish(T p_value, String p_errorMsg, boolean p_isCancelled)
+    {
+        ArrayList<ResultListener<T>> listeners;
+
+        synchronized (m_lockObject)
+        {
+            if (m_isDone)
+            {
+                return false;
+            }
+            m_value = p_value;
+            m_errorMsg = p_errorMsg;
+            m_isCancelled = p_isCancelled;
+            m_isDone = true;
+            m_lockObject.notifyAll();
+
+            listeners = m_listeners;
+            m_listeners = null;
+        }
+
+        for (ResultListener<T> listener : listeners)
+        {
+            notifyListener(listener);
+        }
+        return true;
+    }
+
+    /**
+     * Run a listener without letting it break the caller
+     */
+    private void notifyListener(ResultListener<T> p_listener)
+    {
+        try
+        {
+            p_listener.onResult(this);
+        }
+        catch (RuntimeException e)
+        {
+            Logger.e(TAG, "result listener failed", e);
+        }
+    }
+
+    /**
+     * Wait for the result
+     *
+     * @param p_milliseconds
+     * @return true if the result is in
+     */
+    public boolean await(long p_milliseconds)
+    {
+        long deadline = System.currentTimeMillis() + p_milliseconds;
+
+        synchronized (m_lockObject)
+        {
+            long remaining = p_milliseconds;
+            while (!m_isDone && remaining > 0)
+            {
+                try
+                {
+                    m_lockObject.wait(remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return m_isDone;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get()
+     */
+    @Override
+    public T get() throws InterruptedException, ExecutionException
+    {
+        synchronized (m_lockObject)
+        {
+            while (!m_isDone)
+            {
+                m_lockObject.wait();
+            }
+        }
+        return getOrThrow();
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#get(long, java.util.concurrent.TimeUnit)
+     */
+    @Override
+    public T get(long p_timeout, TimeUnit p_unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long deadline = System.currentTimeMillis() + p_unit.toMillis(p_timeout);
+
+        synchronized (m_lockObject)
+        {
+            long remaining = p_unit.toMillis(p_timeout);
+            while (!m_isDone)
+            {
+                if (remaining <= 0)
+                {
+                    throw new TimeoutException();
+                }
+                m_lockObject.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        return getOrThrow();
+    }
+
+    private T getOrThrow() throws ExecutionException
+    {
+        if (m_errorMsg != null)
+        {
+            throw new ExecutionException(m_errorMsg, null);
+        }
+        return m_value;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isDone()
+     */
+    @Override
+    public boolean isDone()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_isDone;
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.concurrent.Future#isCancelled()
+     */
+    @Override
+    public boolean isCancelled()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_isCancelled;
+        }
+    }
+
+    /**
+     * @return true if the result is in and has no error
+     */
+    public boolean isSuccess()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_isDone && m_errorMsg == null;
+        }
+    }
+
+    /**
+     * @return the value without waiting, or null if not done or failed
+     */
+    public T getValue()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_value;
+        }
+    }
+
+    /**
+     * @return the error message, or null if not done or successful
+     */
+    public String getErrorMsg()
+    {
+        synchronized (m_lockObject)
+        {
+            return m_errorMsg;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package synet.controller.utils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel for cheap timeouts.
+ *
+ * Time is cut into ticks and each timeout hashes into the slot for the tick
+ * it expires on. Scheduling and cancelling are O(1). Advancing the wheel
+ * only looks at the slots for the ticks that went by, so a large number of
+ * pending timeouts costs nothing until they come due. Cancelled timeouts
+ * are dropped from their slot the next time it is visited.
+ *
+ * @author mkurdziel
+ *
+ */
+public class TimingWheel<T>
+{
+    /**
+     * A scheduled timeout
+     */
+    public static class Timeout<T>
+    {
+        private final T m_item;
+        private final long m_deadlineTick;
+        private boolean m_isCancelled = false;
+
+        private Timeout(T p_item, long p_deadlineTick)
+        {
+            m_item = p_item;
+            m_deadlineTick = p_deadlineTick;
+        }
+
+        /**
+         * @return the item that times out
+         */
+        public T getItem()
+        {
+            return m_item;
+        }
+    }
+
+    private final long m_tickMs;
+    private final int m_mask;
+    private final List<LinkedList<Timeout<T>>> m_slots;
+
+    // The last tick the wheel has been advanced through
+    private long m_lastTick = -1;
+    private int m_size = 0;
+
+    /**
+     * @param p_tickMs length of a tick in milliseconds
+     * @param p_numSlots number of slots, rounded up to a power of two
+     */
+    public TimingWheel(long p_tickMs, int p_numSlots)
+    {
+        int numSlots = 1;
+        while (numSlots < p_numSlots)
+        {
+            numSlots <<= 1;
+        }
+
+        m_tickMs = p_tickMs;
+        m_mask = numSlots - 1;
+        m_slots = new ArrayList<LinkedList<Timeout<T>>>(numSlots);
+        for (int i=0; i<numSlots; ++i)
+        {
+            m_slots.add(new LinkedList<Timeout<T>>());
+        }
+    }
+
+    /**
+     * Schedule an item to time out
+     *
+     * @param p_item
+     * @param p_delayMs
+     * @param p_nowMs current time in milliseconds
+     * @return the timeout, which can be cancelled
+     */
+    public synchronized Timeout<T> schedule(T p_item, long p_delayMs, long p_nowMs)
+    {
+        if (m_lastTick < 0)
+        {
+            m_lastTick = p_nowMs / m_tickMs;
+        }
+
+        // Round up so an item never expires early
+        long deadlineTick = (p_nowMs + p_delayMs + m_tickMs - 1) / m_tickMs;
+        if (deadlineTick <= m_lastTick)
+        {
+            deadlineTick = m_lastTick + 1;
+        }
+
+        Timeout<T> timeout = new Timeout<T>(p_item, deadlineTick);
+        m_slots.get((int)(deadlineTick & m_mask)).add(timeout);
+        m_size++;
+
+        return timeout;
+    }
+
+    /**
+     * Cancel a timeout
+     *
+     * @param p_timeout
+     * @return true if the timeout was pending and is now cancelled
+     */
+    public synchronized boolean cancel(Timeout<T> p_timeout)
+    {
+        if (p_timeout.m_isCancelled || p_timeout.m_deadlineTick <= m_lastTick)
+        {
+            return false;
+        }
+        p_timeout.m_isCancelled = true;
+        m_size--;
+        return true;
+    }
+
+    /**
+     * Advance the wheel to the current time
+     *
+     * @param p_nowMs current time in milliseconds
+     * @return the items that timed out
+     */
+    public synchronized List<T> advance(long p_nowMs)
+    {
+        List<T> expired = new ArrayList<T>();
+        long nowTick = p_nowMs / m_tickMs;
+
+        if (m_lastTick < 0)
+        {
+            m_lastTick = nowTick;
+            return expired;
+        }
+
+        // Visit each slot at most once, even if we fell a full turn behind
+        long numTicks = Math.min(nowTick - m_lastTick, m_mask + 1);
+
+        for (long tick = nowTick - numTicks + 1; tick <= nowTick; ++tick)
+        {
+            Iterator<Timeout<T>> it = m_slots.get((int)(tick & m_mask)).iterator();
+            while (it.hasNext())
+            {
+                Timeout<T> timeout = it.next();
+
+                if (timeout.m_isCancelled)
+                {
+                    it.remove();
+                }
+                else if (timeout.m_deadlineTick <= nowTick)
+                {
+                    it.remove();
+                    m_size--;
+                    expired.add(timeout.m_item);
+                }
+            }
+        }
+
+        if (nowTick > m_lastTick)
+        {
+            m_lastTick = nowTick;
+        }
+        return expired;
+    }
+
+    /**
+     * @return the number of pending timeouts
+     */
+    public synchronized int size()
+    {
+        return m_size;
+    }
+
+    /**
+     * @return the length of a tick in milliseconds
+     */
+    public long getTickMs()
+    {
+        return m_tickMs;
+    }
+}
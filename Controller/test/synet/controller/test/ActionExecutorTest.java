@@ -0,0 +1,161 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.NodeManager;
+import synet.controller.Protocol.EsnDataTypes;
+import synet.controller.actions.ActionBase;
+import synet.controller.actions.ActionManager;
+import synet.controller.actions.ActionRequest;
+import synet.controller.actions.ActionRequest.EsnActionRequestStatus;
+import synet.controller.actions.IParameter;
+import synet.controller.messaging.MsgDispatcher;
+import synet.controller.utils.ExecutorFactory.EsnExecutorMode;
+
+/**
+ * Holds actions blocked in each executor mode and checks which requests
+ * are turned away.
+ *
+ * @author mkurdziel
+ *
+ */
+public class ActionExecutorTest extends TestCase
+{
+    // Pool threads plus queue slots in platform mode
+    private static final int C_POOL_CAPACITY = 30;
+    private static final int C_NUM_EXTRA = 5;
+    private static final long C_TIMEOUT_MS = 10000;
+
+    /**
+     * Once the pool and its queue are full, a request fails right away
+     * instead of waiting on an action that will never run
+     */
+    @Test
+    public void testPlatformRejects()
+    {
+        ActionManager am = ActionManager.getInstance();
+        am.setExecutorMode(EsnExecutorMode.PLATFORM);
+        long rejectedBefore = am.getNumRejected();
+
+        CountDownLatch release = new CountDownLatch(1);
+        List<ActionRequest> requests = executeBlocked(am, C_POOL_CAPACITY + C_NUM_EXTRA, release);
+
+        for (int i=0; i<requests.size(); ++i)
+        {
+            // Only the extra requests are done while everything is blocked
+            assertEquals(i >= C_POOL_CAPACITY, requests.get(i).getFuture().isDone());
+        }
+        assertEquals(EsnActionRequestStatus.ERROR, requests.get(C_POOL_CAPACITY).getStatus());
+        assertEquals(C_NUM_EXTRA, am.getNumRejected() - rejectedBefore);
+
+        release.countDown();
+        assertEquals(C_POOL_CAPACITY, countExecuted(requests));
+        am.stop();
+    }
+
+    /**
+     * One thread per task takes the same burst with nothing turned away
+     */
+    @Test
+    public void testVirtualAcceptsAll()
+    {
+        ActionManager am = ActionManager.getInstance();
+        am.setExecutorMode(EsnExecutorMode.VIRTUAL);
+        long rejectedBefore = am.getNumRejected();
+
+        CountDownLatch release = new CountDownLatch(1);
+        List<ActionRequest> requests = executeBlocked(am, C_POOL_CAPACITY + C_NUM_EXTRA, release);
+
+        for (ActionRequest request : requests)
+        {
+            assertFalse(request.getFuture().isDone());
+        }
+        assertEquals(0, am.getNumRejected() - rejectedBefore);
+
+        release.countDown();
+        assertEquals(requests.size(), countExecuted(requests));
+        am.stop();
+    }
+
+    /**
+     * Execute actions that block until released
+     */
+    private List<ActionRequest> executeBlocked(ActionManager p_am, int p_numActions, CountDownLatch p_release)
+    {
+        List<ActionRequest> requests = new ArrayList<ActionRequest>(p_numActions);
+        for (int i=0; i<p_numActions; ++i)
+        {
+            // Separate actions since one action only executes once at a time
+            requests.add(p_am.executeAction(new LatchedAction((short)(i + 1), p_release), C_TIMEOUT_MS));
+        }
+        return requests;
+    }
+
+    /**
+     * Wait for every request and count the ones that executed
+     */
+    private int countExecuted(List<ActionRequest> p_requests)
+    {
+        int numExecuted = 0;
+        for (ActionRequest request : p_requests)
+        {
+            request.getFuture().await(C_TIMEOUT_MS);
+            if (request.getStatus() == EsnActionRequestStatus.EXECUTED)
+            {
+                numExecuted++;
+            }
+        }
+        return numExecuted;
+    }
+
+    /**
+     * Action whose execute blocks until the test lets it go
+     */
+    private static class LatchedAction extends ActionBase
+    {
+        private final CountDownLatch m_release;
+
+        public LatchedAction(short p_actionId, CountDownLatch p_release)
+        {
+            super(p_actionId, EsnDataTypes.VOID);
+            m_release = p_release;
+        }
+
+        @Override
+        public boolean execute(NodeManager p_nodeManager,
+                ActionManager p_actionManager, MsgDispatcher p_msgDispatcher,
+                long p_timeoutMilliseconds)
+        {
+            try
+            {
+                m_release.await();
+            }
+            catch (InterruptedException e)
+            {
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String getActionType()
+        {
+            return "Latched";
+        }
+
+        @Override
+        public void addParameter(IParameter p_parameter)
+        {
+            // No parameters
+        }
+    }
+}
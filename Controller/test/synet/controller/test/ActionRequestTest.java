@@ -0,0 +1,677 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+import nu.xom.Builder;
+import nu.xom.Document;
+import nu.xom.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import synet.controller.NodeManager;
+import synet.controller.Protocol.EsnDataTypes;
+import synet.controller.Protocol.EsnParamValidationTypes;
+import synet.controller.actions.ActionManager;
+import synet.controller.actions.IAction;
+import synet.controller.actions.NodeAction;
+import synet.controller.actions.NodeParameter;
+import synet.controller.actions.SequenceAction;
+import synet.controller.configuration.Configuration;
+import synet.controller.configuration.XMLConfiguration;
+import synet.controller.messaging.ActionRequestServer;
+import synet.controller.messaging.MsgAdapterNet;
+import synet.controller.messaging.MsgDispatcher;
+import synet.controller.messaging.ResponseCache;
+import synet.controller.nodes.NodeZigbee;
+import synet.controller.utils.ResultFuture;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class ActionRequestTest extends TestCase
+{
+    private static final long C_NODE_ID = 0x0013A20040A0B0C0L;
+    private static final long C_SEQUENCE_NODE_ID = 0x0013A20040A0B0C1L;
+    private static final long C_TIMEOUT_MS = 10000;
+    private static final int C_NUM_BURST = 100;
+    private static final int C_MAX_REQUESTS = 4;
+
+    /**
+     * Two requests for the same action at once each get back the value
+     * they sent, not the other one's
+     */
+    @Test
+    public void testConcurrentRequests() throws Exception
+    {
+        File dir = File.createTempFile("requests", "");
+        dir.delete();
+        dir.mkdir();
+
+        ActionManager am = ActionManager.getInstance();
+        am.setMsgDispatcher(MsgDispatcher.getInstance());
+        am.setNodeManager(NodeManager.getInstance());
+        NodeManager.getInstance().addNodeIfAbsent(C_NODE_ID, new NodeZigbee(C_NODE_ID, 0));
+
+        EchoAction action = new EchoAction(C_NODE_ID);
+        am.addNodeAction(action);
+        NodeParameter param = am.addNodeParameter(action, 1, 1, C_NODE_ID, "value",
+                EsnDataTypes.WORD, EsnParamValidationTypes.UNSIGNED_FULL, 0, 65535, 0,
+                new HashMap<Integer, String>());
+        final String actionId = String.valueOf(action.getActionId());
+        final String paramId = String.valueOf(param.getParameterId());
+
+        Configuration config = new XMLConfiguration(new Element("config")).subset("net");
+        config.addProperty("requestMode", MsgAdapterNet.EsnRequestMode.SERVER.toString());
+        config.addProperty("requestPort", 0);
+        config.addProperty("persistSnapshot", false);
+
+        MsgAdapterNet adapter = new MsgAdapterNet(dir.getPath());
+        adapter.setConfiguration(config);
+        try
+        {
+            assertTrue(adapter.startAdapater());
+            final URL url = new URL("http", "localhost", adapter.getRequestPort(), ActionRequestServer.C_STR_PATH);
+
+            final String[] returned = new String[2];
+            Thread[] threads = new Thread[2];
+            for (int i=0; i<threads.length; ++i)
+            {
+                final int index = i;
+                threads[i] = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            returned[index] = postRequest(url, actionId, paramId, String.valueOf(index + 1));
+                        }
+                        catch (Exception e)
+                        {
+                            returned[index] = e.toString();
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads)
+            {
+                thread.join();
+            }
+
+            assertEquals("1", returned[0]);
+            assertEquals("2", returned[1]);
+        }
+        finally
+        {
+            adapter.stopAdapter();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * A sequence writes its item's parameter as it runs, so a request for
+     * the sequence waits on one for the item's own action, even though
+     * they are different actions
+     */
+    @Test
+    public void testSequenceAndNodeAction() throws Exception
+    {
+        File dir = File.createTempFile("requests", "");
+        dir.delete();
+        dir.mkdir();
+
+        ActionManager am = ActionManager.getInstance();
+        am.setMsgDispatcher(MsgDispatcher.getInstance());
+        am.setNodeManager(NodeManager.getInstance());
+        NodeManager.getInstance().addNodeIfAbsent(C_SEQUENCE_NODE_ID, new NodeZigbee(C_SEQUENCE_NODE_ID, 0));
+
+        EchoAction action = new EchoAction((short)0x7102, C_SEQUENCE_NODE_ID);
+        am.addNodeAction(action);
+        NodeParameter param = am.addNodeParameter(action, 1, 1, C_SEQUENCE_NODE_ID, "value",
+                EsnDataTypes.WORD, EsnParamValidationTypes.UNSIGNED_FULL, 0, 65535, 0,
+                new HashMap<Integer, String>());
+        SequenceAction sequence = am.addSequenceAction();
+        sequence.addAction(action);
+
+        final String actionId = String.valueOf(action.getActionId());
+        final String paramId = String.valueOf(param.getParameterId());
+        final String sequenceId = String.valueOf(sequence.getActionId());
+        final String sequenceParamId = String.valueOf(sequence.getParameters()[0].getParameterId());
+
+        Configuration config = new XMLConfiguration(new Element("config")).subset("net");
+        config.addProperty("requestMode", MsgAdapterNet.EsnRequestMode.SERVER.toString());
+        config.addProperty("requestPort", 0);
+        config.addProperty("persistSnapshot", false);
+
+        MsgAdapterNet adapter = new MsgAdapterNet(dir.getPath());
+        adapter.setConfiguration(config);
+        try
+        {
+            assertTrue(adapter.startAdapater());
+            final URL url = new URL("http", "localhost", adapter.getRequestPort(), ActionRequestServer.C_STR_PATH);
+
+            final String[] returned = new String[2];
+            Thread node = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        returned[0] = postRequest(url, actionId, paramId, "2");
+                    }
+                    catch (Exception e)
+                    {
+                        returned[0] = e.toString();
+                    }
+                }
+            };
+            Thread seq = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        returned[1] = postRequest(url, sequenceId, sequenceParamId, "1");
+                    }
+                    catch (Exception e)
+                    {
+                        returned[1] = e.toString();
+                    }
+                }
+            };
+
+            // The sequence comes in while the node action is still echoing
+            node.start();
+            Thread.sleep(50);
+            seq.start();
+            node.join();
+            seq.join();
+
+            assertEquals("2", returned[0]);
+            assertNotNull(returned[1]);
+            assertEquals("1", param.getStrValue());
+        }
+        finally
+        {
+            adapter.stopAdapter();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Both ways of sending a request give back the same response
+     */
+    @Test
+    public void testBothModes() throws Exception
+    {
+        File dir = File.createTempFile("requests", "");
+        dir.delete();
+        dir.mkdir();
+
+        // An empty sequence finishes as soon as it runs
+        ActionManager.getInstance().setMsgDispatcher(MsgDispatcher.getInstance());
+        SequenceAction action = ActionManager.getInstance().addSequenceAction();
+        String actionId = String.valueOf(action.getActionId());
+
+        Configuration config = new XMLConfiguration(new Element("config")).subset("net");
+        config.addProperty("requestMode", MsgAdapterNet.EsnRequestMode.BOTH.toString());
+        config.addProperty("requestPort", 0);
+        config.addProperty("persistSnapshot", false);
+
+        MsgAdapterNet adapter = new MsgAdapterNet(dir.getPath());
+        adapter.setConfiguration(config);
+        try
+        {
+            assertTrue(adapter.startAdapater());
+            URL url = new URL("http", "localhost", adapter.getRequestPort(), ActionRequestServer.C_STR_PATH);
+
+            assertResponse(postRequest(url, actionId), actionId);
+            assertResponse(fileRequest(new File(dir, "queries"), actionId, 0), actionId);
+            assertEquals(2, adapter.getNumRequests());
+        }
+        finally
+        {
+            adapter.stopAdapter();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * A burst of query files all get answered while no more than the cap
+     * run at once
+     */
+    @Test
+    public void testBurst() throws Exception
+    {
+        File dir = File.createTempFile("requests", "");
+        dir.delete();
+        dir.mkdir();
+
+        ActionManager.getInstance().setMsgDispatcher(MsgDispatcher.getInstance());
+        SequenceAction action = ActionManager.getInstance().addSequenceAction();
+        String actionId = String.valueOf(action.getActionId());
+
+        Configuration config = new XMLConfiguration(new Element("config")).subset("net");
+        config.addProperty("requestMode", MsgAdapterNet.EsnRequestMode.FILE.toString());
+        config.addProperty("maxRequests", C_MAX_REQUESTS);
+        config.addProperty("persistSnapshot", false);
+
+        MsgAdapterNet adapter = new MsgAdapterNet(dir.getPath());
+        adapter.setConfiguration(config);
+        try
+        {
+            assertTrue(adapter.startAdapater());
+            File queryDir = new File(dir, "queries");
+
+            for (int i=0; i<C_NUM_BURST; ++i)
+            {
+                File tmpFile = new File(dir, "actionRequest_" + actionId + "_" + i + ".xml.tmp");
+                FileUtils.writeStringToFile(tmpFile, createRequest(actionId), "ISO-8859-1");
+                assertTrue(tmpFile.renameTo(new File(queryDir, "actionRequest_" + actionId + "_" + i + ".xml")));
+                assertTrue(adapter.getNumRequestsInFlight() <= C_MAX_REQUESTS);
+            }
+            for (int i=0; i<C_NUM_BURST; ++i)
+            {
+                assertResponse(waitForResponse(queryDir, actionId, i), actionId);
+            }
+
+            assertEquals(C_NUM_BURST, adapter.getNumRequests());
+        }
+        finally
+        {
+            adapter.stopAdapter();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Query files the watch service never reported are picked up by the
+     * rescan, each once
+     */
+    @Test
+    public void testRecovery() throws Exception
+    {
+        File dir = File.createTempFile("requests", "");
+        dir.delete();
+        dir.mkdir();
+
+        ActionManager.getInstance().setMsgDispatcher(MsgDispatcher.getInstance());
+        SequenceAction action = ActionManager.getInstance().addSequenceAction();
+        String actionId = String.valueOf(action.getActionId());
+
+        Configuration config = new XMLConfiguration(new Element("config")).subset("net");
+        config.addProperty("requestMode", MsgAdapterNet.EsnRequestMode.FILE.toString());
+        config.addProperty("requestPollMs", 50);
+        config.addProperty("persistSnapshot", false);
+
+        // Written before anything is watching, so no events ever arrive
+        File queryDir = new File(dir, "queries");
+        queryDir.mkdir();
+        for (int i=0; i<10; ++i)
+        {
+            FileUtils.writeStringToFile(new File(queryDir, "actionRequest_" + actionId + "_" + i + ".xml"),
+                    createRequest(actionId), "ISO-8859-1");
+        }
+
+        MsgAdapterNet adapter = new MsgAdapterNet(dir.getPath());
+        adapter.setConfiguration(config);
+        try
+        {
+            assertTrue(adapter.startAdapater());
+            for (int i=0; i<10; ++i)
+            {
+                assertResponse(waitForResponse(queryDir, actionId, i), actionId);
+            }
+
+            // Later scans don't run them again
+            Thread.sleep(200);
+            assertEquals(10, adapter.getNumRecoveredRequests());
+            assertEquals(10, adapter.getNumRequests());
+        }
+        finally
+        {
+            adapter.stopAdapter();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * Requests a web page could send are turned away: ones with an Origin,
+     * ones for another host name and ones that aren't XML
+     */
+    @Test
+    public void testRejectsBrowserRequests() throws Exception
+    {
+        ActionRequestServer server = new ActionRequestServer(0, new ActionRequestServer.Handler()
+        {
+            @Override
+            public Element handle(Element p_request)
+            {
+                return new Element("actionResponse");
+            }
+        });
+        assertTrue(server.start());
+
+        try
+        {
+            int port = server.getPort();
+            String local = "localhost:" + port;
+            String body = createRequest("1");
+
+            assertEquals(200, rawPost(port, local, null, "application/xml", body));
+            assertEquals(200, rawPost(port, "127.0.0.1:" + port, null, "application/xml; charset=ISO-8859-1", body));
+            assertEquals(200, rawPost(port, "[::1]:" + port, null, "application/xml", body));
+            assertEquals(403, rawPost(port, local, "http://example.com", "application/xml", body));
+            assertEquals(403, rawPost(port, "example.com:" + port, null, "application/xml", body));
+            assertEquals(415, rawPost(port, local, null, "text/plain", body));
+            assertEquals(415, rawPost(port, local, null, null, body));
+            assertEquals(4, server.getNumErrors());
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    /**
+     * Cached documents come back with an ETag, unchanged polls get a 304
+     * without a rebuild, and an invalidation gives a new ETag
+     */
+    @Test
+    public void testCache() throws Exception
+    {
+        File dir = File.createTempFile("requests", "");
+        dir.delete();
+        dir.mkdir();
+
+        Configuration config = new XMLConfiguration(new Element("config")).subset("net");
+        config.addProperty("requestMode", MsgAdapterNet.EsnRequestMode.SERVER.toString());
+        config.addProperty("requestPort", 0);
+        config.addProperty("persistMode", "ATOMIC");
+        config.addProperty("persistSnapshot", false);
+
+        MsgAdapterNet adapter = new MsgAdapterNet(dir.getPath());
+        adapter.setConfiguration(config);
+        try
+        {
+            assertTrue(adapter.startAdapater());
+            ResponseCache cache = adapter.getResponseCache();
+            URL url = new URL("http", "localhost", adapter.getRequestPort(), ActionRequestServer.C_STR_CACHE_PATH + "info");
+
+            HttpURLConnection connection = get(url, null);
+            assertEquals(200, connection.getResponseCode());
+            String etag = connection.getHeaderField("ETag");
+            assertNotNull(etag);
+            assertEquals("controller", readDocument(connection).getRootElement().getLocalName());
+
+            connection = get(url, etag);
+            assertEquals(304, connection.getResponseCode());
+            readDocument(connection);
+            assertEquals(1, cache.getNumLoads());
+
+            cache.invalidate("info");
+            connection = get(url, etag);
+            assertEquals(200, connection.getResponseCode());
+            assertFalse(etag.equals(connection.getHeaderField("ETag")));
+            readDocument(connection);
+            etag = connection.getHeaderField("ETag");
+
+            assertEquals(404, get(new URL("http", "localhost", adapter.getRequestPort(),
+                    ActionRequestServer.C_STR_CACHE_PATH + "catalog_zz"), null).getResponseCode());
+
+            connection = get(url, etag);
+            assertEquals(304, connection.getResponseCode());
+            readDocument(connection);
+            assertEquals(2, cache.getNumLoads());
+        }
+        finally
+        {
+            adapter.stopAdapter();
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    /**
+     * POST a request with one parameter and read the returned value
+     */
+    private String postRequest(URL p_url, String p_actionId, String p_paramId, String p_value) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection)p_url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/xml");
+
+        String request = "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><actionRequest actionId=\"" + p_actionId
+                + "\"><parameter id=\"" + p_paramId + "\" value=\"" + p_value + "\"/></actionRequest>";
+        OutputStream out = connection.getOutputStream();
+        out.write(request.getBytes("ISO-8859-1"));
+        out.close();
+
+        assertEquals(200, connection.getResponseCode());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = connection.getInputStream();
+        byte[] buffer = new byte[1024];
+        int numRead;
+        while ((numRead = in.read(buffer)) >= 0)
+        {
+            bytes.write(buffer, 0, numRead);
+        }
+        in.close();
+
+        Element returned = new Builder().build(new ByteArrayInputStream(bytes.toByteArray()))
+                .getRootElement().getFirstChildElement("returned");
+        assertEquals("0", returned.getAttributeValue("errorCode"));
+        return returned.getAttributeValue("value");
+    }
+
+    /**
+     * POST over a plain socket, since HttpURLConnection won't set the Host
+     * or Origin headers
+     *
+     * @return the response status
+     */
+    static int rawPost(int p_port, String p_host, String p_origin, String p_contentType, String p_body) throws Exception
+    {
+        byte[] body = p_body.getBytes("ISO-8859-1");
+        StringBuilder request = new StringBuilder();
+        request.append("POST " + ActionRequestServer.C_STR_PATH + " HTTP/1.1\r\n");
+        request.append("Host: " + p_host + "\r\n");
+        if (p_origin != null)
+        {
+            request.append("Origin: " + p_origin + "\r\n");
+        }
+        if (p_contentType != null)
+        {
+            request.append("Content-Type: " + p_contentType + "\r\n");
+        }
+        request.append("Content-Length: " + body.length + "\r\n");
+        request.append("Connection: close\r\n\r\n");
+
+        Socket socket = new Socket("localhost", p_port);
+        try
+        {
+            OutputStream out = socket.getOutputStream();
+            out.write(request.toString().getBytes("ISO-8859-1"));
+            out.write(body);
+            out.flush();
+
+            // The status code follows the version on the first line
+            String response = new String(readBody(socket.getInputStream()), "ISO-8859-1");
+            return Integer.parseInt(response.split(" ")[1]);
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    static HttpURLConnection get(URL p_url, String p_etag) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection)p_url.openConnection();
+        if (p_etag != null)
+        {
+            connection.setRequestProperty("If-None-Match", p_etag);
+        }
+        return connection;
+    }
+
+    /**
+     * @return the body as a document, or null if there isn't one
+     */
+    static Document readDocument(HttpURLConnection p_connection) throws Exception
+    {
+        byte[] bytes = readBody(p_connection.getInputStream());
+        return bytes.length == 0 ? null : new Builder().build(new ByteArrayInputStream(bytes));
+    }
+
+    static byte[] readBody(InputStream p_in) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int numRead;
+        while ((numRead = p_in.read(buffer)) >= 0)
+        {
+            bytes.write(buffer, 0, numRead);
+        }
+        p_in.close();
+        return bytes.toByteArray();
+    }
+
+    static void assertResponse(Document p_response, String p_actionId)
+    {
+        Element root = p_response.getRootElement();
+        assertEquals("actionResponse", root.getLocalName());
+        assertEquals(p_actionId, root.getAttributeValue("actionId"));
+        assertEquals("0", root.getFirstChildElement("returned").getAttributeValue("errorCode"));
+    }
+
+    /**
+     * POST a request to the server and read the response
+     */
+    static Document postRequest(URL p_url, String p_actionId) throws Exception
+    {
+        HttpURLConnection connection = (HttpURLConnection)p_url.openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", "application/xml");
+
+        OutputStream out = connection.getOutputStream();
+        out.write(createRequest(p_actionId).getBytes("ISO-8859-1"));
+        out.close();
+
+        assertEquals(200, connection.getResponseCode());
+        return readDocument(connection);
+    }
+
+    /**
+     * Drop a request file in the queries directory and wait for the
+     * response file
+     */
+    static Document fileRequest(File p_queryDir, String p_actionId, int p_requestId) throws Exception
+    {
+        String name = "actionRequest_" + p_actionId + "_" + p_requestId + ".xml";
+
+        // Move it in whole so the watcher never sees a partial file
+        File tmpFile = new File(p_queryDir.getParentFile(), name + ".tmp");
+        FileUtils.writeStringToFile(tmpFile, createRequest(p_actionId), "ISO-8859-1");
+        assertTrue(tmpFile.renameTo(new File(p_queryDir, name)));
+
+        return waitForResponse(p_queryDir, p_actionId, p_requestId);
+    }
+
+    /**
+     * Wait for the response file to a request
+     */
+    static Document waitForResponse(File p_queryDir, String p_actionId, int p_requestId) throws Exception
+    {
+        File responseFile = new File(p_queryDir, "actionResponse_" + p_actionId + "_" + p_requestId + ".xml");
+        long deadline = System.currentTimeMillis() + C_TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline)
+        {
+            if (responseFile.length() > 0)
+            {
+                try
+                {
+                    Document response = new Builder().build(responseFile);
+                    responseFile.delete();
+                    return response;
+                }
+                catch (Exception e)
+                {
+                    // Still being written
+                }
+            }
+            Thread.sleep(1);
+        }
+        fail("no response file for request " + p_requestId);
+        return null;
+    }
+
+    static String createRequest(String p_actionId)
+    {
+        return "<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?><actionRequest actionId=\"" + p_actionId + "\"/>";
+    }
+
+    /**
+     * Node action that returns its parameter a little while after it
+     * starts, so another request has time to change it
+     */
+    private static class EchoAction extends NodeAction
+    {
+        public EchoAction(long p_nodeId)
+        {
+            this((short)0x7101, p_nodeId);
+        }
+
+        public EchoAction(short p_actionId, long p_nodeId)
+        {
+            super(p_actionId, p_nodeId, 1, "echo", EsnDataTypes.WORD, 1, new HashMap<Integer, EsnDataTypes>());
+        }
+
+        @Override
+        public boolean execute(NodeManager p_nodeManager,
+                ActionManager p_actionManager, MsgDispatcher p_msgDispatcher,
+                long p_timeoutMilliseconds)
+        {
+            return executeAsync(p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds).isSuccess();
+        }
+
+        @Override
+        public ResultFuture<IAction> executeAsync(NodeManager p_nodeManager,
+                ActionManager p_actionManager, MsgDispatcher p_msgDispatcher,
+                long p_timeoutMilliseconds)
+        {
+            ResultFuture<IAction> result = new ResultFuture<IAction>();
+            try
+            {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e)
+            {
+                // Answer early
+            }
+            setStringReturnValue(getParameter(1).getStrValue());
+            result.complete(this);
+            return result;
+        }
+    }
+}
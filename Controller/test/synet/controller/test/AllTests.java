@@ -13,6 +13,24 @@ public class AllTests
         //$JUnit-BEGIN$
         suite.addTestSuite(ControllerNodeDiscoveryTest.class);
         suite.addTest(AllParametersTest.suite());
+        suite.addTestSuite(XbeeFrameDecoderTest.class);
+        suite.addTestSuite(XbeeFrameEncoderTest.class);
+        suite.addTestSuite(ActionExecutorTest.class);
+        suite.addTestSuite(ConcurrentLongMapTest.class);
+        suite.addTestSuite(PersistenceStoreTest.class);
+        suite.addTestSuite(PersistenceSnapshotTest.class);
+        suite.addTestSuite(PersistenceStreamReaderTest.class);
+        suite.addTestSuite(ActionRequestTest.class);
+        suite.addTestSuite(NodeSchedulerTest.class);
+        suite.addTestSuite(NodeDiscoveryTest.class);
+        suite.addTestSuite(MsgRateLimiterTest.class);
+        suite.addTestSuite(PriorityMsgQueueTest.class);
+        suite.addTestSuite(XbeeTransmitWindowTest.class);
+        suite.addTestSuite(TimingWheelTest.class);
+        suite.addTestSuite(ResultFutureTest.class);
+        suite.addTestSuite(SequenceActionTest.class);
+        suite.addTestSuite(PersistenceWriterTest.class);
+        suite.addTestSuite(NodeUpdateStatusTest.class);
         //$JUnit-END$
         return suite;
     }
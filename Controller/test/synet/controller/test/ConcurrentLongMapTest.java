@@ -0,0 +1,63 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.utils.ConcurrentLongMap;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class ConcurrentLongMapTest extends TestCase
+{
+    /**
+     * Make sure the map agrees with a HashMap over random puts and removes
+     */
+    @Test
+    public void testAgreesWithHashMap()
+    {
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>(4);
+        HashMap<Long, Long> expected = new HashMap<Long, Long>();
+        Random rand = new Random(1);
+
+        for (int i=0; i<20000; ++i)
+        {
+            long key = rand.nextInt(500) - 250;
+            switch (rand.nextInt(3))
+            {
+                case 0:
+                    assertEquals(expected.put(key, (long)i), map.put(key, (long)i));
+                    break;
+                case 1:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+                    assertEquals(expected.containsKey(key), map.containsKey(key));
+                    break;
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        List<Long> values = map.values();
+        assertEquals(expected.size(), values.size());
+        assertTrue(values.containsAll(expected.values()));
+
+        // Snapshots don't change after later writes
+        map.clear();
+        assertEquals(expected.size(), values.size());
+
+        assertNull(map.putIfAbsent(Long.MAX_VALUE, 1L));
+        assertEquals(Long.valueOf(1), map.putIfAbsent(Long.MAX_VALUE, 2L));
+        assertEquals(Long.valueOf(1), map.get(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.LinkedList;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.messaging.MsgRateLimiter;
+import synet.controller.messaging.MsgRateLimiter.TrafficClass;
+import synet.controller.messaging.messages.MsgConstants;
+import synet.controller.messaging.messages.MsgTx;
+
+/**
+ * Checks the discovery and user budgets, and how long a user message sent
+ * while a crowd of nodes is being discovered waits on a simulated radio.
+ *
+ * @author mkurdziel
+ *
+ */
+public class MsgRateLimiterTest extends TestCase
+{
+    private static final int C_NUM_NODES = 50;
+    private static final int C_REQUESTS_PER_NODE = 5;
+    private static final long C_FRAME_MS = 25;
+    private static final long C_USER_SEND_MS = 1000;
+
+    /**
+     * A class goes out up to its burst, then at its rate
+     */
+    @Test
+    public void testBudget()
+    {
+        MsgRateLimiter limiter = new MsgRateLimiter(20, 20, 10, 2, 0);
+
+        assertTrue(limiter.offer(new TestMsgTx(MsgConstants.SN_API_CATALOG_REQUEST), 0));
+        assertTrue(limiter.offer(new TestMsgTx(MsgConstants.SN_API_PARAMETER_REQUEST), 0));
+        assertFalse(limiter.offer(new TestMsgTx(MsgConstants.SN_API_DEVICE_STATUS_REQUEST), 0));
+        assertEquals(1, limiter.getQueueDepth(TrafficClass.DISCOVERY));
+        assertEquals(100, limiter.getWaitMs(0));
+
+        // Unpaced messages and user messages aren't held by discovery
+        assertTrue(limiter.offer(new TestMsgTx(MsgConstants.SN_API_BOOTLOAD_TRANSMIT), 0));
+        assertTrue(limiter.offer(new TestMsgTx(MsgConstants.SN_API_FUNCTION_TRANSMIT), 0));
+
+        assertNull(limiter.poll(99));
+        assertNotNull(limiter.poll(100));
+        assertEquals(0, limiter.getQueueDepth(TrafficClass.DISCOVERY));
+        assertEquals(-1, limiter.getWaitMs(100));
+        assertEquals(3, limiter.getNumSent(TrafficClass.DISCOVERY));
+        assertEquals(1, limiter.getNumDelayed(TrafficClass.DISCOVERY));
+    }
+
+    /**
+     * Waiting user messages go before waiting discovery messages, and
+     * discovery doesn't slip past them
+     */
+    @Test
+    public void testUserPriority()
+    {
+        MsgRateLimiter limiter = new MsgRateLimiter(10, 1, 0, 1, 0);
+
+        assertTrue(limiter.offer(new TestMsgTx(MsgConstants.SN_API_FUNCTION_TRANSMIT), 0));
+        TestMsgTx user = new TestMsgTx(MsgConstants.SN_API_FUNCTION_TRANSMIT);
+        TestMsgTx discovery = new TestMsgTx(MsgConstants.SN_API_CATALOG_REQUEST);
+        assertFalse(limiter.offer(user, 0));
+
+        // Discovery has no limit but still waits behind the user message
+        assertFalse(limiter.offer(discovery, 0));
+        assertNull(limiter.poll(50));
+
+        assertSame(user, limiter.poll(100));
+        assertSame(discovery, limiter.poll(100));
+        assertEquals(1, limiter.getMaxQueueDepth(TrafficClass.USER));
+    }
+
+    /**
+     * Every node asks for its status and catalog at once, then a user
+     * action goes out a second later
+     */
+    @Test
+    public void testMassJoin()
+    {
+        long unpacedMs = simulate(new MsgRateLimiter(0, 1, 0, 1, 0));
+        long pacedMs = simulate(new MsgRateLimiter(0, 1, MsgRateLimiter.C_DISCOVERY_RATE,
+                MsgRateLimiter.C_DISCOVERY_BURST, 0));
+        assertTrue(pacedMs < unpacedMs);
+        assertTrue(pacedMs <= C_FRAME_MS);
+    }
+
+    /**
+     * Run the limiter in front of a radio that sends a frame at a time
+     *
+     * @param p_limiter
+     * @return how long the user message waited to go out over the air
+     */
+    private long simulate(MsgRateLimiter p_limiter)
+    {
+        LinkedList<MsgTx> radio = new LinkedList<MsgTx>();
+        TestMsgTx user = new TestMsgTx(MsgConstants.SN_API_FUNCTION_TRANSMIT);
+
+        for (int i=0; i<C_NUM_NODES * C_REQUESTS_PER_NODE; ++i)
+        {
+            TestMsgTx msg = new TestMsgTx(MsgConstants.SN_API_CATALOG_REQUEST);
+            if (p_limiter.offer(msg, 0))
+            {
+                radio.add(msg);
+            }
+        }
+
+        for (long now=0; ; now+=C_FRAME_MS)
+        {
+            if (now == C_USER_SEND_MS && p_limiter.offer(user, now))
+            {
+                radio.add(user);
+            }
+
+            MsgTx msg;
+            while ((msg = p_limiter.poll(now)) != null)
+            {
+                radio.add(msg);
+            }
+
+            // The frame at the head of the radio queue is on the air
+            if (radio.poll() == user)
+            {
+                return now + C_FRAME_MS - C_USER_SEND_MS;
+            }
+        }
+    }
+
+    private static class TestMsgTx extends MsgTx
+    {
+        private final byte m_api;
+
+        public TestMsgTx(byte p_api)
+        {
+            super(null);
+            m_api = p_api;
+        }
+
+        @Override
+        public byte[] getBytes()
+        {
+            return new byte[0];
+        }
+
+        @Override
+        public String getMsgType()
+        {
+            return "TestMsgTx";
+        }
+
+        @Override
+        public byte getAPI()
+        {
+            return m_api;
+        }
+    }
+}
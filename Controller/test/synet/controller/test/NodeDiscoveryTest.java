@@ -0,0 +1,244 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.nodes.NodeDiscovery;
+
+/**
+ * Checks the discovery window and compares discovering a node one request
+ * at a time against a window of requests, on a simulated link.
+ *
+ * @author mkurdziel
+ *
+ */
+public class NodeDiscoveryTest extends TestCase
+{
+    private static final long C_TIMEOUT_MS = 5000;
+    private static final int C_MAX_RETRIES = 3;
+    private static final int C_NUM_FUNCTIONS = 20;
+    private static final int C_NUM_PARAMETERS = 3;
+    private static final long C_ROUND_TRIP_MS = 40;
+    private static final int C_LOSS_EVERY = 20;
+    private static final long C_BACKLOG_MS = 40000;
+    private static final long C_SEND_INTERVAL_MS = 100;
+
+    /**
+     * The window is filled in order and topped up as entries become known
+     */
+    @Test
+    public void testWindow()
+    {
+        NodeDiscovery discovery = new NodeDiscovery(0);
+        List<Integer> unknown = getFunctionKeys(C_NUM_FUNCTIONS);
+
+        List<Integer> send = discovery.next(unknown, 8, C_TIMEOUT_MS, C_MAX_RETRIES, 0);
+        assertEquals(8, send.size());
+        assertEquals(NodeDiscovery.getKey(1, 0), (int)send.get(0));
+        assertEquals(8, discovery.getNumOutstanding());
+        for (int key : send)
+        {
+            discovery.markSent(key, 0);
+        }
+
+        // Nothing new until something is answered
+        assertTrue(discovery.next(unknown, 8, C_TIMEOUT_MS, C_MAX_RETRIES, 10).isEmpty());
+
+        unknown.remove(Integer.valueOf(NodeDiscovery.getKey(3, 0)));
+        send = discovery.next(unknown, 8, C_TIMEOUT_MS, C_MAX_RETRIES, 20);
+        assertEquals(1, send.size());
+        assertEquals(9, NodeDiscovery.getFunction(send.get(0)));
+        assertEquals(C_TIMEOUT_MS, discovery.getNextTimeout(C_TIMEOUT_MS));
+    }
+
+    /**
+     * Only requests that time out are resent, and running out of retries
+     * ends discovery
+     */
+    @Test
+    public void testRetry()
+    {
+        NodeDiscovery discovery = new NodeDiscovery(0);
+        List<Integer> unknown = new ArrayList<Integer>();
+        unknown.add(NodeDiscovery.getKey(1, 1));
+        unknown.add(NodeDiscovery.getKey(1, 2));
+
+        for (int key : discovery.next(unknown, 2, C_TIMEOUT_MS, C_MAX_RETRIES, 0))
+        {
+            discovery.markSent(key, 0);
+        }
+        unknown.remove(0);
+
+        long now = 0;
+        for (int i=0; i<C_MAX_RETRIES; ++i)
+        {
+            now += C_TIMEOUT_MS;
+            List<Integer> send = discovery.next(unknown, 2, C_TIMEOUT_MS, C_MAX_RETRIES, now);
+            assertEquals(1, send.size());
+            assertEquals(2, NodeDiscovery.getParameter(send.get(0)));
+            discovery.markSent(send.get(0), now);
+        }
+        assertEquals(C_MAX_RETRIES, discovery.getNumRetries());
+        assertNull(discovery.next(unknown, 2, C_TIMEOUT_MS, C_MAX_RETRIES, now + C_TIMEOUT_MS));
+    }
+
+    /**
+     * Requests held back behind a rate limiter backlog longer than the
+     * timeout aren't resent and don't time out, since the timeout only
+     * starts once they go out
+     */
+    @Test
+    public void testLimiterBacklog()
+    {
+        NodeDiscovery discovery = new NodeDiscovery(0);
+        List<Integer> unknown = getFunctionKeys(C_NUM_FUNCTIONS);
+        TreeMap<Long, List<Integer>> sends = new TreeMap<Long, List<Integer>>();
+        TreeMap<Long, List<Integer>> responses = new TreeMap<Long, List<Integer>>();
+
+        // Other nodes' requests are ahead in the limiter
+        long nextSendMs = C_BACKLOG_MS;
+        long now = 0;
+        while (!unknown.isEmpty())
+        {
+            List<Integer> send = discovery.next(unknown, 8, C_TIMEOUT_MS, C_MAX_RETRIES, now);
+            assertNotNull(send);
+            for (int key : send)
+            {
+                nextSendMs = Math.max(nextSendMs, now);
+                addEvent(sends, nextSendMs, key);
+                nextSendMs += C_SEND_INTERVAL_MS;
+            }
+
+            // Step to whichever comes first
+            long next = discovery.getNextTimeout(C_TIMEOUT_MS);
+            if (!sends.isEmpty() && (next < 0 || sends.firstKey() < next))
+            {
+                next = sends.firstKey();
+            }
+            if (!responses.isEmpty() && (next < 0 || responses.firstKey() < next))
+            {
+                next = responses.firstKey();
+            }
+            now = next;
+
+            if (sends.containsKey(now))
+            {
+                for (int key : sends.remove(now))
+                {
+                    discovery.markSent(key, now);
+                    addEvent(responses, now + C_ROUND_TRIP_MS, key);
+                }
+            }
+            if (responses.containsKey(now))
+            {
+                unknown.removeAll(responses.remove(now));
+            }
+        }
+
+        assertEquals(0, discovery.getNumRetries());
+        assertEquals(C_NUM_FUNCTIONS, discovery.getNumRequests());
+        assertTrue(now > C_BACKLOG_MS);
+    }
+
+    /**
+     * Time to discover a node's functions and parameters over a clean link
+     * and over one that loses one message in twenty
+     */
+    @Test
+    public void testDiscoveryTime()
+    {
+        long serialMs = simulate(1, 0);
+        long windowMs = simulate(8, 0);
+        assertEquals((C_NUM_FUNCTIONS * (1 + C_NUM_PARAMETERS)) * C_ROUND_TRIP_MS, serialMs);
+        assertTrue(windowMs * 5 < serialMs);
+
+        // Lost requests wait out the timeout either way, so the gain is smaller
+        long lossySerialMs = simulate(1, C_LOSS_EVERY);
+        long lossyWindowMs = simulate(8, C_LOSS_EVERY);
+        assertTrue(lossyWindowMs * 2 < lossySerialMs);
+    }
+
+    /**
+     * Discover the functions, then the parameters, answering each request
+     * a round trip after it's sent
+     *
+     * @param p_window
+     * @param p_lossEvery drop every nth request, or 0 for none
+     * @return the simulated milliseconds until every entry is known
+     */
+    private long simulate(int p_window, int p_lossEvery)
+    {
+        NodeDiscovery discovery = new NodeDiscovery(0);
+        long now = 0;
+        int numSent = 0;
+
+        List<List<Integer>> phases = new ArrayList<List<Integer>>();
+        phases.add(getFunctionKeys(C_NUM_FUNCTIONS));
+        List<Integer> parameters = new ArrayList<Integer>();
+        for (int i=1; i<=C_NUM_FUNCTIONS; ++i)
+        {
+            for (int k=1; k<=C_NUM_PARAMETERS; ++k)
+            {
+                parameters.add(NodeDiscovery.getKey(i, k));
+            }
+        }
+        phases.add(parameters);
+
+        for (List<Integer> unknown : phases)
+        {
+            TreeMap<Long, List<Integer>> responses = new TreeMap<Long, List<Integer>>();
+            while (!unknown.isEmpty())
+            {
+                List<Integer> send = discovery.next(unknown, p_window, C_TIMEOUT_MS, C_MAX_RETRIES, now);
+                assertNotNull(send);
+                for (int key : send)
+                {
+                    discovery.markSent(key, now);
+                    if (p_lossEvery == 0 || ++numSent % p_lossEvery != 0)
+                    {
+                        addEvent(responses, now + C_ROUND_TRIP_MS, key);
+                    }
+                }
+
+                // Wake for the next response or the next timeout
+                long next = discovery.getNextTimeout(C_TIMEOUT_MS);
+                if (!responses.isEmpty() && (next < 0 || responses.firstKey() < next))
+                {
+                    next = responses.firstKey();
+                    unknown.removeAll(responses.remove(next));
+                }
+                now = next;
+            }
+        }
+        return now;
+    }
+
+    private static void addEvent(TreeMap<Long, List<Integer>> p_events, long p_time, int p_key)
+    {
+        List<Integer> due = p_events.get(p_time);
+        if (due == null)
+        {
+            due = new ArrayList<Integer>();
+            p_events.put(p_time, due);
+        }
+        due.add(p_key);
+    }
+
+    private List<Integer> getFunctionKeys(int p_numFunctions)
+    {
+        List<Integer> keys = new ArrayList<Integer>();
+        for (int i=1; i<=p_numFunctions; ++i)
+        {
+            keys.add(NodeDiscovery.getKey(i, 0));
+        }
+        return keys;
+    }
+}
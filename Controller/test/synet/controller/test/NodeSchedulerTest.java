@@ -0,0 +1,99 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.nodes.NodeBase;
+import synet.controller.nodes.NodeInvestigationQueue;
+
+/**
+ * Checks when the investigation queue says the next node is due, on a
+ * simulated clock.
+ *
+ * @author mkurdziel
+ *
+ */
+public class NodeSchedulerTest extends TestCase
+{
+    private static final long C_NODE_ID = 0x0013A20040303382L;
+    private static final int C_NUM_NODES = 50;
+    private static final long C_TIMEOUT_MS = 5000;
+    private static final long C_START = 1000000;
+
+    /**
+     * A node whose investigation time is long past is due once and then
+     * waits out the timeout, instead of being due again straight away
+     */
+    @Test
+    public void testStaleDeadline()
+    {
+        NodeInvestigationQueue queue = new NodeInvestigationQueue();
+        NodeBase node = new TestNode(C_NODE_ID);
+        long now = C_START;
+
+        assertTrue(queue.add(node, now - 60000));
+        assertFalse(queue.add(node, now));
+        assertSame(node, queue.getDue(now));
+        assertEquals(0, queue.getWaitMs(now));
+
+        queue.scheduleRetry(node, now, C_TIMEOUT_MS);
+
+        assertNull(queue.getDue(now));
+        assertEquals(C_TIMEOUT_MS, queue.getWaitMs(now));
+        assertEquals(now + C_TIMEOUT_MS, node.getTimeNextInvestigation().getMillis());
+
+        // A timeout that already passed counts from now as well
+        queue.scheduleTimeout(node, now - 1, now, C_TIMEOUT_MS);
+        assertEquals(C_TIMEOUT_MS, queue.getWaitMs(now));
+
+        queue.scheduleTimeout(node, now + 100, now, C_TIMEOUT_MS);
+        assertEquals(100, queue.getWaitMs(now));
+        assertSame(node, queue.getDue(now + 100));
+    }
+
+    /**
+     * Each node is due once, then nothing is due until the first timeout,
+     * so the thread has nothing to wake up for in between
+     */
+    @Test
+    public void testIdleWakeups()
+    {
+        NodeInvestigationQueue queue = new NodeInvestigationQueue();
+        long now = C_START;
+
+        assertEquals(-1, queue.getWaitMs(now));
+
+        for (int i=0; i<C_NUM_NODES; ++i)
+        {
+            queue.add(new TestNode(C_NODE_ID + i), now);
+        }
+        assertEquals(C_NUM_NODES, queue.size());
+
+        // Ask every due node, a millisecond apart, the way the thread does
+        int numInvestigations = 0;
+        NodeBase node;
+        while ((node = queue.getDue(now)) != null)
+        {
+            queue.scheduleRetry(node, now, C_TIMEOUT_MS);
+            numInvestigations++;
+            now++;
+        }
+        assertEquals(C_NUM_NODES, numInvestigations);
+
+        // The first node asked is the next one due
+        long firstTimeout = C_START + C_TIMEOUT_MS;
+        assertEquals(firstTimeout, queue.getDeadline());
+        assertEquals(firstTimeout - now, queue.getWaitMs(now));
+        assertNull(queue.getDue(firstTimeout - 1));
+        assertNotNull(queue.getDue(firstTimeout));
+
+        // Removing the head moves the deadline to the next node
+        assertTrue(queue.remove(queue.getDue(firstTimeout)));
+        assertEquals(firstTimeout + 1, queue.getDeadline());
+        assertEquals(C_NUM_NODES - 1, queue.size());
+    }
+}
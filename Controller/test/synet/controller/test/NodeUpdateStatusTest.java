@@ -0,0 +1,271 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.nodes.NodeUpdateFile;
+import synet.controller.nodes.NodeUpdateStatus;
+import synet.controller.nodes.NodeZigbee;
+
+/**
+ * Checks the go-back-N recovery of a pipelined update and compares
+ * flashing a 32 KB image a page at a time against a window of pages, on a
+ * simulated link.
+ *
+ * @author mkurdziel
+ *
+ */
+public class NodeUpdateStatusTest extends TestCase
+{
+    private static final int C_IMAGE_BYTES = 32 * 1024;
+    private static final int C_PAGE_SIZE = 64;
+    private static final long C_FRAME_MS = 10;
+    private static final long C_LATENCY_MS = 30;
+    private static final int C_LOSS_EVERY = 50;
+
+    /**
+     * When the oldest page times out it goes again with every page after
+     * it, and an ack covers the pages before it
+     */
+    @Test
+    public void testGoBackOnTimeout() throws IOException
+    {
+        NodeUpdateStatus status = createStatus(8 * C_PAGE_SIZE);
+        status.setWindow(4);
+        assertEquals(8, status.getNumPages());
+
+        List<Integer> send = status.getPagesToSend(0);
+        assertEquals(4, send.size());
+        assertEquals(3 * C_PAGE_SIZE, (int)send.get(3));
+
+        // The second page is lost, so the node turns away the rest
+        assertTrue(status.ackPage(0, 100));
+        send = status.getPagesToSend(100);
+        assertEquals(1, send.size());
+        assertEquals(4 * C_PAGE_SIZE, (int)send.get(0));
+
+        long timeout = status.getNextTimeout(100);
+        assertEquals(status.getTimeoutMs(), timeout);
+        send = status.getPagesToSend(timeout);
+        assertEquals(4, send.size());
+        assertEquals(C_PAGE_SIZE, (int)send.get(0));
+        assertEquals(4 * C_PAGE_SIZE, (int)send.get(3));
+        assertEquals(4, status.getNumPagesResent());
+
+        // The acks for the first two resent pages are lost
+        assertTrue(status.ackPage(3 * C_PAGE_SIZE, timeout + 50));
+        assertTrue(status.isPageAcked(C_PAGE_SIZE));
+        assertFalse(status.ackPage(C_PAGE_SIZE, timeout + 60));
+        assertEquals(1, status.getNumPagesInFlight());
+        assertEquals(50, status.getProgressPercent());
+        assertFalse(status.isComplete());
+    }
+
+    /**
+     * An error goes back to the oldest page in flight straight away, the
+     * errors for the rest of the window don't send it all again, and the
+     * data complete message is only sent once
+     */
+    @Test
+    public void testGoBackOnError() throws IOException
+    {
+        NodeUpdateStatus status = createStatus(4 * C_PAGE_SIZE);
+        status.setWindow(4);
+        assertTrue(status.goBack(0).isEmpty());
+
+        status.getPagesToSend(0);
+        assertTrue(status.ackPage(0, 50));
+        List<Integer> send = status.goBack(60);
+        assertEquals(3, send.size());
+        assertEquals(C_PAGE_SIZE, (int)send.get(0));
+        assertEquals(3, status.getNumPagesResent());
+        assertEquals(7, status.getNumPagesSent());
+
+        assertTrue(status.goBack(70).isEmpty());
+        assertTrue(status.goBack(80).isEmpty());
+        assertEquals(60 + status.getTimeoutMs(), status.getNextTimeout(80));
+
+        // Lost again, so the next error after a timeout goes back again
+        assertEquals(3, status.goBack(60 + status.getTimeoutMs()).size());
+
+        assertTrue(status.ackPage(3 * C_PAGE_SIZE, 1000));
+        assertTrue(status.isComplete());
+        assertTrue(status.goBack(1000).isEmpty());
+        assertTrue(status.markCompleteSent());
+        assertFalse(status.markCompleteSent());
+    }
+
+    /**
+     * The timeout follows the round trips and backs off when pages are lost
+     */
+    @Test
+    public void testAdaptiveTimeout() throws IOException
+    {
+        NodeUpdateStatus status = createStatus(C_IMAGE_BYTES);
+        status.setWindow(2);
+        assertEquals(NodeUpdateStatus.C_MAX_TIMEOUT_MS, status.getTimeoutMs());
+
+        long now = 0;
+        for (int i=0; i<20; ++i)
+        {
+            for (int address : status.getPagesToSend(now))
+            {
+                status.ackPage(address, now + 50);
+            }
+            now += 50;
+        }
+        assertEquals(50, status.getRoundTripMs());
+        assertEquals(NodeUpdateStatus.C_MIN_TIMEOUT_MS, status.getTimeoutMs());
+
+        // Lose the next pages
+        status.getPagesToSend(now);
+        now += status.getTimeoutMs();
+        assertEquals(2, status.getPagesToSend(now).size());
+        assertEquals(2 * NodeUpdateStatus.C_MIN_TIMEOUT_MS, status.getTimeoutMs());
+    }
+
+    /**
+     * Flash a 32 KB image, losing one page in fifty. A window of eight is
+     * limited by the radio rather than the round trips and the timeouts.
+     */
+    @Test
+    public void testUpdateTime() throws IOException
+    {
+        long serialMs = simulate(1);
+        long windowMs = simulate(8);
+        assertTrue(windowMs * 10 < serialMs);
+        assertTrue(windowMs < 2 * (C_IMAGE_BYTES / C_PAGE_SIZE) * C_FRAME_MS);
+    }
+
+    /**
+     * Send pages over a radio that takes a frame time per page, to a node
+     * that takes them in order. A latency after a page is on the air the
+     * node acks it, or reports an error if a page before it went missing.
+     *
+     * @param p_window
+     * @return the simulated milliseconds until every page is acked
+     */
+    private long simulate(int p_window) throws IOException
+    {
+        NodeUpdateStatus status = createStatus(C_IMAGE_BYTES);
+        status.setWindow(p_window);
+
+        TreeMap<Long, List<Integer>> acks = new TreeMap<Long, List<Integer>>();
+        long now = 0;
+        long radioFree = 0;
+        long nextTimeout = 0;
+        int numSent = 0;
+        int expected = 0;
+        List<Integer> send = new ArrayList<Integer>();
+
+        while (!status.isComplete())
+        {
+            if (status.isPipelined())
+            {
+                send.addAll(status.getPagesToSend(now));
+                nextTimeout = status.getNextTimeout(now);
+            }
+            else
+            {
+                // One page at a time with the fixed timeout
+                if (now >= nextTimeout)
+                {
+                    send.add(status.getNextAddress());
+                    nextTimeout = now + NodeUpdateStatus.C_MAX_TIMEOUT_MS;
+                }
+            }
+
+            for (int address : send)
+            {
+                radioFree = Math.max(radioFree, now) + C_FRAME_MS;
+                if (++numSent % C_LOSS_EVERY != 0)
+                {
+                    long due = radioFree + C_LATENCY_MS;
+                    List<Integer> dueAcks = acks.get(due);
+                    if (dueAcks == null)
+                    {
+                        dueAcks = new ArrayList<Integer>();
+                        acks.put(due, dueAcks);
+                    }
+                    dueAcks.add(address);
+                }
+            }
+            send = new ArrayList<Integer>();
+
+            // Wake for the next ack or the next timeout
+            if (!acks.isEmpty() && acks.firstKey() < nextTimeout)
+            {
+                now = acks.firstKey();
+                for (int address : acks.remove(now))
+                {
+                    if (status.isPipelined())
+                    {
+                        if (address > expected)
+                        {
+                            send.addAll(status.goBack(now));
+                        }
+                        else
+                        {
+                            status.ackPage(address, now);
+                            expected = Math.max(expected, address + C_PAGE_SIZE);
+                        }
+                    }
+                    else if (address == status.getNextAddress())
+                    {
+                        status.markAsSent(address);
+                        nextTimeout = now;
+                    }
+                }
+            }
+            else
+            {
+                now = nextTimeout;
+            }
+        }
+        return now;
+    }
+
+    /**
+     * @param p_numBytes
+     * @return the update status for an image of this size
+     */
+    private NodeUpdateStatus createStatus(int p_numBytes) throws IOException
+    {
+        File file = File.createTempFile("NodeUpdateStatusTest", ".hex");
+        file.deleteOnExit();
+
+        FileWriter writer = new FileWriter(file);
+        try
+        {
+            for (int address=0; address<p_numBytes; address+=16)
+            {
+                StringBuilder line = new StringBuilder(String.format(":10%04X00", address));
+                for (int i=0; i<16; ++i)
+                {
+                    line.append(String.format("%02X", (address + i) & 0xFF));
+                }
+                writer.write(line.append("00\n").toString());
+            }
+            writer.write(":00000001FF\n");
+        }
+        finally
+        {
+            writer.close();
+        }
+
+        NodeUpdateFile updateFile = new NodeUpdateFile(file.getPath());
+        assertTrue(updateFile.parseFile());
+        return new NodeUpdateStatus(new NodeZigbee(0x0013A20040303382L, 0), updateFile);
+    }
+}
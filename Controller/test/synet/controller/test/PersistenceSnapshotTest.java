@@ -0,0 +1,141 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import synet.controller.messaging.PersistenceSnapshot;
+import synet.controller.messaging.PersistenceStore;
+import synet.controller.messaging.PersistenceStore.EsnPersistMode;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class PersistenceSnapshotTest extends TestCase
+{
+    private static final int C_NUM_PARAMETERS = 8;
+
+    /**
+     * A decoded document matches the one that was encoded
+     */
+    @Test
+    public void testRoundTrip() throws Exception
+    {
+        Document doc = createCatalog(7);
+        Document decoded = PersistenceSnapshot.decode(ByteBuffer.wrap(PersistenceSnapshot.encode(doc)));
+
+        assertEquals(doc.toXML(), decoded.toXML());
+    }
+
+    /**
+     * The store only hands out the snapshot while it's newer than the XML,
+     * and the first write throws it away
+     */
+    @Test
+    public void testStore() throws Exception
+    {
+        File dir = createDir();
+        try
+        {
+            PersistenceStore store = new PersistenceStore(dir, EsnPersistMode.ATOMIC, true);
+            store.write(createCatalog(1), "catalog_1");
+            store.write(createNodeList(3), "nodelist");
+            store.writeSnapshot();
+            assertTrue(new File(dir, PersistenceStore.C_STR_SNAPSHOT_FILENAME).exists());
+
+            PersistenceStore restarted = new PersistenceStore(dir, EsnPersistMode.ATOMIC, true);
+            new File(dir, PersistenceStore.C_STR_SNAPSHOT_FILENAME).setLastModified(System.currentTimeMillis() + 2000);
+            assertTrue(restarted.loadSnapshot(restarted.getCurrentFiles()));
+
+            Document doc = restarted.readSnapshot("catalog_1.xml");
+            assertNotNull(doc);
+            assertEquals("1", doc.getRootElement().getAttributeValue(PersistenceStore.C_STR_GENERATION));
+            restarted.addReadFile("catalog_1.xml", doc);
+            assertEquals(1, restarted.getGeneration("catalog_1"));
+
+            restarted.write(createCatalog(1), "catalog_1");
+            assertFalse(new File(dir, PersistenceStore.C_STR_SNAPSHOT_FILENAME).exists());
+            assertNull(restarted.readSnapshot("nodelist.xml"));
+
+            // A newer XML file makes the snapshot stale
+            restarted.writeSnapshot();
+            new File(dir, "nodelist.xml").setLastModified(System.currentTimeMillis() + 60000);
+            PersistenceStore stale = new PersistenceStore(dir, EsnPersistMode.ATOMIC, true);
+            assertFalse(stale.loadSnapshot(stale.getCurrentFiles()));
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    static File createDir() throws IOException
+    {
+        File dir = File.createTempFile("snapshot", "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    /**
+     * @param p_numNodes
+     * @return a node list with this many nodes
+     */
+    static Document createNodeList(int p_numNodes)
+    {
+        Element root = new Element("nodes");
+        for (int i=0; i<p_numNodes; ++i)
+        {
+            Element node = new Element("node");
+            node.addAttribute(new Attribute("id", String.format("%016X", i)));
+            Element name = new Element("name");
+            name.appendChild("Node " + i);
+            node.appendChild(name);
+            root.appendChild(node);
+        }
+        return new Document(root);
+    }
+
+    /**
+     * A catalog about the size of a sensor node's
+     */
+    static Document createCatalog(int p_nodeId)
+    {
+        Element root = new Element("catalog");
+        root.addAttribute(new Attribute("nodeId", String.format("%016X", p_nodeId)));
+        for (int i=0; i<C_NUM_PARAMETERS; ++i)
+        {
+            Element function = new Element("function");
+            function.addAttribute(new Attribute("id", Integer.toString(i)));
+            function.addAttribute(new Attribute("returnType", "WORD_16"));
+            Element name = new Element("name");
+            name.appendChild("Function " + i);
+            function.appendChild(name);
+            for (int j=0; j<3; ++j)
+            {
+                Element param = new Element("parameter");
+                param.addAttribute(new Attribute("id", Integer.toString(j)));
+                param.addAttribute(new Attribute("dataType", "BYTE"));
+                param.addAttribute(new Attribute("minimum", "0"));
+                param.addAttribute(new Attribute("maximum", "255"));
+                param.appendChild("Parameter " + j);
+                function.appendChild(param);
+            }
+            root.appendChild(function);
+        }
+        return new Document(root);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import synet.controller.messaging.PersistenceStore;
+import synet.controller.messaging.PersistenceStore.EsnPersistMode;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class PersistenceStoreTest extends TestCase
+{
+    private static final int C_NUM_NODES = 20;
+
+    /**
+     * Atomic writes replace one stable file and bump its generation, and
+     * startup skips temp files and timestamped files it replaced
+     */
+    @Test
+    public void testAtomic() throws Exception
+    {
+        File dir = createDir();
+        try
+        {
+            FileUtils.touch(new File(dir, "nodelist_2012-02-20T16:27:09.619-07:00.xml"));
+            FileUtils.touch(new File(dir, "catalog_0013A20040303382_2012-02-20T16:27:09.619-07:00.xml"));
+
+            PersistenceStore store = new PersistenceStore(dir, EsnPersistMode.ATOMIC);
+            store.write(createNodeList(), "nodelist");
+            store.write(createNodeList(), "nodelist");
+            FileUtils.touch(new File(dir, "catalog_1.xml.tmp"));
+
+            assertEquals(2, store.getGeneration("nodelist"));
+            assertTrue(new File(dir, "nodelist.xml").exists());
+            assertFalse(new File(dir, "nodelist.xml.tmp").exists());
+
+            // The old node list is gone, the other prefix's file is untouched
+            File[] files = store.getCurrentFiles();
+            assertEquals(2, files.length);
+
+            PersistenceStore restarted = new PersistenceStore(dir, EsnPersistMode.ATOMIC);
+            Document doc = new Document(new Element("nodes"));
+            doc.getRootElement().addAttribute(new Attribute(PersistenceStore.C_STR_GENERATION, "2"));
+            restarted.readGeneration("nodelist.xml", doc);
+            assertEquals(2, restarted.getGeneration("nodelist"));
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    static File createDir() throws IOException
+    {
+        File dir = File.createTempFile("persist", "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    /**
+     * A node list about the size of a small network
+     */
+    static Document createNodeList()
+    {
+        Element root = new Element("nodes");
+        for (int i=0; i<C_NUM_NODES; ++i)
+        {
+            Element node = new Element("node");
+            node.addAttribute(new Attribute("id", String.format("0013A200403033%02X", i)));
+            Element name = new Element("name");
+            name.appendChild("Node " + i);
+            node.appendChild(name);
+            root.appendChild(node);
+        }
+        return new Document(root);
+    }
+}
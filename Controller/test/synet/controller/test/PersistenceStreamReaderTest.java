@@ -0,0 +1,226 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import nu.xom.Attribute;
+import nu.xom.Document;
+import nu.xom.Element;
+import nu.xom.Elements;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import synet.controller.Protocol.EsnDataTypes;
+import synet.controller.Protocol.EsnParamValidationTypes;
+import synet.controller.actions.ActionManager;
+import synet.controller.actions.INodeAction;
+import synet.controller.actions.NodeAction;
+import synet.controller.actions.NodeParameter;
+import synet.controller.messaging.PersistenceStreamReader;
+import synet.controller.nodes.NodeBase;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class PersistenceStreamReaderTest extends TestCase
+{
+    private static final int C_NUM_PARAMETERS = 3;
+    private static final long C_NODE_ID = 0x0013A20040303382L;
+
+    /**
+     * Streamed catalogs and node lists match what was serialized
+     */
+    @Test
+    public void testMatchesSerialize() throws Exception
+    {
+        File dir = createDir();
+        try
+        {
+            List<NodeAction> actions = createActions(20);
+            File catalogFile = writeFile(dir, "catalog.xml", createCatalog(actions));
+
+            List<NodeAction> streamed = streamCatalog(catalogFile);
+            assertEquals(actions.size(), streamed.size());
+            for (int i=0; i<actions.size(); ++i)
+            {
+                assertEquals(serialize(actions.get(i)), serialize(streamed.get(i)));
+                assertTrue(actions.get(i).isEqualTo((INodeAction)streamed.get(i), true));
+            }
+
+            List<NodeBase> nodes = createNodes(20);
+            File nodeListFile = writeFile(dir, "nodelist.xml", createNodeList(nodes));
+
+            List<NodeBase> streamedNodes = streamNodeList(nodeListFile);
+            assertEquals(nodes.size(), streamedNodes.size());
+            for (int i=0; i<nodes.size(); ++i)
+            {
+                assertEquals(nodes.get(i).serialize().toXML(), streamedNodes.get(i).serialize().toXML());
+            }
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+
+    static List<NodeAction> streamCatalog(File p_file)
+    {
+        final List<NodeAction> actions = new ArrayList<NodeAction>();
+        assertTrue(PersistenceStreamReader.read(p_file, 3, null, new PersistenceStreamReader.Handler()
+        {
+            @Override
+            public boolean root(Element p_root)
+            {
+                return p_root.getLocalName().equals("catalog");
+            }
+
+            @Override
+            public void record(Element p_record)
+            {
+                actions.add(parseAction(p_record, actions.size() + 1));
+            }
+        }));
+        return actions;
+    }
+
+    static List<NodeBase> streamNodeList(File p_file)
+    {
+        final List<NodeBase> nodes = new ArrayList<NodeBase>();
+        assertTrue(PersistenceStreamReader.read(p_file, 2, "node", new PersistenceStreamReader.Handler()
+        {
+            @Override
+            public boolean root(Element p_root)
+            {
+                return p_root.getLocalName().equals("nodes");
+            }
+
+            @Override
+            public void record(Element p_record)
+            {
+                nodes.add(new TestNode(p_record));
+            }
+        }));
+        return nodes;
+    }
+
+    /**
+     * Deserialize an action and its parameters the way startup does
+     */
+    static NodeAction parseAction(Element p_actionElement, int p_functionIndex)
+    {
+        NodeAction action = new NodeAction(p_actionElement, C_NODE_ID, p_functionIndex);
+        Elements paramElements = p_actionElement.getChildElements();
+        for (int k=0; k<paramElements.size(); ++k)
+        {
+            action.addParameter(new NodeParameter(paramElements.get(k),
+                    action.getActionId(), C_NODE_ID, p_functionIndex, k+1));
+        }
+        action.updateNumParameters();
+        return action;
+    }
+
+    /**
+     * An action and its parameters the way a catalog holds them
+     */
+    private static String serialize(NodeAction p_action)
+    {
+        Element element = p_action.serialize();
+        for (int k=1; k<=p_action.getParameterCount(); ++k)
+        {
+            element.appendChild(p_action.getParameter(k).serialize());
+        }
+        return element.toXML();
+    }
+
+    static List<NodeAction> createActions(int p_numFunctions)
+    {
+        TestNode node = new TestNode(C_NODE_ID);
+        List<NodeAction> actions = new ArrayList<NodeAction>();
+        for (int i=1; i<=p_numFunctions; ++i)
+        {
+            INodeAction action = ActionManager.getInstance().addNodeAction(node, i, "Function " + i,
+                    EsnDataTypes.WORD, C_NUM_PARAMETERS, new HashMap<Integer, EsnDataTypes>());
+
+            for (int k=1; k<=C_NUM_PARAMETERS; ++k)
+            {
+                HashMap<Integer, String> enumValues = new HashMap<Integer, String>();
+                EsnParamValidationTypes validation = EsnParamValidationTypes.UNSIGNED_RANGE;
+                if (k == C_NUM_PARAMETERS)
+                {
+                    validation = EsnParamValidationTypes.ENUMERATED;
+                    enumValues.put(0, "off");
+                    enumValues.put(1, "on");
+                }
+                ActionManager.getInstance().addNodeParameter(action, k, i, C_NODE_ID, "Parameter " + k,
+                        EsnDataTypes.BYTE, validation, 0, 100 + k, 0, enumValues);
+            }
+            ((NodeAction)action).updateNumParameters();
+            actions.add((NodeAction)action);
+        }
+        return actions;
+    }
+
+    static Document createCatalog(List<NodeAction> p_actions)
+    {
+        Element root = new Element("catalog");
+        root.addAttribute(new Attribute("nodeId", Long.toHexString(C_NODE_ID)));
+        Element actionsElement = new Element("actions");
+        root.appendChild(actionsElement);
+        for (NodeAction action : p_actions)
+        {
+            Element element = action.serialize();
+            for (int k=1; k<=action.getParameterCount(); ++k)
+            {
+                element.appendChild(action.getParameter(k).serialize());
+            }
+            actionsElement.appendChild(element);
+        }
+        return new Document(root);
+    }
+
+    static List<NodeBase> createNodes(int p_numNodes)
+    {
+        List<NodeBase> nodes = new ArrayList<NodeBase>();
+        for (int i=0; i<p_numNodes; ++i)
+        {
+            TestNode node = new TestNode(C_NODE_ID + i);
+            node.setName("Node " + i);
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    static Document createNodeList(List<NodeBase> p_nodes)
+    {
+        Element root = new Element("nodes");
+        for (NodeBase node : p_nodes)
+        {
+            root.appendChild(node.serialize());
+        }
+        return new Document(root);
+    }
+
+    static File createDir() throws Exception
+    {
+        File dir = File.createTempFile("stream", "");
+        dir.delete();
+        dir.mkdir();
+        return dir;
+    }
+
+    static File writeFile(File p_dir, String p_name, Document p_doc) throws Exception
+    {
+        File file = new File(p_dir, p_name);
+        FileUtils.writeStringToFile(file, p_doc.toXML(), "UTF-8");
+        return file;
+    }
+}
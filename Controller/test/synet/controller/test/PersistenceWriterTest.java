@@ -0,0 +1,142 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import nu.xom.Document;
+import nu.xom.Element;
+
+import org.junit.Test;
+
+import synet.controller.messaging.PersistenceWriter;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class PersistenceWriterTest extends TestCase
+{
+    private static final long C_FILE_SIZE = 100;
+
+    private final List<String> m_written = Collections.synchronizedList(new ArrayList<String>());
+
+    private final PersistenceWriter.Sink m_sink = new PersistenceWriter.Sink()
+    {
+        @Override
+        public long write(Document p_doc, String p_prefix)
+        {
+            m_written.add(p_prefix + ":" + p_doc.getRootElement().getLocalName());
+            return C_FILE_SIZE;
+        }
+
+        @Override
+        public void delete(String p_prefix)
+        {
+            m_written.add(p_prefix + ":deleted");
+        }
+    };
+
+    /**
+     * A burst of updates to the same file is written once, with the
+     * newest document, after the debounce runs out
+     */
+    @Test
+    public void testCoalesce() throws Exception
+    {
+        PersistenceWriter writer = new PersistenceWriter(m_sink, 100, 32);
+        writer.start();
+
+        for (int i=0; i<30; ++i)
+        {
+            writer.markDirty("nodelist", new NamedSource("v" + i));
+        }
+        writer.markDirty("catalog_1", new NamedSource("c"));
+
+        assertTrue(m_written.isEmpty());
+        Thread.sleep(400);
+
+        assertEquals(2, m_written.size());
+        assertTrue(m_written.contains("nodelist:v29"));
+        assertTrue(m_written.contains("catalog_1:c"));
+
+        assertEquals(31, writer.getNumRequests());
+        assertEquals(2, writer.getNumWrites());
+        assertEquals(29, writer.getNumCoalesced());
+        assertEquals(29 * C_FILE_SIZE, writer.getNumBytesSaved());
+
+        writer.stop();
+    }
+
+    /**
+     * Hitting the pending limit flushes without waiting for the debounce,
+     * and stopping flushes whatever is left
+     */
+    @Test
+    public void testThresholdAndStop() throws Exception
+    {
+        PersistenceWriter writer = new PersistenceWriter(m_sink, 60000, 3);
+        writer.start();
+
+        writer.markDirty("catalog_1", new NamedSource("a"));
+        writer.markDirty("catalog_2", new NamedSource("b"));
+        writer.markDirty("catalog_3", new NamedSource("c"));
+        Thread.sleep(200);
+        assertEquals(3, m_written.size());
+
+        writer.markDirty("catalog_4", new NamedSource("d"));
+        Thread.sleep(100);
+        assertEquals(3, m_written.size());
+
+        writer.stop();
+        assertEquals(4, m_written.size());
+        assertTrue(m_written.contains("catalog_4:d"));
+    }
+
+    /**
+     * Marking a file for deletion replaces its pending write, and the
+     * delete goes to the sink from the writer instead of from a source
+     */
+    @Test
+    public void testDelete() throws Exception
+    {
+        PersistenceWriter writer = new PersistenceWriter(m_sink, 60000, 32);
+        writer.start();
+
+        writer.markDirty("node_1", new NamedSource("a"));
+        writer.markDeleted("node_1");
+        writer.markDeleted("node_2");
+        writer.markDirty("node_2", new NamedSource("b"));
+
+        writer.stop();
+        assertEquals(2, m_written.size());
+        assertTrue(m_written.contains("node_1:deleted"));
+        assertTrue(m_written.contains("node_2:b"));
+        assertEquals(C_FILE_SIZE, writer.getNumBytesWritten());
+    }
+
+    /**
+     * Builds a document with a named root so the test can see which
+     * version was written
+     */
+    private static class NamedSource implements PersistenceWriter.Source
+    {
+        private final String m_name;
+
+        public NamedSource(String p_name)
+        {
+            m_name = p_name;
+        }
+
+        @Override
+        public Document build()
+        {
+            return new Document(new Element(m_name));
+        }
+    }
+}
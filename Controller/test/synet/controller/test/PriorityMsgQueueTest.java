@@ -0,0 +1,210 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.messaging.messages.MsgConstants;
+import synet.controller.messaging.messages.MsgPriority;
+import synet.controller.messaging.messages.MsgTx;
+import synet.controller.messaging.queue.LinkedMsgQueue;
+import synet.controller.messaging.queue.MsgQueue;
+import synet.controller.messaging.queue.PriorityMsgQueue;
+import synet.controller.utils.LatencyHistogram;
+
+/**
+ * Checks the weighted draining of the outgoing queue and how long an
+ * interactive message sent during a firmware push and a discovery storm
+ * waits.
+ *
+ * @author mkurdziel
+ *
+ */
+public class PriorityMsgQueueTest extends TestCase
+{
+    private static final int C_NUM_PAGES = 400;
+    private static final int C_NUM_DISCOVERY = 200;
+    private static final long C_FRAME_MS = 25;
+
+    /**
+     * Each round takes up to a class's weight from it, highest first
+     */
+    @Test
+    public void testWeightedRounds()
+    {
+        PriorityMsgQueue queue = createQueue(new int[] { 2, 1, 1, 1 });
+        for (int i=0; i<4; ++i)
+        {
+            queue.put(new TestMsgTx(MsgConstants.SN_API_BOOTLOAD_TRANSMIT));
+            queue.put(new TestMsgTx(MsgConstants.SN_API_CATALOG_REQUEST));
+            queue.put(new TestMsgTx(MsgConstants.SN_API_FUNCTION_TRANSMIT));
+        }
+        assertEquals(4, queue.size(MsgPriority.INTERACTIVE));
+
+        MsgPriority[] expected = {
+                MsgPriority.INTERACTIVE, MsgPriority.INTERACTIVE, MsgPriority.DISCOVERY, MsgPriority.BULK,
+                MsgPriority.INTERACTIVE, MsgPriority.INTERACTIVE, MsgPriority.DISCOVERY, MsgPriority.BULK,
+                MsgPriority.DISCOVERY, MsgPriority.BULK,
+                MsgPriority.DISCOVERY, MsgPriority.BULK };
+        for (MsgPriority priority : expected)
+        {
+            assertEquals(priority, queue.poll().getPriority());
+        }
+        assertNull(queue.poll());
+        assertEquals(4, queue.getLatencyHistogram(MsgPriority.BULK).getCount());
+
+        // The class can be changed per message
+        TestMsgTx msg = new TestMsgTx(MsgConstants.SN_API_BOOTLOAD_TRANSMIT);
+        msg.setPriority(MsgPriority.CONTROL);
+        queue.put(msg);
+        assertEquals(1, queue.size(MsgPriority.CONTROL));
+    }
+
+    /**
+     * A put from another thread gets the consumer out of take, and so
+     * does wakeUp with nothing queued
+     *
+     * @throws InterruptedException
+     */
+    @Test
+    public void testTake() throws InterruptedException
+    {
+        final PriorityMsgQueue queue = createQueue(PriorityMsgQueue.getDefaultWeights());
+        final TestMsgTx msg = new TestMsgTx(MsgConstants.SN_API_FUNCTION_TRANSMIT);
+
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                queue.put(msg);
+            }
+        };
+        producer.start();
+        assertSame(msg, queue.take());
+        producer.join();
+
+        queue.wakeUp();
+        assertNull(queue.take());
+        assertEquals(0, queue.size());
+    }
+
+    /**
+     * Percentiles come back as the top of their power of two bucket
+     */
+    @Test
+    public void testHistogram()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(50));
+
+        for (int i=0; i<99; ++i)
+        {
+            histogram.record(100 * 1000);
+        }
+        histogram.record(5000 * 1000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(128, histogram.getPercentileMicros(50));
+        assertEquals(128, histogram.getPercentileMicros(99));
+        assertEquals(5000, histogram.getPercentileMicros(100));
+        assertEquals(5000, histogram.getMaxMicros());
+        assertEquals(149, histogram.getMeanMicros());
+    }
+
+    /**
+     * A firmware push and a round of discovery are queued, then a user
+     * action is sent
+     */
+    @Test
+    public void testInteractiveLatency()
+    {
+        long fifoMs = simulate(createQueue(new int[] { 1, 1, 1, 1 }), true);
+        long priorityMs = simulate(createQueue(PriorityMsgQueue.getDefaultWeights()), false);
+        assertTrue(priorityMs < fifoMs);
+        assertTrue(priorityMs <= C_FRAME_MS);
+
+        // Behind every page and discovery request like the old queue
+        assertEquals((C_NUM_PAGES + C_NUM_DISCOVERY + 1) * C_FRAME_MS, fifoMs);
+    }
+
+    /**
+     * @param p_queue
+     * @param p_isFifo send everything as one class, like the old queue
+     * @return how long the user message waited to go out over the air
+     */
+    private long simulate(PriorityMsgQueue p_queue, boolean p_isFifo)
+    {
+        for (int i=0; i<C_NUM_PAGES; ++i)
+        {
+            p_queue.put(createMsg(MsgConstants.SN_API_BOOTLOAD_TRANSMIT, p_isFifo));
+            if (i < C_NUM_DISCOVERY)
+            {
+                p_queue.put(createMsg(MsgConstants.SN_API_DEVICE_STATUS_REQUEST, p_isFifo));
+            }
+        }
+        TestMsgTx user = createMsg(MsgConstants.SN_API_FUNCTION_TRANSMIT, p_isFifo);
+        p_queue.put(user);
+
+        for (long now=C_FRAME_MS; ; now+=C_FRAME_MS)
+        {
+            if (p_queue.poll() == user)
+            {
+                return now;
+            }
+        }
+    }
+
+    private TestMsgTx createMsg(byte p_api, boolean p_isFifo)
+    {
+        TestMsgTx msg = new TestMsgTx(p_api);
+        if (p_isFifo)
+        {
+            msg.setPriority(MsgPriority.CONTROL);
+        }
+        return msg;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private PriorityMsgQueue createQueue(int[] p_weights)
+    {
+        MsgQueue<MsgTx>[] levels = new MsgQueue[MsgPriority.values().length];
+        for (int i=0; i<levels.length; ++i)
+        {
+            levels[i] = new LinkedMsgQueue<MsgTx>();
+        }
+        return new PriorityMsgQueue(levels, p_weights);
+    }
+
+    private static class TestMsgTx extends MsgTx
+    {
+        private final byte m_api;
+
+        public TestMsgTx(byte p_api)
+        {
+            super(null);
+            m_api = p_api;
+        }
+
+        @Override
+        public byte[] getBytes()
+        {
+            return new byte[0];
+        }
+
+        @Override
+        public String getMsgType()
+        {
+            return "TestMsgTx";
+        }
+
+        @Override
+        public byte getAPI()
+        {
+            return m_api;
+        }
+    }
+}
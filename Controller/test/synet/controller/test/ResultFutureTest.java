@@ -0,0 +1,107 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.utils.ResultFuture;
+import synet.controller.utils.ResultFuture.ResultListener;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class ResultFutureTest extends TestCase
+{
+    /**
+     * The first result wins and listeners run once, whether they were
+     * added before or after it came in
+     */
+    @Test
+    public void testFirstResultWins() throws Exception
+    {
+        ResultFuture<String> future = new ResultFuture<String>();
+        final int[] calls = new int[1];
+        ResultListener<String> listener = new ResultListener<String>()
+        {
+            @Override
+            public void onResult(ResultFuture<String> p_future)
+            {
+                calls[0]++;
+            }
+        };
+
+        future.addListener(listener);
+        assertTrue(future.complete("done"));
+        assertFalse(future.fail("too late"));
+        assertEquals(1, calls[0]);
+
+        future.addListener(listener);
+        assertEquals(2, calls[0]);
+
+        assertTrue(future.isSuccess());
+        assertEquals("done", future.get());
+        assertNull(future.getErrorMsg());
+    }
+
+    /**
+     * A failed result throws from get() with the error message
+     */
+    @Test
+    public void testFail() throws Exception
+    {
+        ResultFuture<String> future = new ResultFuture<String>();
+        future.fail("no response");
+
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccess());
+        try
+        {
+            future.get();
+            fail("expected an ExecutionException");
+        }
+        catch (ExecutionException e)
+        {
+            assertEquals("no response", e.getMessage());
+        }
+    }
+
+    /**
+     * Waiting on a result that never comes times out, and one completed
+     * from another thread wakes the waiter
+     */
+    @Test
+    public void testWait() throws Exception
+    {
+        final ResultFuture<String> future = new ResultFuture<String>();
+
+        assertFalse(future.await(10));
+        try
+        {
+            future.get(10, TimeUnit.MILLISECONDS);
+            fail("expected a TimeoutException");
+        }
+        catch (TimeoutException e)
+        {
+            // Expected
+        }
+
+        new Thread()
+        {
+            @Override
+            public void run()
+            {
+                future.complete("later");
+            }
+        }.start();
+
+        assertEquals("later", future.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.NodeManager;
+import synet.controller.Protocol.EsnDataTypes;
+import synet.controller.Protocol.EsnParamValidationTypes;
+import synet.controller.actions.ActionManager;
+import synet.controller.actions.IAction;
+import synet.controller.actions.NodeAction;
+import synet.controller.actions.NodeParameter;
+import synet.controller.actions.SequenceAction;
+import synet.controller.messaging.MsgDispatcher;
+import synet.controller.utils.ResultFuture;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class SequenceActionTest extends TestCase
+{
+    private static final long C_TIMEOUT_MS = 5000;
+
+    /**
+     * Items on different nodes run at the same time, items on the same
+     * node stay in order, and nothing crosses a barrier
+     */
+    @Test
+    public void testParallelLanes() throws Exception
+    {
+        AtomicInteger running = new AtomicInteger();
+        int[] maxRunning = new int[1];
+        StringBuffer order = new StringBuffer();
+
+        SequenceAction sequence = new SequenceAction((short)1, EsnDataTypes.VOID);
+        sequence.setIsParallel(true);
+        sequence.addAction(new DelayedAction((short)10, 1, "a", running, maxRunning, order));
+        sequence.addAction(new DelayedAction((short)11, 2, "b", running, maxRunning, order));
+        sequence.addAction(new DelayedAction((short)12, 1, "c", running, maxRunning, order));
+        sequence.addBarrier();
+        sequence.addAction(new DelayedAction((short)13, 3, "d", running, maxRunning, order));
+
+        assertTrue(sequence.execute(null, null, null, C_TIMEOUT_MS));
+
+        assertEquals(2, maxRunning[0]);
+        String result = order.toString();
+        assertTrue(result.indexOf('a') < result.indexOf('c'));
+        assertEquals('d', result.charAt(3));
+    }
+
+    /**
+     * A serial sequence still runs one item at a time
+     */
+    @Test
+    public void testSerial() throws Exception
+    {
+        AtomicInteger running = new AtomicInteger();
+        int[] maxRunning = new int[1];
+        StringBuffer order = new StringBuffer();
+
+        SequenceAction sequence = new SequenceAction((short)2, EsnDataTypes.VOID);
+        sequence.addAction(new DelayedAction((short)20, 1, "a", running, maxRunning, order));
+        sequence.addBarrier();
+        sequence.addAction(new DelayedAction((short)21, 2, "b", running, maxRunning, order));
+
+        assertTrue(sequence.execute(null, null, null, C_TIMEOUT_MS));
+
+        assertEquals(1, maxRunning[0]);
+        assertEquals("ab", order.toString());
+    }
+
+    /**
+     * Items on different nodes stay in order when one depends on a
+     * parameter of the other
+     */
+    @Test
+    public void testDependentParameter() throws Exception
+    {
+        AtomicInteger running = new AtomicInteger();
+        int[] maxRunning = new int[1];
+        StringBuffer order = new StringBuffer();
+
+        DelayedAction first = new DelayedAction((short)30, 1, "a", running, maxRunning, order);
+        NodeParameter param = addParameter(first);
+        DelayedAction second = new DelayedAction((short)31, 2, "b", running, maxRunning, order);
+        addParameter(second).setDependentParamId(param.getParameterId());
+
+        SequenceAction sequence = new SequenceAction((short)3, EsnDataTypes.VOID);
+        sequence.setIsParallel(true);
+        sequence.addAction(first);
+        sequence.addAction(second);
+
+        assertTrue(sequence.execute(null, null, null, C_TIMEOUT_MS));
+
+        assertEquals(1, maxRunning[0]);
+        assertEquals("ab", order.toString());
+    }
+
+    private NodeParameter addParameter(NodeAction p_action)
+    {
+        return ActionManager.getInstance().addNodeParameter(p_action, 1, 0, p_action.getNodeId(),
+                "param", EsnDataTypes.BYTE, EsnParamValidationTypes.UNSIGNED_FULL, 0, 255, 0,
+                new HashMap<Integer, String>());
+    }
+
+    /**
+     * Node action that finishes on its own thread after a short delay
+     */
+    private static class DelayedAction extends NodeAction
+    {
+        private final String m_label;
+        private final AtomicInteger m_running;
+        private final int[] m_maxRunning;
+        private final StringBuffer m_order;
+
+        public DelayedAction(short p_actionId, long p_nodeId, String p_label,
+                AtomicInteger p_running, int[] p_maxRunning, StringBuffer p_order)
+        {
+            super(p_actionId, p_nodeId, 0, p_label, EsnDataTypes.VOID, 0, new HashMap<Integer, EsnDataTypes>());
+            m_label = p_label;
+            m_running = p_running;
+            m_maxRunning = p_maxRunning;
+            m_order = p_order;
+        }
+
+        @Override
+        public boolean execute(NodeManager p_nodeManager,
+                ActionManager p_actionManager, MsgDispatcher p_msgDispatcher,
+                long p_timeoutMilliseconds)
+        {
+            try
+            {
+                return executeAsync(p_nodeManager, p_actionManager, p_msgDispatcher, p_timeoutMilliseconds).get() != null;
+            }
+            catch (Exception e)
+            {
+                return false;
+            }
+        }
+
+        @Override
+        public ResultFuture<IAction> executeAsync(NodeManager p_nodeManager,
+                ActionManager p_actionManager, MsgDispatcher p_msgDispatcher,
+                long p_timeoutMilliseconds)
+        {
+            final ResultFuture<IAction> result = new ResultFuture<IAction>();
+            final IAction action = this;
+
+            synchronized (m_maxRunning)
+            {
+                m_maxRunning[0] = Math.max(m_maxRunning[0], m_running.incrementAndGet());
+            }
+
+            new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(100);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Finish early
+                    }
+                    m_order.append(m_label);
+                    m_running.decrementAndGet();
+                    result.complete(action);
+                }
+            }.start();
+
+            return result;
+        }
+    }
+}
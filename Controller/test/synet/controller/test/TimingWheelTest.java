@@ -0,0 +1,77 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.utils.TimingWheel;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class TimingWheelTest extends TestCase
+{
+    /**
+     * Items expire on the first advance at or past their deadline
+     * and never before it
+     */
+    @Test
+    public void testExpire()
+    {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8);
+
+        wheel.schedule("a", 25, 1000);
+        wheel.schedule("b", 50, 1000);
+        assertEquals(2, wheel.size());
+
+        assertTrue(wheel.advance(1020).isEmpty());
+
+        List<String> expired = wheel.advance(1030);
+        assertEquals(1, expired.size());
+        assertEquals("a", expired.get(0));
+
+        expired = wheel.advance(1050);
+        assertEquals(1, expired.size());
+        assertEquals("b", expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+
+    /**
+     * Cancelled items never expire
+     */
+    @Test
+    public void testCancel()
+    {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8);
+
+        TimingWheel.Timeout<String> timeout = wheel.schedule("a", 20, 1000);
+        assertTrue(wheel.cancel(timeout));
+        assertFalse(wheel.cancel(timeout));
+        assertEquals(0, wheel.size());
+
+        assertTrue(wheel.advance(2000).isEmpty());
+    }
+
+    /**
+     * Delays longer than a full turn of the wheel wait for the right lap
+     */
+    @Test
+    public void testLongDelay()
+    {
+        TimingWheel<String> wheel = new TimingWheel<String>(10, 8);
+
+        wheel.schedule("a", 200, 1000);
+
+        for (long now=1000; now<1200; now+=10)
+        {
+            assertTrue(wheel.advance(now).isEmpty());
+        }
+        assertEquals(1, wheel.advance(1200).size());
+    }
+}
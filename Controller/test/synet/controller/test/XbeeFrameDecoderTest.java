@@ -0,0 +1,205 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.Protocol.EsnDataTypes;
+import synet.controller.messaging.MsgFactory;
+import synet.controller.messaging.MsgFactoryXbee;
+import synet.controller.messaging.XbeeFrameDecoder;
+import synet.controller.messaging.XbeeFrameListener;
+import synet.controller.messaging.messages.Msg;
+import synet.controller.messaging.messages.MsgCatalogResponse;
+import synet.controller.messaging.messages.MsgConstants;
+import synet.controller.messaging.messages.MsgConstants.EsnAPIDeviceStatusValue;
+import synet.controller.messaging.messages.MsgDeviceStatusResponse;
+import synet.controller.nodes.NodeZigbee;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class XbeeFrameDecoderTest extends TestCase
+{
+    // 64 bit address, 16 bit address and options ahead of the SyNet message
+    private static final int C_RX_HEADER_SIZE = 11;
+
+    /**
+     * Frames come out of a stream read a few bytes at a time, skipping
+     * garbage between frames and a frame with a bad checksum
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testDecoder() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] { 0x01, 0x02 });
+        writeFrame(out, MsgFactoryXbee.C_XBEE_API_ZIGBEE_TX_STATUS, new byte[] { 1, 0, 0, 0, 0, 0 });
+        byte[] bad = frame(MsgFactoryXbee.C_XBEE_API_ZIGBEE_RX, new byte[20]);
+        bad[bad.length-1]++;
+        out.write(bad);
+        writeFrame(out, MsgFactoryXbee.C_XBEE_API_ZIGBEE_RX, new byte[30]);
+
+        CountingListener listener = new CountingListener();
+        XbeeFrameDecoder decoder = new XbeeFrameDecoder(listener);
+        decoder.read(new ChunkedInputStream(out.toByteArray(), 3));
+
+        assertEquals(2, listener.m_numFrames);
+        assertEquals(1, decoder.getNumErrors());
+        assertEquals(MsgFactoryXbee.C_XBEE_API_ZIGBEE_RX, listener.m_lastApi);
+        assertEquals(30, listener.m_lastSize);
+    }
+
+    /**
+     * A frame that ends early or a string without its terminator parses
+     * as far as the frame goes instead of throwing
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testShortMessages() throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // INFO status missing the last byte of the revision
+        writeFrame(out, MsgFactoryXbee.C_XBEE_API_ZIGBEE_RX, rxData(new byte[] {
+                (byte)MsgConstants.SYNET_START_BYTE, MsgConstants.SN_API_DEVICE_STATUS_RESPONSE,
+                (byte)EsnAPIDeviceStatusValue.INFO.getCode(), 0, 1, 0, 2, 0, 3, 0 }));
+        // Catalog entry whose name runs to the end of the frame
+        writeFrame(out, MsgFactoryXbee.C_XBEE_API_ZIGBEE_RX, rxData(new byte[] {
+                (byte)MsgConstants.SYNET_START_BYTE, MsgConstants.SN_API_CATALOG_RESPONSE,
+                1, 1, 0, (byte)EsnDataTypes.VOID.getCode(), 'o', 'n' }));
+        // Nothing past the start byte
+        writeFrame(out, MsgFactoryXbee.C_XBEE_API_ZIGBEE_RX, rxData(new byte[] {
+                (byte)MsgConstants.SYNET_START_BYTE }));
+
+        ParsingListener listener = new ParsingListener();
+        XbeeFrameDecoder decoder = new XbeeFrameDecoder(listener);
+        decoder.read(new ChunkedInputStream(out.toByteArray(), 3));
+
+        assertEquals(3, listener.m_numFrames);
+        assertNull(listener.m_error);
+
+        MsgDeviceStatusResponse status = (MsgDeviceStatusResponse)listener.m_msgs[0];
+        assertEquals(EsnAPIDeviceStatusValue.INFO, status.getDeviceStatus());
+        assertEquals(0, status.getRevision());
+
+        MsgCatalogResponse catalog = (MsgCatalogResponse)listener.m_msgs[1];
+        assertEquals("on", catalog.getFunctionName());
+
+        assertNull(listener.m_msgs[2]);
+    }
+
+    /**
+     * @return RX frame data carrying the given SyNet message
+     */
+    static byte[] rxData(byte[] p_msg)
+    {
+        byte[] data = new byte[C_RX_HEADER_SIZE + p_msg.length];
+        System.arraycopy(p_msg, 0, data, C_RX_HEADER_SIZE, p_msg.length);
+        return data;
+    }
+
+    static void writeFrame(ByteArrayOutputStream p_out, int p_api, byte[] p_data) throws IOException
+    {
+        p_out.write(frame(p_api, p_data));
+    }
+
+    /**
+     * @return a complete API frame with size and checksum
+     */
+    static byte[] frame(int p_api, byte[] p_data)
+    {
+        int size = p_data.length + 1;
+        byte[] frame = new byte[size + 4];
+        int checksum = p_api;
+
+        frame[0] = (byte)MsgFactoryXbee.C_XBEE_API_START_BYTE;
+        frame[1] = (byte)(size >> 8);
+        frame[2] = (byte)size;
+        frame[3] = (byte)p_api;
+        for (int i=0; i<p_data.length; ++i)
+        {
+            frame[4+i] = p_data[i];
+            checksum += p_data[i] & 0xff;
+        }
+        frame[frame.length-1] = (byte)(0xff - (checksum & 0xff));
+        return frame;
+    }
+
+    /**
+     * Listener that touches the frame the way the message factory would
+     */
+    static class CountingListener implements XbeeFrameListener
+    {
+        int m_numFrames = 0;
+        int m_lastApi = 0;
+        int m_lastSize = 0;
+        long m_sink = 0;
+
+        @Override
+        public void handleXbeeFrame(int p_api, ByteBuffer p_frame)
+        {
+            m_numFrames++;
+            m_lastApi = p_api;
+            m_lastSize = p_frame.remaining();
+            m_sink += p_frame.get(p_frame.position());
+        }
+    }
+
+    /**
+     * Listener that parses each RX frame into a message and keeps what
+     * the parse threw, if anything
+     */
+    static class ParsingListener implements XbeeFrameListener
+    {
+        final NodeZigbee m_node = new NodeZigbee(0x0013a20040522baaL, 0x7d84);
+        final Msg[] m_msgs = new Msg[8];
+        int m_numFrames = 0;
+        RuntimeException m_error = null;
+
+        @Override
+        public void handleXbeeFrame(int p_api, ByteBuffer p_frame)
+        {
+            try
+            {
+                m_msgs[m_numFrames++] = MsgFactory.createMessage(m_node, null, p_frame,
+                        p_frame.position() + C_RX_HEADER_SIZE);
+            }
+            catch (RuntimeException e)
+            {
+                m_error = e;
+            }
+        }
+    }
+
+    /**
+     * Stream that hands out at most a fixed number of bytes per read,
+     * like a serial port does
+     */
+    static class ChunkedInputStream extends ByteArrayInputStream
+    {
+        private final int m_chunk;
+
+        public ChunkedInputStream(byte[] p_buf, int p_chunk)
+        {
+            super(p_buf);
+            m_chunk = p_chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] p_bytes, int p_offset, int p_length)
+        {
+            return super.read(p_bytes, p_offset, Math.min(p_length, m_chunk));
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.messaging.MsgFactoryXbee;
+import synet.controller.messaging.XbeeFrameEncoder;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class XbeeFrameEncoderTest extends TestCase
+{
+    static final byte[] C_ADDR64 = new byte[] { 0x00, 0x13, (byte)0xa2, 0x00, 0x40, 0x52, 0x2b, (byte)0xaa };
+    static final byte[] C_ADDR16 = new byte[] { 0x7d, (byte)0x84 };
+
+    /**
+     * The encoder has to produce exactly what the old code did, in one
+     * write, including payloads longer than 127 bytes
+     *
+     * @throws IOException
+     */
+    @Test
+    public void testMatchesLegacy() throws IOException
+    {
+        byte[][] payloads = new byte[][] { new byte[] { 0x7e, 0x01, 0x02 }, createPayload(200) };
+
+        for (byte[] payload : payloads)
+        {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            new LegacyEncoder(expected).writeTxRequest(0x52, C_ADDR64, C_ADDR16, payload);
+
+            CountingOutputStream actual = new CountingOutputStream();
+            actual.m_keep = new ByteArrayOutputStream();
+            XbeeFrameEncoder encoder = new XbeeFrameEncoder(actual);
+            int length = encoder.writeTxRequest(0x52, C_ADDR64, C_ADDR16, payload);
+
+            assertEquals(payload.length + 18, length);
+            assertEquals(1, actual.m_numWrites);
+            assertTrue(Arrays.equals(expected.toByteArray(), actual.m_keep.toByteArray()));
+        }
+    }
+
+    static byte[] createPayload(int p_length)
+    {
+        byte[] payload = new byte[p_length];
+        for (int i=0; i<p_length; ++i)
+        {
+            payload[i] = (byte)(i * 7);
+        }
+        return payload;
+    }
+
+    /**
+     * In-memory sink that counts write calls, standing in for the serial port
+     */
+    static class CountingOutputStream extends OutputStream
+    {
+        long m_numWrites = 0;
+        long m_numBytes = 0;
+        ByteArrayOutputStream m_keep = null;
+        OutputStream m_device = null;
+
+        @Override
+        public void write(int p_byte) throws IOException
+        {
+            m_numWrites++;
+            m_numBytes++;
+            if (m_keep != null)
+            {
+                m_keep.write(p_byte);
+            }
+            if (m_device != null)
+            {
+                m_device.write(p_byte);
+            }
+        }
+
+        @Override
+        public void write(byte[] p_bytes, int p_offset, int p_length) throws IOException
+        {
+            m_numWrites++;
+            m_numBytes += p_length;
+            if (m_keep != null)
+            {
+                m_keep.write(p_bytes, p_offset, p_length);
+            }
+            if (m_device != null)
+            {
+                m_device.write(p_bytes, p_offset, p_length);
+            }
+        }
+    }
+
+    /**
+     * The byte at a time writes MsgAdapterXbee.SendTxMessage used before
+     */
+    static class LegacyEncoder
+    {
+        private final OutputStream m_serialOut;
+        private int m_sendChecksum;
+
+        public LegacyEncoder(OutputStream p_out)
+        {
+            m_serialOut = p_out;
+        }
+
+        public void writeTxRequest(int frameId, byte[] addr64, byte[] addr16, byte[] messageBytes) throws IOException
+        {
+            int size = 14 + messageBytes.length;
+
+            sb( MsgFactoryXbee.C_XBEE_API_START_BYTE);
+            sb( (size>>8) & 0xff);
+            sb( size & 0xff);
+            m_sendChecksum = 0;
+            sb( MsgFactoryXbee.C_XBEE_API_ZIGBEE_TX_REQ);
+            sb( frameId );
+            sb( addr64 );
+            sb( addr16 );
+            sb( 0x00 );
+            sb( 0x00 );
+            sb( messageBytes );
+            sb( 0xff - (m_sendChecksum & 0xff) );
+        }
+
+        private void sb(int p_byte) throws IOException
+        {
+            m_serialOut.write(p_byte);
+            m_sendChecksum = (m_sendChecksum + p_byte) & 0xff;
+        }
+
+        private void sb(byte[] p_bytes) throws IOException
+        {
+            for(int i=0; i < p_bytes.length; ++i)
+            {
+                sb(p_bytes[i]);
+            }
+        }
+    }
+}
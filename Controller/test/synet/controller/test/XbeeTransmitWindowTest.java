@@ -0,0 +1,136 @@
+/**
+ *
+ */
+package synet.controller.test;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+
+import synet.controller.messaging.XbeeTransmitWindow;
+import synet.controller.messaging.XbeeTransmitWindow.TxFrame;
+import synet.controller.messaging.messages.MsgTx;
+
+/**
+ * @author mkurdziel
+ *
+ */
+public class XbeeTransmitWindowTest extends TestCase
+{
+    /**
+     * Sends past the window size queue up in order and go out as
+     * frames complete
+     */
+    @Test
+    public void testQueuesWhenFull()
+    {
+        XbeeTransmitWindow window = new XbeeTransmitWindow(2, 10000);
+        TestMsgTx[] msgs = new TestMsgTx[4];
+        for (int i=0; i<msgs.length; ++i)
+        {
+            msgs[i] = new TestMsgTx();
+        }
+
+        TxFrame first = window.offer(msgs[0], null);
+        TxFrame second = window.offer(msgs[1], null);
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNull(window.offer(msgs[2], null));
+        assertNull(window.offer(msgs[3], null));
+        assertEquals(2, window.getNumInFlight());
+        assertEquals(2, window.getQueueSize());
+
+        // Nothing goes out until a frame completes
+        assertNull(window.poll());
+
+        assertSame(msgs[0], window.complete(first.getFrameId()));
+        TxFrame third = window.poll();
+        assertSame(msgs[2], third.getMsg());
+        assertNull(window.poll());
+
+        // A second status for the same frame is ignored
+        assertNull(window.complete(first.getFrameId()));
+    }
+
+    /**
+     * Frame IDs are never 0, never shared while in flight, and are
+     * recycled oldest first
+     */
+    @Test
+    public void testFrameIdRecycling()
+    {
+        XbeeTransmitWindow window = new XbeeTransmitWindow(255, 10000);
+        boolean[] used = new boolean[256];
+
+        for (int i=0; i<255; ++i)
+        {
+            int id = window.offer(new TestMsgTx(), null).getFrameId();
+            assertTrue(id > 0 && id < 256);
+            assertFalse(used[id]);
+            used[id] = true;
+        }
+
+        // Every ID is in flight, so the next send has to wait
+        assertNull(window.offer(new TestMsgTx(), null));
+
+        window.complete(7);
+        window.complete(3);
+        assertEquals(7, window.poll().getFrameId());
+        assertNotNull(window.offer(new TestMsgTx(), null));
+        assertEquals(0, window.getQueueSize());
+    }
+
+    /**
+     * Frames with no TX status expire and free their IDs
+     */
+    @Test
+    public void testExpire()
+    {
+        XbeeTransmitWindow window = new XbeeTransmitWindow(1, 100);
+        TestMsgTx msg = new TestMsgTx();
+
+        window.offer(msg, null);
+        assertNull(window.offer(new TestMsgTx(), null));
+
+        assertTrue(window.expire(System.currentTimeMillis()).isEmpty());
+
+        List<MsgTx> expired = window.expire(System.currentTimeMillis() + 200);
+        assertEquals(1, expired.size());
+        assertSame(msg, expired.get(0));
+        assertEquals(1, window.getNumExpired());
+        assertEquals(0, window.getNumInFlight());
+
+        assertNotNull(window.poll());
+    }
+
+    /**
+     * Minimal transmit message
+     */
+    private static class TestMsgTx extends MsgTx
+    {
+        public TestMsgTx()
+        {
+            super(null);
+        }
+
+        @Override
+        public byte[] getBytes()
+        {
+            return new byte[0];
+        }
+
+        @Override
+        public String getMsgType()
+        {
+            return "TestMsgTx";
+        }
+
+        @Override
+        public byte getAPI()
+        {
+            return 0;
+        }
+    }
+}